@@ -0,0 +1,208 @@
+package Engine;
+
+import ij.IJ;
+import ij.ImageStack;
+import ij.Prefs;
+
+import java.awt.Rectangle;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.function.Supplier;
+
+/**
+ * Splits the rows of a slice into bands and renders them on a ForkJoinPool with
+ * Prefs.getThreads() workers. Every band gets its own {@link RowBuffer#fork} of the
+ * row buffer, so the workers never share evaluator state. Stacks with enough slices
+ * are rendered a whole slice per task instead, see {@link #renderStack}.
+ *
+ * If the macro carries state from one pixel to the next (or calls interpreter
+ * functions with side effects) the bands are rendered one after another on the
+ * calling thread instead, exactly like the sequential loop.
+ *
+ * Interrupting the calling thread, e.g. with Future.cancel(true), cancels a render:
+ * bands and slices not started yet are skipped and a CancellationException is thrown
+ * once the running ones are done. The image is left partly rendered.
+ *
+ * Renders started inside {@link #inBackground} run on a second pool whose workers have
+ * the lowest priority, so rendering ahead does not slow down the interactive renders.
+ */
+public final class Bands {
+
+	/** renders the rows from (inclusive) to to (exclusive) using row */
+	public interface Renderer {
+		void render(RowBuffer row, int from, int to);
+	}
+
+	/** renders slice z (0 based) using row, usually by calling {@link #render} */
+	public interface SliceRenderer {
+		void render(RowBuffer row, int z);
+	}
+
+	private static final int MIN_BANDS = 50; // progress bar steps
+
+	private static volatile ForkJoinPool pool, backgroundPool;
+	private static final ThreadLocal<Boolean> BACKGROUND = ThreadLocal.withInitial(() -> false);
+
+	private Bands() {
+	}
+
+	/**
+	 * Renders all slices of a stack. With at least as many slices as threads, or slices
+	 * too short to give every thread a band, each task renders whole slices and the
+	 * bands of a slice run in order on its worker. Otherwise the slices are rendered
+	 * one after another with parallel bands. The progress bar counts slices in the
+	 * first case and rows of the current slice in the second.
+	 *
+	 * @param rows rows rendered per slice
+	 */
+	public static void renderStack(final RowBuffer row, final int slices, int rows, final SliceRenderer renderer) {
+		int threads = Prefs.getThreads();
+		boolean bySlice = threads>1 && slices>1 && (slices>=threads || rows<threads);
+		RowBuffer first = bySlice ? row.fork() : null;
+		if (first==null) {
+			for (int z = 0; z < slices; z++) {
+				checkCanceled();
+				renderer.render(row, z);
+			}
+			return;
+		}
+
+		final Thread caller = Thread.currentThread();
+		final Progress progress = new Progress(slices);
+		List<ForkJoinTask<?>> tasks = new ArrayList<>();
+		ForkJoinPool pool = pool(threads);
+		for (int z = 0; z < slices; z++) {
+			final int slice = z;
+			final RowBuffer sliceRow = z==0 ? first : row.fork();
+			tasks.add(pool.submit(() -> {
+				if (caller.isInterrupted()) return;
+				renderer.render(sliceRow, slice);
+				progress.add(1);
+			}));
+		}
+		for (ForkJoinTask<?> task : tasks) task.join();
+		checkCanceled();
+	}
+
+	/**
+	 * Renders the first slices of stack, for renderers that only write the pixels inside r.
+	 * If no row depends on the slice ({@link RowBuffer#dependsOnSlice}) only the first
+	 * slice is rendered and its pixels inside r are copied to the others.
+	 */
+	public static void renderStack(RowBuffer row, ImageStack stack, int slices, Rectangle r, SliceRenderer renderer) {
+		if (slices<2 || row.dependsOnSlice()) {
+			renderStack(row, slices, r.height, renderer);
+			return;
+		}
+		renderer.render(row, 0);
+		int width = stack.getWidth();
+		Object first = stack.getPixels(1);
+		for (int z = 2; z <= slices; z++) {
+			Object pixels = stack.getPixels(z);
+			for (int y = r.y; y < r.y + r.height; y++)
+				System.arraycopy(first, y*width + r.x, pixels, y*width + r.x, r.width);
+		}
+	}
+
+	/**
+	 * Renders the rows from (inclusive) to to (exclusive) and shows the progress
+	 * through IJ.showProgress. Called from a slice task of {@link #renderStack} the
+	 * bands run in order on that worker and the slice counts as one step.
+	 */
+	public static void render(final RowBuffer row, final int from, final int to, final Renderer renderer) {
+		final int rows = to - from;
+		if (rows<=0) return;
+		int threads = Prefs.getThreads();
+		int bands = Math.max(MIN_BANDS, threads*8);
+		final int height = Math.max(1, (rows + bands - 1)/bands);
+		boolean inSliceTask = ForkJoinTask.inForkJoinPool() && (ForkJoinTask.getPool()==pool || ForkJoinTask.getPool()==backgroundPool);
+		final Progress progress = inSliceTask ? null : new Progress(rows);
+
+		RowBuffer first = threads>1 && rows>height && !inSliceTask ? row.fork() : null;
+		if (first==null) {
+			for (int y = from; y < to; y += height) {
+				int end = Math.min(y + height, to);
+				if (!inSliceTask) checkCanceled();
+				renderer.render(row, y, end);
+				if (progress!=null) progress.add(end - y);
+			}
+			return;
+		}
+
+		final Thread caller = Thread.currentThread();
+		List<ForkJoinTask<?>> tasks = new ArrayList<>();
+		ForkJoinPool pool = pool(threads);
+		for (int y = from; y < to; y += height) {
+			final int start = y, end = Math.min(y + height, to);
+			final RowBuffer band = start==from ? first : row.fork();
+			tasks.add(pool.submit(() -> {
+				if (caller.isInterrupted()) return;
+				renderer.render(band, start, end);
+				progress.add(end - start);
+			}));
+		}
+		for (ForkJoinTask<?> task : tasks) task.join();
+		checkCanceled();
+	}
+
+	// the bands of a slice task are canceled together with their slice by renderStack
+	private static void checkCanceled() {
+		if (Thread.currentThread().isInterrupted()) throw new CancellationException("render canceled");
+	}
+
+	/**
+	 * Calls render on this thread at the lowest priority, with the bands and slices it
+	 * renders going to the low priority pool.
+	 */
+	public static <T> T inBackground(Supplier<T> render) {
+		Thread thread = Thread.currentThread();
+		int priority = thread.getPriority();
+		thread.setPriority(Thread.MIN_PRIORITY);
+		BACKGROUND.set(true);
+		try {
+			return render.get();
+		} finally {
+			BACKGROUND.set(false);
+			thread.setPriority(priority);
+		}
+	}
+
+	private static synchronized ForkJoinPool pool(int threads) {
+		if (BACKGROUND.get()) {
+			if (backgroundPool==null || backgroundPool.getParallelism()!=threads) {
+				if (backgroundPool!=null) backgroundPool.shutdown();
+				backgroundPool = new ForkJoinPool(threads, owner -> {
+					ForkJoinWorkerThread worker = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(owner);
+					worker.setPriority(Thread.MIN_PRIORITY);
+					return worker;
+				}, null, false);
+			}
+			return backgroundPool;
+		}
+		if (pool==null || pool.getParallelism()!=threads) {
+			if (pool!=null) pool.shutdown();
+			pool = new ForkJoinPool(threads);
+		}
+		return pool;
+	}
+
+	/** counts finished rows, so the progress bar only moves forward whatever band finishes first */
+	private static final class Progress {
+		private final int total;
+		private int done;
+
+		Progress(int total) {
+			this.total = total;
+		}
+
+		synchronized void add(int rows) {
+			done += rows;
+			if (done<total) IJ.showProgress(done, total);
+		}
+	}
+}
@@ -0,0 +1,194 @@
+package Engine;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Runs a macro once per color channel of a pixel, like the RGB loops always did: the
+ * red value goes into the slot of the red channel, the macro runs and the slot is
+ * read back, then the same for green and blue. Renderers see the channels as the
+ * inputs and outputs R, G and B, so RGB images go through {@link RowBuffer} and
+ * {@link Bands} like the other bit depths.
+ *
+ * If no channel depends on the channels and pixels evaluated before it, every channel
+ * is evaluated a whole row at a time by its own copy of the evaluator. Otherwise the
+ * channels of a pixel are evaluated one after another on the shared evaluator, which
+ * then cannot be forked, so the rows are rendered in order exactly like the loop.
+ */
+final class ChannelEvaluator extends Evaluator {
+
+	private static final int[] RGB = {R, G, B};
+
+	private final Evaluator evaluator;
+	private final int[] slots; // slot of each channel, e.g. R, G and B or V three times
+	private final double[] pixel = new double[RGB.length]; // values of R, G and B
+
+	// one copy of the evaluator per channel, null until the inputs are known or if the channels depend on each other
+	private Evaluator[] channels;
+	private boolean independent;
+	private int[] rowInputs;
+	private int[][] channelInputs, channelOutputs;
+	private double[][] rowColumns;
+	private double[][][] channelColumns;
+
+	ChannelEvaluator(Evaluator evaluator, int[] slots) {
+		this.evaluator = evaluator;
+		this.slots = slots;
+	}
+
+	private ChannelEvaluator(Evaluator evaluator, int[] slots, Evaluator[] channels, int[] inputs) {
+		this(evaluator, slots);
+		this.channels = channels;
+		independent = true;
+		rowInputs = inputs;
+		channelInputs = new int[RGB.length][];
+		channelOutputs = new int[RGB.length][];
+		for (int c = 0; c < RGB.length; c++) {
+			channelInputs[c] = channelInputs(inputs, c);
+			channelOutputs[c] = new int[]{slots[c]};
+		}
+	}
+
+	public void setVariable(int slot, double value) {
+		int c = channel(slot);
+		if (c>=0) {
+			pixel[c] = value;
+		} else if (channels!=null) {
+			for (Evaluator channel : channels) channel.setVariable(slot, value);
+		} else {
+			evaluator.setVariable(slot, value);
+		}
+	}
+
+	public double getVariable(int slot) {
+		int c = channel(slot);
+		if (c>=0) return pixel[c];
+		return channels!=null ? channels[0].getVariable(slot) : evaluator.getVariable(slot);
+	}
+
+	/** runs the macro once per channel, the values of R, G and B are replaced by the results */
+	public void run() {
+		for (int c = 0; c < RGB.length; c++) {
+			Evaluator channel = channels!=null ? channels[c] : evaluator;
+			channel.setVariable(slots[c], pixel[c]);
+			channel.run();
+			pixel[c] = channel.getVariable(slots[c]);
+		}
+	}
+
+	public void runRow(int[] inputs, int[] outputs, double[][] columns, int from, int to) {
+		if (!isIndependent(inputs)) {
+			super.runRow(inputs, outputs, columns, from, to);
+			return;
+		}
+		if (columns!=rowColumns) {
+			channelColumns = new double[RGB.length][][];
+			for (int c = 0; c < RGB.length; c++) {
+				int[] in = channelInputs[c];
+				channelColumns[c] = new double[in.length + 1][];
+				for (int k = 0; k < in.length; k++) channelColumns[c][k] = columns[in[k]==slots[c] ? index(inputs, RGB[c]) : index(inputs, in[k])];
+				channelColumns[c][in.length] = columns[inputs.length + index(outputs, RGB[c])];
+			}
+			rowColumns = columns;
+		}
+		for (int c = 0; c < RGB.length; c++) channels[c].runRow(channelInputs[c], channelOutputs[c], channelColumns[c], from, to);
+	}
+
+	public Evaluator fork(int[] inputs) {
+		if (!isIndependent(inputs)) return null;
+		Evaluator[] copies = new Evaluator[RGB.length];
+		for (int c = 0; c < RGB.length; c++) {
+			copies[c] = channels[c].fork(new int[]{slots[c]});
+			if (copies[c]==null) return null;
+		}
+		return new ChannelEvaluator(evaluator, slots, copies, inputs);
+	}
+
+	public boolean dependsOn(BitSet slots, int[] inputs, int[] outputs) {
+		if (!isIndependent(inputs)) return true;
+		for (int c = 0; c < RGB.length; c++) {
+			BitSet channelSlots = (BitSet) slots.clone();
+			boolean pixelValues = false;
+			for (int channel : RGB) {
+				pixelValues |= channelSlots.get(channel);
+				channelSlots.clear(channel);
+			}
+			if (pixelValues) channelSlots.set(this.slots[c]);
+			if (channels[c].dependsOn(channelSlots, channelInputs[c], channelOutputs[c])) return true;
+		}
+		return false;
+	}
+
+	boolean isUniform(int[] inputs, double[] lo, double[] hi, int[] outputs, double[] values) {
+		if (!independent) return false;
+		double[] value = new double[1];
+		for (int c = 0; c < RGB.length; c++) {
+			int[] in = Arrays.copyOf(channelInputs[c], channelInputs[c].length + 1);
+			in[in.length - 1] = Y;
+			double[] inLo = new double[in.length], inHi = new double[in.length];
+			for (int k = 0; k < in.length; k++) {
+				int index = index(inputs, in[k]==slots[c] ? RGB[c] : in[k]);
+				inLo[k] = lo[index];
+				inHi[k] = hi[index];
+			}
+			if (!channels[c].isUniform(in, inLo, inHi, channelOutputs[c], value)) return false;
+			values[index(outputs, RGB[c])] = value[0];
+		}
+		return true;
+	}
+
+	boolean usesFastMath() {
+		return evaluator.usesFastMath();
+	}
+
+	boolean prunesTiles() {
+		return evaluator.prunesTiles();
+	}
+
+	int minimumTile() {
+		return evaluator.minimumTile();
+	}
+
+	/**
+	 * Splits the evaluator into one copy per channel the first time the inputs are
+	 * known, which are the same for every row of an image.
+	 */
+	private boolean isIndependent(int[] inputs) {
+		if (rowInputs==null) {
+			rowInputs = inputs;
+			channelInputs = new int[RGB.length][];
+			channelOutputs = new int[RGB.length][];
+			Evaluator[] copies = new Evaluator[RGB.length];
+			independent = true;
+			for (int c = 0; c < RGB.length; c++) {
+				channelInputs[c] = channelInputs(inputs, c);
+				channelOutputs[c] = new int[]{slots[c]};
+				copies[c] = evaluator.fork(new int[]{slots[c]}); // x, d and a are only set once for all channels
+				independent &= copies[c]!=null;
+			}
+			if (independent) channels = copies;
+		}
+		return independent;
+	}
+
+	// inputs with the channels replaced by the slot of channel c, sorted like the inputs of a RowBuffer
+	private int[] channelInputs(int[] inputs, int c) {
+		BitSet in = new BitSet();
+		for (int slot : inputs) in.set(channel(slot)>=0 ? slots[c] : slot);
+		return in.stream().toArray();
+	}
+
+	private static int channel(int slot) {
+		for (int c = 0; c < RGB.length; c++) {
+			if (RGB[c]==slot) return c;
+		}
+		return -1;
+	}
+
+	private static int index(int[] slots, int slot) {
+		for (int k = 0; k < slots.length; k++) {
+			if (slots[k]==slot) return k;
+		}
+		throw new IllegalArgumentException("no column for slot " + slot);
+	}
+}
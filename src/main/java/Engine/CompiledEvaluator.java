@@ -0,0 +1,148 @@
+package Engine;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Runs the kernel of a {@link CompiledProgram} on its own variable slots. Globals keep
+ * their values between runs, exactly like the interpreter's variable stack.
+ */
+final class CompiledEvaluator extends Evaluator {
+
+	private final CompiledProgram program;
+	private final Kernel kernel;
+	private final double[] vars;
+
+	// row kernel of the last runRow call, rows of an image always use the same slots
+	private int[] rowInputs, rowOutputs;
+	private RowKernel rowKernel;
+	private Profile profile;
+	private final Settings settings;
+	private final double profileError;
+	private final boolean fastMath;
+	private Intervals intervals;
+
+	// columns of the last runRow call followed by the cache columns of the row kernel
+	private double[][] columns, cachedColumns;
+	// the cache holds the terms of x[i] for all i with cached[i] set, for these values of cacheReads
+	private double[] cacheX, cacheKey;
+	private boolean[] cached;
+
+	CompiledEvaluator(CompiledProgram program, Settings settings) {
+		this(program, new double[program.names.length], settings);
+		run(); // same state as the interpreter after its first run
+	}
+
+	private CompiledEvaluator(CompiledProgram program, double[] vars, Settings settings) {
+		this.program = program;
+		kernel = program.kernel;
+		this.vars = vars;
+		this.settings = settings;
+		profileError = settings.getProfileError();
+		fastMath = settings.isFastMath();
+	}
+
+	public void setVariable(int slot, double value) {
+		vars[slot] = value;
+	}
+
+	public double getVariable(int slot) {
+		return vars[slot];
+	}
+
+	public void run() {
+		kernel.run(vars);
+	}
+
+	public Evaluator fork(int[] inputs) {
+		if (!program.isIndependent(inputs)) return null;
+		return new CompiledEvaluator(program, vars.clone(), settings);
+	}
+
+	boolean usesFastMath() {
+		return fastMath;
+	}
+
+	boolean prunesTiles() {
+		return settings.isTilePruning();
+	}
+
+	int minimumTile() {
+		return settings.getMinimumTile();
+	}
+
+	public boolean dependsOn(BitSet slots, int[] inputs, int[] outputs) {
+		return program.dependsOn(slots, inputs, outputs);
+	}
+
+	/**
+	 * With a profile error set, d and a are widened by it, a pixel may take the
+	 * outputs of a coordinate that far away.
+	 */
+	boolean isUniform(int[] inputs, double[] lo, double[] hi, int[] outputs, double[] values) {
+		if (intervals==null) intervals = new Intervals(program.root, fastMath);
+		if (profileError>0) {
+			for (int k = 0; k < inputs.length; k++) {
+				if (inputs[k]!=D && inputs[k]!=A) continue;
+				lo[k] -= profileError;
+				hi[k] += profileError;
+			}
+		}
+		return intervals.isUniform(vars, inputs, lo, hi, outputs, values);
+	}
+
+	/**
+	 * Terms that only depend on x are computed on the first row and read from the cache
+	 * columns on the following ones, so f(x)*g(y) takes one evaluation of f per column
+	 * and one of g per row. The cache stays valid across slices unless the terms read z,
+	 * and is kept by column, so rows evaluated in pieces (see {@link QuadTree}) use it too.
+	 *
+	 * With a profile error set, macros that only depend on d or a read their outputs
+	 * from a {@link Profile} instead.
+	 */
+	public void runRow(int[] inputs, int[] outputs, double[][] columns, int from, int to) {
+		if (inputs!=rowInputs || outputs!=rowOutputs) {
+			rowKernel = program.rowKernel(inputs, outputs, fastMath);
+			rowInputs = inputs;
+			rowOutputs = outputs;
+			profile = program.profile(inputs, outputs, profileError, fastMath);
+			this.columns = null;
+		}
+		if (profile!=null && profile.run(rowKernel, vars, columns, from, to)) return;
+		if (rowKernel.cached==null) {
+			rowKernel.run(vars, columns, from, to);
+			return;
+		}
+
+		double[] x = columns[rowKernel.xColumn];
+		if (columns!=this.columns) {
+			cachedColumns = Arrays.copyOf(columns, columns.length + rowKernel.cacheColumns);
+			for (int k = columns.length; k < cachedColumns.length; k++) cachedColumns[k] = new double[x.length];
+			this.columns = columns;
+			cached = new boolean[x.length];
+			cacheX = null;
+		}
+		double[] key = key();
+		if (x!=cacheX || !Arrays.equals(key, cacheKey)) {
+			Arrays.fill(cached, false);
+			cacheX = x;
+			cacheKey = key;
+		}
+		boolean hit = true;
+		for (int i = from; i < to && hit; i++) hit = cached[i];
+		if (hit) {
+			rowKernel.cached.run(vars, cachedColumns, from, to);
+		} else {
+			rowKernel.run(vars, cachedColumns, from, to);
+			Arrays.fill(cached, from, to, true);
+		}
+	}
+
+	private double[] key() {
+		BitSet reads = rowKernel.cacheReads;
+		double[] key = new double[reads.cardinality()];
+		int k = 0;
+		for (int slot = reads.nextSetBit(0); slot >= 0; slot = reads.nextSetBit(slot+1)) key[k++] = vars[slot];
+		return key;
+	}
+}
@@ -0,0 +1,131 @@
+package Engine;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Result of {@link Parser#parse}: the syntax tree, the variable names by slot and the
+ * kernels generated for the tree. Slots 0..15 are always the names of
+ * {@link Evaluator#NAMES}, followed by the variables introduced by the macro itself.
+ *
+ * Programs are cached by their text. The cache only holds the most recently used
+ * ones, evicted kernels are unloaded with their class loader once no evaluator uses
+ * them anymore.
+ */
+final class CompiledProgram {
+
+	private static final int CACHE_SIZE = 32;
+
+	private static final Map<String, CompiledProgram> cache = new LinkedHashMap<String, CompiledProgram>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(Map.Entry<String, CompiledProgram> eldest) {
+			return size()>CACHE_SIZE;
+		}
+	};
+
+	final Node root;
+	final String[] names;
+	final Kernel kernel;
+	private final BitSet assignedGlobals, exposed;
+	private final BitSet read, alwaysAssigned;
+	private final Map<String, RowKernel> rowKernels = new HashMap<>();
+	private final Map<String, Profile> profiles = new HashMap<>();
+
+	CompiledProgram(Node root, String[] names, BitSet assignedGlobals, BitSet exposed, BitSet read, BitSet alwaysAssigned) {
+		this.root = root;
+		this.names = names;
+		this.assignedGlobals = assignedGlobals;
+		this.exposed = exposed;
+		this.read = read;
+		this.alwaysAssigned = alwaysAssigned;
+		Kernel generated = KernelCompiler.compile(root, names.length);
+		kernel = generated!=null ? generated : new Kernel.Tree(root);
+	}
+
+	/**
+	 * Locals are always assigned before they are read, so a pixel can only see earlier
+	 * pixels through a global the macro assigns and the renderer does not set again.
+	 * Globals assigned on every path before any read, like r, g and b in
+	 * "r = g = b = 255; if (d < h/3) g = b = 0;", are not carried either.
+	 *
+	 * @param inputs slots set before every pixel
+	 * @return true if the result of a pixel does not depend on the pixels evaluated before
+	 */
+	boolean isIndependent(int[] inputs) {
+		BitSet carried = (BitSet) alwaysAssigned.clone();
+		carried.flip(0, names.length);
+		carried.or(exposed);
+		carried.and(assignedGlobals);
+		for (int slot : inputs) carried.clear(slot);
+		return carried.isEmpty();
+	}
+
+	/**
+	 * @param inputs slots set before every pixel
+	 * @param outputs slots read after every pixel
+	 * @param slots slots that may change between two renders of the same row
+	 * @return false if the outputs are the same whatever values the slots have
+	 */
+	boolean dependsOn(BitSet slots, int[] inputs, int[] outputs) {
+		if (!isIndependent(inputs) || read.intersects(slots)) return true;
+		for (int slot : outputs) {
+			if (!alwaysAssigned.get(slot)) return true; // keeps the input or the previous pixel
+		}
+		return false;
+	}
+
+	/**
+	 * @return the row kernel for these input and output slots, generated on first use
+	 */
+	synchronized RowKernel rowKernel(int[] inputs, int[] outputs, boolean fastMath) {
+		String key = Arrays.toString(inputs) + Arrays.toString(outputs) + fastMath;
+		RowKernel rowKernel = rowKernels.get(key);
+		if (rowKernel==null) {
+			rowKernel = KernelCompiler.compileRow(root, names.length, inputs, outputs, fastMath);
+			if (rowKernel==null) rowKernel = new RowKernel.Tree(root, inputs, outputs);
+			rowKernels.put(key, rowKernel);
+		}
+		return rowKernel;
+	}
+
+	/**
+	 * @return the shared lookup table for these slots, null if the outputs depend on
+	 * more than d or a (see {@link Profile#of})
+	 */
+	synchronized Profile profile(int[] inputs, int[] outputs, double error, boolean fastMath) {
+		String key = Arrays.toString(inputs) + Arrays.toString(outputs) + error + fastMath;
+		if (!profiles.containsKey(key)) profiles.put(key, Profile.of(this, read, inputs, outputs, error));
+		return profiles.get(key);
+	}
+
+	/**
+	 * @return the program if it is still cached, null otherwise
+	 */
+	static CompiledProgram cached(String variables, String macro) {
+		synchronized (cache) {
+			return cache.get(variables + macro);
+		}
+	}
+
+	/**
+	 * @return the cached or newly compiled program, null if the macro has to run in the interpreter
+	 */
+	static CompiledProgram get(String variables, String macro) {
+		String key = variables + macro;
+		synchronized (cache) {
+			CompiledProgram program = cache.get(key);
+			if (program!=null) return program;
+		}
+		CompiledProgram program = Parser.parse(variables, macro);
+		if (program!=null) {
+			synchronized (cache) {
+				cache.put(key, program);
+			}
+		}
+		return program;
+	}
+}
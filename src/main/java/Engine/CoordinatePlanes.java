@@ -0,0 +1,124 @@
+package Engine;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Rows of d and a by grid, shared by all slices, channels, bands and renders with the
+ * same x range, e.g. every preview refresh or all slices of a stack. A row is computed
+ * the first time it is asked for and costs 8 bytes per column.
+ *
+ * All planes together hold at most MAX_BYTES. Rows are only added while there is room
+ * after evicting the least recently used other planes, otherwise the caller computes
+ * them itself. An evicted plane drops its rows at once, also while row buffers still
+ * use it, so the rows kept alive never exceed MAX_BYTES.
+ */
+final class CoordinatePlanes {
+
+	static final long MAX_BYTES = Math.min(64L << 20, Runtime.getRuntime().maxMemory()/16);
+
+	private static final Map<String, Plane> planes = new LinkedHashMap<>(16, 0.75f, true);
+	private static long bytes;
+
+	private CoordinatePlanes() {
+	}
+
+	/**
+	 * @param x the x column
+	 * @param columns identifies the values of x, e.g. its length, xMin and xStep
+	 * @param fastMath compute the rows with {@link FastMath}
+	 */
+	static synchronized Plane get(double[] x, String columns, boolean fastMath) {
+		String key = columns + (fastMath ? " fast" : "");
+		Plane plane = planes.get(key);
+		if (plane==null) {
+			plane = new Plane(key, x, fastMath);
+			planes.put(key, plane);
+		}
+		return plane;
+	}
+
+	/** @return true if rowBytes more fit into the cache, after evicting other planes if needed */
+	private static synchronized boolean reserve(Plane plane, long rowBytes) {
+		Iterator<Plane> lru = planes.values().iterator();
+		while (bytes + rowBytes > MAX_BYTES && lru.hasNext()) {
+			Plane eldest = lru.next();
+			if (eldest==plane) continue;
+			bytes -= eldest.bytes;
+			eldest.bytes = 0;
+			eldest.d.clear(); // buffers still holding the plane compute their rows from now on
+			eldest.a.clear();
+			lru.remove();
+		}
+		if (bytes + rowBytes > MAX_BYTES || planes.get(plane.key)!=plane) return false;
+		bytes += rowBytes;
+		plane.bytes += rowBytes;
+		return true;
+	}
+
+	/**
+	 * Adds a row reserved before, unless the plane was evicted in between, which already
+	 * gave back the reservation.
+	 *
+	 * @return the row to use, the one of another band if it was faster
+	 */
+	private static synchronized double[] store(Plane plane, Map<Long, double[]> rows, double y, double[] row) {
+		if (planes.get(plane.key)!=plane) return row;
+		double[] other = rows.putIfAbsent(Double.doubleToLongBits(y), row);
+		if (other==null) return row;
+		bytes -= 8L*row.length;
+		plane.bytes -= 8L*row.length;
+		return other;
+	}
+
+	static double d(double x, double y, boolean fastMath) {
+		return fastMath ? FastMath.hypot(x, y) : Math.hypot(x, y);
+	}
+
+	static double a(double x, double y, boolean fastMath) {
+		double angle = fastMath ? FastMath.atan2(y, x) : Math.atan2(y, x);
+		if (angle < 0) angle += 2 * Math.PI;
+		return angle;
+	}
+
+	/** d and a rows of one x column, by the bits of y */
+	static final class Plane {
+		private final String key;
+		private final double[] x;
+		private final boolean fastMath;
+		private final Map<Long, double[]> d = new ConcurrentHashMap<>(), a = new ConcurrentHashMap<>();
+		private long bytes; // guarded by CoordinatePlanes.class
+
+		private Plane(String key, double[] x, boolean fastMath) {
+			this.key = key;
+			this.x = x;
+			this.fastMath = fastMath;
+		}
+
+		/** copies d of the columns from (inclusive) to to (exclusive) of the row at y into column */
+		void d(double y, double[] column, int from, int to) {
+			copy(d, false, y, column, from, to);
+		}
+
+		/** same as {@link #d} for a */
+		void a(double y, double[] column, int from, int to) {
+			copy(a, true, y, column, from, to);
+		}
+
+		private void copy(Map<Long, double[]> rows, boolean angle, double y, double[] column, int from, int to) {
+			double[] row = rows.get(Double.doubleToLongBits(y));
+			if (row==null) {
+				if (!reserve(this, 8L * x.length)) {
+					for (int i = from; i < to; i++) column[i] = angle ? CoordinatePlanes.a(x[i], y, fastMath) : CoordinatePlanes.d(x[i], y, fastMath);
+					return;
+				}
+				row = new double[x.length];
+				for (int i = 0; i < row.length; i++) row[i] = angle ? CoordinatePlanes.a(x[i], y, fastMath) : CoordinatePlanes.d(x[i], y, fastMath);
+				row = store(this, rows, y, row);
+			}
+			System.arraycopy(row, from, column, from, to - from);
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package Engine;
+
+import ij.ImagePlus;
+import ij.Prefs;
+import ij.WindowManager;
+
+import java.util.BitSet;
+
+/**
+ * Evaluates a synthesizer macro once per pixel. Variables are addressed by slot
+ * instead of by name, which saves the interpreter's symbol table search for every
+ * setVariable/getVariable call.
+ *
+ * {@link #create} compiles the macro to a JVM class working directly on doubles
+ * ({@link CompiledEvaluator}). Macros using anything the compiler does not support
+ * run in ij.macro.Interpreter as before ({@link InterpreterEvaluator}).
+ */
+public abstract class Evaluator {
+
+	public static final int V = 0, X = 1, Y = 2, Z = 3, W = 4, H = 5, S = 6, D = 7, A = 8, E = 9,
+			R = 10, G = 11, B = 12, R_NEW = 13, G_NEW = 14, B_NEW = 15;
+
+	/** variable names by slot */
+	static final String[] NAMES = {"v", "x", "y", "z", "w", "h", "s", "d", "a", "E", "r", "g", "b", "r_new", "g_new", "b_new"};
+
+	/** globals of a single function */
+	public static final String FUNCTION_VARIABLES = "var v,x,y,z,w,h,s,d,a,E;\n";
+	/** globals of macros and RGB functions */
+	public static final String RGB_VARIABLES = "var v,r,g,b,x,y,z,w,h,s,d,a,E;\n";
+
+	private static final String PROFILE_ERROR_KEY = "fis.ProfileError";
+	private static final String FAST_MATH_KEY = "fis.FastMath";
+	private static final String MINIMUM_TILE_KEY = "fis.MinimumTile";
+	private static final String TILE_PRUNING_KEY = "fis.TilePruning";
+
+	public abstract void setVariable(int slot, double value);
+
+	public abstract double getVariable(int slot);
+
+	/** runs the macro once with the current variables */
+	public abstract void run();
+
+	/**
+	 * Runs the macro for the pixels from (inclusive) to to (exclusive) of a row, same as
+	 * setting the input slots, run() and reading the output slots for every pixel.
+	 *
+	 * @param inputs slots set from columns[0..inputs.length-1] before every pixel
+	 * @param outputs slots read into the following columns after every pixel
+	 */
+	public void runRow(int[] inputs, int[] outputs, double[][] columns, int from, int to) {
+		for (int i = from; i < to; i++) {
+			for (int k = 0; k < inputs.length; k++) setVariable(inputs[k], columns[k][i]);
+			run();
+			for (int k = 0; k < outputs.length; k++) columns[inputs.length + k][i] = getVariable(outputs[k]);
+		}
+	}
+
+	/**
+	 * Returns an evaluator with a copy of the current variables, for rendering part of
+	 * an image on another thread.
+	 *
+	 * @param inputs slots the renderer sets before every pixel
+	 * @return null if pixels can depend on the pixels evaluated before them
+	 */
+	public Evaluator fork(int[] inputs) {
+		return null;
+	}
+
+	/**
+	 * @param slots slots that may change between two renders of the same row, e.g. z
+	 * @param inputs slots the renderer sets before every pixel
+	 * @param outputs slots read after every pixel
+	 * @return false if the outputs of a pixel are the same whatever values the slots
+	 * have, always true for macros running in the interpreter
+	 */
+	public boolean dependsOn(BitSet slots, int[] inputs, int[] outputs) {
+		return true;
+	}
+
+	/**
+	 * Returns an evaluator that runs the macro once per color channel of an RGB pixel,
+	 * with R, G and B as its inputs and outputs (see {@link ChannelEvaluator}).
+	 *
+	 * @param red slot the red value goes into and is read back from, R or V for macros
+	 * without r, same for green and blue
+	 */
+	public Evaluator channels(int red, int green, int blue) {
+		return new ChannelEvaluator(this, new int[]{red, green, blue});
+	}
+
+	/**
+	 * Lets macros that only depend on d or only on a be evaluated at coordinates up to
+	 * error away from the exact ones, which takes one evaluation per 2*error of range
+	 * instead of one per pixel (see {@link Profile}). Applies to evaluators created
+	 * afterwards and is kept in the preferences.
+	 *
+	 * @param error in the units of d or radians for a, 0 (the default) renders exactly
+	 */
+	public static void setProfileError(double error) {
+		Prefs.set(PROFILE_ERROR_KEY, error);
+	}
+
+	public static double getProfileError() {
+		return Math.max(0, Prefs.get(PROFILE_ERROR_KEY, 0));
+	}
+
+	/**
+	 * Lets compiled macros and the d and a coordinates use the approximations of
+	 * {@link FastMath} for sin, cos, exp, atan2 and hypot, see there for their largest
+	 * errors. Applies to evaluators created afterwards and is kept in the preferences,
+	 * macros running in the interpreter are not affected.
+	 */
+	public static void setFastMath(boolean fastMath) {
+		Prefs.set(FAST_MATH_KEY, fastMath);
+	}
+
+	public static boolean isFastMath() {
+		return Prefs.get(FAST_MATH_KEY, false);
+	}
+
+	/**
+	 * Sets the smallest tile the adaptive renderer of {@link #setTilePruning} still
+	 * samples and splits, tiles up to this size that are not proven uniform are
+	 * evaluated pixel by pixel. Smaller tiles find more uniform pixels around the edges
+	 * of a pattern but cost more samples. The result is exact for every size. Kept in
+	 * the preferences.
+	 *
+	 * @param pixels width and height, 1 to {@link QuadTree#MAX_TILE}
+	 */
+	public static void setMinimumTile(int pixels) {
+		Prefs.set(MINIMUM_TILE_KEY, pixels);
+	}
+
+	public static int getMinimumTile() {
+		return QuadTree.clampTile((int) Prefs.get(MINIMUM_TILE_KEY, QuadTree.DEFAULT_MINIMUM_TILE));
+	}
+
+	/**
+	 * Lets renderers fill tiles that interval arithmetic proves to come out the same at
+	 * every pixel, e.g. the parts of a conditional where the condition is always true or
+	 * always false (see {@link Intervals}), and evaluate only the remaining pixels. The
+	 * result is exact. Only macros that do not read the pixel values are evaluated in
+	 * tiles (see {@link QuadTree} and {@link #setMinimumTile}). Pays off for expensive macros, cheap ones are faster
+	 * evaluated row by row. Kept in the preferences.
+	 */
+	public static void setTilePruning(boolean pruning) {
+		Prefs.set(TILE_PRUNING_KEY, pruning);
+	}
+
+	public static boolean isTilePruning() {
+		return Prefs.get(TILE_PRUNING_KEY, false);
+	}
+
+	/**
+	 * @param inputs slots that vary across a tile, bounded by lo and hi
+	 * @param values receives the outputs if true is returned
+	 * @return true if the outputs are proven the same for every pixel of the tile,
+	 * always false for macros running in the interpreter
+	 */
+	boolean isUniform(int[] inputs, double[] lo, double[] hi, int[] outputs, double[] values) {
+		return false;
+	}
+
+	/** @return true if this evaluator was created in fast math mode and uses it */
+	boolean usesFastMath() {
+		return false;
+	}
+
+	/** @return true if this evaluator was created with tile pruning and supports it */
+	boolean prunesTiles() {
+		return false;
+	}
+
+	/** @return the minimum tile of the adaptive renderer, see {@link #setMinimumTile} */
+	int minimumTile() {
+		return QuadTree.DEFAULT_MINIMUM_TILE;
+	}
+
+	/**
+	 * @return true if macro compiles without the interpreter, which also means it has no
+	 * errors, checked without showing any
+	 */
+	public static boolean isCompilable(String variables, String macro) {
+		return CompiledProgram.cached(variables, macro)!=null || Parser.parse(variables, macro)!=null;
+	}
+
+	/** same as {@link #create(String, String, Settings)} with the current preferences */
+	public static Evaluator create(String variables, String macro) {
+		return create(variables, macro, Settings.current());
+	}
+
+	/**
+	 * Runs the macro once with all variables 0, like the interpreter always did, and
+	 * returns an evaluator for it. Macros compiled before were already checked for
+	 * errors and skip the interpreter completely.
+	 *
+	 * @param variables FUNCTION_VARIABLES or RGB_VARIABLES
+	 * @param macro statements to evaluate, e.g. "code=v=v+50*sin(d/10)"
+	 * @param settings fast math, tile pruning and profile error of the evaluator and its forks
+	 * @return null if the macro has an error (the interpreter already showed it)
+	 */
+	public static Evaluator create(String variables, String macro, Settings settings) {
+		String code =
+				variables+
+						"function dummy() {}\n"+
+						macro+";\n"; // the macro starts at program counter location 25
+		CompiledProgram program = CompiledProgram.cached(variables, macro);
+		if (program!=null) return new CompiledEvaluator(program, settings);
+
+		ImagePlus image = WindowManager.getCurrentImage();
+		InterpreterPool.Session session = InterpreterPool.get(code, image);
+		if (session==null) return null;
+
+		program = CompiledProgram.get(variables, macro);
+		if (program!=null) return new CompiledEvaluator(program, settings);
+		return new InterpreterEvaluator(code, image, session);
+	}
+}
@@ -0,0 +1,112 @@
+package Engine;
+
+/**
+ * Polynomial approximations of the functions that dominate most presets, used by
+ * kernels compiled in fast math mode and for d and a (see {@link Evaluator#setFastMath}).
+ * Arguments outside the range an approximation is made for, NaN and infinities are
+ * passed on to java.lang.Math, so special values come out the same.
+ *
+ * Largest errors measured against java.lang.Math on 2e7 random arguments per function:
+ * <pre>
+ * sin, cos   |x| &lt;= 1e6           absolute  2e-9
+ * exp        -708 &lt;= x &lt;= 709     relative  3e-10
+ * atan2      all                   absolute  4e-10
+ * hypot      all                   relative  3e-16 (1 ulp)
+ * </pre>
+ * Rendered pixels therefore differ by far less than one gray value, except right
+ * at the edges of conditionals that compare these functions and where a value is
+ * scaled up a lot. log has no entry, the JIT's intrinsic is faster than any series.
+ *
+ * Public only because generated classes live in their own class loader.
+ */
+public final class FastMath {
+
+	private static final double TWO_OVER_PI = 2/Math.PI;
+	// pi/2 split into a part with a short mantissa and the rest, k*PI_2_HIGH is exact
+	private static final double PI_2_HIGH = 1.5707963267341256, PI_2_LOW = 6.077100506506192e-11;
+	private static final double LOG2E = 1.4426950408889634, LN2 = Math.log(2);
+
+	private FastMath() {
+	}
+
+	public static double sin(double x) {
+		if (!(Math.abs(x)<=1e6)) return Math.sin(x);
+		double k = Math.rint(x*TWO_OVER_PI);
+		double r = x - k*PI_2_HIGH - k*PI_2_LOW;
+		switch ((int) k & 3) {
+			case 0: return sinReduced(r);
+			case 1: return cosReduced(r);
+			case 2: return -sinReduced(r);
+			default: return -cosReduced(r);
+		}
+	}
+
+	public static double cos(double x) {
+		if (!(Math.abs(x)<=1e6)) return Math.cos(x);
+		double k = Math.rint(x*TWO_OVER_PI);
+		double r = x - k*PI_2_HIGH - k*PI_2_LOW;
+		switch ((int) k & 3) {
+			case 0: return cosReduced(r);
+			case 1: return -sinReduced(r);
+			case 2: return -cosReduced(r);
+			default: return sinReduced(r);
+		}
+	}
+
+	// Taylor series for |r| <= pi/4
+	private static double sinReduced(double r) {
+		double r2 = r*r;
+		return r*(1 + r2*(-1.0/6 + r2*(1.0/120 + r2*(-1.0/5040 + r2*(1.0/362880)))));
+	}
+
+	private static double cosReduced(double r) {
+		double r2 = r*r;
+		return 1 + r2*(-0.5 + r2*(1.0/24 + r2*(-1.0/720 + r2*(1.0/40320 + r2*(-1.0/3628800)))));
+	}
+
+	public static double exp(double x) {
+		if (!(x>=-708 && x<=709)) return Math.exp(x);
+		double n = Math.rint(x*LOG2E);
+		double f = x - n*LN2; // |f| <= ln2/2
+		double p = 1 + f*(1 + f*(1.0/2 + f*(1.0/6 + f*(1.0/24 + f*(1.0/120 + f*(1.0/720
+				+ f*(1.0/5040 + f*(1.0/40320))))))));
+		return p*Double.longBitsToDouble((long) ((int) n + 1023) << 52); // -1022 <= n <= 1023
+	}
+
+	public static double atan2(double y, double x) {
+		double ax = Math.abs(x), ay = Math.abs(y);
+		if (!(ax<Double.POSITIVE_INFINITY && ay<Double.POSITIVE_INFINITY) || ax==0 || ay==0) return Math.atan2(y, x);
+		boolean swap = ay>ax;
+		double t = swap ? ax/ay : ay/ax; // 0 < t <= 1
+		double angle;
+		if (t>0.41421356237309503) {
+			angle = Math.PI/4 + atanReduced((t - 1)/(t + 1));
+		} else {
+			angle = atanReduced(t);
+		}
+		if (swap) angle = Math.PI/2 - angle;
+		if (x<0) angle = Math.PI - angle;
+		return y<0 ? -angle : angle;
+	}
+
+	// Taylor series for |u| <= tan(pi/8)
+	private static double atanReduced(double u) {
+		double u2 = u*u;
+		return u*(1 + u2*(-1.0/3 + u2*(1.0/5 + u2*(-1.0/7 + u2*(1.0/9 + u2*(-1.0/11 + u2*(1.0/13 + u2*(-1.0/15
+				+ u2*(1.0/17 + u2*(-1.0/19))))))))));
+	}
+
+	public static double hypot(double x, double y) {
+		double ax = Math.abs(x), ay = Math.abs(y);
+		if (!(ax<1e150 && ay<1e150) || ax<1e-150 && ax!=0 || ay<1e-150 && ay!=0) return Math.hypot(x, y);
+		return Math.sqrt(ax*ax + ay*ay);
+	}
+
+	/** @return true if name is a function of java.lang.Math this class approximates */
+	static boolean approximates(String name) {
+		switch (name) {
+			case "sin": case "cos": case "exp": case "atan2": case "hypot": return true;
+			default: return false;
+		}
+	}
+}
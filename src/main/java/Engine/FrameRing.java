@@ -0,0 +1,49 @@
+package Engine;
+
+/**
+ * Ring buffer of frames rendered ahead by several workers and taken in order by one
+ * consumer, e.g. the timer of a playback. Workers claim sequence numbers and may
+ * finish their frames in any order, the consumer gets them by sequence number. At most
+ * capacity frames are rendered or being rendered ahead of the next one taken.
+ */
+public final class FrameRing<T> {
+
+	private final Object[] frames; // by sequence number
+	private long claimed, taken; // sequence numbers of the next frame to claim and to take
+
+	public FrameRing(int capacity) {
+		frames = new Object[capacity];
+	}
+
+	/**
+	 * Waits while the ring is full.
+	 *
+	 * @return the sequence number of the next frame to render
+	 */
+	public synchronized long claim() throws InterruptedException {
+		while (claimed - taken>=frames.length) wait();
+		return claimed++;
+	}
+
+	/** stores the frame of a sequence number returned by {@link #claim} */
+	public synchronized void put(long sequence, T frame) {
+		frames[(int) (sequence%frames.length)] = frame;
+	}
+
+	/** @return the next frame in order, null if it is not rendered yet */
+	@SuppressWarnings("unchecked")
+	public synchronized T take() {
+		int slot = (int) (taken%frames.length);
+		T frame = (T) frames[slot];
+		if (frame==null) return null;
+		frames[slot] = null;
+		taken++;
+		notifyAll();
+		return frame;
+	}
+
+	/** @return the sequence number of the frame {@link #take} returns next */
+	public synchronized long next() {
+		return taken;
+	}
+}
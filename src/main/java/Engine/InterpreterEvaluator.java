@@ -0,0 +1,129 @@
+package Engine;
+
+import ij.ImagePlus;
+import ij.Macro;
+import ij.WindowManager;
+import ij.macro.Interpreter;
+
+import java.util.BitSet;
+
+/**
+ * Fallback for macros the {@link Parser} does not support. Runs in the session of
+ * {@link InterpreterPool} for the current thread. Evaluators on the same thread share
+ * that session: whenever another evaluator used it in between, the interpreter's
+ * globals are swapped with the copy this evaluator keeps.
+ */
+final class InterpreterEvaluator extends Evaluator {
+
+	private static final int PC_START = 25;
+
+	private final String code;
+	private final ImagePlus image;
+	private final BitSet globals;
+	private final double[] values = new double[NAMES.length];
+	// forks run on workers, where getPixel has to see the image of the creating thread
+	private final boolean bindImage;
+
+	private InterpreterPool.Session session;
+	private Thread thread;
+
+	/**
+	 * @param session session of the calling thread, as returned by {@link InterpreterPool#get}
+	 */
+	InterpreterEvaluator(String code, ImagePlus image, InterpreterPool.Session session) {
+		this.code = code;
+		this.image = image;
+		globals = session.globals;
+		bindImage = false;
+		if (session.owner==null) {
+			// state of the first run, like a new interpreter
+			this.session = session;
+			thread = Thread.currentThread();
+			session.owner = this;
+		} else {
+			run(); // all variables 0
+		}
+	}
+
+	private InterpreterEvaluator(InterpreterEvaluator parent, double[] values) {
+		code = parent.code;
+		image = parent.image;
+		globals = parent.globals;
+		System.arraycopy(values, 0, this.values, 0, values.length);
+		bindImage = image!=null;
+	}
+
+	public void setVariable(int slot, double value) {
+		interpreter().setVariable(NAMES[slot], value);
+	}
+
+	public double getVariable(int slot) {
+		return interpreter().getVariable(NAMES[slot]);
+	}
+
+	public void run() {
+		interpreter().run(PC_START);
+	}
+
+	public void runRow(int[] inputs, int[] outputs, double[][] columns, int from, int to) {
+		if (!bindImage) {
+			super.runRow(inputs, outputs, columns, from, to);
+			return;
+		}
+		ImagePlus previous = bind(image);
+		try {
+			super.runRow(inputs, outputs, columns, from, to);
+		} finally {
+			bind(previous);
+		}
+	}
+
+	private static ImagePlus bind(ImagePlus image) {
+		ImagePlus previous = WindowManager.getTempCurrentImage();
+		WindowManager.setTempCurrentImage(image);
+		return previous;
+	}
+
+	public Evaluator fork(int[] inputs) {
+		Interpreter interpreter = interpreter();
+		if (!session.isIndependent(inputs)) return null;
+		save(interpreter);
+		return new InterpreterEvaluator(this, values);
+	}
+
+	/** @return the interpreter of this thread, holding the variables of this evaluator */
+	private Interpreter interpreter() {
+		if (session==null || session.owner!=this || thread!=Thread.currentThread()) attach();
+		return session.interpreter;
+	}
+
+	private void attach() {
+		if (session!=null && session.owner==this) {
+			save(session.interpreter);
+			session.owner = null;
+		}
+		ImagePlus previous = bindImage ? bind(image) : null;
+		InterpreterPool.Session next;
+		try {
+			next = InterpreterPool.get(code, image);
+		} finally {
+			if (bindImage) bind(previous);
+		}
+		if (next==null) throw new RuntimeException(Macro.MACRO_CANCELED);
+		if (next.owner!=null && next.owner!=this) next.owner.save(next.interpreter);
+		load(next.interpreter);
+		next.owner = this;
+		session = next;
+		thread = Thread.currentThread();
+	}
+
+	private void save(Interpreter interpreter) {
+		for (int slot = globals.nextSetBit(0); slot >= 0; slot = globals.nextSetBit(slot+1))
+			values[slot] = interpreter.getVariable(NAMES[slot]);
+	}
+
+	private void load(Interpreter interpreter) {
+		for (int slot = globals.nextSetBit(0); slot >= 0; slot = globals.nextSetBit(slot+1))
+			interpreter.setVariable(NAMES[slot], values[slot]);
+	}
+}
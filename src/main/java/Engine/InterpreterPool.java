@@ -0,0 +1,144 @@
+package Engine;
+
+import ij.ImagePlus;
+import ij.macro.Interpreter;
+import ij.macro.MacroConstants;
+import ij.macro.Program;
+import ij.macro.Symbol;
+import ij.macro.Tokenizer;
+import ij.process.ImageProcessor;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Warm ij.macro.Interpreter sessions by program text, separately for every thread. A
+ * session is tokenized and runs the declarations once, later renders of the same macro
+ * on the same thread (e.g. every preview refresh) continue with it.
+ *
+ * Functions keeps the processor getPixel read first, so a session of a macro that may
+ * access images is only reused while the current image and its processor are the same.
+ */
+final class InterpreterPool implements MacroConstants {
+
+	private static final int SESSIONS_PER_THREAD = 8;
+
+	/**
+	 * functions that neither change state nor depend on the order of the pixels. Array
+	 * functions are left out, Array.fill, Array.sort and others change their argument.
+	 */
+	private static final Set<String> PURE_FUNCTIONS = new HashSet<>(Arrays.asList(
+			"getPixel", "abs", "acos", "asin", "atan", "atan2", "cos", "exp", "floor", "log",
+			"maxOf", "minOf", "pow", "round", "sin", "sqrt", "tan", "isNaN", "parseInt", "parseFloat",
+			"d2s", "toString", "lengthOf", "substring", "indexOf", "lastIndexOf", "startsWith",
+			"endsWith", "toUpperCase", "toLowerCase", "replace", "matches", "charCodeAt",
+			"fromCharCode"));
+
+	private static final ThreadLocal<Map<String, Session>> sessions = ThreadLocal.withInitial(() ->
+			new LinkedHashMap<String, Session>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				protected boolean removeEldestEntry(Map.Entry<String, Session> eldest) {
+					return size()>SESSIONS_PER_THREAD;
+				}
+			});
+
+	private InterpreterPool() {
+	}
+
+	/**
+	 * Returns the session of the calling thread for code, a new one has just run the
+	 * whole code once with all variables 0.
+	 *
+	 * @param image current image of the thread that created the evaluator
+	 * @return null if the macro has an error (the interpreter already showed it)
+	 */
+	static Session get(String code, ImagePlus image) {
+		Map<String, Session> map = sessions.get();
+		Session session = map.get(code);
+		if (session!=null && session.matches(image)) return session;
+
+		Interpreter interpreter = new Interpreter();
+		interpreter.run(code, null);
+		if (interpreter.wasError()) {
+			map.remove(code);
+			return null;
+		}
+		session = new Session(interpreter, code, image);
+		if (session.reusable) map.put(code, session);
+		else map.remove(code);
+		return session;
+	}
+
+	static final class Session {
+		final Interpreter interpreter;
+		/** evaluator whose variables the interpreter holds, null right after the first run */
+		InterpreterEvaluator owner;
+
+		private final ImagePlus image;
+		private final ImageProcessor processor;
+		/** slots declared by the var statement in front of the macro */
+		final BitSet globals = new BitSet();
+		private final BitSet assigned = new BitSet();
+		private boolean pure = true, readsImage, reusable = true;
+
+		private Session(Interpreter interpreter, String code, ImagePlus image) {
+			this.interpreter = interpreter;
+			this.image = image;
+			processor = image!=null ? image.getProcessor() : null;
+			scan(new Tokenizer().tokenize(code));
+		}
+
+		/**
+		 * Finds the variables of {@link Evaluator#NAMES} the macro assigns and the
+		 * functions it calls. A var statement besides the declarations in front of the
+		 * macro adds globals a later render would not start from scratch.
+		 */
+		private void scan(Program pgm) {
+			int[] code = pgm.getCode();
+			Symbol[] table = pgm.getSymbolTable();
+			int vars = 0;
+			boolean declaring = false;
+			for (int pc = 0; pc < pgm.getSize(); pc++) {
+				int token = code[pc] & TOK_MASK;
+				if (token==VAR && ++vars>1) reusable = false;
+				if (token==VAR || token==';') declaring = token==VAR && vars==1;
+				if (token==PREDEFINED_FUNCTION || token==NUMERIC_FUNCTION || token==STRING_FUNCTION || token==ARRAY_FUNCTION) {
+					String name = table[code[pc] >> TOK_SHIFT].str;
+					if (name.equals("getPixel")) readsImage = true;
+					else if (!PURE_FUNCTIONS.contains(name)) pure = false;
+				}
+				if (token!=WORD || pc>0 && (code[pc-1] & TOK_MASK)=='.') continue;
+				int slot = Arrays.asList(Evaluator.NAMES).indexOf(table[code[pc] >> TOK_SHIFT].str);
+				if (slot<0) continue;
+				if (declaring) globals.set(slot);
+				int next = pc+1 < pgm.getSize() ? code[pc+1] & TOK_MASK : EOF;
+				int previous = pc>0 ? code[pc-1] & TOK_MASK : EOF;
+				if (next=='=' || next=='[' || next>=PLUS_EQUAL && next<=DIV_EQUAL || next==PLUS_PLUS || next==MINUS_MINUS
+						|| previous==PLUS_PLUS || previous==MINUS_MINUS) assigned.set(slot);
+			}
+		}
+
+		private boolean matches(ImagePlus image) {
+			if (pure && !readsImage) return true;
+			return image==this.image && (image==null || image.getProcessor()==processor);
+		}
+
+		/**
+		 * @param inputs slots set before every pixel
+		 * @return true if the macro only calls pure functions and assigns no global
+		 * besides the inputs, so pixels can be evaluated in any order on any thread
+		 */
+		boolean isIndependent(int[] inputs) {
+			if (!pure || !reusable) return false;
+			BitSet carried = (BitSet) assigned.clone();
+			carried.and(globals);
+			for (int slot : inputs) carried.clear(slot);
+			return carried.isEmpty();
+		}
+	}
+}
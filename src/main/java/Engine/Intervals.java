@@ -0,0 +1,283 @@
+package Engine;
+
+import ij.macro.MacroConstants;
+
+/**
+ * Interval arithmetic over the syntax tree of a macro. Given bounds of the inputs over
+ * a tile, e.g. the x and y range it covers, every value the macro computes is bounded
+ * for all pixels of the tile at once. An if statement whose condition is proven true
+ * or false only follows that branch, otherwise both are followed and their results
+ * joined. Values computed only from constants and slots that are the same for the
+ * whole tile are tracked exactly, so outputs that come out exact are the outputs of
+ * every pixel of the tile, bit for bit.
+ *
+ * Bounds of +, -, *, /, floor, sqrt, minOf and maxOf are the results of the same
+ * operation on the ends of the operands, which is exact because rounding to nearest
+ * is monotone. The other functions are widened by a few ulps, and by the errors of
+ * {@link FastMath} in fast math mode. Operands that can be infinite or NaN leave the
+ * result unbounded, except for comparisons.
+ */
+final class Intervals implements MacroConstants {
+
+	private static final Range UNKNOWN = new Range(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, true, false);
+	private static final Range BOOL = new Range(0, 1, false, false);
+	private static final Range INT = new Range(Integer.MIN_VALUE, Integer.MAX_VALUE, false, false);
+	private static final Range TRUE = Range.exact(1), FALSE = Range.exact(0);
+
+	private final Node root;
+	private final boolean fastMath;
+
+	/** bounds of a value, exact values are held in lo */
+	private static final class Range {
+		final double lo, hi;
+		final boolean nan; // can be NaN
+		final boolean exact; // every pixel computes exactly lo
+
+		private Range(double lo, double hi, boolean nan, boolean exact) {
+			this.lo = lo;
+			this.hi = hi;
+			this.nan = nan;
+			this.exact = exact;
+		}
+
+		static Range exact(double value) {
+			return new Range(value, value, Double.isNaN(value), true);
+		}
+
+		static Range of(double lo, double hi, boolean nan) {
+			if (Double.isNaN(lo) || Double.isNaN(hi)) return UNKNOWN;
+			return new Range(lo, hi, nan, false);
+		}
+
+		boolean finite() {
+			return !nan && lo>Double.NEGATIVE_INFINITY && hi<Double.POSITIVE_INFINITY;
+		}
+	}
+
+	/**
+	 * @param fastMath the macro runs in a kernel compiled in fast math mode
+	 */
+	Intervals(Node root, boolean fastMath) {
+		this.root = root;
+		this.fastMath = fastMath;
+	}
+
+	/**
+	 * @param vars values of the slots that are the same for every pixel of the tile
+	 * @param inputs slots that vary across the tile
+	 * @param lo lower bounds of the inputs, -Infinity if unbounded
+	 * @param hi upper bounds of the inputs, Infinity if unbounded
+	 * @param values receives the outputs if true is returned
+	 * @return true if every pixel of the tile ends with exactly the same outputs
+	 */
+	boolean isUniform(double[] vars, int[] inputs, double[] lo, double[] hi, int[] outputs, double[] values) {
+		Range[] ranges = new Range[vars.length];
+		for (int slot = 0; slot < vars.length; slot++) ranges[slot] = Range.exact(vars[slot]);
+		for (int k = 0; k < inputs.length; k++) {
+			boolean bounded = lo[k]>Double.NEGATIVE_INFINITY && hi[k]<Double.POSITIVE_INFINITY;
+			ranges[inputs[k]] = Range.of(lo[k], hi[k], !bounded);
+		}
+		eval(root, ranges);
+		for (int k = 0; k < outputs.length; k++) {
+			Range range = ranges[outputs[k]];
+			if (!range.exact) return false;
+			values[k] = range.lo;
+		}
+		return true;
+	}
+
+	private Range eval(Node node, Range[] vars) {
+		if (node instanceof Node.Const) return Range.exact(((Node.Const) node).value);
+		if (node instanceof Node.Load) return vars[((Node.Load) node).slot];
+		if (node instanceof Node.Neg) {
+			Range a = eval(((Node.Neg) node).a, vars);
+			return a.exact ? Range.exact(-a.lo) : Range.of(-a.hi, -a.lo, a.nan);
+		}
+		if (node instanceof Node.Not) {
+			Range a = eval(((Node.Not) node).a, vars);
+			int truth = truth(a);
+			return truth<0 ? BOOL : truth==1 ? FALSE : TRUE;
+		}
+		if (node instanceof Node.BitNot) {
+			Range a = eval(((Node.BitNot) node).a, vars);
+			return a.exact ? Range.exact(~(int) a.lo) : INT;
+		}
+		if (node instanceof Node.Binary) {
+			Node.Binary binary = (Node.Binary) node;
+			return binary(binary.op, eval(binary.a, vars), eval(binary.b, vars));
+		}
+		if (node instanceof Node.Compare) {
+			Node.Compare compare = (Node.Compare) node;
+			return compare(compare.op, eval(compare.a, vars), eval(compare.b, vars));
+		}
+		if (node instanceof Node.Logical) {
+			Node.Logical logical = (Node.Logical) node;
+			int a = truth(eval(logical.a, vars)), b = truth(eval(logical.b, vars));
+			if (logical.op==LOGICAL_AND) return a==0 || b==0 ? FALSE : a==1 && b==1 ? TRUE : BOOL;
+			return a==1 || b==1 ? TRUE : a==0 && b==0 ? FALSE : BOOL;
+		}
+		if (node instanceof Node.Call) {
+			Node.Call call = (Node.Call) node;
+			return call(call.fn, eval(call.a, vars), call.b!=null ? eval(call.b, vars) : null);
+		}
+		if (node instanceof Node.Assign) {
+			Node.Assign assign = (Node.Assign) node;
+			Range value = eval(assign.value, vars);
+			switch (assign.op) {
+				case PLUS_EQUAL: value = binary('+', vars[assign.slot], value); break;
+				case MINUS_EQUAL: value = binary('-', vars[assign.slot], value); break;
+				case MUL_EQUAL: value = binary('*', vars[assign.slot], value); break;
+				case DIV_EQUAL: value = binary('/', vars[assign.slot], value); break;
+			}
+			vars[assign.slot] = value;
+			return value;
+		}
+		if (node instanceof Node.If) {
+			Node.If statement = (Node.If) node;
+			int truth = truth(eval(statement.condition, vars));
+			if (truth==1) {
+				eval(statement.then, vars);
+			} else if (truth==0) {
+				if (statement.otherwise!=null) eval(statement.otherwise, vars);
+			} else {
+				Range[] otherwise = vars.clone();
+				eval(statement.then, vars);
+				if (statement.otherwise!=null) eval(statement.otherwise, otherwise);
+				for (int slot = 0; slot < vars.length; slot++) vars[slot] = join(vars[slot], otherwise[slot]);
+			}
+			return FALSE;
+		}
+		for (Node statement : ((Node.Block) node).statements) eval(statement, vars);
+		return FALSE;
+	}
+
+	// 1 if the value is never 0 (NaN is true, like in the interpreter), 0 if it is always 0, -1 if unknown
+	private static int truth(Range a) {
+		if (!(a.lo<=0 && a.hi>=0)) return 1;
+		if (a.lo==0 && a.hi==0 && !a.nan) return 0;
+		return -1;
+	}
+
+	private static Range join(Range a, Range b) {
+		if (a==b) return a;
+		if (a.exact && b.exact && Double.doubleToRawLongBits(a.lo)==Double.doubleToRawLongBits(b.lo)) return a;
+		return Range.of(Math.min(a.lo, b.lo), Math.max(a.hi, b.hi), a.nan || b.nan);
+	}
+
+	private static Range binary(int op, Range a, Range b) {
+		if (a.exact && b.exact) return Range.exact(Node.Binary.apply(op, a.lo, b.lo));
+		switch (op) {
+			case '+': case '-': case '*': case '/': case '%': break;
+			default: return INT; // bitwise operators and shifts work on ints
+		}
+		if (!a.finite() || !b.finite()) return UNKNOWN;
+		switch (op) {
+			case '+': return Range.of(a.lo + b.lo, a.hi + b.hi, false);
+			case '-': return Range.of(a.lo - b.hi, a.hi - b.lo, false);
+			case '*': return span(a.lo*b.lo, a.lo*b.hi, a.hi*b.lo, a.hi*b.hi);
+			case '/':
+				if (b.lo<=0 && b.hi>=0) return UNKNOWN;
+				return span(a.lo/b.lo, a.lo/b.hi, a.hi/b.lo, a.hi/b.hi);
+			default: // '%' has the sign of the dividend and is smaller than both operands in magnitude
+				if (b.lo<=0 && b.hi>=0) return UNKNOWN;
+				double divisor = Math.max(-b.lo, b.hi);
+				return Range.of(Math.max(Math.min(a.lo, 0), -divisor), Math.min(Math.max(a.hi, 0), divisor), false);
+		}
+	}
+
+	private static Range span(double a, double b, double c, double d) {
+		return Range.of(Math.min(Math.min(a, b), Math.min(c, d)), Math.max(Math.max(a, b), Math.max(c, d)), false);
+	}
+
+	private static Range compare(int op, Range a, Range b) {
+		if (a.exact && b.exact) return Range.exact(Node.Compare.apply(op, a.lo, b.lo));
+		boolean nan = a.nan || b.nan; // comparisons with NaN are false, except !=
+		boolean equal = !nan && a.lo==a.hi && b.lo==b.hi && a.lo==b.lo;
+		boolean disjoint = a.hi<b.lo || b.hi<a.lo;
+		switch (op) {
+			case EQ: return certain(equal, disjoint);
+			case NEQ: return certain(disjoint, equal);
+			case GT: return certain(!nan && a.lo>b.hi, a.hi<=b.lo);
+			case GTE: return certain(!nan && a.lo>=b.hi, a.hi<b.lo);
+			case LT: return certain(!nan && a.hi<b.lo, a.lo>=b.hi);
+			default: return certain(!nan && a.hi<=b.lo, a.lo>b.hi); // LTE
+		}
+	}
+
+	private static Range certain(boolean isTrue, boolean isFalse) {
+		return isTrue ? TRUE : isFalse ? FALSE : BOOL;
+	}
+
+	private Range call(int fn, Range a, Range b) {
+		boolean approximated = fastMath && (fn==SIN || fn==COS || fn==EXP || fn==ATAN2);
+		if (a.exact && (b==null || b.exact) && !approximated) {
+			return Range.exact(b==null ? Node.Call.apply(fn, a.lo) : Node.Call.apply(fn, a.lo, b.lo));
+		}
+		switch (fn) {
+			case MIN_OF: return Range.of(Math.min(a.lo, b.lo), Math.min(a.hi, b.hi), a.nan || b.nan);
+			case MAX_OF: return Range.of(Math.max(a.lo, b.lo), Math.max(a.hi, b.hi), a.nan || b.nan);
+			case ATAN2: return widen(-Math.PI, Math.PI, a.nan || b.nan);
+			case ATAN: return a.nan ? widen(-Math.PI/2, Math.PI/2, true) : widen(Math.atan(a.lo), Math.atan(a.hi), false);
+			case SIN: case COS: return periodic(fn, a);
+			case POW: return pow(a, b);
+		}
+		if (!a.finite()) return UNKNOWN;
+		switch (fn) {
+			case ABS:
+				if (a.lo>=0) return Range.of(a.lo, a.hi, false);
+				if (a.hi<=0) return Range.of(-a.hi, -a.lo, false);
+				return Range.of(0, Math.max(-a.lo, a.hi), false);
+			case FLOOR: return Range.of(Math.floor(a.lo), Math.floor(a.hi), false);
+			case ROUND: return Range.of(Math.floor(a.lo + 0.5), Math.floor(a.hi + 0.5), false);
+			case SQRT: return a.lo<0 ? UNKNOWN : Range.of(Math.sqrt(a.lo), Math.sqrt(a.hi), false);
+			case EXP: return widen(Math.exp(a.lo), Math.exp(a.hi), false);
+			case LOG: return a.lo<=0 ? UNKNOWN : widen(Math.log(a.lo), Math.log(a.hi), false);
+			case ASIN: return a.lo<-1 || a.hi>1 ? UNKNOWN : widen(Math.asin(a.lo), Math.asin(a.hi), false);
+			case ACOS: return a.lo<-1 || a.hi>1 ? UNKNOWN : widen(Math.acos(a.hi), Math.acos(a.lo), false);
+			default: return UNKNOWN; // TAN
+		}
+	}
+
+	// sin(x) has its maxima at pi/2 + 2k pi and its minima at -pi/2 + 2k pi, cos(x) = sin(x + pi/2)
+	private Range periodic(int fn, Range a) {
+		if (!a.finite()) return widen(-1, 1, true);
+		if (a.hi - a.lo>=2*Math.PI || Math.max(-a.lo, a.hi)>1e6) return widen(-1, 1, false);
+		double shift = fn==COS ? Math.PI/2 : 0;
+		double slack = 1e-9*(1 + Math.max(-a.lo, a.hi)); // rounding of the shift and of the periods
+		double lo = a.lo + shift - slack, hi = a.hi + shift + slack;
+		double first = Node.Call.apply(fn, a.lo), last = Node.Call.apply(fn, a.hi);
+		double min = Math.min(first, last), max = Math.max(first, last);
+		if (containsPeriod(lo, hi, Math.PI/2)) max = 1;
+		if (containsPeriod(lo, hi, -Math.PI/2)) min = -1;
+		return widen(min, max, false);
+	}
+
+	// true if lo..hi contains c + 2k pi for some integer k
+	private static boolean containsPeriod(double lo, double hi, double c) {
+		return Math.floor((hi - c)/(2*Math.PI))>=Math.ceil((lo - c)/(2*Math.PI));
+	}
+
+	private Range pow(Range a, Range b) {
+		if (!b.exact) return UNKNOWN;
+		double y = b.lo;
+		if (y==0) return Range.exact(1); // even for NaN
+		if (!a.finite() || Double.isNaN(y) || Double.isInfinite(y)) return UNKNOWN;
+		double lo = a.lo, hi = a.hi;
+		if (lo<0) {
+			if (!(y>0 && y%2==0)) return UNKNOWN;
+			// for even powers pow(x, y) is pow(|x|, y)
+			hi = Math.max(-lo, hi);
+			lo = a.hi<0 ? -a.hi : 0;
+		}
+		if (y>0) return widen(Math.pow(lo, y), Math.pow(hi, y), false);
+		if (lo<=0) return UNKNOWN; // pow(-0.0, y) is -Infinity for odd negative y
+		return widen(Math.pow(hi, y), Math.pow(lo, y), false);
+	}
+
+	// bounds of a function that is monotone except for the rounding of its result
+	private Range widen(double lo, double hi, boolean nan) {
+		double error = fastMath ? 1e-8 : 0;
+		return Range.of(lo - 4*Math.ulp(lo) - error*Math.max(1, Math.abs(lo)),
+				hi + 4*Math.ulp(hi) + error*Math.max(1, Math.abs(hi)), nan);
+	}
+}
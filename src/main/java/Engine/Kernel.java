@@ -0,0 +1,26 @@
+package Engine;
+
+/**
+ * One evaluation of a compiled macro on the variable slots. Implementations are
+ * generated at runtime by {@link KernelCompiler} and must be stateless, so one
+ * kernel can serve any number of evaluators.
+ *
+ * Public only because generated classes live in their own class loader.
+ */
+public abstract class Kernel {
+
+	public abstract void run(double[] vars);
+
+	/** evaluates the syntax tree directly, used when no class could be generated */
+	static final class Tree extends Kernel {
+		private final Node root;
+
+		Tree(Node root) {
+			this.root = root;
+		}
+
+		public void run(double[] vars) {
+			root.eval(vars);
+		}
+	}
+}
@@ -0,0 +1,946 @@
+package Engine;
+
+import ij.macro.MacroConstants;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Generates a {@link Kernel} class for a syntax tree, so the JIT sees one straight
+ * method of double arithmetic instead of a virtual call per node and pixel.
+ *
+ * The variables a macro touches are loaded from the slot array into JVM locals once,
+ * evaluated and the assigned ones are stored back. A {@link RowKernel} does the same
+ * around a loop over a row of pixels, so only the per pixel inputs and outputs go
+ * through memory. Subexpressions that only read variables the loop never changes
+ * (y, z, w, ...) are computed once before the loop. Classes are written as version 49
+ * (Java 5), which needs no stack map frames. Every kernel gets its own class loader,
+ * so the class is unloaded as soon as the kernel is no longer referenced.
+ *
+ * If statements that only assign simple expressions become branch free selects, see
+ * {@link #select(Node.If)}.
+ *
+ * Kernels evaluate in double for every output bit depth. In float the truncated 8 and
+ * 16-bit values would change (100*0.29 is 28 in double but 29 in float), and HotSpot
+ * does not vectorize loops that call Math functions, so float would not gain lanes.
+ */
+final class KernelCompiler implements MacroConstants {
+
+	private static final String NAME = "GeneratedKernel";
+	private static final String KERNEL = "Engine/Kernel", ROW_KERNEL = "Engine/RowKernel";
+	private static final int MAX_CODE = 32767; // keeps all branch offsets within a signed short
+
+	// opcodes
+	private static final int ICONST_M1 = 0x02, DCONST_0 = 0x0e, DCONST_1 = 0x0f, BIPUSH = 0x10, SIPUSH = 0x11,
+			LDC2_W = 0x14, DLOAD = 0x18, ALOAD_0 = 0x2a, ALOAD_1 = 0x2b, DALOAD = 0x31, DSTORE = 0x39,
+			DASTORE = 0x52, POP2 = 0x58, DUP2 = 0x5c, DADD = 0x63, DSUB = 0x67, DMUL = 0x6b, DDIV = 0x6f,
+			DREM = 0x73, DNEG = 0x77, ISHL = 0x78, ISHR = 0x7a, IAND = 0x7e, IOR = 0x80, IXOR = 0x82,
+			I2D = 0x87, D2I = 0x8e, DCMPL = 0x97, DCMPG = 0x98, IFEQ = 0x99, IFNE = 0x9a, IFLT = 0x9b,
+			IFGE = 0x9c, IFGT = 0x9d, IFLE = 0x9e, GOTO = 0xa7, RETURN = 0xb1, INVOKESPECIAL = 0xb7,
+			INVOKESTATIC = 0xb8, WIDE = 0xc4, ILOAD = 0x15, ALOAD = 0x19, ALOAD_2 = 0x2c, AALOAD = 0x32,
+			ASTORE = 0x3a, IINC = 0x84, IF_ICMPGE = 0xa2, LLOAD = 0x16, LSTORE = 0x37, DUP = 0x59, IMUL = 0x68,
+			I2L = 0x85, LNEG = 0x75, LAND = 0x7f, LXOR = 0x83;
+	private static final int MAX_SELECT = 16; // largest expression assigned in a branch lowered to a select
+
+	// constant pool
+	private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+	private final DataOutputStream pool = new DataOutputStream(poolBytes);
+	private final Map<String, Integer> constants = new HashMap<>();
+	private int poolCount = 1;
+
+	// code of the run method
+	private byte[] code = new byte[256];
+	private int length;
+	private int stack, maxStack;
+	private int firstSlot; // local of slot 0, the ones before hold the arguments
+	private int nextLocal; // first free local after the slots
+	private final Map<Node, Integer> values = new IdentityHashMap<>(); // local already holding the value of a node
+	private final Map<Node, Integer> saved = new IdentityHashMap<>(); // local a node keeps its value in for a later copy
+	private final Map<String, Integer> hoistedKeys = new HashMap<>();
+	// x-only terms of a row kernel by node, the value is the cache column
+	private final Map<Node, Integer> cacheColumns = new IdentityHashMap<>();
+	private final Map<String, Integer> cacheKeys = new HashMap<>();
+	private final List<Node> cacheTerms = new ArrayList<>(); // by column
+	private boolean fillCache; // compute the cached terms into their columns before every pixel
+	private boolean fastMath; // call FastMath instead of java.lang.Math where it has an approximation
+	private int firstCacheColumn;
+
+	private KernelCompiler() {
+	}
+
+	/**
+	 * @param slots number of variable slots of the program
+	 * @return the kernel or null if the tree is too large for a single method
+	 */
+	static Kernel compile(Node root, int slots) {
+		try {
+			byte[] bytes = new KernelCompiler().generate(root, slots);
+			if (bytes==null) return null;
+			return (Kernel) new Loader().define(bytes).getDeclaredConstructor().newInstance();
+		} catch (IOException | ReflectiveOperationException | LinkageError e) {
+			return null;
+		}
+	}
+
+	/**
+	 * If the tree has terms that only depend on x (and slots the renderer keeps for
+	 * several rows, like w or z), the kernel computes them into cache columns after the
+	 * output columns and {@link RowKernel#cached} is a second kernel reading them from
+	 * there, see {@link CompiledEvaluator#runRow}.
+	 *
+	 * @param inputs slots set from the columns for every pixel
+	 * @param outputs slots copied to the columns after every pixel
+	 * @param fastMath use the approximations of {@link FastMath}
+	 * @return the row kernel or null if the tree is too large for a single method
+	 */
+	static RowKernel compileRow(Node root, int slots, int[] inputs, int[] outputs, boolean fastMath) {
+		try {
+			KernelCompiler filling = new KernelCompiler();
+			filling.fillCache = true;
+			filling.fastMath = fastMath;
+			byte[] bytes = filling.generateRow(root, slots, inputs, outputs);
+			if (bytes==null) return null;
+			RowKernel kernel = (RowKernel) new Loader().define(bytes).getDeclaredConstructor().newInstance();
+			if (filling.cacheTerms.isEmpty()) return kernel;
+
+			KernelCompiler reading = new KernelCompiler();
+			reading.fastMath = fastMath;
+			bytes = reading.generateRow(root, slots, inputs, outputs);
+			if (bytes==null) return null;
+			kernel.cached = (RowKernel) new Loader().define(bytes).getDeclaredConstructor().newInstance();
+			kernel.cacheColumns = filling.cacheTerms.size();
+			kernel.cacheReads = new BitSet();
+			for (Node term : filling.cacheTerms) collect(term, kernel.cacheReads, new BitSet());
+			kernel.cacheReads.clear(Evaluator.X);
+			for (int k = 0; k<inputs.length; k++) {
+				if (inputs[k]==Evaluator.X) kernel.xColumn = k;
+			}
+			return kernel;
+		} catch (IOException | ReflectiveOperationException | LinkageError e) {
+			return null;
+		}
+	}
+
+	// public void run(double[] vars)
+	private byte[] generate(Node root, int slots) throws IOException {
+		firstSlot = 2; // this, vars
+		nextLocal = firstSlot + 2*slots;
+		BitSet read = new BitSet(), written = new BitSet();
+		collect(root, read, written);
+		read.or(written); // every local needs a value on all paths for the verifier
+
+		load(read);
+		share(root, new HashMap<>());
+		statement(root);
+		store(written);
+		op(RETURN, 0);
+		if (length>MAX_CODE) return null;
+		return classFile(KERNEL, "([D)V", nextLocal);
+	}
+
+	// public void run(double[] vars, double[][] columns, int from, int to)
+	private byte[] generateRow(Node root, int slots, int[] inputs, int[] outputs) throws IOException {
+		BitSet read = new BitSet(), written = new BitSet();
+		collect(root, read, written);
+		boolean hasX = false;
+		for (int slot : inputs) hasX |= slot==Evaluator.X;
+		if (hasX && !written.get(Evaluator.X)) {
+			// y changes every row, the columns are only valid for the same values of the other slots
+			BitSet rowVarying = (BitSet) written.clone();
+			for (int slot : inputs) rowVarying.set(slot);
+			rowVarying.clear(Evaluator.X);
+			rowVarying.set(Evaluator.Y);
+			findCacheColumns(root, rowVarying);
+		}
+		for (int slot : inputs) written.set(slot);
+		BitSet varying = (BitSet) written.clone();
+		for (int slot : outputs) read.set(slot);
+		read.or(written);
+
+		firstCacheColumn = inputs.length + outputs.length;
+		int columns = firstCacheColumn + cacheTerms.size();
+		firstSlot = 5 + columns; // this, vars, columns, from, to, one local per column
+		nextLocal = firstSlot + 2*slots;
+
+		load(read);
+		for (int column = 0; column<columns; column++) {
+			op(ALOAD_2, 1);
+			push(column);
+			op(AALOAD, -1);
+			op(ASTORE, -1);
+			byte1(5 + column);
+		}
+		hoist(root, varying);
+		share(root, new HashMap<>());
+
+		// for (int i = from; i < to; i++)
+		Label end = new Label();
+		int loop = length;
+		op(ILOAD, 1);
+		byte1(3);
+		op(ILOAD, 1);
+		byte1(4);
+		jump(IF_ICMPGE, end, -2);
+		for (int i = 0; i<inputs.length; i++) {
+			op(ALOAD, 1);
+			byte1(5 + i);
+			op(ILOAD, 1);
+			byte1(3);
+			op(DALOAD, 0);
+			local(DSTORE, inputs[i], -2);
+		}
+		if (fillCache) {
+			// all terms for every pixel, the statements may only read some of them
+			for (int column = 0; column<cacheTerms.size(); column++) {
+				cacheCell(column);
+				compute(cacheTerms.get(column));
+				op(DASTORE, -4);
+			}
+		}
+		statement(root);
+		for (int i = 0; i<outputs.length; i++) {
+			op(ALOAD, 1);
+			byte1(5 + inputs.length + i);
+			op(ILOAD, 1);
+			byte1(3);
+			local(DLOAD, outputs[i], 2);
+			op(DASTORE, -4);
+		}
+		op(IINC, 0);
+		byte1(3);
+		byte1(1);
+		op(GOTO, 0);
+		short2(loop - (length-1));
+		mark(end);
+
+		store(written);
+		op(RETURN, 0);
+		if (length>MAX_CODE) return null;
+		return classFile(ROW_KERNEL, "([D[[DII)V", nextLocal);
+	}
+
+	private void load(BitSet slots) {
+		for (int slot = slots.nextSetBit(0); slot>=0; slot = slots.nextSetBit(slot+1)) {
+			op(ALOAD_1, 1);
+			push(slot);
+			op(DALOAD, 0);
+			local(DSTORE, slot, -2);
+		}
+	}
+
+	private void store(BitSet slots) {
+		for (int slot = slots.nextSetBit(0); slot>=0; slot = slots.nextSetBit(slot+1)) {
+			op(ALOAD_1, 1);
+			push(slot);
+			local(DLOAD, slot, 2);
+			op(DASTORE, -4);
+		}
+	}
+
+	private byte[] classFile(String superName, String runType, int maxLocals) throws IOException {
+		int thisClass = classRef(NAME);
+		int superClass = classRef(superName);
+		int superInit = methodRef(superName, "<init>", "()V");
+		int init = utf8("<init>"), initType = utf8("()V");
+		int run = utf8("run"), runTypeIndex = utf8(runType);
+		int codeName = utf8("Code");
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0xcafebabe);
+		out.writeShort(0);
+		out.writeShort(49);
+		out.writeShort(poolCount);
+		pool.flush();
+		poolBytes.writeTo(out);
+		out.writeShort(0x0031); // public final super
+		out.writeShort(thisClass);
+		out.writeShort(superClass);
+		out.writeShort(0); // interfaces
+		out.writeShort(0); // fields
+		out.writeShort(2); // methods
+
+		// public GeneratedKernel() { super(); }
+		out.writeShort(0x0001);
+		out.writeShort(init);
+		out.writeShort(initType);
+		out.writeShort(1);
+		out.writeShort(codeName);
+		out.writeInt(12 + 5);
+		out.writeShort(1); // max stack
+		out.writeShort(1); // max locals
+		out.writeInt(5);
+		out.writeByte(ALOAD_0);
+		out.writeByte(INVOKESPECIAL);
+		out.writeShort(superInit);
+		out.writeByte(RETURN);
+		out.writeShort(0); // exception table
+		out.writeShort(0); // attributes
+
+		out.writeShort(0x0001);
+		out.writeShort(run);
+		out.writeShort(runTypeIndex);
+		out.writeShort(1);
+		out.writeShort(codeName);
+		out.writeInt(12 + length);
+		out.writeShort(maxStack);
+		out.writeShort(maxLocals);
+		out.writeInt(length);
+		out.write(code, 0, length);
+		out.writeShort(0);
+		out.writeShort(0);
+
+		out.writeShort(0); // class attributes
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static void collect(Node node, BitSet read, BitSet written) {
+		if (node instanceof Node.Load) {
+			read.set(((Node.Load) node).slot);
+		} else if (node instanceof Node.Assign) {
+			Node.Assign assign = (Node.Assign) node;
+			written.set(assign.slot);
+			collect(assign.value, read, written);
+		} else if (node instanceof Node.Neg) {
+			collect(((Node.Neg) node).a, read, written);
+		} else if (node instanceof Node.Not) {
+			collect(((Node.Not) node).a, read, written);
+		} else if (node instanceof Node.BitNot) {
+			collect(((Node.BitNot) node).a, read, written);
+		} else if (node instanceof Node.Binary) {
+			collect(((Node.Binary) node).a, read, written);
+			collect(((Node.Binary) node).b, read, written);
+		} else if (node instanceof Node.Compare) {
+			collect(((Node.Compare) node).a, read, written);
+			collect(((Node.Compare) node).b, read, written);
+		} else if (node instanceof Node.Logical) {
+			collect(((Node.Logical) node).a, read, written);
+			collect(((Node.Logical) node).b, read, written);
+		} else if (node instanceof Node.Call) {
+			Node.Call call = (Node.Call) node;
+			collect(call.a, read, written);
+			if (call.b!=null) collect(call.b, read, written);
+		} else if (node instanceof Node.If) {
+			Node.If statement = (Node.If) node;
+			collect(statement.condition, read, written);
+			collect(statement.then, read, written);
+			if (statement.otherwise!=null) collect(statement.otherwise, read, written);
+		} else if (node instanceof Node.Block) {
+			for (Node statement : ((Node.Block) node).statements) collect(statement, read, written);
+		}
+	}
+
+	/**
+	 * Computes the largest subexpressions that only read slots outside varying into
+	 * locals of their own, {@link #expression} then just loads them. Math on doubles
+	 * has no side effects, so evaluating a term of a branch that is not taken is harmless.
+	 */
+	private void hoist(Node node, BitSet varying) throws IOException {
+		if (!(node instanceof Node.Const || node instanceof Node.Load) && isInvariant(node, varying)) {
+			String key = key(node);
+			Integer local = hoistedKeys.get(key);
+			if (local==null) {
+				expression(node);
+				local = nextLocal;
+				nextLocal += 2;
+				variable(DSTORE, local, -2);
+				hoistedKeys.put(key, local);
+			}
+			values.put(node, local);
+		} else {
+			for (Node child : children(node)) hoist(child, varying);
+		}
+	}
+
+	/**
+	 * Finds the largest terms that read x and otherwise only slots outside rowVarying,
+	 * e.g. f(x) of f(x)*g(y). Their values are the same in every row as long as the
+	 * slots they read keep their values.
+	 */
+	private void findCacheColumns(Node node, BitSet rowVarying) {
+		if (!(node instanceof Node.Const || node instanceof Node.Load) && isInvariant(node, rowVarying)) {
+			BitSet read = new BitSet();
+			collect(node, read, new BitSet());
+			if (!read.get(Evaluator.X)) return; // hoisted anyway
+			String key = key(node);
+			Integer column = cacheKeys.get(key);
+			if (column==null) {
+				column = cacheTerms.size();
+				cacheKeys.put(key, column);
+				cacheTerms.add(node);
+			}
+			cacheColumns.put(node, column);
+		} else {
+			for (Node child : children(node)) findCacheColumns(child, rowVarying);
+		}
+	}
+
+	// operands and statements of a node in evaluation order
+	private static Node[] children(Node node) {
+		if (node instanceof Node.Assign) return new Node[]{((Node.Assign) node).value};
+		if (node instanceof Node.Neg) return new Node[]{((Node.Neg) node).a};
+		if (node instanceof Node.Not) return new Node[]{((Node.Not) node).a};
+		if (node instanceof Node.BitNot) return new Node[]{((Node.BitNot) node).a};
+		if (node instanceof Node.Binary) return new Node[]{((Node.Binary) node).a, ((Node.Binary) node).b};
+		if (node instanceof Node.Compare) return new Node[]{((Node.Compare) node).a, ((Node.Compare) node).b};
+		if (node instanceof Node.Logical) return new Node[]{((Node.Logical) node).a, ((Node.Logical) node).b};
+		if (node instanceof Node.Call) {
+			Node.Call call = (Node.Call) node;
+			return call.b!=null ? new Node[]{call.a, call.b} : new Node[]{call.a};
+		}
+		if (node instanceof Node.If) {
+			Node.If statement = (Node.If) node;
+			if (statement.otherwise==null) return new Node[]{statement.condition, statement.then};
+			return new Node[]{statement.condition, statement.then, statement.otherwise};
+		}
+		if (node instanceof Node.Block) return ((Node.Block) node).statements;
+		return new Node[0];
+	}
+
+	/**
+	 * Common subexpression elimination, e.g. for the three functions of an RGB image.
+	 * Walks the statements in evaluation order with the expressions whose value is
+	 * known at this point by their {@link #key}. A repeated expression loads the value
+	 * the first one keeps in a local. An assignment drops the expressions reading its
+	 * slot, expressions of an if branch are only known inside the branch.
+	 */
+	private void share(Node node, Map<String, Node> available) {
+		if (values.containsKey(node) || cacheColumns.containsKey(node)) return;
+		if (!(node instanceof Node.Const || node instanceof Node.Load) && isInvariant(node, new BitSet())) {
+			String key = key(node);
+			Node first = available.get(key);
+			if (first!=null) {
+				Integer local = saved.get(first);
+				if (local==null) {
+					local = nextLocal;
+					nextLocal += 2;
+					saved.put(first, local);
+				}
+				values.put(node, local);
+				return;
+			}
+			available.put(key, node);
+		}
+		if (node instanceof Node.Assign) {
+			Node.Assign assign = (Node.Assign) node;
+			share(assign.value, available);
+			BitSet slot = new BitSet();
+			slot.set(assign.slot);
+			forget(available, slot);
+		} else if (node instanceof Node.If) {
+			Node.If statement = (Node.If) node;
+			share(statement.condition, available);
+			share(statement.then, new HashMap<>(available));
+			if (statement.otherwise!=null) share(statement.otherwise, new HashMap<>(available));
+			BitSet read = new BitSet(), written = new BitSet();
+			collect(statement, read, written);
+			forget(available, written);
+		} else {
+			for (Node child : children(node)) share(child, available);
+		}
+	}
+
+	// removes the expressions that read one of the slots
+	private static void forget(Map<String, Node> available, BitSet slots) {
+		available.values().removeIf(node -> {
+			BitSet read = new BitSet(), written = new BitSet();
+			collect(node, read, written);
+			return read.intersects(slots);
+		});
+	}
+
+	// same key for expressions that always evaluate to the same value, given the same slots
+	private static String key(Node node) {
+		if (node instanceof Node.Const) return Long.toString(Double.doubleToRawLongBits(((Node.Const) node).value));
+		if (node instanceof Node.Load) return "$" + ((Node.Load) node).slot;
+		if (node instanceof Node.Neg) return "(-" + key(((Node.Neg) node).a) + ")";
+		if (node instanceof Node.Not) return "(!" + key(((Node.Not) node).a) + ")";
+		if (node instanceof Node.BitNot) return "(~" + key(((Node.BitNot) node).a) + ")";
+		if (node instanceof Node.Binary) {
+			Node.Binary binary = (Node.Binary) node;
+			return "(b" + binary.op + " " + key(binary.a) + " " + key(binary.b) + ")";
+		}
+		if (node instanceof Node.Compare) {
+			Node.Compare compare = (Node.Compare) node;
+			return "(c" + compare.op + " " + key(compare.a) + " " + key(compare.b) + ")";
+		}
+		if (node instanceof Node.Logical) {
+			Node.Logical logical = (Node.Logical) node;
+			return "(l" + logical.op + " " + key(logical.a) + " " + key(logical.b) + ")";
+		}
+		Node.Call call = (Node.Call) node;
+		return "(f" + call.fn + " " + key(call.a) + (call.b!=null ? " " + key(call.b) : "") + ")";
+	}
+
+	// true for expressions without assignments that read no slot of varying
+	private static boolean isInvariant(Node node, BitSet varying) {
+		if (node instanceof Node.Const) return true;
+		if (node instanceof Node.Load) return !varying.get(((Node.Load) node).slot);
+		if (node instanceof Node.Neg) return isInvariant(((Node.Neg) node).a, varying);
+		if (node instanceof Node.Not) return isInvariant(((Node.Not) node).a, varying);
+		if (node instanceof Node.BitNot) return isInvariant(((Node.BitNot) node).a, varying);
+		if (node instanceof Node.Binary) {
+			return isInvariant(((Node.Binary) node).a, varying) && isInvariant(((Node.Binary) node).b, varying);
+		}
+		if (node instanceof Node.Compare) {
+			return isInvariant(((Node.Compare) node).a, varying) && isInvariant(((Node.Compare) node).b, varying);
+		}
+		if (node instanceof Node.Logical) {
+			return isInvariant(((Node.Logical) node).a, varying) && isInvariant(((Node.Logical) node).b, varying);
+		}
+		if (node instanceof Node.Call) {
+			Node.Call call = (Node.Call) node;
+			return isInvariant(call.a, varying) && (call.b==null || isInvariant(call.b, varying));
+		}
+		return false; // assignments and statements
+	}
+
+	/*--- code generation ---*/
+
+	private void statement(Node node) throws IOException {
+		if (node instanceof Node.Assign) {
+			assign((Node.Assign) node, false);
+		} else if (node instanceof Node.If) {
+			Node.If statement = (Node.If) node;
+			Node.Assign[][] branches = select(statement);
+			if (branches!=null) {
+				select(statement, branches);
+				return;
+			}
+			Label otherwise = new Label(), end = new Label();
+			expression(statement.condition);
+			op(DCONST_0, 2);
+			op(DCMPL, -3);
+			jump(IFEQ, otherwise, -1);
+			statement(statement.then);
+			if (statement.otherwise!=null) {
+				jump(GOTO, end, 0);
+				mark(otherwise);
+				statement(statement.otherwise);
+			} else {
+				mark(otherwise);
+			}
+			mark(end);
+		} else if (node instanceof Node.Block) {
+			for (Node statement : ((Node.Block) node).statements) statement(statement);
+		} else {
+			expression(node);
+			op(POP2, -2);
+		}
+	}
+
+	/**
+	 * If statements whose branches only assign small expressions without function calls,
+	 * like most conditionals (v=255 or v=0, r=x; g=y; ...), are evaluated without a jump:
+	 * both branches are computed for every pixel and each assigned slot takes the bits
+	 * of one of its two values by a mask from the condition. Pixels then cost the same
+	 * whichever way the condition goes, and the loop has no branch to mispredict.
+	 *
+	 * @return the assignments of the then and the else branch, null if the statement
+	 * has to branch
+	 */
+	private static Node.Assign[][] select(Node.If statement) {
+		Node.Assign[][] branches = {assignments(statement.then), assignments(statement.otherwise)};
+		for (Node.Assign[] branch : branches) {
+			if (branch==null) return null;
+			BitSet assigned = new BitSet();
+			for (Node.Assign assign : branch) {
+				if (assign.op!='=' || assigned.get(assign.slot) || size(assign.value)>MAX_SELECT) return null;
+				assigned.set(assign.slot);
+			}
+			// values are computed before any slot is assigned
+			for (Node.Assign assign : branch) {
+				BitSet read = new BitSet(), written = new BitSet();
+				collect(assign.value, read, written);
+				if (read.intersects(assigned)) return null;
+			}
+		}
+		return branches;
+	}
+
+	// the assignments of a branch in their order, null if it has other statements
+	private static Node.Assign[] assignments(Node branch) {
+		if (branch==null) return new Node.Assign[0];
+		if (branch instanceof Node.Assign) return new Node.Assign[]{(Node.Assign) branch};
+		if (!(branch instanceof Node.Block)) return null;
+		List<Node.Assign> assignments = new ArrayList<>();
+		for (Node statement : ((Node.Block) branch).statements) {
+			Node.Assign[] inner = assignments(statement);
+			if (inner==null) return null;
+			for (Node.Assign assign : inner) assignments.add(assign);
+		}
+		return assignments.toArray(new Node.Assign[0]);
+	}
+
+	// number of nodes of an expression, MAX_SELECT + 1 for function calls and assignments
+	private static int size(Node node) {
+		if (node instanceof Node.Call || node instanceof Node.Assign) return MAX_SELECT + 1;
+		int size = 1;
+		for (Node child : children(node)) size += size(child);
+		return size;
+	}
+
+	private void select(Node.If statement, Node.Assign[][] branches) throws IOException {
+		// mask = condition!=0 ? -1L : 0L, dcmpl is -1, 0 or 1 and NaN counts as true
+		expression(statement.condition);
+		op(DCONST_0, 2);
+		op(DCMPL, -3);
+		op(DUP, 1);
+		op(IMUL, -1);
+		op(I2L, 1);
+		op(LNEG, 0);
+		int mask = nextLocal;
+		nextLocal += 2;
+		variable(LSTORE, mask, -2);
+
+		List<Map<Integer, Integer>> branchValues = new ArrayList<>(); // local of the value of each slot, by branch
+		BitSet slots = new BitSet();
+		for (Node.Assign[] branch : branches) {
+			Map<Integer, Integer> locals = new HashMap<>();
+			for (Node.Assign assign : branch) {
+				expression(assign.value);
+				int local = nextLocal;
+				nextLocal += 2;
+				variable(DSTORE, local, -2);
+				locals.put(assign.slot, local);
+				slots.set(assign.slot);
+			}
+			branchValues.add(locals);
+		}
+		// slot = otherwise ^ ((then ^ otherwise) & mask)
+		for (int slot = slots.nextSetBit(0); slot>=0; slot = slots.nextSetBit(slot+1)) {
+			Integer then = branchValues.get(0).get(slot), otherwise = branchValues.get(1).get(slot);
+			bits(otherwise, slot);
+			bits(then, slot);
+			bits(otherwise, slot);
+			op(LXOR, -2);
+			variable(LLOAD, mask, 2);
+			op(LAND, -2);
+			op(LXOR, -2);
+			op(INVOKESTATIC, 0);
+			short2(methodRef("java/lang/Double", "longBitsToDouble", "(J)D"));
+			local(DSTORE, slot, -2);
+		}
+	}
+
+	// pushes the bits of a local, or of the slot if it is null
+	private void bits(Integer local, int slot) throws IOException {
+		if (local!=null) variable(DLOAD, local, 2);
+		else local(DLOAD, slot, 2);
+		op(INVOKESTATIC, 0);
+		short2(methodRef("java/lang/Double", "doubleToRawLongBits", "(D)J"));
+	}
+
+	private void assign(Node.Assign assign, boolean keep) throws IOException {
+		if (assign.op!='=') local(DLOAD, assign.slot, 2);
+		if (assign.value instanceof Node.Assign) assign((Node.Assign) assign.value, true);
+		else expression(assign.value);
+		switch (assign.op) {
+			case PLUS_EQUAL: op(DADD, -2); break;
+			case MINUS_EQUAL: op(DSUB, -2); break;
+			case MUL_EQUAL: op(DMUL, -2); break;
+			case DIV_EQUAL: op(DDIV, -2); break;
+		}
+		if (keep) op(DUP2, 2);
+		local(DSTORE, assign.slot, -2);
+	}
+
+	// leaves the double value of node on the stack
+	private void expression(Node node) throws IOException {
+		Integer local = values.get(node);
+		if (local!=null) {
+			variable(DLOAD, local, 2);
+			return;
+		}
+		Integer column = cacheColumns.get(node);
+		if (column!=null) {
+			cacheCell(column);
+			op(DALOAD, 0);
+			return;
+		}
+		compute(node);
+		local = saved.get(node);
+		if (local!=null) {
+			op(DUP2, 2);
+			variable(DSTORE, local, -2);
+		}
+	}
+
+	// pushes the cache column and i
+	private void cacheCell(int column) {
+		op(ALOAD, 1);
+		byte1(5 + firstCacheColumn + column);
+		op(ILOAD, 1);
+		byte1(3);
+	}
+
+	private void compute(Node node) throws IOException {
+		if (node instanceof Node.Const) {
+			double value = ((Node.Const) node).value;
+			if (Double.doubleToRawLongBits(value)==0L) op(DCONST_0, 2);
+			else if (value==1.0) op(DCONST_1, 2);
+			else {
+				op(LDC2_W, 2);
+				short2(doubleConstant(value));
+			}
+		} else if (node instanceof Node.Load) {
+			local(DLOAD, ((Node.Load) node).slot, 2);
+		} else if (node instanceof Node.Neg) {
+			expression(((Node.Neg) node).a);
+			op(DNEG, 0);
+		} else if (node instanceof Node.Not) {
+			expression(((Node.Not) node).a);
+			op(DCONST_0, 2);
+			op(DCMPL, -3);
+			bool(IFNE);
+		} else if (node instanceof Node.BitNot) {
+			expression(((Node.BitNot) node).a);
+			op(D2I, -1);
+			op(ICONST_M1, 1);
+			op(IXOR, -1);
+			op(I2D, 1);
+		} else if (node instanceof Node.Binary) {
+			binary((Node.Binary) node);
+		} else if (node instanceof Node.Compare) {
+			Node.Compare compare = (Node.Compare) node;
+			expression(compare.a);
+			expression(compare.b);
+			// jump to false if the comparison fails, NaN always fails
+			switch (compare.op) {
+				case EQ: op(DCMPL, -3); bool(IFNE); break;
+				case NEQ: op(DCMPL, -3); bool(IFEQ); break;
+				case GT: op(DCMPL, -3); bool(IFLE); break;
+				case GTE: op(DCMPL, -3); bool(IFLT); break;
+				case LT: op(DCMPG, -3); bool(IFGE); break;
+				default: op(DCMPG, -3); bool(IFGT); break; // LTE
+			}
+		} else if (node instanceof Node.Logical) {
+			Node.Logical logical = (Node.Logical) node;
+			expression(logical.a);
+			op(D2I, -1);
+			expression(logical.b);
+			op(D2I, -1);
+			op(logical.op==LOGICAL_AND ? IAND : IOR, -1);
+			op(I2D, 1);
+		} else if (node instanceof Node.Call) {
+			Node.Call call = (Node.Call) node;
+			expression(call.a);
+			if (call.b!=null) {
+				expression(call.b);
+				invokeMath(binaryName(call.fn), "(DD)D", -2);
+			} else if (call.fn==ROUND) {
+				op(LDC2_W, 2);
+				short2(doubleConstant(0.5));
+				op(DADD, -2);
+				invokeMath("floor", "(D)D", 0);
+			} else {
+				invokeMath(unaryName(call.fn), "(D)D", 0);
+			}
+		} else if (node instanceof Node.Assign) {
+			assign((Node.Assign) node, true);
+		} else {
+			throw new IllegalArgumentException(node.getClass().getName());
+		}
+	}
+
+	private void binary(Node.Binary binary) throws IOException {
+		expression(binary.a);
+		switch (binary.op) {
+			case '+': expression(binary.b); op(DADD, -2); return;
+			case '-': expression(binary.b); op(DSUB, -2); return;
+			case '*': expression(binary.b); op(DMUL, -2); return;
+			case '/': expression(binary.b); op(DDIV, -2); return;
+			case '%': expression(binary.b); op(DREM, -2); return;
+		}
+		op(D2I, -1);
+		expression(binary.b);
+		op(D2I, -1);
+		switch (binary.op) {
+			case '&': op(IAND, -1); break;
+			case '|': op(IOR, -1); break;
+			case '^': op(IXOR, -1); break;
+			case SHIFT_RIGHT: op(ISHR, -1); break;
+			default: op(ISHL, -1); break; // SHIFT_LEFT
+		}
+		op(I2D, 1);
+	}
+
+	// turns the int on the stack into 1.0, or 0.0 if the jump is taken
+	private void bool(int jumpToFalse) {
+		Label no = new Label(), end = new Label();
+		jump(jumpToFalse, no, -1);
+		op(DCONST_1, 2);
+		jump(GOTO, end, 0);
+		stack -= 2;
+		mark(no);
+		op(DCONST_0, 2);
+		mark(end);
+	}
+
+	private static String unaryName(int fn) {
+		switch (fn) {
+			case ABS: return "abs";
+			case COS: return "cos";
+			case EXP: return "exp";
+			case FLOOR: return "floor";
+			case LOG: return "log";
+			case SIN: return "sin";
+			case SQRT: return "sqrt";
+			case TAN: return "tan";
+			case ATAN: return "atan";
+			case ASIN: return "asin";
+			default: return "acos"; // ACOS
+		}
+	}
+
+	private static String binaryName(int fn) {
+		switch (fn) {
+			case MIN_OF: return "min";
+			case MAX_OF: return "max";
+			case POW: return "pow";
+			default: return "atan2"; // ATAN2
+		}
+	}
+
+	/*--- bytes ---*/
+
+	private void op(int opcode, int stackChange) {
+		byte1(opcode);
+		stack += stackChange;
+		if (stack>maxStack) maxStack = stack;
+	}
+
+	private void push(int value) {
+		if (value<=5) op(0x03 + value, 1); // iconst_<n>
+		else if (value<=Byte.MAX_VALUE) {
+			op(BIPUSH, 1);
+			byte1(value);
+		} else {
+			op(SIPUSH, 1);
+			short2(value);
+		}
+	}
+
+	private void local(int opcode, int slot, int stackChange) {
+		variable(opcode, firstSlot + 2*slot, stackChange);
+	}
+
+	private void variable(int opcode, int index, int stackChange) {
+		if (index<=255) {
+			op(opcode, stackChange);
+			byte1(index);
+		} else {
+			byte1(WIDE);
+			op(opcode, stackChange);
+			short2(index);
+		}
+	}
+
+	private void invokeMath(String name, String type, int stackChange) throws IOException {
+		op(INVOKESTATIC, stackChange);
+		short2(methodRef(fastMath && FastMath.approximates(name) ? "Engine/FastMath" : "java/lang/Math", name, type));
+	}
+
+	private void jump(int opcode, Label label, int stackChange) {
+		label.jumps.add(length);
+		op(opcode, stackChange);
+		short2(0);
+	}
+
+	private void mark(Label label) {
+		for (int at : label.jumps) {
+			int offset = length - at;
+			code[at+1] = (byte) (offset>>8);
+			code[at+2] = (byte) offset;
+		}
+	}
+
+	private void byte1(int value) {
+		if (length==code.length) {
+			byte[] larger = new byte[code.length*2];
+			System.arraycopy(code, 0, larger, 0, length);
+			code = larger;
+		}
+		code[length++] = (byte) value;
+	}
+
+	private void short2(int value) {
+		byte1(value>>8);
+		byte1(value);
+	}
+
+	/*--- constant pool ---*/
+
+	private int utf8(String value) throws IOException {
+		Integer index = constants.get("U" + value);
+		if (index!=null) return index;
+		pool.writeByte(1);
+		pool.writeUTF(value);
+		return add("U" + value, 1);
+	}
+
+	private int classRef(String name) throws IOException {
+		Integer index = constants.get("C" + name);
+		if (index!=null) return index;
+		int nameIndex = utf8(name);
+		pool.writeByte(7);
+		pool.writeShort(nameIndex);
+		return add("C" + name, 1);
+	}
+
+	private int methodRef(String owner, String name, String type) throws IOException {
+		String key = "M" + owner + "." + name + type;
+		Integer index = constants.get(key);
+		if (index!=null) return index;
+		int ownerIndex = classRef(owner);
+		int nameIndex = utf8(name), typeIndex = utf8(type);
+		pool.writeByte(12);
+		pool.writeShort(nameIndex);
+		pool.writeShort(typeIndex);
+		int nameAndType = add("N" + name + type, 1);
+		pool.writeByte(10);
+		pool.writeShort(ownerIndex);
+		pool.writeShort(nameAndType);
+		return add(key, 1);
+	}
+
+	private int doubleConstant(double value) throws IOException {
+		long bits = Double.doubleToRawLongBits(value);
+		String key = "D" + bits;
+		Integer index = constants.get(key);
+		if (index!=null) return index;
+		pool.writeByte(6);
+		pool.writeLong(bits);
+		return add(key, 2); // doubles take two entries
+	}
+
+	private int add(String key, int entries) {
+		int index = poolCount;
+		constants.put(key, index);
+		poolCount += entries;
+		return index;
+	}
+
+	private static final class Label {
+		final List<Integer> jumps = new ArrayList<>();
+	}
+
+	/** one loader per kernel, so each generated class can be unloaded on its own */
+	private static final class Loader extends ClassLoader {
+		Loader() {
+			super(Kernel.class.getClassLoader());
+		}
+
+		Class<?> define(byte[] bytes) {
+			return defineClass(NAME, bytes, 0, bytes.length);
+		}
+	}
+}
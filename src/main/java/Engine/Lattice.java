@@ -0,0 +1,72 @@
+package Engine;
+
+/**
+ * The pixels (x0 + stride*i, y0 + stride*j) of an image, with the coordinates they
+ * have in the whole image, e.g. every 8th pixel of a preview. Coordinates are computed
+ * exactly like for the whole image, so a pixel renders to the same value in every
+ * lattice it belongs to.
+ */
+public final class Lattice {
+
+	private final double xMin, xStep, yMin, yStep;
+	private final int width, height; // of the lattice
+	private final int x0, y0, stride; // in the whole image
+
+	/** all pixels of a width x height image spanning min..max */
+	public Lattice(double[] min, double[] max, int width, int height) {
+		this(min[0], (max[0]-min[0])/(width-1), min[1], (max[1]-min[1])/(height-1), width, height, 0, 0, 1);
+	}
+
+	private Lattice(double xMin, double xStep, double yMin, double yStep, int width, int height, int x0, int y0, int stride) {
+		this.xMin = xMin;
+		this.xStep = xStep;
+		this.yMin = yMin;
+		this.yStep = yStep;
+		this.width = width;
+		this.height = height;
+		this.x0 = x0;
+		this.y0 = y0;
+		this.stride = stride;
+	}
+
+	/** @return the pixels (x0 + stride*i, y0 + stride*j) of this lattice, may be empty */
+	public Lattice sample(int x0, int y0, int stride) {
+		int width = x0<this.width ? (this.width - 1 - x0)/stride + 1 : 0;
+		int height = y0<this.height ? (this.height - 1 - y0)/stride + 1 : 0;
+		return new Lattice(xMin, xStep, yMin, yStep, width, height,
+				this.x0 + this.stride*x0, this.y0 + this.stride*y0, this.stride*stride);
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/** @return column of pixel i in the whole image */
+	public int column(int i) {
+		return x0 + stride*i;
+	}
+
+	/** @return row of pixel j in the whole image */
+	public int row(int j) {
+		return y0 + stride*j;
+	}
+
+	/** @return x of column i */
+	public double x(int i) {
+		return xMin + xStep*column(i); // 0..x to min..max
+	}
+
+	/** @return y of row j */
+	public double y(int j) {
+		return yMin + yStep*row(j); // 0..y to min..max
+	}
+
+	// identifies the x values of the columns, for CoordinatePlanes
+	String columnKey() {
+		return width + " " + xMin + " " + xStep + (x0==0 && stride==1 ? "" : " " + x0 + "+" + stride + "i");
+	}
+}
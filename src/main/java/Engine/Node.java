@@ -0,0 +1,289 @@
+package Engine;
+
+import ij.macro.MacroConstants;
+
+/**
+ * Node of the typed syntax tree built by {@link Parser}. Expressions, assignments,
+ * if statements and blocks are all nodes; statements evaluate to 0.
+ *
+ * Every node mirrors exactly what ij.macro.Interpreter does for the same tokens,
+ * so the compiled result is bit-identical to the interpreted one.
+ */
+abstract class Node implements MacroConstants {
+
+	/** true if the node can only evaluate to 0 or 1 (comparisons, logical operators, true/false) */
+	final boolean bool;
+
+	Node(boolean bool) {
+		this.bool = bool;
+	}
+
+	abstract double eval(double[] vars);
+
+	/*--- expressions ---*/
+
+	static final class Const extends Node {
+		final double value;
+
+		Const(double value) {
+			super(value==0.0 || value==1.0);
+			this.value = value;
+		}
+
+		double eval(double[] vars) {
+			return value;
+		}
+	}
+
+	static final class Load extends Node {
+		final int slot;
+
+		Load(int slot) {
+			super(false);
+			this.slot = slot;
+		}
+
+		double eval(double[] vars) {
+			return vars[slot];
+		}
+	}
+
+	static final class Neg extends Node {
+		final Node a;
+
+		Neg(Node a) {
+			super(false);
+			this.a = a;
+		}
+
+		double eval(double[] vars) {
+			return -a.eval(vars);
+		}
+	}
+
+	static final class Not extends Node {
+		final Node a;
+
+		Not(Node a) {
+			super(true);
+			this.a = a;
+		}
+
+		double eval(double[] vars) {
+			return a.eval(vars)==0.0 ? 1.0 : 0.0;
+		}
+	}
+
+	static final class BitNot extends Node {
+		final Node a;
+
+		BitNot(Node a) {
+			super(false);
+			this.a = a;
+		}
+
+		double eval(double[] vars) {
+			return ~(int) a.eval(vars);
+		}
+	}
+
+	/** arithmetic and bitwise operators, op is the token ('+', '*', SHIFT_LEFT, ...) */
+	static final class Binary extends Node {
+		final int op;
+		final Node a, b;
+
+		Binary(int op, Node a, Node b) {
+			super(false);
+			this.op = op;
+			this.a = a;
+			this.b = b;
+		}
+
+		double eval(double[] vars) {
+			return apply(op, a.eval(vars), b.eval(vars));
+		}
+
+		static double apply(int op, double x, double y) {
+			switch (op) {
+				case '+': return x + y;
+				case '-': return x - y;
+				case '*': return x * y;
+				case '/': return x / y;
+				case '%': return x % y;
+				case '&': return (int) x & (int) y;
+				case '|': return (int) x | (int) y;
+				case '^': return (int) x ^ (int) y;
+				case SHIFT_RIGHT: return (int) x >> (int) y;
+				default: return (int) x << (int) y; // SHIFT_LEFT
+			}
+		}
+	}
+
+	/** comparison operators EQ, NEQ, GT, GTE, LT, LTE */
+	static final class Compare extends Node {
+		final int op;
+		final Node a, b;
+
+		Compare(int op, Node a, Node b) {
+			super(true);
+			this.op = op;
+			this.a = a;
+			this.b = b;
+		}
+
+		double eval(double[] vars) {
+			return apply(op, a.eval(vars), b.eval(vars));
+		}
+
+		static double apply(int op, double x, double y) {
+			boolean result;
+			switch (op) {
+				case EQ: result = x==y; break;
+				case NEQ: result = x!=y; break;
+				case GT: result = x>y; break;
+				case GTE: result = x>=y; break;
+				case LT: result = x<y; break;
+				default: result = x<=y; // LTE
+			}
+			return result ? 1.0 : 0.0;
+		}
+	}
+
+	/** LOGICAL_AND and LOGICAL_OR, like the interpreter both sides are always evaluated */
+	static final class Logical extends Node {
+		final int op;
+		final Node a, b;
+
+		Logical(int op, Node a, Node b) {
+			super(true);
+			this.op = op;
+			this.a = a;
+			this.b = b;
+		}
+
+		double eval(double[] vars) {
+			boolean x = a.eval(vars)!=0.0;
+			boolean y = b.eval(vars)!=0.0;
+			return (op==LOGICAL_AND ? x & y : x | y) ? 1.0 : 0.0;
+		}
+	}
+
+	/** numeric built-in functions, fn is the function id (SIN, POW, ...) */
+	static final class Call extends Node {
+		final int fn;
+		final Node a, b;
+
+		Call(int fn, Node a, Node b) {
+			super(false);
+			this.fn = fn;
+			this.a = a;
+			this.b = b;
+		}
+
+		double eval(double[] vars) {
+			double x = a.eval(vars);
+			if (b!=null) return apply(fn, x, b.eval(vars));
+			return apply(fn, x);
+		}
+
+		static boolean isUnary(int fn) {
+			switch (fn) {
+				case ABS: case COS: case EXP: case FLOOR: case LOG: case ROUND:
+				case SIN: case SQRT: case TAN: case ATAN: case ASIN: case ACOS:
+					return true;
+				default:
+					return false;
+			}
+		}
+
+		static boolean isBinary(int fn) {
+			return fn==MIN_OF || fn==MAX_OF || fn==POW || fn==ATAN2;
+		}
+
+		// same as ij.macro.Functions.math()
+		static double apply(int fn, double x) {
+			switch (fn) {
+				case ABS: return Math.abs(x);
+				case COS: return Math.cos(x);
+				case EXP: return Math.exp(x);
+				case FLOOR: return Math.floor(x);
+				case LOG: return Math.log(x);
+				case ROUND: return Math.floor(x + 0.5);
+				case SIN: return Math.sin(x);
+				case SQRT: return Math.sqrt(x);
+				case TAN: return Math.tan(x);
+				case ATAN: return Math.atan(x);
+				case ASIN: return Math.asin(x);
+				default: return Math.acos(x); // ACOS
+			}
+		}
+
+		// same as ij.macro.Functions.math2()
+		static double apply(int fn, double x, double y) {
+			switch (fn) {
+				case MIN_OF: return Math.min(x, y);
+				case MAX_OF: return Math.max(x, y);
+				case POW: return Math.pow(x, y);
+				default: return Math.atan2(x, y); // ATAN2
+			}
+		}
+	}
+
+	/*--- statements ---*/
+
+	/** '=' or one of PLUS_EQUAL, MINUS_EQUAL, MUL_EQUAL, DIV_EQUAL; evaluates to the assigned value */
+	static final class Assign extends Node {
+		final int slot, op;
+		final Node value;
+
+		Assign(int slot, int op, Node value) {
+			super(op=='=' && value.bool);
+			this.slot = slot;
+			this.op = op;
+			this.value = value;
+		}
+
+		double eval(double[] vars) {
+			double result = value.eval(vars);
+			switch (op) {
+				case PLUS_EQUAL: result = vars[slot] + result; break;
+				case MINUS_EQUAL: result = vars[slot] - result; break;
+				case MUL_EQUAL: result = vars[slot] * result; break;
+				case DIV_EQUAL: result = vars[slot] / result; break;
+			}
+			vars[slot] = result;
+			return result;
+		}
+	}
+
+	static final class If extends Node {
+		final Node condition, then, otherwise;
+
+		If(Node condition, Node then, Node otherwise) {
+			super(false);
+			this.condition = condition;
+			this.then = then;
+			this.otherwise = otherwise;
+		}
+
+		double eval(double[] vars) {
+			if (condition.eval(vars)!=0.0) then.eval(vars);
+			else if (otherwise!=null) otherwise.eval(vars);
+			return 0.0;
+		}
+	}
+
+	static final class Block extends Node {
+		final Node[] statements;
+
+		Block(Node[] statements) {
+			super(false);
+			this.statements = statements;
+		}
+
+		double eval(double[] vars) {
+			for (Node statement : statements) statement.eval(vars);
+			return 0.0;
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package Engine;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.process.ByteProcessor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Binary image with one bit per pixel, e.g. the result of a conditional, taking 1/8 of
+ * the memory of an 8-bit image and 1/32 of a 32-bit one. Rows are packed most
+ * significant bit first and padded to whole bytes, the layout of 1-bit bitmaps in
+ * ImageJ, so slices are written to disk as they are and can be opened again with
+ * File > Import > Raw... as "1-bit Bitmap".
+ */
+public final class PackedMask {
+
+	private final int width, height, stride;
+	private final byte[][] slices;
+
+	public PackedMask(int width, int height, int slices) {
+		this.width = width;
+		this.height = height;
+		stride = (width + 7)/8;
+		this.slices = new byte[slices][stride*height];
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getSize() {
+		return slices.length;
+	}
+
+	/** @return true if pixel x, y of slice z (0 based) is set */
+	public boolean get(int x, int y, int z) {
+		return (slices[z][y*stride + (x>>3)] & 0x80>>(x&7))!=0;
+	}
+
+	/**
+	 * Sets the pixels x0 (inclusive) to x1 (exclusive) of row y whose value is not 0,
+	 * clears the others. Rows start on a byte, so bands may set their rows concurrently.
+	 */
+	public void setRow(int z, int y, double[] values, int x0, int x1) {
+		byte[] bits = slices[z];
+		int offset = y*stride;
+		for (int x = x0; x < x1; x++) {
+			int index = offset + (x>>3), bit = 0x80>>(x&7);
+			if (values[x]!=0) bits[index] |= bit;
+			else bits[index] &= ~bit;
+		}
+	}
+
+	/** copies the bits of slice from to slice to */
+	public void copySlice(int from, int to) {
+		System.arraycopy(slices[from], 0, slices[to], 0, slices[from].length);
+	}
+
+	/** writes slice z packed, stride bytes per row */
+	public void writeSlice(int z, OutputStream out) throws IOException {
+		out.write(slices[z]);
+	}
+
+	/**
+	 * @return an 8-bit binary image, set pixels are 255 and shown in the foreground
+	 * color of binary images (see Prefs.blackBackground)
+	 */
+	public ImagePlus toImagePlus(String title) {
+		ImageStack stack = new ImageStack(width, height);
+		for (int z = 0; z < slices.length; z++) {
+			byte[] pixels = new byte[width*height];
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					if (get(x, y, z)) pixels[y*width + x] = (byte) 255;
+				}
+			}
+			stack.addSlice(null, new ByteProcessor(width, height, pixels));
+		}
+		ImagePlus imagePlus = new ImagePlus(title, stack);
+		if (!Prefs.blackBackground) {
+			imagePlus.getProcessor().invertLut();
+			stack.setColorModel(imagePlus.getProcessor().getColorModel());
+		}
+		return imagePlus;
+	}
+}
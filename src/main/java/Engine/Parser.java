@@ -0,0 +1,272 @@
+package Engine;
+
+import ij.macro.MacroConstants;
+import ij.macro.Program;
+import ij.macro.Symbol;
+import ij.macro.Tokenizer;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Recursive descent parser for the subset of the ImageJ macro language used by the
+ * synthesizer. The grammar follows ij.macro.Interpreter (doStatement, getAssignmentExpression,
+ * getLogicalExpression, getBooleanExpression, getExpression, getTerm, getFactor) token by token.
+ *
+ * Anything outside the subset (strings, arrays, loops, user functions, getPixel, random, ...),
+ * anything the interpreter would only accept with loose syntax and every construct that could
+ * raise a macro error at runtime (reading an undefined variable, a non boolean operand of
+ * '!', '&&', '||' or 'if') makes {@link #parse} return null, the caller then falls back to the
+ * interpreter.
+ */
+final class Parser implements MacroConstants {
+
+	private final int[] code;
+	private final Symbol[] table;
+	private int pc = -1;
+
+	private final Map<String, Integer> slots = new HashMap<>();
+	private final List<String> names = new ArrayList<>();
+	private final BitSet globals = new BitSet();
+	private final BitSet assignedGlobals = new BitSet();
+	private final BitSet read = new BitSet();
+	private final BitSet exposed = new BitSet(); // globals read where they may still hold the value of the previous run
+	private BitSet assigned = new BitSet(); // variables assigned on every path to pc
+
+	private Parser(Program program, String[] globalNames) {
+		code = program.getCode();
+		table = program.getSymbolTable();
+		for (String name : Evaluator.NAMES) slot(name);
+		for (String name : globalNames) globals.set(slot(name));
+	}
+
+	/**
+	 * @param variables global declaration the macro runs with, e.g. "var v,x,y;"
+	 * @return the compiled program or null if the macro has to run in the interpreter
+	 */
+	static CompiledProgram parse(String variables, String macro) {
+		String declaration = variables.trim();
+		if (!declaration.startsWith("var") || !declaration.endsWith(";")) return null;
+		String[] globalNames = declaration.substring(3, declaration.length()-1).trim().split("\\s*,\\s*");
+
+		Program program = new Tokenizer().tokenize(macro + ";\n");
+		Parser parser = new Parser(program, globalNames);
+		try {
+			List<Node> statements = new ArrayList<>();
+			while (parser.next()!=EOF) {
+				Node statement = parser.statement();
+				if (statement!=null) statements.add(statement);
+			}
+			Node root = new Node.Block(statements.toArray(new Node[0]));
+			return new CompiledProgram(root, parser.names.toArray(new String[0]), parser.assignedGlobals,
+					parser.exposed, parser.read, parser.assigned);
+		} catch (Unsupported e) {
+			return null;
+		}
+	}
+
+	/*--- statements ---*/
+
+	// returns null for empty statements
+	private Node statement() {
+		int token = advance();
+		switch (token) {
+			case ';':
+				return null;
+			case '{':
+				List<Node> statements = new ArrayList<>();
+				while (next()!='}') {
+					if (next()==EOF) throw new Unsupported();
+					Node statement = statement();
+					if (statement!=null) statements.add(statement);
+				}
+				advance();
+				return new Node.Block(statements.toArray(new Node[0]));
+			case IF:
+				expect('(');
+				Node condition = logical();
+				expect(')');
+				if (!condition.bool) throw new Unsupported();
+
+				BitSet before = (BitSet) assigned.clone();
+				Node then = statement();
+				if (next()==';') advance(); // doIf() skips one ';' before looking for else
+				BitSet afterThen = assigned;
+				Node otherwise = null;
+				assigned = (BitSet) before.clone();
+				if (next()==ELSE) {
+					advance();
+					otherwise = statement();
+				}
+				assigned.and(afterThen);
+				if (then==null) then = new Node.Block(new Node[0]);
+				return new Node.If(condition, then, otherwise);
+			case WORD:
+				pc--;
+				if (!isAssignment()) throw new Unsupported();
+				Node assignment = assignment(new BitSet());
+				expect(';');
+				return assignment;
+			default:
+				throw new Unsupported();
+		}
+	}
+
+	private boolean isAssignment() {
+		if ((code[pc+1]&TOK_MASK)!=WORD) return false;
+		int op = code[pc+2]&TOK_MASK;
+		return op=='=' || op==PLUS_EQUAL || op==MINUS_EQUAL || op==MUL_EQUAL || op==DIV_EQUAL;
+	}
+
+	// WORD op (assignment | logical), targets collects the slots assigned by the chain
+	private Node assignment(BitSet targets) {
+		advance();
+		int slot = slot(table[code[pc]>>TOK_SHIFT].str);
+		int op = advance();
+		if (targets.get(slot)) throw new Unsupported();
+		targets.set(slot);
+		if (op!='=' && !isDefined(slot)) throw new Unsupported();
+		if (op!='=') read(slot);
+
+		Node value = isAssignment() ? assignment(targets) : logical();
+		assigned.set(slot);
+		if (globals.get(slot)) assignedGlobals.set(slot);
+		return new Node.Assign(slot, op, value);
+	}
+
+	/*--- expressions ---*/
+
+	private Node logical() {
+		Node a = booleanExpression();
+		int op = next();
+		if (op!=LOGICAL_AND && op!=LOGICAL_OR) return a;
+		advance();
+		Node b = logical();
+		if (!a.bool || !b.bool) throw new Unsupported();
+		return new Node.Logical(op, a, b);
+	}
+
+	private Node booleanExpression() {
+		Node a = expression();
+		int op = next();
+		if (op<EQ || op>LTE) return a;
+		advance();
+		return new Node.Compare(op, a, expression());
+	}
+
+	private Node expression() {
+		Node a = term();
+		int op = next();
+		while (op=='+' || op=='-') {
+			advance();
+			a = new Node.Binary(op, a, term());
+			op = next();
+		}
+		return a;
+	}
+
+	private Node term() {
+		Node a = factor();
+		int op = next();
+		while (op=='*' || op=='/' || op=='%' || op=='&' || op=='|' || op=='^' || op==SHIFT_RIGHT || op==SHIFT_LEFT) {
+			advance();
+			a = new Node.Binary(op, a, factor());
+			op = next();
+		}
+		return a;
+	}
+
+	private Node factor() {
+		int token = advance();
+		Symbol symbol = table[code[pc]>>TOK_SHIFT];
+		switch (token) {
+			case NUMBER:
+				return new Node.Const(symbol.value);
+			case TRUE:
+				return new Node.Const(1.0);
+			case FALSE:
+				return new Node.Const(0.0);
+			case PI:
+				return new Node.Const(Math.PI);
+			case NaN:
+				return new Node.Const(Double.NaN);
+			case WORD:
+				int next = next();
+				if (next=='[' || next=='.' || next=='(' || next==PLUS_PLUS || next==MINUS_MINUS) throw new Unsupported();
+				Integer slot = slots.get(symbol.str);
+				if (slot==null || !isDefined(slot)) throw new Unsupported();
+				read(slot);
+				return new Node.Load(slot);
+			case NUMERIC_FUNCTION:
+				int fn = symbol.type;
+				expect('(');
+				Node a = expression();
+				Node b = null;
+				if (Node.Call.isBinary(fn)) {
+					expect(',');
+					b = expression();
+				} else if (!Node.Call.isUnary(fn)) throw new Unsupported();
+				expect(')');
+				return new Node.Call(fn, a, b);
+			case '(':
+				Node value = logical();
+				expect(')');
+				return value;
+			case '!':
+				Node operand = factor();
+				if (!operand.bool) throw new Unsupported();
+				return new Node.Not(operand);
+			case '-':
+				return new Node.Neg(factor());
+			case '~':
+				return new Node.BitNot(factor());
+			default:
+				throw new Unsupported();
+		}
+	}
+
+	/*--- helpers ---*/
+
+	private int next() {
+		return code[pc+1]&TOK_MASK;
+	}
+
+	private int advance() {
+		return code[++pc]&TOK_MASK;
+	}
+
+	private void expect(int token) {
+		if (advance()!=token) throw new Unsupported();
+	}
+
+	private void read(int slot) {
+		read.set(slot);
+		if (!assigned.get(slot)) exposed.set(slot);
+	}
+
+	private boolean isDefined(int slot) {
+		return globals.get(slot) || assigned.get(slot);
+	}
+
+	private int slot(String name) {
+		Integer slot = slots.get(name);
+		if (slot==null) {
+			slot = names.size();
+			slots.put(name, slot);
+			names.add(name);
+		}
+		return slot;
+	}
+
+	/** thrown for everything the compiler leaves to the interpreter */
+	private static final class Unsupported extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		Unsupported() {
+			super(null, null, false, false);
+		}
+	}
+}
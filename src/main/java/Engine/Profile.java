@@ -0,0 +1,158 @@
+package Engine;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Lookup table for macros whose outputs only depend on d, or only on a, like the
+ * radial sine patterns or "Conic circles". The outputs are evaluated once for every
+ * multiple of 2*error in the range of the coordinate and every pixel takes the entry
+ * nearest to its own coordinate. The result is exactly that of the macro at a
+ * coordinate at most error away from the pixel's.
+ *
+ * Tables are shared by all evaluators of the program, e.g. the bands of a slice, and
+ * kept by the values of the other variables the macro reads (e.g. z), so slices
+ * rendered at the same time each find their own. All tables of a profile together
+ * hold at most MAX_VALUES values, the least recently used are dropped first.
+ */
+final class Profile {
+
+	private static final int MAX_ENTRIES = 1 << 20;
+	private static final long MAX_VALUES = 1 << 22;
+
+	private final CompiledProgram program;
+	private final int[] inputs, outputs;
+	private final int column; // input column of the coordinate
+	private final boolean angle;
+	private final double step;
+	private final BitSet reads; // slots besides the coordinate the table depends on
+
+	private final Map<String, Table> tables = new LinkedHashMap<>(16, 0.75f, true);
+	private long values;
+
+	private static final class Table {
+		final double min, max;
+		final double[][] values; // by output
+
+		Table(double min, double max, double[][] values) {
+			this.min = min;
+			this.max = max;
+			this.values = values;
+		}
+
+		long size() {
+			return (long) values.length*values[0].length;
+		}
+	}
+
+	private Profile(CompiledProgram program, int[] inputs, int[] outputs, int coordinate, double error, BitSet reads) {
+		this.program = program;
+		this.inputs = inputs;
+		this.outputs = outputs;
+		column = Arrays.binarySearch(inputs, coordinate);
+		angle = coordinate==Evaluator.A;
+		step = 2*error;
+		this.reads = reads;
+	}
+
+	/**
+	 * @param read slots the program reads
+	 * @param error largest distance between the coordinate of a pixel and the one it is evaluated at
+	 * @return null if error is not positive or the outputs depend on more than d or a
+	 */
+	static Profile of(CompiledProgram program, BitSet read, int[] inputs, int[] outputs, double error) {
+		if (!(error>0)) return null;
+		for (int coordinate : new int[]{Evaluator.D, Evaluator.A}) {
+			if (!read.get(coordinate) || Arrays.binarySearch(inputs, coordinate)<0) continue;
+			BitSet varying = new BitSet();
+			varying.set(Evaluator.X);
+			varying.set(Evaluator.Y);
+			for (int slot : inputs) {
+				if (slot!=coordinate) varying.set(slot);
+			}
+			if (program.dependsOn(varying, inputs, outputs)) continue;
+			BitSet reads = (BitSet) read.clone();
+			if (reads.length()>Evaluator.NAMES.length) reads.clear(Evaluator.NAMES.length, reads.length()); // locals are assigned before they are read
+			for (int slot : inputs) reads.clear(slot);
+			return new Profile(program, inputs, outputs, coordinate, error, reads);
+		}
+		return null;
+	}
+
+	/**
+	 * Sets the output columns from (inclusive) to to (exclusive) from the table.
+	 *
+	 * @return false if the table would get too large, the caller evaluates the row instead
+	 */
+	boolean run(RowKernel kernel, double[] vars, double[][] columns, int from, int to) {
+		double[] coordinates = columns[column];
+		double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+		for (int i = from; i < to; i++) {
+			min = Math.min(min, coordinates[i]);
+			max = Math.max(max, coordinates[i]);
+		}
+		if (Double.isNaN(min) || Double.isNaN(max) || min>max) return false;
+
+		double[] key = key(vars);
+		Table table = table(key);
+		if (table==null || min<table.min || max>table.max) {
+			table = build(kernel, vars, key, min, max);
+			if (table==null) return false;
+		}
+		double scale = 1/step;
+		for (int k = 0; k < outputs.length; k++) {
+			double[] values = table.values[k], output = columns[inputs.length + k];
+			for (int i = from; i < to; i++) output[i] = values[(int) Math.round((coordinates[i] - table.min)*scale)];
+		}
+		return true;
+	}
+
+	private double[] key(double[] vars) {
+		double[] key = new double[reads.cardinality()];
+		int k = 0;
+		for (int slot = reads.nextSetBit(0); slot >= 0; slot = reads.nextSetBit(slot+1)) key[k++] = vars[slot];
+		return key;
+	}
+
+	private synchronized Table table(double[] key) {
+		return tables.get(Arrays.toString(key));
+	}
+
+	private synchronized Table build(RowKernel kernel, double[] vars, double[] key, double min, double max) {
+		Table table = tables.get(Arrays.toString(key));
+		if (table!=null) {
+			if (min>=table.min && max<=table.max) return table; // built by another band meanwhile
+			min = Math.min(min, table.min);
+			max = Math.max(max, table.max);
+		}
+		if (angle) {
+			min = Math.min(min, 0);
+			max = Math.max(max, 2*Math.PI);
+		} else {
+			min = Math.min(min, 0);
+			if (table!=null) max = Math.max(max, 2*table.max); // rows further out follow
+		}
+		double entries = Math.floor((max - min)/step) + 2;
+		if (entries>MAX_ENTRIES) return null;
+		int length = (int) entries;
+
+		double[][] sample = new double[inputs.length + outputs.length + kernel.cacheColumns][];
+		for (int k = 0; k < sample.length; k++) sample[k] = new double[length];
+		for (int i = 0; i < length; i++) sample[column][i] = min + step*i;
+		kernel.run(vars.clone(), sample, 0, length);
+
+		Table previous = tables.put(Arrays.toString(key), new Table(min, min + step*(length - 1),
+				Arrays.copyOfRange(sample, inputs.length, inputs.length + outputs.length)));
+		if (previous!=null) values -= previous.size();
+		values += (long) length*outputs.length;
+		Iterator<Table> lru = tables.values().iterator();
+		while (values>MAX_VALUES && tables.size()>1) {
+			values -= lru.next().size();
+			lru.remove();
+		}
+		return tables.get(Arrays.toString(key));
+	}
+}
@@ -0,0 +1,137 @@
+package Engine;
+
+import java.util.Arrays;
+import java.util.function.IntToDoubleFunction;
+
+/**
+ * Adaptive evaluation of a band of rows for patterns with large uniform regions, like
+ * most conditionals. The band is cut into tiles of up to MAX_TILE pixels. The corners,
+ * edge midpoints and centre of a tile are evaluated first. If they agree and interval
+ * arithmetic proves the tile uniform (see {@link RowBuffer#isUniform}) it is filled
+ * with their outputs, otherwise it is split in four down to the minimum tile. The
+ * samples only decide where to split, pixels of tiles that are not proven are
+ * evaluated row by row, so a thin feature between the samples is never lost.
+ *
+ * Only used for macros that neither read the pixel values nor carry state between
+ * pixels (see {@link RowBuffer#run(int, int, int, int, IntToDoubleFunction,
+ * RowBuffer.RowSink, RowBuffer.RowSink)}).
+ */
+final class QuadTree {
+
+	static final int MAX_TILE = 64;
+	static final int DEFAULT_MINIMUM_TILE = 8;
+
+	private final RowBuffer row;
+	private final double[][] outputs; // output columns of row
+	private final double[] values; // outputs of a uniform tile
+	private final int minimumTile; // tiles up to this size are not split any further
+	private double[][] block; // outputs of the rows of the current block, by output
+	private boolean[] done;
+	private IntToDoubleFunction dy;
+	private int top, left, width;
+
+	QuadTree(RowBuffer row, double[][] outputs, int minimumTile) {
+		this.row = row;
+		this.outputs = outputs;
+		this.minimumTile = clampTile(minimumTile);
+		values = new double[outputs.length];
+	}
+
+	static int clampTile(int pixels) {
+		return Math.max(1, Math.min(MAX_TILE, pixels));
+	}
+
+	/** evaluates rows from..to-1, columns x0..x1-1, and calls sink with each row in the output columns, dy gives y of a row */
+	void render(int from, int to, int x0, int x1, IntToDoubleFunction dy, RowBuffer.RowSink sink) {
+		this.dy = dy;
+		left = x0;
+		width = x1 - x0;
+		int size = Math.min(MAX_TILE, to - from)*width;
+		if (done==null || done.length<size) {
+			block = new double[outputs.length][size];
+			done = new boolean[size];
+		}
+		for (top = from; top < to; top += MAX_TILE) {
+			int rows = Math.min(MAX_TILE, to - top);
+			Arrays.fill(done, false);
+			for (int x = x0; x < x1; x += MAX_TILE) tile(x, top, Math.min(MAX_TILE, x1 - x), rows);
+			for (int y = top; y < top + rows; y++) {
+				evaluate(y, x0, x1);
+				for (int k = 0; k < outputs.length; k++) System.arraycopy(block[k], (y - top)*width, outputs[k], x0, width);
+				sink.row(y);
+			}
+		}
+	}
+
+	// fills the tile if it is proven uniform, else splits it, the rest is evaluated by render
+	private void tile(int x, int y, int w, int h) {
+		if (samplesAgree(x, y, w, h) && isProven(x, y, w, h)) return;
+		if (w<=minimumTile && h<=minimumTile) return;
+		int w1 = w<=minimumTile ? w : w/2, h1 = h<=minimumTile ? h : h/2;
+		tile(x, y, w1, h1);
+		if (w>w1) tile(x + w1, y, w - w1, h1);
+		if (h>h1) tile(x, y + h1, w1, h - h1);
+		if (w>w1 && h>h1) tile(x + w1, y + h1, w - w1, h - h1);
+	}
+
+	// evaluates the corners, edge midpoints and centre, false if any two differ
+	private boolean samplesAgree(int x, int y, int w, int h) {
+		int first = sample(x, y);
+		for (int j : new int[]{y, y + h/2, y + h - 1}) {
+			for (int i : new int[]{x, x + w/2, x + w - 1}) {
+				int index = sample(i, j);
+				for (int k = 0; k < outputs.length; k++) {
+					if (Double.compare(block[k][index], block[k][first])!=0) return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	// evaluates pixel x, y unless done, returns its index in block
+	private int sample(int x, int y) {
+		int index = index(x, y);
+		if (!done[index]) evaluateRun(y, x, x + 1);
+		return index;
+	}
+
+	// fills the tile if interval arithmetic proves it uniform
+	private boolean isProven(int x, int y, int w, int h) {
+		double yLo = Double.POSITIVE_INFINITY, yHi = Double.NEGATIVE_INFINITY;
+		for (int j = y; j < y + h; j++) {
+			double value = dy.applyAsDouble(j);
+			yLo = Math.min(yLo, value);
+			yHi = Math.max(yHi, value);
+		}
+		if (!row.isUniform(yLo, yHi, x, x + w, values)) return false;
+		for (int j = y; j < y + h; j++) {
+			int start = index(x, j);
+			for (int k = 0; k < outputs.length; k++) Arrays.fill(block[k], start, start + w, values[k]);
+			Arrays.fill(done, start, start + w, true);
+		}
+		return true;
+	}
+
+	// evaluates the pixels of row y between from (inclusive) and to (exclusive) not evaluated yet
+	private void evaluate(int y, int from, int to) {
+		int base = index(0, y);
+		int start = from;
+		for (int i = from; i < to; i++) {
+			if (!done[base + i]) continue;
+			if (start<i) evaluateRun(y, start, i);
+			start = i + 1;
+		}
+		if (start<to) evaluateRun(y, start, to);
+	}
+
+	private void evaluateRun(int y, int from, int to) {
+		row.run(dy.applyAsDouble(y), from, to);
+		int start = index(from, y);
+		for (int k = 0; k < outputs.length; k++) System.arraycopy(outputs[k], from, block[k], start, to - from);
+		Arrays.fill(done, start, start + to - from, true);
+	}
+
+	private int index(int x, int y) {
+		return (y - top)*width + x - left;
+	}
+}
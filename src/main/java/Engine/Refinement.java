@@ -0,0 +1,91 @@
+package Engine;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Coarse to fine rendering of a preview. The first pass renders every 8th pixel of
+ * every 8th row, each further pass halves the stride and only renders the pixels the
+ * earlier passes left out, so all passes together evaluate every pixel once. The
+ * pixels of a pass are rendered as a small image whose {@link Lattice} gives them
+ * the coordinates they have in the whole image, so the last pass leaves exactly the
+ * image a single render makes.
+ */
+public final class Refinement {
+
+	/** renders image, whose pixels are the pixels of lattice */
+	public interface FrameRenderer {
+		void render(ImagePlus image, Lattice lattice);
+	}
+
+	private static final int[] STRIDES = {8, 4, 2, 1}; // 32, 64, 128 and 256 px wide for a 256 px preview
+
+	private Refinement() {
+	}
+
+	/**
+	 * @param inputs slots the renderer sets before every pixel, besides x, d and a
+	 * @return true if rendering the pixels of macro in any order gives the same image,
+	 * i.e. it neither reads other pixels nor carries state from one pixel to the next
+	 */
+	public static boolean isRefinable(String variables, String macro, int... inputs) {
+		if (macro.contains("getPixel")) return false;
+		Evaluator evaluator = Evaluator.create(variables, macro);
+		if (evaluator==null) return false;
+		int[] slots = Arrays.copyOf(inputs, inputs.length + 3);
+		slots[inputs.length] = Evaluator.X;
+		slots[inputs.length + 1] = Evaluator.D;
+		slots[inputs.length + 2] = Evaluator.A;
+		return evaluator.fork(slots)!=null;
+	}
+
+	/**
+	 * Renders ip in passes, the pixel values of ip are the input of every pass. After
+	 * every pass but the last, pass gets a copy of ip in which each pixel not rendered
+	 * yet shows the rendered pixel at the top left of its block.
+	 *
+	 * @param lattice all pixels of ip
+	 */
+	public static void render(ImageProcessor ip, Lattice lattice, FrameRenderer renderer, Consumer<ImageProcessor> pass) {
+		ImageProcessor source = ip.duplicate();
+		for (int p = 0; p < STRIDES.length; p++) {
+			int stride = STRIDES[p];
+			if (p==0) {
+				render(ip, source, lattice.sample(0, 0, stride), renderer);
+			} else {
+				render(ip, source, lattice.sample(stride, 0, 2*stride), renderer);
+				render(ip, source, lattice.sample(0, stride, 2*stride), renderer);
+				render(ip, source, lattice.sample(stride, stride, 2*stride), renderer);
+			}
+			if (stride>1) pass.accept(blocks(ip, stride));
+		}
+	}
+
+	// renders the pixels of sample, taking their values from source and putting the results into ip
+	private static void render(ImageProcessor ip, ImageProcessor source, Lattice sample, FrameRenderer renderer) {
+		int width = sample.getWidth(), height = sample.getHeight();
+		if (width==0 || height==0) return;
+		ImageProcessor pixels = source.createProcessor(width, height);
+		for (int j = 0; j < height; j++) {
+			for (int i = 0; i < width; i++) pixels.putPixel(i, j, source.getPixel(sample.column(i), sample.row(j)));
+		}
+		renderer.render(new ImagePlus("preview", pixels), sample);
+		for (int j = 0; j < height; j++) {
+			for (int i = 0; i < width; i++) ip.putPixel(sample.column(i), sample.row(j), pixels.getPixel(i, j));
+		}
+	}
+
+	// copy of ip with the pixel at the top left of every stride x stride block filling the block
+	private static ImageProcessor blocks(ImageProcessor ip, int stride) {
+		ImageProcessor blocks = ip.duplicate();
+		for (int y = 0; y < ip.getHeight(); y++) {
+			for (int x = 0; x < ip.getWidth(); x++) {
+				if (x%stride!=0 || y%stride!=0) blocks.putPixel(x, y, ip.getPixel(x - x%stride, y - y%stride));
+			}
+		}
+		return blocks;
+	}
+}
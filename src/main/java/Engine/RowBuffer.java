@@ -0,0 +1,246 @@
+package Engine;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.IntToDoubleFunction;
+
+/**
+ * Column buffers for evaluating an image row by row. The renderer fills the pixel
+ * values of a row, {@link #run} adds the coordinates and evaluates all pixels in one
+ * call, then the renderer clamps and packs the results into its pixel array.
+ *
+ * x only depends on the column and is computed once, d and a come from the
+ * {@link CoordinatePlanes} of the x range.
+ */
+public final class RowBuffer {
+
+	private final Evaluator evaluator;
+	private final int[] inputs, outputs;
+	private final double[][] columns;
+	private final double[] x, d, a;
+	private final CoordinatePlanes.Plane plane;
+	private QuadTree quadTree;
+	private Boolean adaptive; // null until the first run of rows
+	private int[] tileSlots; // inputs and Y, bounded over a tile by tileLo and tileHi
+	private double[] tileLo, tileHi;
+
+	/** called for a row y, see {@link #run(int, int, int, int, IntToDoubleFunction, RowSink, RowSink)} */
+	public interface RowSink {
+		void row(int y);
+	}
+
+	/**
+	 * @param width row length of the image
+	 * @param xMin x of the first column
+	 * @param xStep x distance between two columns
+	 * @param values slots filled by the renderer for every pixel, e.g. V or R, G and B
+	 * @param outputs slots read after every pixel
+	 */
+	public RowBuffer(Evaluator evaluator, int width, double xMin, double xStep, boolean hasX, boolean hasD, boolean hasA,
+					 int[] values, int[] outputs) {
+		this(evaluator, xColumn(width, xMin, xStep), width + " " + xMin + " " + xStep, hasD, hasA, inputs(values, hasX, hasD, hasA), outputs);
+	}
+
+	/**
+	 * Buffer for the columns of a lattice, rows of the image are the rows j of the
+	 * lattice and take their y from {@link Lattice#y}.
+	 */
+	public RowBuffer(Evaluator evaluator, Lattice lattice, boolean hasX, boolean hasD, boolean hasA,
+					 int[] values, int[] outputs) {
+		this(evaluator, xColumn(lattice), lattice.columnKey(), hasD, hasA, inputs(values, hasX, hasD, hasA), outputs);
+	}
+
+	private RowBuffer(Evaluator evaluator, double[] x, String columns, boolean hasD, boolean hasA,
+					  int[] inputs, int[] outputs) {
+		this(evaluator, x, hasD || hasA ? CoordinatePlanes.get(x, columns, evaluator.usesFastMath()) : null, hasD, hasA, inputs, outputs);
+	}
+
+	private RowBuffer(Evaluator evaluator, double[] x, CoordinatePlanes.Plane plane, boolean hasD, boolean hasA, int[] inputs, int[] outputs) {
+		this.evaluator = evaluator;
+		this.x = x;
+		this.plane = plane;
+		this.inputs = inputs;
+		this.outputs = outputs;
+		int width = x.length;
+		d = hasD ? new double[width] : null;
+		a = hasA ? new double[width] : null;
+
+		columns = new double[inputs.length + outputs.length][];
+		for (int k = 0; k < inputs.length; k++) {
+			if (inputs[k]==Evaluator.X) columns[k] = x;
+			else if (inputs[k]==Evaluator.D) columns[k] = d;
+			else if (inputs[k]==Evaluator.A) columns[k] = a;
+			else columns[k] = new double[width];
+		}
+		for (int k = 0; k < outputs.length; k++) columns[inputs.length + k] = new double[width];
+	}
+
+	/**
+	 * Evaluates the rows from (inclusive) to to (exclusive) between the columns x0
+	 * (inclusive) and x1 (exclusive). Same as calling inputs.row(y), {@link #run} and
+	 * outputs.row(y) for every row, but if the evaluator was created with tile pruning
+	 * (see {@link Evaluator#setTilePruning}) macros that do not read the pixel values are
+	 * evaluated by a {@link QuadTree} and inputs is not called.
+	 *
+	 * @param dy y of a row
+	 * @param inputs fills the input columns of a row
+	 * @param outputs reads the output columns of a row
+	 */
+	public void run(int from, int to, int x0, int x1, IntToDoubleFunction dy, RowSink inputs, RowSink outputs) {
+		if (adaptive==null) adaptive = evaluator.prunesTiles() && !dependsOn(false);
+		if (!adaptive) {
+			for (int y = from; y < to; y++) {
+				inputs.row(y);
+				run(dy.applyAsDouble(y), x0, x1);
+				outputs.row(y);
+			}
+			return;
+		}
+		if (quadTree==null) {
+			double[][] columns = new double[this.outputs.length][];
+			for (int k = 0; k < columns.length; k++) columns[k] = this.columns[this.inputs.length + k];
+			quadTree = new QuadTree(this, columns, evaluator.minimumTile());
+		}
+		quadTree.render(from, to, x0, x1, dy, outputs);
+	}
+
+	/**
+	 * @param yLo smallest y of the rows of the tile
+	 * @param yHi largest y of the rows of the tile
+	 * @param values receives the outputs if true is returned
+	 * @return true if the outputs are proven the same for every pixel of the tile
+	 * between the columns x0 (inclusive) and x1 (exclusive)
+	 */
+	boolean isUniform(double yLo, double yHi, int x0, int x1, double[] values) {
+		if (tileSlots==null) {
+			tileSlots = Arrays.copyOf(inputs, inputs.length + 1);
+			tileSlots[inputs.length] = Evaluator.Y;
+			tileLo = new double[tileSlots.length];
+			tileHi = new double[tileSlots.length];
+		}
+		double xLo = Double.POSITIVE_INFINITY, xHi = Double.NEGATIVE_INFINITY;
+		for (int i = x0; i < x1; i++) {
+			xLo = Math.min(xLo, x[i]);
+			xHi = Math.max(xHi, x[i]);
+		}
+		for (int k = 0; k < inputs.length; k++) {
+			switch (inputs[k]) {
+				case Evaluator.X:
+					tileLo[k] = xLo;
+					tileHi[k] = xHi;
+					break;
+				case Evaluator.D: {
+					// nearest point of the tile to the origin and farthest corner
+					double nearest = Math.hypot(Math.max(xLo, Math.min(0, xHi)), Math.max(yLo, Math.min(0, yHi)));
+					double farthest = Math.hypot(Math.max(-xLo, xHi), Math.max(-yLo, yHi));
+					tileLo[k] = nearest - 4*Math.ulp(nearest);
+					tileHi[k] = farthest + 4*Math.ulp(farthest);
+					break;
+				}
+				case Evaluator.A: {
+					double lo = 0, hi = 2*Math.PI; // a jumps from 2 pi to 0 on the positive x axis
+					if (!(yLo<=0 && yHi>=0 && xHi>=0)) {
+						lo = Double.POSITIVE_INFINITY;
+						hi = Double.NEGATIVE_INFINITY;
+						for (double corner : new double[]{
+								CoordinatePlanes.a(xLo, yLo, false), CoordinatePlanes.a(xLo, yHi, false),
+								CoordinatePlanes.a(xHi, yLo, false), CoordinatePlanes.a(xHi, yHi, false)}) {
+							lo = Math.min(lo, corner);
+							hi = Math.max(hi, corner);
+						}
+					}
+					double error = evaluator.usesFastMath() ? 1e-8 : 4*Math.ulp(2*Math.PI);
+					tileLo[k] = lo - error;
+					tileHi[k] = hi + error;
+					break;
+				}
+				default: // pixel values
+					tileLo[k] = Double.NEGATIVE_INFINITY;
+					tileHi[k] = Double.POSITIVE_INFINITY;
+			}
+		}
+		tileLo[inputs.length] = yLo;
+		tileHi[inputs.length] = yHi;
+		return evaluator.isUniform(tileSlots, tileLo, tileHi, outputs, values);
+	}
+
+	private static double[] xColumn(int width, double xMin, double xStep) {
+		double[] x = new double[width];
+		for (int i = 0; i < width; i++) x[i] = xMin + xStep*i; // 0..x to min..max
+		return x;
+	}
+
+	private static double[] xColumn(Lattice lattice) {
+		double[] x = new double[lattice.getWidth()];
+		for (int i = 0; i < x.length; i++) x[i] = lattice.x(i);
+		return x;
+	}
+
+	private static int[] inputs(int[] values, boolean hasX, boolean hasD, boolean hasA) {
+		int[] slots = Arrays.copyOf(values, values.length + 3);
+		int count = values.length;
+		if (hasX) slots[count++] = Evaluator.X;
+		if (hasD) slots[count++] = Evaluator.D;
+		if (hasA) slots[count++] = Evaluator.A;
+		int[] inputs = Arrays.copyOf(slots, count);
+		Arrays.sort(inputs);
+		return inputs;
+	}
+
+	/**
+	 * @return a buffer with its own columns and a copy of the evaluator, or null if rows
+	 * have to be evaluated in order (see {@link Evaluator#fork})
+	 */
+	public RowBuffer fork() {
+		Evaluator copy = evaluator.fork(inputs);
+		if (copy==null) return null;
+		return new RowBuffer(copy, x, plane, d!=null, a!=null, inputs, outputs);
+	}
+
+	/** column the renderer fills with the values of slot before {@link #run} */
+	public double[] input(int slot) {
+		for (int k = 0; k < inputs.length; k++) {
+			if (inputs[k]==slot) return columns[k];
+		}
+		throw new IllegalArgumentException("no input column for slot " + slot);
+	}
+
+	/** column holding the values of slot after {@link #run} */
+	public double[] output(int slot) {
+		for (int k = 0; k < outputs.length; k++) {
+			if (outputs[k]==slot) return columns[inputs.length + k];
+		}
+		throw new IllegalArgumentException("no output column for slot " + slot);
+	}
+
+	/**
+	 * @return true if a row can come out different in another slice, because the macro
+	 * reads z or the pixel values, or carries state from one pixel to the next
+	 */
+	public boolean dependsOnSlice() {
+		return dependsOn(true);
+	}
+
+	// true if the outputs can change with the pixel values, or with z if slice is set
+	private boolean dependsOn(boolean slice) {
+		BitSet slots = new BitSet();
+		if (slice) slots.set(Evaluator.Z);
+		for (int slot : inputs) {
+			if (slot!=Evaluator.X && slot!=Evaluator.D && slot!=Evaluator.A) slots.set(slot);
+		}
+		return evaluator.dependsOn(slots, inputs, outputs);
+	}
+
+	/** sets a variable that is the same for the whole row, e.g. Z */
+	public void setVariable(int slot, double value) {
+		evaluator.setVariable(slot, value);
+	}
+
+	/** evaluates the columns from (inclusive) to to (exclusive) of the row at dy */
+	public void run(double dy, int from, int to) {
+		evaluator.setVariable(Evaluator.Y, dy);
+		if (d!=null) plane.d(dy, d, from, to);
+		if (a!=null) plane.a(dy, a, from, to);
+		evaluator.runRow(inputs, outputs, columns, from, to);
+	}
+}
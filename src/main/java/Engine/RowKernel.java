@@ -0,0 +1,49 @@
+package Engine;
+
+import java.util.BitSet;
+
+/**
+ * Evaluation of a compiled macro for a run of pixels. Column i of the first inputs.length
+ * columns is copied to slot inputs[i] before every pixel, output slot j is copied to
+ * column inputs.length+j after it. Generated by {@link KernelCompiler} for one combination
+ * of input and output slots.
+ *
+ * Public only because generated classes live in their own class loader.
+ */
+public abstract class RowKernel {
+
+	/**
+	 * Kernel reading the terms that only depend on x from the cache columns this one
+	 * writes, null if there are no such terms. Both expect cacheColumns arrays after
+	 * the output columns.
+	 */
+	RowKernel cached;
+	int cacheColumns;
+	/** slots besides x the cached terms read, the cache is only valid while they keep their values */
+	BitSet cacheReads;
+	/** column of x */
+	int xColumn;
+
+	/** evaluates the pixels from (inclusive) to to (exclusive) */
+	public abstract void run(double[] vars, double[][] columns, int from, int to);
+
+	/** evaluates the syntax tree directly, used when no class could be generated */
+	static final class Tree extends RowKernel {
+		private final Node root;
+		private final int[] inputs, outputs;
+
+		Tree(Node root, int[] inputs, int[] outputs) {
+			this.root = root;
+			this.inputs = inputs;
+			this.outputs = outputs;
+		}
+
+		public void run(double[] vars, double[][] columns, int from, int to) {
+			for (int i = from; i < to; i++) {
+				for (int k = 0; k < inputs.length; k++) vars[inputs[k]] = columns[k][i];
+				root.eval(vars);
+				for (int k = 0; k < outputs.length; k++) columns[inputs.length + k][i] = vars[outputs[k]];
+			}
+		}
+	}
+}
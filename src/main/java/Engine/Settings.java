@@ -0,0 +1,59 @@
+package Engine;
+
+/**
+ * The engine preferences a render runs with, taken once when it starts, so the
+ * preferences can change meanwhile without a render seeing two of them. Two renders
+ * with settings of the same string come out the same.
+ */
+public final class Settings {
+
+	private final boolean fastMath, tilePruning;
+	private final double profileError;
+	private final int minimumTile;
+
+	/** settings with the default minimum tile */
+	public Settings(boolean fastMath, boolean tilePruning, double profileError) {
+		this(fastMath, tilePruning, profileError, QuadTree.DEFAULT_MINIMUM_TILE);
+	}
+
+	/**
+	 * see {@link Evaluator#setFastMath}, {@link Evaluator#setTilePruning},
+	 * {@link Evaluator#setProfileError} and {@link Evaluator#setMinimumTile}
+	 */
+	public Settings(boolean fastMath, boolean tilePruning, double profileError, int minimumTile) {
+		this.fastMath = fastMath;
+		this.tilePruning = tilePruning;
+		this.profileError = Math.max(0, profileError);
+		this.minimumTile = QuadTree.clampTile(minimumTile);
+	}
+
+	/** @return the settings kept in the preferences right now */
+	public static Settings current() {
+		return new Settings(Evaluator.isFastMath(), Evaluator.isTilePruning(), Evaluator.getProfileError(), Evaluator.getMinimumTile());
+	}
+
+	public Settings withFastMath(boolean fastMath) {
+		return new Settings(fastMath, tilePruning, profileError, minimumTile);
+	}
+
+	public boolean isFastMath() {
+		return fastMath;
+	}
+
+	public boolean isTilePruning() {
+		return tilePruning;
+	}
+
+	public double getProfileError() {
+		return profileError;
+	}
+
+	public int getMinimumTile() {
+		return minimumTile;
+	}
+
+	@Override
+	public String toString() {
+		return "fast " + fastMath + " pruning " + tilePruning + " tile " + minimumTile + " error " + profileError;
+	}
+}
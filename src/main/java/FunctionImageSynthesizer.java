@@ -24,11 +24,16 @@
  * @author: Maximilian Maske
  */
 
+import Engine.Bands;
+import Engine.Evaluator;
+import Engine.Lattice;
+import Engine.Refinement;
+import Engine.RowBuffer;
+import Engine.Settings;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.Prefs;
 import ij.gui.Toolbar;
-import ij.macro.Interpreter;
 import ij.macro.Program;
 import ij.macro.Tokenizer;
 import ij.plugin.filter.ImageMath;
@@ -37,11 +42,23 @@ import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 
 import java.awt.*;
+import java.util.function.Consumer;
 
 public class FunctionImageSynthesizer extends ImageMath {
 
 	// Constants
-	private static final int PREVIEW_SIZE = 256 ;
+	static final int PREVIEW_SIZE = 256 ;
+
+	private final Settings settings; // null to render with the current preferences
+
+	public FunctionImageSynthesizer() {
+		this(null);
+	}
+
+	/** renders with settings instead of the engine preferences */
+	public FunctionImageSynthesizer(Settings settings) {
+		this.settings = settings;
+	}
 
 	/*--- function to Image ---*/
 
@@ -51,7 +68,6 @@ public class FunctionImageSynthesizer extends ImageMath {
 
 		ImageProcessor ip = imagePlus.getProcessor();
 
-		int PCStart = 25;
 		Program pgm = (new Tokenizer()).tokenize(macro);
 		boolean hasX = pgm.hasWord("x");
 		boolean hasZ = pgm.hasWord("z");
@@ -62,229 +78,175 @@ public class FunctionImageSynthesizer extends ImageMath {
 		int width = ip.getWidth();
 		int height = ip.getHeight();
 		int slices = imagePlus.getNSlices();
-		String code =
-				"var v,x,y,z,w,h,s,d,a,E;\n"+
-						"function dummy() {}\n"+
-						macro+";\n"; // code starts at program counter location 'PCStart'
-		Interpreter interpreter = new Interpreter();
-		interpreter.run(code, null);
-		if (interpreter.wasError()) return;
+		Evaluator evaluator = Evaluator.create(Evaluator.FUNCTION_VARIABLES, macro, settings());
+		if (evaluator==null) return;
 
 		Prefs.set(MACRO_KEY, macro);
-		interpreter.setVariable("w", Math.abs(max[0]-min[0]));
-		interpreter.setVariable("h", Math.abs(max[1]-min[1]));
-		interpreter.setVariable("s", Math.abs(max[2]-min[2]));
-		if(hasE) interpreter.setVariable("E", Math.exp(1));
+		evaluator.setVariable(Evaluator.W, Math.abs(max[0]-min[0]));
+		evaluator.setVariable(Evaluator.H, Math.abs(max[1]-min[1]));
+		evaluator.setVariable(Evaluator.S, Math.abs(max[2]-min[2]));
+		if(hasE) evaluator.setVariable(Evaluator.E, Math.exp(1));
 
 		int bitDepth = ip.getBitDepth();
 		Rectangle r = ip.getRoi();
-		int inc = r.height/50;
-		if (inc<1) inc = 1;
-		double v;
-		int pos, v2;
+		boolean channels = bitDepth==24 && !hasGetPixel; // the function runs once per color channel
+		int[] slots = channels ? new int[]{Evaluator.R, Evaluator.G, Evaluator.B} : new int[]{Evaluator.V};
+		if (channels) evaluator = evaluator.channels(Evaluator.V, Evaluator.V, Evaluator.V);
+		RowBuffer row = new RowBuffer(evaluator, width, min[0], (max[0]-min[0])/(width-1), hasX, hasD, hasA, slots, slots);
 		if (bitDepth==8) { // 8-Bit
-			for(int z = 0; z < slices; z++) {
-				ip = imagePlus.getImageStack().getProcessor(z + 1);
+			Bands.renderStack(row, imagePlus.getImageStack(), slices, r, (slice, z) -> {
+				ImageProcessor processor = imagePlus.getImageStack().getProcessor(z + 1);
 
 				if (hasZ) {
 					double dz = min[2] + ((max[2] - min[2]) / (slices - 1)) * z; // 0..z to min..max
 					if (Double.isNaN(dz)) dz = min[2];
-					interpreter.setVariable("z", dz);
+					slice.setVariable(Evaluator.Z, dz);
 				}
 
-				byte[] pixels1 = (byte[]) ip.getPixels();
-				byte[] pixels2 = pixels1;
-				if (hasGetPixel) pixels2 = new byte[width * height];
-
-				for (int y = r.y; y < (r.y + r.height); y++) {
-					if (y % inc == 0) IJ.showProgress(y - r.y, r.height);
-
-					double dy = min[1]+((max[1]-min[1])/(height-1))*y; // 0..y to min..max
-					interpreter.setVariable("y", dy);
-
-					for (int x = r.x; x < (r.x + r.width); x++) {
-						pos = y * width + x;
-						v = pixels1[pos] & 255;
-						interpreter.setVariable("v", v);
-
-						double dx = min[0]+((max[0]-min[0])/(width-1))*x; // 0..x to min..max
-						if (hasX) interpreter.setVariable("x", dx);
-
-						if (hasA) interpreter.setVariable("a", getA(dx, dy));
-						if (hasD) interpreter.setVariable("d", Math.hypot(dx,dy));
-						interpreter.run(PCStart);
-						v2 = (int) interpreter.getVariable("v");
-						if (v2 < 0) v2 = 0;
-						if (v2 > 255) v2 = 255;
-						pixels2[pos] = (byte) v2;
+				byte[] pixels1 = (byte[]) processor.getPixels();
+				byte[] pixels2 = hasGetPixel ? new byte[width * height] : pixels1;
+
+				Bands.render(slice, r.y, r.y + r.height, (band, from, to) -> {
+					double[] rowValues = band.input(Evaluator.V), rowResults = band.output(Evaluator.V);
+					for (int y = from; y < to; y++) {
+						double dy = min[1]+((max[1]-min[1])/(height-1))*y; // 0..y to min..max
+						for (int x = r.x; x < (r.x + r.width); x++) rowValues[x] = pixels1[y * width + x] & 255;
+						band.run(dy, r.x, r.x + r.width);
+						for (int x = r.x; x < (r.x + r.width); x++) {
+							int pos = y * width + x;
+							int v2 = (int) rowResults[x];
+							if (v2 < 0) v2 = 0;
+							if (v2 > 255) v2 = 255;
+							pixels2[pos] = (byte) v2;
+						}
 					}
-				}
+				});
 				if (hasGetPixel) System.arraycopy(pixels2, 0, pixels1, 0, width * height);
-			}
+			});
 		} else if (bitDepth==24) { // RGB
-			for(int z = 0; z < slices; z++) {
-				ip = imagePlus.getImageStack().getProcessor(z + 1);
+			Bands.renderStack(row, imagePlus.getImageStack(), slices, r, (slice, z) -> {
+				ImageProcessor processor = imagePlus.getImageStack().getProcessor(z + 1);
 
 				if (hasZ) {
 					double dz = min[2] + ((max[2] - min[2]) / (slices - 1)) * z; // 0..z to min..max
 					if (Double.isNaN(dz)) dz = min[2];
-					interpreter.setVariable("z", dz);
+					slice.setVariable(Evaluator.Z, dz);
 				}
 
-				int rgb, red, green, blue;
-				int[] pixels1 = (int[]) ip.getPixels();
-				int[] pixels2 = pixels1;
-				if (hasGetPixel) pixels2 = new int[width * height];
-
-				for (int y = r.y; y < (r.y + r.height); y++) {
-					if (y % inc == 0) IJ.showProgress(y - r.y, r.height);
-
-					double dy = min[1]+((max[1]-min[1])/(height-1))*y; // 0..y to min..max
-					interpreter.setVariable("y", dy);
-
-					for (int x = r.x; x < (r.x + r.width); x++) {
-						double dx = min[0]+((max[0]-min[0])/(width-1))*x; // 0..x to min..max
-						if (hasX) interpreter.setVariable("x", dx);
-
-						if (hasA) interpreter.setVariable("a", getA(dx, dy));
-						if (hasD) interpreter.setVariable("d", Math.hypot(dx,dy));
-						pos = y * width + x;
-						rgb = pixels1[pos];
-						if (hasGetPixel) {
-							interpreter.setVariable("v", rgb);
-							interpreter.run(PCStart);
-							rgb = (int) interpreter.getVariable("v");
-						} else {
-							red = (rgb & 0xff0000) >> 16;
-							green = (rgb & 0xff00) >> 8;
-							blue = rgb & 0xff;
-							interpreter.setVariable("v", red);
-							interpreter.run(PCStart);
-							red = (int) interpreter.getVariable("v");
-							if (red < 0) red = 0;
-							if (red > 255) red = 255;
-							interpreter.setVariable("v", green);
-							interpreter.run(PCStart);
-							green = (int) interpreter.getVariable("v");
-							if (green < 0) green = 0;
-							if (green > 255) green = 255;
-							interpreter.setVariable("v", blue);
-							interpreter.run(PCStart);
-							blue = (int) interpreter.getVariable("v");
-							if (blue < 0) blue = 0;
-							if (blue > 255) blue = 255;
-							rgb = 0xff000000 | ((red & 0xff) << 16) | ((green & 0xff) << 8) | blue & 0xff;
+				int[] pixels1 = (int[]) processor.getPixels();
+				int[] pixels2 = hasGetPixel ? new int[width * height] : pixels1;
+
+				Bands.render(slice, r.y, r.y + r.height, (band, from, to) -> {
+					if (hasGetPixel) { // one run per pixel with the whole rgb value in v
+						double[] rowValues = band.input(Evaluator.V), rowResults = band.output(Evaluator.V);
+						for (int y = from; y < to; y++) {
+							double dy = min[1]+((max[1]-min[1])/(height-1))*y; // 0..y to min..max
+							for (int x = r.x; x < (r.x + r.width); x++) rowValues[x] = pixels1[y * width + x];
+							band.run(dy, r.x, r.x + r.width);
+							for (int x = r.x; x < (r.x + r.width); x++) pixels2[y * width + x] = (int) rowResults[x];
 						}
-						pixels2[pos] = rgb;
+						return;
 					}
-				}
+					double[] reds = band.input(Evaluator.R), greens = band.input(Evaluator.G), blues = band.input(Evaluator.B);
+					double[] newReds = band.output(Evaluator.R), newGreens = band.output(Evaluator.G), newBlues = band.output(Evaluator.B);
+					for (int y = from; y < to; y++) {
+						double dy = min[1]+((max[1]-min[1])/(height-1))*y; // 0..y to min..max
+						for (int x = r.x; x < (r.x + r.width); x++) {
+							int rgb = pixels1[y * width + x];
+							reds[x] = (rgb & 0xff0000) >> 16;
+							greens[x] = (rgb & 0xff00) >> 8;
+							blues[x] = rgb & 0xff;
+						}
+						band.run(dy, r.x, r.x + r.width);
+						for (int x = r.x; x < (r.x + r.width); x++)
+							pixels2[y * width + x] = 0xff000000 | (toByte(newReds[x]) << 16) | (toByte(newGreens[x]) << 8) | toByte(newBlues[x]);
+					}
+				});
 				if (hasGetPixel) System.arraycopy(pixels2, 0, pixels1, 0, width * height);
-			}
+			});
 		} else if (ip.isSigned16Bit()) {
-			for(int z = 0; z < slices; z++) {
-				ip = imagePlus.getImageStack().getProcessor(z + 1);
+			Bands.renderStack(row, imagePlus.getImageStack(), slices, r, (slice, z) -> {
+				ImageProcessor processor = imagePlus.getImageStack().getProcessor(z + 1);
 
 				if (hasZ) {
 					double dz = min[2] + ((max[2] - min[2]) / (slices - 1)) * z; // 0..z to min..max
 					if (Double.isNaN(dz)) dz = min[2];
-					interpreter.setVariable("z", dz);
+					slice.setVariable(Evaluator.Z, dz);
 				}
 
-				for (int y = r.y; y < (r.y + r.height); y++) {
-					if (y % inc == 0) IJ.showProgress(y - r.y, r.height);
-
-					double dy = min[1]+((max[1]-min[1])/(height-1))*y; // 0..y to min..max
-					interpreter.setVariable("y", dy);
-
-					for (int x = r.x; x < (r.x + r.width); x++) {
-						double dx = min[0]+((max[0]-min[0])/(width-1))*x; // 0..x to min..max
-						if (hasX) interpreter.setVariable("x", dx);
-
-						v = ip.getPixelValue(x, y);
-						interpreter.setVariable("v", v);
-						if (hasA) interpreter.setVariable("a", getA(dx, dy));
-						if (hasD) interpreter.setVariable("d", Math.hypot(dx, dy));
-						interpreter.run(PCStart);
-						ip.putPixelValue(x, y, interpreter.getVariable("v"));
+				double[] results = hasGetPixel ? new double[width * height] : null;
+
+				Bands.render(slice, r.y, r.y + r.height, (band, from, to) -> {
+					double[] rowValues = band.input(Evaluator.V), rowResults = band.output(Evaluator.V);
+					for (int y = from; y < to; y++) {
+						double dy = min[1]+((max[1]-min[1])/(height-1))*y; // 0..y to min..max
+						for (int x = r.x; x < (r.x + r.width); x++) rowValues[x] = processor.getPixelValue(x, y);
+						band.run(dy, r.x, r.x + r.width);
+						for (int x = r.x; x < (r.x + r.width); x++) {
+							if (hasGetPixel) results[y * width + x] = rowResults[x];
+							else processor.putPixelValue(x, y, rowResults[x]);
+						}
 					}
-				}
-			}
+				});
+				if (hasGetPixel) putPixelValues(processor, r, results);
+			});
 		} else if (bitDepth==16) {
-			for(int z = 0; z < slices; z++) {
-				ip = imagePlus.getImageStack().getProcessor(z + 1);
+			Bands.renderStack(row, imagePlus.getImageStack(), slices, r, (slice, z) -> {
+				ImageProcessor processor = imagePlus.getImageStack().getProcessor(z + 1);
 
 				if (hasZ) {
 					double dz = min[2] + ((max[2] - min[2]) / (slices - 1)) * z; // 0..z to min..max
 					if (Double.isNaN(dz)) dz = min[2];
-					interpreter.setVariable("z", dz);
+					slice.setVariable(Evaluator.Z, dz);
 				}
 
-				short[] pixels1 = (short[]) ip.getPixels();
-				short[] pixels2 = pixels1;
-				if (hasGetPixel) pixels2 = new short[width * height];
-
-				for (int y = r.y; y < (r.y + r.height); y++) {
-					if (y % inc == 0) IJ.showProgress(y - r.y, r.height);
-
-					double dy = min[1]+((max[1]-min[1])/(height-1))*y; // 0..y to min..max
-					interpreter.setVariable("y", dy);
-
-					for (int x = r.x; x < (r.x + r.width); x++) {
-
-						double dx = min[0]+((max[0]-min[0])/(width-1))*x; // 0..x to min..max
-						if (hasX) interpreter.setVariable("x", dx);
-
-						pos = y * width + x;
-						v = pixels1[pos] & 65535;
-						interpreter.setVariable("v", v);
-
-						if (hasA) interpreter.setVariable("a", getA(dx, dy));
-						if (hasD) interpreter.setVariable("d",Math.hypot(dx,dy));
-						interpreter.run(PCStart);
-						v2 = (int) interpreter.getVariable("v");
-						if (v2 < 0) v2 = 0;
-						if (v2 > 65535) v2 = 65535;
-						pixels2[pos] = (short) v2;
+				short[] pixels1 = (short[]) processor.getPixels();
+				short[] pixels2 = hasGetPixel ? new short[width * height] : pixels1;
+
+				Bands.render(slice, r.y, r.y + r.height, (band, from, to) -> {
+					double[] rowValues = band.input(Evaluator.V), rowResults = band.output(Evaluator.V);
+					for (int y = from; y < to; y++) {
+						double dy = min[1]+((max[1]-min[1])/(height-1))*y; // 0..y to min..max
+						for (int x = r.x; x < (r.x + r.width); x++) rowValues[x] = pixels1[y * width + x] & 65535;
+						band.run(dy, r.x, r.x + r.width);
+						for (int x = r.x; x < (r.x + r.width); x++) {
+							int pos = y * width + x;
+							int v2 = (int) rowResults[x];
+							if (v2 < 0) v2 = 0;
+							if (v2 > 65535) v2 = 65535;
+							pixels2[pos] = (short) v2;
+						}
 					}
-				}
+				});
 				if (hasGetPixel) System.arraycopy(pixels2, 0, pixels1, 0, width * height);
-			}
+			});
 		} else {  //32-bit
-			for(int z = 0; z < slices; z++) {
-				ip = imagePlus.getImageStack().getProcessor(z + 1);
+			Bands.renderStack(row, imagePlus.getImageStack(), slices, r, (slice, z) -> {
+				ImageProcessor processor = imagePlus.getImageStack().getProcessor(z + 1);
 
 				if (hasZ) {
 					double dz = min[2] + ((max[2] - min[2]) / (slices - 1)) * z; // 0..z to min..max
 					if (Double.isNaN(dz)) dz = min[2];
-					interpreter.setVariable("z", dz);
+					slice.setVariable(Evaluator.Z, dz);
 				}
 
-				float[] pixels1 = (float[])ip.getPixels();
-				float[] pixels2 = pixels1;
-				if (hasGetPixel) pixels2 = new float[width*height];
-
-				for (int y = r.y; y < (r.y + r.height); y++) {
-					if (y % inc == 0) IJ.showProgress(y - r.y, r.height);
-
-					double dy = min[1]+((max[1]-min[1])/(height-1))*y; // 0..y to min..max
-					interpreter.setVariable("y", dy);
-
-					for (int x = r.x; x < (r.x + r.width); x++) {
-						pos = y * width + x;
-						v = pixels1[pos];
-						interpreter.setVariable("v", v);
-
-						double dx = min[0]+((max[0]-min[0])/(width-1))*x; // 0..x to min..max
-						if (hasX) interpreter.setVariable("x", dx);
-
-						if (hasA) interpreter.setVariable("a", getA(dx, dy));
-						if (hasD) interpreter.setVariable("d", Math.hypot(dx,dy));
-						interpreter.run(PCStart);
-						pixels2[pos] = (float) interpreter.getVariable("v");
+				float[] pixels1 = (float[])processor.getPixels();
+				float[] pixels2 = hasGetPixel ? new float[width*height] : pixels1;
+
+				Bands.render(slice, r.y, r.y + r.height, (band, from, to) -> {
+					double[] rowValues = band.input(Evaluator.V), rowResults = band.output(Evaluator.V);
+					for (int y = from; y < to; y++) {
+						double dy = min[1]+((max[1]-min[1])/(height-1))*y; // 0..y to min..max
+						for (int x = r.x; x < (r.x + r.width); x++) rowValues[x] = pixels1[y * width + x];
+						band.run(dy, r.x, r.x + r.width);
+						for (int x = r.x; x < (r.x + r.width); x++) {
+							int pos = y * width + x;
+							pixels2[pos] = (float) rowResults[x];
+						}
 					}
-				}
+				});
 				if (hasGetPixel) System.arraycopy(pixels2, 0, pixels1, 0, width*height);
-			}
+			});
 		}
 		IJ.showProgress(1.0);
 	}
@@ -301,7 +263,6 @@ public class FunctionImageSynthesizer extends ImageMath {
 		String macro2 = "code=g_new=" + functions[1];
 		String macro3 = "code=b_new=" + functions[2];
 
-		int PCStart = 25;
 		Program pgm1 = (new Tokenizer()).tokenize(macro1);
 		Program pgm2 = (new Tokenizer()).tokenize(macro2);
 		Program pgm3 = (new Tokenizer()).tokenize(macro3);
@@ -313,78 +274,63 @@ public class FunctionImageSynthesizer extends ImageMath {
 		int width = ip.getWidth();
 		int height = ip.getHeight();
 		int slices = imagePlus.getNSlices();
-		String code =
-				"var v,r,g,b,x,y,z,w,h,s,d,a,E;\n"+
-						"function dummy() {}\n"+
-						macro1+";\n"+
-						macro2+";\n"+
-						macro3+";\n"; // code starts at program counter location 'PCStart'
-		Interpreter interpreter = new Interpreter();
-		interpreter.run(code, null);
-		if (interpreter.wasError()) return;
+		Evaluator evaluator = Evaluator.create(Evaluator.RGB_VARIABLES, macro1+";\n"+macro2+";\n"+macro3, settings());
+		if (evaluator==null) return;
 
 		Prefs.set(MACRO_KEY, macro1);
-		interpreter.setVariable("w", Math.abs(max[0]-min[0]));
-		interpreter.setVariable("h", Math.abs(max[1]-min[1]));
-		interpreter.setVariable("s", Math.abs(max[2]-min[2]));
-		if(hasE) interpreter.setVariable("E", Math.exp(1));
+		evaluator.setVariable(Evaluator.W, Math.abs(max[0]-min[0]));
+		evaluator.setVariable(Evaluator.H, Math.abs(max[1]-min[1]));
+		evaluator.setVariable(Evaluator.S, Math.abs(max[2]-min[2]));
+		if(hasE) evaluator.setVariable(Evaluator.E, Math.exp(1));
 
 		Rectangle r = ip.getRoi();
-		int inc = r.height/50;
-		if (inc<1) inc = 1;
-		int pos;
+		RowBuffer row = new RowBuffer(evaluator, width, min[0], (max[0]-min[0])/(width-1), hasX, hasD, hasA,
+				new int[]{Evaluator.R, Evaluator.G, Evaluator.B}, new int[]{Evaluator.R_NEW, Evaluator.G_NEW, Evaluator.B_NEW});
 
-		for(int z = 0; z < slices; z++) {
-			ip = imagePlus.getImageStack().getProcessor(z + 1);
+		Bands.renderStack(row, imagePlus.getImageStack(), slices, r, (slice, z) -> {
+			ImageProcessor processor = imagePlus.getImageStack().getProcessor(z + 1);
 
 			if (hasZ) {
 				double dz = min[2] + ((max[2] - min[2]) / (slices - 1)) * z; // 0..z to min..max
 				if (Double.isNaN(dz)) dz = min[2];
-				interpreter.setVariable("z", dz);
+				slice.setVariable(Evaluator.Z, dz);
 			}
 
-			int rgb, red, green, blue;
-			int[] pixels = (int[]) ip.getPixels();
+			int[] pixels = (int[]) processor.getPixels();
 
-			for (int y = r.y; y < (r.y + r.height); y++) {
-				if (y % inc == 0) IJ.showProgress(y - r.y, r.height);
+			Bands.render(slice, r.y, r.y + r.height, (band, from, to) -> {
+				double[] rowR = band.input(Evaluator.R), rowG = band.input(Evaluator.G), rowB = band.input(Evaluator.B);
+				double[] rowRed = band.output(Evaluator.R_NEW), rowGreen = band.output(Evaluator.G_NEW), rowBlue = band.output(Evaluator.B_NEW);
+				for (int y = from; y < to; y++) {
+					double dy = min[1]+((max[1]-min[1])/(height-1))*y; // 0..y to min..max
+					for (int x = r.x; x < (r.x + r.width); x++) {
+						int rgb = pixels[y * width + x];
+						rowR[x] = (rgb & 0xff0000) >> 16;
+						rowG[x] = (rgb & 0xff00) >> 8;
+						rowB[x] = rgb & 0xff;
+					}
+					band.run(dy, r.x, r.x + r.width);
+					for (int x = r.x; x < (r.x + r.width); x++) {
+						int pos = y * width + x;
 
-				double dy = min[1]+((max[1]-min[1])/(height-1))*y; // 0..y to min..max
-				interpreter.setVariable("y", dy);
+						int redNew = (int) rowRed[x];
+						if (redNew < 0) redNew = 0;
+						if (redNew > 255) redNew = 255;
 
-				for (int x = r.x; x < (r.x + r.width); x++) {
-					double dx = min[0]+((max[0]-min[0])/(width-1))*x; // 0..x to min..max
-					if (hasX) interpreter.setVariable("x", dx);
-
-					if (hasA) interpreter.setVariable("a",getA(dx, dy));
-					if (hasD) interpreter.setVariable("d", Math.hypot(dx,dy));
-					pos = y * width + x;
-					rgb = pixels[pos];
-
-					red = (rgb & 0xff0000) >> 16;
-					green = (rgb & 0xff00) >> 8;
-					blue = rgb & 0xff;
-					interpreter.setVariable("r", red);
-					interpreter.setVariable("g", green);
-					interpreter.setVariable("b", blue);
-					interpreter.run(PCStart);
-					int redNew = (int) interpreter.getVariable("r_new");
-					if (redNew < 0) redNew = 0;
-					if (redNew > 255) redNew = 255;
+						int greenNew = (int) rowGreen[x];
+						if (greenNew < 0) greenNew = 0;
+						if (greenNew > 255) greenNew = 255;
 
-					int greenNew = (int) interpreter.getVariable("g_new");
-					if (greenNew < 0) greenNew = 0;
-					if (greenNew > 255) greenNew = 255;
+						int blueNew = (int) rowBlue[x];
+						if (blueNew < 0) blueNew = 0;
+						if (blueNew > 255) blueNew = 255;
+						int rgb = 0xff000000 | ((redNew & 0xff) << 16) | ((greenNew & 0xff) << 8) | blueNew & 0xff;
 
-					int blueNew = (int) interpreter.getVariable("b_new");
-					if (blueNew < 0) blueNew = 0;
-					if (blueNew > 255) blueNew = 255;
-					rgb = 0xff000000 | ((redNew & 0xff) << 16) | ((greenNew & 0xff) << 8) | blueNew & 0xff;
-
-					pixels[pos] = rgb;
+						pixels[pos] = rgb;
+					}
 				}
-			}
-		}
+			});
+		});
 		IJ.showProgress(1.0);
 	}
 
@@ -394,7 +340,6 @@ public class FunctionImageSynthesizer extends ImageMath {
 		// example macro: "code=v=v+50*sin(d/10)"
 		String macro = "code=v=" + function;
 
-		int PCStart = 25;
 		Program pgm = (new Tokenizer()).tokenize(macro);
 		boolean hasX = pgm.hasWord("x");
 		boolean hasZ = pgm.hasWord("z");
@@ -404,104 +349,81 @@ public class FunctionImageSynthesizer extends ImageMath {
 		int width = ip.getWidth();
 		int height = ip.getHeight();
 		int slices = imagePlus.getNSlices();
-		String code =
-				"var v,x,y,z,w,h,s,d,a,E;\n"+
-						"function dummy() {}\n"+
-						macro+";\n"; // code starts at program counter location 'PCStart'
-		Interpreter interpreter = new Interpreter();
-		interpreter.run(code, null);
-		if (interpreter.wasError()) return;
+		Evaluator evaluator = Evaluator.create(Evaluator.FUNCTION_VARIABLES, macro, settings());
+		if (evaluator==null) return;
 
 		Prefs.set(MACRO_KEY, macro);
-		interpreter.setVariable("w", Math.abs(max[0]-min[0]));
-		interpreter.setVariable("h", Math.abs(max[1]-min[1]));
-		interpreter.setVariable("s", Math.abs(max[2]-min[2]));
-		if(hasE) interpreter.setVariable("E", Math.exp(1));
+		evaluator.setVariable(Evaluator.W, Math.abs(max[0]-min[0]));
+		evaluator.setVariable(Evaluator.H, Math.abs(max[1]-min[1]));
+		evaluator.setVariable(Evaluator.S, Math.abs(max[2]-min[2]));
+		if(hasE) evaluator.setVariable(Evaluator.E, Math.exp(1));
 
 		Rectangle r = ip.getRoi();
-		int inc = r.height/50;
-		if (inc<1) inc = 1;
-		int pos, v;
 		int bitDepth = imagePlus.getBitDepth();
+		RowBuffer row = new RowBuffer(evaluator, width, min[0], (max[0]-min[0])/(width-1), hasX, hasD, hasA,
+				new int[]{Evaluator.V}, new int[]{Evaluator.V});
 
 		if (bitDepth==8) { // 8-Bit
-			for(int z = 0; z < slices; z++) {
-				ip = imagePlus.getImageStack().getProcessor(z + 1);
+			Bands.renderStack(row, slices, r.height, (slice, z) -> {
+				ImageProcessor processor = imagePlus.getImageStack().getProcessor(z + 1);
 
 				if (hasZ) {
 					double dz = min[2] + ((max[2] - min[2]) / (slices - 1)) * z; // 0..z to min..max
 					if (Double.isNaN(dz)) dz = min[2];
-					interpreter.setVariable("z", dz);
+					slice.setVariable(Evaluator.Z, dz);
 				}
 
-				byte[] pixels = (byte[]) ip.getPixels();
-				double[] values = new double[pixels.length];
-
-
-				for (int y = r.y; y < (r.y + r.height); y++) {
-					if (y % inc == 0) IJ.showProgress(y - r.y, r.height);
-
-					double dy = min[1]+((max[1]-min[1])/(height-1))*y; // 0..y to min..max
-					interpreter.setVariable("y", dy);
-
-					for (int x = r.x; x < (r.x + r.width); x++) {
-						pos = y * width + x;
-						v = pixels[pos] & 255;
-						interpreter.setVariable("v", v);
+				byte[] pixels = (byte[]) processor.getPixels();
+				float[] values = new float[pixels.length];
 
-						double dx = min[0]+((max[0]-min[0])/(width-1))*x; // 0..x to min..max
-						if (hasX) interpreter.setVariable("x", dx);
 
-						if (hasA) interpreter.setVariable("a", getA(dx, dy));
-						if (hasD) interpreter.setVariable("d", Math.hypot(dx,dy));
-						interpreter.run(PCStart);
-						values[pos] = interpreter.getVariable("v");
+				Bands.render(slice, r.y, r.y + r.height, (band, from, to) -> {
+					double[] rowValues = band.input(Evaluator.V), rowResults = band.output(Evaluator.V);
+					for (int y = from; y < to; y++) {
+						double dy = min[1]+((max[1]-min[1])/(height-1))*y; // 0..y to min..max
+						for (int x = r.x; x < (r.x + r.width); x++) rowValues[x] = pixels[y * width + x] & 255;
+						band.run(dy, r.x, r.x + r.width);
+						for (int x = r.x; x < (r.x + r.width); x++) {
+							int pos = y * width + x;
+							values[pos] = (float) rowResults[x];
+						}
 					}
-				}
+				});
 				FloatProcessor floatProcessor = new FloatProcessor(width, height, values);
 				floatProcessor.resetMinAndMax();
 				if(slices>1) imagePlus.getStack().setProcessor(floatProcessor.convertToByteProcessor(true), z+1);
 				else imagePlus.setProcessor(floatProcessor.convertToByteProcessor(true));
-			}
+			});
 		} else if (bitDepth==16) {
-			for(int z = 0; z < slices; z++) {
-				ip = imagePlus.getImageStack().getProcessor(z + 1);
+			Bands.renderStack(row, slices, r.height, (slice, z) -> {
+				ImageProcessor processor = imagePlus.getImageStack().getProcessor(z + 1);
 
 				if (hasZ) {
 					double dz = min[2] + ((max[2] - min[2]) / (slices - 1)) * z; // 0..z to min..max
 					if (Double.isNaN(dz)) dz = min[2];
-					interpreter.setVariable("z", dz);
+					slice.setVariable(Evaluator.Z, dz);
 				}
 
-				short[] pixels = (short[]) ip.getPixels();
-				double[] values = new double[pixels.length];
-
-				for (int y = r.y; y < (r.y + r.height); y++) {
-					if (y % inc == 0) IJ.showProgress(y - r.y, r.height);
-
-					double dy = min[1]+((max[1]-min[1])/(height-1))*y; // 0..y to min..max
-					interpreter.setVariable("y", dy);
-
-					for (int x = r.x; x < (r.x + r.width); x++) {
-
-						double dx = min[0]+((max[0]-min[0])/(width-1))*x; // 0..x to min..max
-						if (hasX) interpreter.setVariable("x", dx);
-
-						pos = y * width + x;
-						v = pixels[pos] & 65535;
-						interpreter.setVariable("v", v);
-
-						if (hasA) interpreter.setVariable("a", getA(dx, dy));
-						if (hasD) interpreter.setVariable("d",Math.hypot(dx,dy));
-						interpreter.run(PCStart);
-						values[pos] = interpreter.getVariable("v");
+				short[] pixels = (short[]) processor.getPixels();
+				float[] values = new float[pixels.length];
+
+				Bands.render(slice, r.y, r.y + r.height, (band, from, to) -> {
+					double[] rowValues = band.input(Evaluator.V), rowResults = band.output(Evaluator.V);
+					for (int y = from; y < to; y++) {
+						double dy = min[1]+((max[1]-min[1])/(height-1))*y; // 0..y to min..max
+						for (int x = r.x; x < (r.x + r.width); x++) rowValues[x] = pixels[y * width + x] & 65535;
+						band.run(dy, r.x, r.x + r.width);
+						for (int x = r.x; x < (r.x + r.width); x++) {
+							int pos = y * width + x;
+							values[pos] = (float) rowResults[x];
+						}
 					}
-				}
+				});
 				FloatProcessor floatProcessor = new FloatProcessor(width, height, values);
 				floatProcessor.resetMinAndMax();
 				if(slices>1) imagePlus.getStack().setProcessor(floatProcessor.convertToShortProcessor(true), z+1);
 				else imagePlus.setProcessor(floatProcessor.convertToShortProcessor(true));
-			}
+			});
 		}
 
 		IJ.showProgress(1.0);
@@ -516,7 +438,6 @@ public class FunctionImageSynthesizer extends ImageMath {
 		String macro2 = "code=g_new=" + functions[1];
 		String macro3 = "code=b_new=" + functions[2];
 
-		int PCStart = 25;
 		Program pgm1 = (new Tokenizer()).tokenize(macro1);
 		Program pgm2 = (new Tokenizer()).tokenize(macro2);
 		Program pgm3 = (new Tokenizer()).tokenize(macro3);
@@ -528,80 +449,64 @@ public class FunctionImageSynthesizer extends ImageMath {
 		int width = ip.getWidth();
 		int height = ip.getHeight();
 		int slices = imagePlus.getNSlices();
-		String code =
-				"var v,r,g,b,x,y,z,w,h,s,d,a,E;\n"+
-						"function dummy() {}\n"+
-						macro1+";\n"+
-						macro2+";\n"+
-						macro3+";\n"; // code starts at program counter location 'PCStart'
-		Interpreter interpreter = new Interpreter();
-		interpreter.run(code, null);
-		if (interpreter.wasError()) return;
+		Evaluator evaluator = Evaluator.create(Evaluator.RGB_VARIABLES, macro1+";\n"+macro2+";\n"+macro3, settings());
+		if (evaluator==null) return;
 
 		Prefs.set(MACRO_KEY, macro1);
-		interpreter.setVariable("w", Math.abs(max[0]-min[0]));
-		interpreter.setVariable("h", Math.abs(max[1]-min[1]));
-		interpreter.setVariable("s", Math.abs(max[2]-min[2]));
-		if(hasE) interpreter.setVariable("E", Math.exp(1));
+		evaluator.setVariable(Evaluator.W, Math.abs(max[0]-min[0]));
+		evaluator.setVariable(Evaluator.H, Math.abs(max[1]-min[1]));
+		evaluator.setVariable(Evaluator.S, Math.abs(max[2]-min[2]));
+		if(hasE) evaluator.setVariable(Evaluator.E, Math.exp(1));
 
 		Rectangle r = ip.getRoi();
-		int inc = r.height/50;
-		if (inc<1) inc = 1;
-		int pos;
+		RowBuffer row = new RowBuffer(evaluator, width, min[0], (max[0] - min[0]) / (width - 1), hasX, hasD, hasA,
+				new int[]{Evaluator.R, Evaluator.G, Evaluator.B}, new int[]{Evaluator.R_NEW, Evaluator.G_NEW, Evaluator.B_NEW});
 
-		for(int z = 0; z < slices; z++) {
-			ip = (ColorProcessor) imagePlus.getImageStack().getProcessor(z + 1);
+		Bands.renderStack(row, slices, r.height, (slice, z) -> {
+			ColorProcessor processor = (ColorProcessor) imagePlus.getImageStack().getProcessor(z + 1);
 
 			if (hasZ) {
 				double dz = min[2] + ((max[2] - min[2]) / (slices - 1)) * z; // 0..z to min..max
 				if (Double.isNaN(dz)) dz = min[2];
-				interpreter.setVariable("z", dz);
+				slice.setVariable(Evaluator.Z, dz);
 			}
 
-			int rgb;
-			double red, green, blue;
-			int[] pixels = (int[]) ip.getPixels();
-			double[] redPixels = new double[pixels.length],
-					greenPixels = new double[pixels.length],
-					bluePixels = new double[pixels.length];
+			int[] pixels = (int[]) processor.getPixels();
+			float[] redPixels = new float[pixels.length],
+					greenPixels = new float[pixels.length],
+					bluePixels = new float[pixels.length];
 
-			for (int y = r.y; y < (r.y + r.height); y++) {
-				if (y % inc == 0) IJ.showProgress(y - r.y, r.height);
-
-				double dy = min[1] + ((max[1] - min[1]) / (height - 1)) * y; // 0..y to min..max
-				interpreter.setVariable("y", dy);
+			Bands.render(slice, r.y, r.y + r.height, (band, from, to) -> {
+				double[] rowR = band.input(Evaluator.R), rowG = band.input(Evaluator.G), rowB = band.input(Evaluator.B);
+				double[] rowRed = band.output(Evaluator.R_NEW), rowGreen = band.output(Evaluator.G_NEW), rowBlue = band.output(Evaluator.B_NEW);
+				for (int y = from; y < to; y++) {
+					double dy = min[1] + ((max[1] - min[1]) / (height - 1)) * y; // 0..y to min..max
+					for (int x = r.x; x < (r.x + r.width); x++) {
+						int rgb = pixels[y * width + x];
+						rowR[x] = (rgb & 0xff0000) >> 16;
+						rowG[x] = (rgb & 0xff00) >> 8;
+						rowB[x] = rgb & 0xff;
+					}
+					band.run(dy, r.x, r.x + r.width);
+					for (int x = r.x; x < (r.x + r.width); x++) {
+						int pos = y * width + x;
 
-				for (int x = r.x; x < (r.x + r.width); x++) {
-					double dx = min[0] + ((max[0] - min[0]) / (width - 1)) * x; // 0..x to min..max
-					if (hasX) interpreter.setVariable("x", dx);
-
-					if (hasA) interpreter.setVariable("a",getA(dx, dy));
-					if (hasD) interpreter.setVariable("d", Math.hypot(dx,dy));
-					pos = y * width + x;
-					rgb = pixels[pos];
-
-					red = (rgb & 0xff0000) >> 16;
-					green = (rgb & 0xff00) >> 8;
-					blue = rgb & 0xff;
-					interpreter.setVariable("r", red);
-					interpreter.setVariable("g", green);
-					interpreter.setVariable("b", blue);
-					interpreter.run(PCStart);
-					redPixels[pos] = interpreter.getVariable("r_new");
-					greenPixels[pos] = interpreter.getVariable("g_new");
-					bluePixels[pos] = interpreter.getVariable("b_new");
+						redPixels[pos] = (float) rowRed[x];
+						greenPixels[pos] = (float) rowGreen[x];
+						bluePixels[pos] = (float) rowBlue[x];
+					}
 				}
-			}
+			});
 
 			FloatProcessor redImageProcessor = new FloatProcessor(width, height, redPixels);
-			ip.setChannel(1, redImageProcessor.convertToByteProcessor(true));
+			processor.setChannel(1, redImageProcessor.convertToByteProcessor(true));
 
 			FloatProcessor greenImageProcessor = new FloatProcessor(width, height, greenPixels);
-			ip.setChannel(2, greenImageProcessor.convertToByteProcessor(true));
+			processor.setChannel(2, greenImageProcessor.convertToByteProcessor(true));
 
 			FloatProcessor blueImageProcessor = new FloatProcessor(width, height, bluePixels);
-			ip.setChannel(3, blueImageProcessor.convertToByteProcessor(true));
-		}
+			processor.setChannel(3, blueImageProcessor.convertToByteProcessor(true));
+		});
 		IJ.showProgress(1.0);
 	}
 
@@ -614,7 +519,6 @@ public class FunctionImageSynthesizer extends ImageMath {
 		String macro2 = "code=g_new=" + functions[1];
 		String macro3 = "code=b_new=" + functions[2];
 
-		int PCStart = 25;
 		Program pgm1 = (new Tokenizer()).tokenize(macro1);
 		Program pgm2 = (new Tokenizer()).tokenize(macro2);
 		Program pgm3 = (new Tokenizer()).tokenize(macro3);
@@ -626,26 +530,18 @@ public class FunctionImageSynthesizer extends ImageMath {
 		int width = ip.getWidth();
 		int height = ip.getHeight();
 		int slices = imagePlus.getNSlices();
-		String code =
-				"var v,r,g,b,x,y,z,w,h,s,d,a,E;\n"+
-						"function dummy() {}\n"+
-						macro1+";\n"+
-						macro2+";\n"+
-						macro3+";\n"; // code starts at program counter location 'PCStart'
-		Interpreter interpreter = new Interpreter();
-		interpreter.run(code, null);
-		if (interpreter.wasError()) return;
+		Evaluator evaluator = Evaluator.create(Evaluator.RGB_VARIABLES, macro1+";\n"+macro2+";\n"+macro3, settings());
+		if (evaluator==null) return;
 
 		Prefs.set(MACRO_KEY, macro1);
-		interpreter.setVariable("w", Math.abs(max[0]-min[0]));
-		interpreter.setVariable("h", Math.abs(max[1]-min[1]));
-		interpreter.setVariable("s", Math.abs(max[2]-min[2]));
-		if(hasE) interpreter.setVariable("E", Math.exp(1));
+		evaluator.setVariable(Evaluator.W, Math.abs(max[0]-min[0]));
+		evaluator.setVariable(Evaluator.H, Math.abs(max[1]-min[1]));
+		evaluator.setVariable(Evaluator.S, Math.abs(max[2]-min[2]));
+		if(hasE) evaluator.setVariable(Evaluator.E, Math.exp(1));
 
 		Rectangle r = ip.getRoi();
-		int inc = r.height/50;
-		if (inc<1) inc = 1;
-		int pos;
+		RowBuffer row = new RowBuffer(evaluator, width, min[0], (max[0] - min[0]) / (width - 1), hasX, hasD, hasA,
+				new int[]{Evaluator.R, Evaluator.G, Evaluator.B}, new int[]{Evaluator.R_NEW, Evaluator.G_NEW, Evaluator.B_NEW});
 
 		double minimum = Double.MAX_VALUE; // minimum init with greatest possible value
 		double maximum = -Double.MAX_VALUE; // maximum init with smallest possible value
@@ -654,54 +550,48 @@ public class FunctionImageSynthesizer extends ImageMath {
 		FloatProcessor[] greenFloatProcessors = new FloatProcessor[slices];
 		FloatProcessor[] blueFloatProcessors = new FloatProcessor[slices];
 
-		for(int z = 0; z < slices; z++) {
-			ip = (ColorProcessor) imagePlus.getImageStack().getProcessor(z + 1);
+		Bands.renderStack(row, slices, r.height, (slice, z) -> {
+			ColorProcessor processor = (ColorProcessor) imagePlus.getImageStack().getProcessor(z + 1);
 
 			if (hasZ) {
 				double dz = min[2] + ((max[2] - min[2]) / (slices - 1)) * z; // 0..z to min..max
 				if (Double.isNaN(dz)) dz = min[2];
-				interpreter.setVariable("z", dz);
+				slice.setVariable(Evaluator.Z, dz);
 			}
 
-			int rgb;
-			double red, green, blue;
-			int[] pixels = (int[]) ip.getPixels();
-			double[] redPixels = new double[pixels.length],
-					greenPixels = new double[pixels.length],
-					bluePixels = new double[pixels.length];
+			int[] pixels = (int[]) processor.getPixels();
+			float[] redPixels = new float[pixels.length],
+					greenPixels = new float[pixels.length],
+					bluePixels = new float[pixels.length];
 
-			for (int y = r.y; y < (r.y + r.height); y++) {
-				if (y % inc == 0) IJ.showProgress(y - r.y, r.height);
-
-				double dy = min[1] + ((max[1] - min[1]) / (height - 1)) * y; // 0..y to min..max
-				interpreter.setVariable("y", dy);
+			Bands.render(slice, r.y, r.y + r.height, (band, from, to) -> {
+				double[] rowR = band.input(Evaluator.R), rowG = band.input(Evaluator.G), rowB = band.input(Evaluator.B);
+				double[] rowRed = band.output(Evaluator.R_NEW), rowGreen = band.output(Evaluator.G_NEW), rowBlue = band.output(Evaluator.B_NEW);
+				for (int y = from; y < to; y++) {
+					double dy = min[1] + ((max[1] - min[1]) / (height - 1)) * y; // 0..y to min..max
+					for (int x = r.x; x < (r.x + r.width); x++) {
+						int rgb = pixels[y * width + x];
+						rowR[x] = (rgb & 0xff0000) >> 16;
+						rowG[x] = (rgb & 0xff00) >> 8;
+						rowB[x] = rgb & 0xff;
+					}
+					band.run(dy, r.x, r.x + r.width);
+					for (int x = r.x; x < (r.x + r.width); x++) {
+						int pos = y * width + x;
 
-				for (int x = r.x; x < (r.x + r.width); x++) {
-					double dx = min[0] + ((max[0] - min[0]) / (width - 1)) * x; // 0..x to min..max
-					if (hasX) interpreter.setVariable("x", dx);
-
-					if (hasA) interpreter.setVariable("a",getA(dx, dy));
-					if (hasD) interpreter.setVariable("d", Math.hypot(dx,dy));
-					pos = y * width + x;
-					rgb = pixels[pos];
-
-					red = (rgb & 0xff0000) >> 16;
-					green = (rgb & 0xff00) >> 8;
-					blue = rgb & 0xff;
-					interpreter.setVariable("r", red);
-					interpreter.setVariable("g", green);
-					interpreter.setVariable("b", blue);
-					interpreter.run(PCStart);
-					redPixels[pos] = interpreter.getVariable("r_new");
-					greenPixels[pos] = interpreter.getVariable("g_new");
-					bluePixels[pos] = interpreter.getVariable("b_new");
+						redPixels[pos] = (float) rowRed[x];
+						greenPixels[pos] = (float) rowGreen[x];
+						bluePixels[pos] = (float) rowBlue[x];
+					}
 				}
-			}
+			});
 
 			redFloatProcessors[z] = new FloatProcessor(width, height, redPixels);
 			greenFloatProcessors[z] = new FloatProcessor(width, height, greenPixels);
 			blueFloatProcessors[z] = new FloatProcessor(width, height, bluePixels);
+		});
 
+		for (int z = 0; z < slices; z++) {
 			minimum = Math.min(minimum, redFloatProcessors[z].getMin());
 			minimum = Math.min(minimum, greenFloatProcessors[z].getMin());
 			minimum = Math.min(minimum, blueFloatProcessors[z].getMin());
@@ -709,7 +599,6 @@ public class FunctionImageSynthesizer extends ImageMath {
 			maximum = Math.max(maximum, redFloatProcessors[z].getMax());
 			maximum = Math.max(maximum, greenFloatProcessors[z].getMax());
 			maximum = Math.max(maximum, blueFloatProcessors[z].getMax());
-
 		}
 
 		// convert float processors to RGB Stack
@@ -728,13 +617,12 @@ public class FunctionImageSynthesizer extends ImageMath {
 		IJ.showProgress(1.0);
 	}
 
-	private void functionToFrame(ImagePlus imagePlus, double[] min, double[] max, int z, int slices, String function) throws RuntimeException{
+	private void functionToFrame(ImagePlus imagePlus, Lattice lattice, double[] min, double[] max, int z, int slices, String function) throws RuntimeException{
 		// example macro: "code=v=v+50*sin(d/10)"
 		String macro = "code=v=" + function;
 
 		ImageProcessor ip = imagePlus.getProcessor();
 
-		int PCStart = 25;
 		Program pgm = (new Tokenizer()).tokenize(macro);
 		boolean hasX = pgm.hasWord("x");
 		boolean hasZ = pgm.hasWord("z");
@@ -744,219 +632,166 @@ public class FunctionImageSynthesizer extends ImageMath {
 		boolean hasGetPixel = pgm.hasWord("getPixel");
 		int width = ip.getWidth();
 		int height = ip.getHeight();
-		String code =
-				"var v,x,y,z,w,h,s,d,a,E;\n"+
-						"function dummy() {}\n"+
-						macro+";\n"; // code starts at program counter location 'PCStart'
-		Interpreter interpreter = new Interpreter();
-		interpreter.run(code, null);
-		if (interpreter.wasError()) return;
+		Evaluator evaluator = Evaluator.create(Evaluator.FUNCTION_VARIABLES, macro, settings());
+		if (evaluator==null) return;
 
 		Prefs.set(MACRO_KEY, macro);
-		interpreter.setVariable("w", Math.abs(max[0]-min[0]));
-		interpreter.setVariable("h", Math.abs(max[1]-min[1]));
-		interpreter.setVariable("s", Math.abs(max[2]-min[2]));
-		if(hasE) interpreter.setVariable("E", Math.exp(1));
+		evaluator.setVariable(Evaluator.W, Math.abs(max[0]-min[0]));
+		evaluator.setVariable(Evaluator.H, Math.abs(max[1]-min[1]));
+		evaluator.setVariable(Evaluator.S, Math.abs(max[2]-min[2]));
+		if(hasE) evaluator.setVariable(Evaluator.E, Math.exp(1));
 
 		int bitDepth = ip.getBitDepth();
 		Rectangle r = ip.getRoi();
-		int inc = r.height/50;
-		if (inc<1) inc = 1;
-		double v;
-		int pos, v2;
+		boolean channels = bitDepth==24 && !hasGetPixel; // the function runs once per color channel
+		int[] slots = channels ? new int[]{Evaluator.R, Evaluator.G, Evaluator.B} : new int[]{Evaluator.V};
+		if (channels) evaluator = evaluator.channels(Evaluator.V, Evaluator.V, Evaluator.V);
+		RowBuffer row = new RowBuffer(evaluator, lattice, hasX, hasD, hasA, slots, slots);
 		if (bitDepth==8) { // 8-Bit
 
 			if (hasZ) {
 				double dz = min[2] + ((max[2] - min[2]) / (slices - 1)) * z; // 0..z to min..max
 				if (Double.isNaN(dz)) dz = min[2];
-				interpreter.setVariable("z", dz);
+				evaluator.setVariable(Evaluator.Z, dz);
 			}
 
 			byte[] pixels1 = (byte[]) ip.getPixels();
-			byte[] pixels2 = pixels1;
-			if (hasGetPixel) pixels2 = new byte[width * height];
-
-			for (int y = r.y; y < (r.y + r.height); y++) {
-				if (y % inc == 0) IJ.showProgress(y - r.y, r.height);
-
-				double dy = min[1]+((max[1]-min[1])/(height-1))*y; // 0..y to min..max
-				interpreter.setVariable("y", dy);
-
-				for (int x = r.x; x < (r.x + r.width); x++) {
-					pos = y * width + x;
-					v = pixels1[pos] & 255;
-					interpreter.setVariable("v", v);
-
-					double dx = min[0]+((max[0]-min[0])/(width-1))*x; // 0..x to min..max
-					if (hasX) interpreter.setVariable("x", dx);
-
-					if (hasA) interpreter.setVariable("a", getA(dx, dy));
-					if (hasD) interpreter.setVariable("d", Math.hypot(dx,dy));
-					interpreter.run(PCStart);
-					v2 = (int) interpreter.getVariable("v");
-					if (v2 < 0) v2 = 0;
-					if (v2 > 255) v2 = 255;
-					pixels2[pos] = (byte) v2;
+			byte[] pixels2 = hasGetPixel ? new byte[width * height] : pixels1;
+
+			Bands.render(row, r.y, r.y + r.height, (band, from, to) -> {
+				double[] rowValues = band.input(Evaluator.V), rowResults = band.output(Evaluator.V);
+				for (int y = from; y < to; y++) {
+					double dy = lattice.y(y);
+					for (int x = r.x; x < (r.x + r.width); x++) rowValues[x] = pixels1[y * width + x] & 255;
+					band.run(dy, r.x, r.x + r.width);
+					for (int x = r.x; x < (r.x + r.width); x++) {
+						int pos = y * width + x;
+						int v2 = (int) rowResults[x];
+						if (v2 < 0) v2 = 0;
+						if (v2 > 255) v2 = 255;
+						pixels2[pos] = (byte) v2;
+					}
 				}
-			}
+			});
 			if (hasGetPixel) System.arraycopy(pixels2, 0, pixels1, 0, width * height);
 		} else if (bitDepth==24) { // RGB
 
 			if (hasZ) {
 				double dz = min[2] + ((max[2] - min[2]) / (slices - 1)) * z; // 0..z to min..max
 				if (Double.isNaN(dz)) dz = min[2];
-				interpreter.setVariable("z", dz);
+				evaluator.setVariable(Evaluator.Z, dz);
 			}
 
-			int rgb, red, green, blue;
 			int[] pixels1 = (int[]) ip.getPixels();
-			int[] pixels2 = pixels1;
-			if (hasGetPixel) pixels2 = new int[width * height];
-
-			for (int y = r.y; y < (r.y + r.height); y++) {
-				if (y % inc == 0) IJ.showProgress(y - r.y, r.height);
-
-				double dy = min[1]+((max[1]-min[1])/(height-1))*y; // 0..y to min..max
-				interpreter.setVariable("y", dy);
-
-				for (int x = r.x; x < (r.x + r.width); x++) {
-					double dx = min[0]+((max[0]-min[0])/(width-1))*x; // 0..x to min..max
-					if (hasX) interpreter.setVariable("x", dx);
-
-					if (hasA) interpreter.setVariable("a", getA(dx, dy));
-					if (hasD) interpreter.setVariable("d", Math.hypot(dx,dy));
-					pos = y * width + x;
-					rgb = pixels1[pos];
-					if (hasGetPixel) {
-						interpreter.setVariable("v", rgb);
-						interpreter.run(PCStart);
-						rgb = (int) interpreter.getVariable("v");
-					} else {
-						red = (rgb & 0xff0000) >> 16;
-						green = (rgb & 0xff00) >> 8;
-						blue = rgb & 0xff;
-						interpreter.setVariable("v", red);
-						interpreter.run(PCStart);
-						red = (int) interpreter.getVariable("v");
-						if (red < 0) red = 0;
-						if (red > 255) red = 255;
-						interpreter.setVariable("v", green);
-						interpreter.run(PCStart);
-						green = (int) interpreter.getVariable("v");
-						if (green < 0) green = 0;
-						if (green > 255) green = 255;
-						interpreter.setVariable("v", blue);
-						interpreter.run(PCStart);
-						blue = (int) interpreter.getVariable("v");
-						if (blue < 0) blue = 0;
-						if (blue > 255) blue = 255;
-						rgb = 0xff000000 | ((red & 0xff) << 16) | ((green & 0xff) << 8) | blue & 0xff;
+			int[] pixels2 = hasGetPixel ? new int[width * height] : pixels1;
+
+			Bands.render(row, r.y, r.y + r.height, (band, from, to) -> {
+				if (hasGetPixel) { // one run per pixel with the whole rgb value in v
+					double[] rowValues = band.input(Evaluator.V), rowResults = band.output(Evaluator.V);
+					for (int y = from; y < to; y++) {
+						double dy = lattice.y(y);
+						for (int x = r.x; x < (r.x + r.width); x++) rowValues[x] = pixels1[y * width + x];
+						band.run(dy, r.x, r.x + r.width);
+						for (int x = r.x; x < (r.x + r.width); x++) pixels2[y * width + x] = (int) rowResults[x];
 					}
-					pixels2[pos] = rgb;
+					return;
 				}
-			}
+				double[] reds = band.input(Evaluator.R), greens = band.input(Evaluator.G), blues = band.input(Evaluator.B);
+				double[] newReds = band.output(Evaluator.R), newGreens = band.output(Evaluator.G), newBlues = band.output(Evaluator.B);
+				for (int y = from; y < to; y++) {
+					double dy = lattice.y(y);
+					for (int x = r.x; x < (r.x + r.width); x++) {
+						int rgb = pixels1[y * width + x];
+						reds[x] = (rgb & 0xff0000) >> 16;
+						greens[x] = (rgb & 0xff00) >> 8;
+						blues[x] = rgb & 0xff;
+					}
+					band.run(dy, r.x, r.x + r.width);
+					for (int x = r.x; x < (r.x + r.width); x++)
+						pixels2[y * width + x] = 0xff000000 | (toByte(newReds[x]) << 16) | (toByte(newGreens[x]) << 8) | toByte(newBlues[x]);
+				}
+			});
 			if (hasGetPixel) System.arraycopy(pixels2, 0, pixels1, 0, width * height);
 		} else if (ip.isSigned16Bit()) {
 
 			if (hasZ) {
 				double dz = min[2] + ((max[2] - min[2]) / (slices - 1)) * z; // 0..z to min..max
 				if (Double.isNaN(dz)) dz = min[2];
-				interpreter.setVariable("z", dz);
+				evaluator.setVariable(Evaluator.Z, dz);
 			}
 
-			for (int y = r.y; y < (r.y + r.height); y++) {
-				if (y % inc == 0) IJ.showProgress(y - r.y, r.height);
+			ImageProcessor processor = ip;
+			double[] results = hasGetPixel ? new double[width * height] : null;
 
-				double dy = min[1]+((max[1]-min[1])/(height-1))*y; // 0..y to min..max
-				interpreter.setVariable("y", dy);
-
-				for (int x = r.x; x < (r.x + r.width); x++) {
-					double dx = min[0]+((max[0]-min[0])/(width-1))*x; // 0..x to min..max
-					if (hasX) interpreter.setVariable("x", dx);
-
-					v = ip.getPixelValue(x, y);
-					interpreter.setVariable("v", v);
-					if (hasA) interpreter.setVariable("a", getA(dx, dy));
-					if (hasD) interpreter.setVariable("d", Math.hypot(dx, dy));
-					interpreter.run(PCStart);
-					ip.putPixelValue(x, y, interpreter.getVariable("v"));
+			Bands.render(row, r.y, r.y + r.height, (band, from, to) -> {
+				double[] rowValues = band.input(Evaluator.V), rowResults = band.output(Evaluator.V);
+				for (int y = from; y < to; y++) {
+					double dy = lattice.y(y);
+					for (int x = r.x; x < (r.x + r.width); x++) rowValues[x] = processor.getPixelValue(x, y);
+					band.run(dy, r.x, r.x + r.width);
+					for (int x = r.x; x < (r.x + r.width); x++) {
+						if (hasGetPixel) results[y * width + x] = rowResults[x];
+						else processor.putPixelValue(x, y, rowResults[x]);
+					}
 				}
-			}
+			});
+			if (hasGetPixel) putPixelValues(processor, r, results);
 		} else if (bitDepth==16) {
 
 			if (hasZ) {
 				double dz = min[2] + ((max[2] - min[2]) / (slices - 1)) * z; // 0..z to min..max
 				if (Double.isNaN(dz)) dz = min[2];
-				interpreter.setVariable("z", dz);
+				evaluator.setVariable(Evaluator.Z, dz);
 			}
 
 			short[] pixels1 = (short[]) ip.getPixels();
-			short[] pixels2 = pixels1;
-			if (hasGetPixel) pixels2 = new short[width * height];
-
-			for (int y = r.y; y < (r.y + r.height); y++) {
-				if (y % inc == 0) IJ.showProgress(y - r.y, r.height);
-
-				double dy = min[1]+((max[1]-min[1])/(height-1))*y; // 0..y to min..max
-				interpreter.setVariable("y", dy);
-
-				for (int x = r.x; x < (r.x + r.width); x++) {
-
-					double dx = min[0]+((max[0]-min[0])/(width-1))*x; // 0..x to min..max
-					if (hasX) interpreter.setVariable("x", dx);
-
-					pos = y * width + x;
-					v = pixels1[pos] & 65535;
-					interpreter.setVariable("v", v);
-
-					if (hasA) interpreter.setVariable("a", getA(dx, dy));
-					if (hasD) interpreter.setVariable("d",Math.hypot(dx,dy));
-					interpreter.run(PCStart);
-					v2 = (int) interpreter.getVariable("v");
-					if (v2 < 0) v2 = 0;
-					if (v2 > 65535) v2 = 65535;
-					pixels2[pos] = (short) v2;
+			short[] pixels2 = hasGetPixel ? new short[width * height] : pixels1;
+
+			Bands.render(row, r.y, r.y + r.height, (band, from, to) -> {
+				double[] rowValues = band.input(Evaluator.V), rowResults = band.output(Evaluator.V);
+				for (int y = from; y < to; y++) {
+					double dy = lattice.y(y);
+					for (int x = r.x; x < (r.x + r.width); x++) rowValues[x] = pixels1[y * width + x] & 65535;
+					band.run(dy, r.x, r.x + r.width);
+					for (int x = r.x; x < (r.x + r.width); x++) {
+						int pos = y * width + x;
+						int v2 = (int) rowResults[x];
+						if (v2 < 0) v2 = 0;
+						if (v2 > 65535) v2 = 65535;
+						pixels2[pos] = (short) v2;
+					}
 				}
-			}
+			});
 			if (hasGetPixel) System.arraycopy(pixels2, 0, pixels1, 0, width * height);
 		} else {  //32-bit
 
 			if (hasZ) {
 				double dz = min[2] + ((max[2] - min[2]) / (slices - 1)) * z; // 0..z to min..max
 				if (Double.isNaN(dz)) dz = min[2];
-				interpreter.setVariable("z", dz);
+				evaluator.setVariable(Evaluator.Z, dz);
 			}
 
 			float[] pixels1 = (float[])ip.getPixels();
-			float[] pixels2 = pixels1;
-			if (hasGetPixel) pixels2 = new float[width*height];
-
-			for (int y = r.y; y < (r.y + r.height); y++) {
-				if (y % inc == 0) IJ.showProgress(y - r.y, r.height);
-
-				double dy = min[1]+((max[1]-min[1])/(height-1))*y; // 0..y to min..max
-				interpreter.setVariable("y", dy);
-
-				for (int x = r.x; x < (r.x + r.width); x++) {
-					pos = y * width + x;
-					v = pixels1[pos];
-					interpreter.setVariable("v", v);
-
-					double dx = min[0]+((max[0]-min[0])/(width-1))*x; // 0..x to min..max
-					if (hasX) interpreter.setVariable("x", dx);
-
-					if (hasA) interpreter.setVariable("a", getA(dx, dy));
-					if (hasD) interpreter.setVariable("d", Math.hypot(dx,dy));
-					interpreter.run(PCStart);
-					pixels2[pos] = (float) interpreter.getVariable("v");
+			float[] pixels2 = hasGetPixel ? new float[width*height] : pixels1;
+
+			Bands.render(row, r.y, r.y + r.height, (band, from, to) -> {
+				double[] rowValues = band.input(Evaluator.V), rowResults = band.output(Evaluator.V);
+				for (int y = from; y < to; y++) {
+					double dy = lattice.y(y);
+					for (int x = r.x; x < (r.x + r.width); x++) rowValues[x] = pixels1[y * width + x];
+					band.run(dy, r.x, r.x + r.width);
+					for (int x = r.x; x < (r.x + r.width); x++) {
+						int pos = y * width + x;
+						pixels2[pos] = (float) rowResults[x];
+					}
 				}
-			}
+			});
 			if (hasGetPixel) System.arraycopy(pixels2, 0, pixels1, 0, width*height);
 		}
 		IJ.showProgress(1.0);
 	}
 
-	private void functionToFrame(ImagePlus imagePlus, double[] min, double[] max, int z, int slices, String[] functions) {
+	private void functionToFrame(ImagePlus imagePlus, Lattice lattice, double[] min, double[] max, int z, int slices, String[] functions) {
 		ImageProcessor ip = imagePlus.getProcessor();
 		if(ip.getBitDepth()!=24) return;
 
@@ -965,7 +800,6 @@ public class FunctionImageSynthesizer extends ImageMath {
 		String macro2 = "code=g_new=" + functions[1];
 		String macro3 = "code=b_new=" + functions[2];
 
-		int PCStart = 25;
 		Program pgm1 = (new Tokenizer()).tokenize(macro1);
 		Program pgm2 = (new Tokenizer()).tokenize(macro2);
 		Program pgm3 = (new Tokenizer()).tokenize(macro3);
@@ -976,74 +810,59 @@ public class FunctionImageSynthesizer extends ImageMath {
 		boolean hasE = pgm1.hasWord("E") | pgm2.hasWord("E") | pgm3.hasWord("E");
 		int width = ip.getWidth();
 		int height = ip.getHeight();
-		String code =
-				"var v,r,g,b,x,y,z,w,h,s,d,a,E;\n"+
-						"function dummy() {}\n"+
-						macro1+";\n"+
-						macro2+";\n"+
-						macro3+";\n"; // code starts at program counter location 'PCStart'
-		Interpreter interpreter = new Interpreter();
-		interpreter.run(code, null);
-		if (interpreter.wasError()) return;
+		Evaluator evaluator = Evaluator.create(Evaluator.RGB_VARIABLES, macro1+";\n"+macro2+";\n"+macro3, settings());
+		if (evaluator==null) return;
 
 		Prefs.set(MACRO_KEY, macro1);
-		interpreter.setVariable("w", Math.abs(max[0]-min[0]));
-		interpreter.setVariable("h", Math.abs(max[1]-min[1]));
-		interpreter.setVariable("s", Math.abs(max[2]-min[2]));
-		if(hasE) interpreter.setVariable("E", Math.exp(1));
+		evaluator.setVariable(Evaluator.W, Math.abs(max[0]-min[0]));
+		evaluator.setVariable(Evaluator.H, Math.abs(max[1]-min[1]));
+		evaluator.setVariable(Evaluator.S, Math.abs(max[2]-min[2]));
+		if(hasE) evaluator.setVariable(Evaluator.E, Math.exp(1));
 
 		Rectangle r = ip.getRoi();
-		int inc = r.height/50;
-		if (inc<1) inc = 1;
-		int pos;
+		RowBuffer row = new RowBuffer(evaluator, lattice, hasX, hasD, hasA,
+				new int[]{Evaluator.R, Evaluator.G, Evaluator.B}, new int[]{Evaluator.R_NEW, Evaluator.G_NEW, Evaluator.B_NEW});
 
 		if (hasZ) {
 			double dz = min[2] + ((max[2] - min[2]) / (slices - 1)) * z; // 0..z to min..max
 			if (Double.isNaN(dz)) dz = min[2];
-			interpreter.setVariable("z", dz);
+			evaluator.setVariable(Evaluator.Z, dz);
 		}
 
-		int rgb, red, green, blue;
 		int[] pixels = (int[]) ip.getPixels();
 
-		for (int y = r.y; y < (r.y + r.height); y++) {
-			if (y % inc == 0) IJ.showProgress(y - r.y, r.height);
-
-			double dy = min[1]+((max[1]-min[1])/(height-1))*y; // 0..y to min..max
-			interpreter.setVariable("y", dy);
-
-			for (int x = r.x; x < (r.x + r.width); x++) {
-				double dx = min[0]+((max[0]-min[0])/(width-1))*x; // 0..x to min..max
-				if (hasX) interpreter.setVariable("x", dx);
-
-				if (hasA) interpreter.setVariable("a",getA(dx, dy));
-				if (hasD) interpreter.setVariable("d", Math.hypot(dx,dy));
-				pos = y * width + x;
-				rgb = pixels[pos];
-
-				red = (rgb & 0xff0000) >> 16;
-				green = (rgb & 0xff00) >> 8;
-				blue = rgb & 0xff;
-				interpreter.setVariable("r", red);
-				interpreter.setVariable("g", green);
-				interpreter.setVariable("b", blue);
-				interpreter.run(PCStart);
-				int redNew = (int) interpreter.getVariable("r_new");
-				if (redNew < 0) redNew = 0;
-				if (redNew > 255) redNew = 255;
-
-				int greenNew = (int) interpreter.getVariable("g_new");
-				if (greenNew < 0) greenNew = 0;
-				if (greenNew > 255) greenNew = 255;
-
-				int blueNew = (int) interpreter.getVariable("b_new");
-				if (blueNew < 0) blueNew = 0;
-				if (blueNew > 255) blueNew = 255;
-				rgb = 0xff000000 | ((redNew & 0xff) << 16) | ((greenNew & 0xff) << 8) | blueNew & 0xff;
-
-				pixels[pos] = rgb;
+		Bands.render(row, r.y, r.y + r.height, (band, from, to) -> {
+			double[] rowR = band.input(Evaluator.R), rowG = band.input(Evaluator.G), rowB = band.input(Evaluator.B);
+			double[] rowRed = band.output(Evaluator.R_NEW), rowGreen = band.output(Evaluator.G_NEW), rowBlue = band.output(Evaluator.B_NEW);
+			for (int y = from; y < to; y++) {
+				double dy = lattice.y(y);
+				for (int x = r.x; x < (r.x + r.width); x++) {
+					int rgb = pixels[y * width + x];
+					rowR[x] = (rgb & 0xff0000) >> 16;
+					rowG[x] = (rgb & 0xff00) >> 8;
+					rowB[x] = rgb & 0xff;
+				}
+				band.run(dy, r.x, r.x + r.width);
+				for (int x = r.x; x < (r.x + r.width); x++) {
+					int pos = y * width + x;
+
+					int redNew = (int) rowRed[x];
+					if (redNew < 0) redNew = 0;
+					if (redNew > 255) redNew = 255;
+
+					int greenNew = (int) rowGreen[x];
+					if (greenNew < 0) greenNew = 0;
+					if (greenNew > 255) greenNew = 255;
+
+					int blueNew = (int) rowBlue[x];
+					if (blueNew < 0) blueNew = 0;
+					if (blueNew > 255) blueNew = 255;
+					int rgb = 0xff000000 | ((redNew & 0xff) << 16) | ((greenNew & 0xff) << 8) | blueNew & 0xff;
+
+					pixels[pos] = rgb;
+				}
 			}
-		}
+		});
 		IJ.showProgress(1.0);
 	}
 
@@ -1053,7 +872,6 @@ public class FunctionImageSynthesizer extends ImageMath {
 		// example macro: "code=v=v+50*sin(d/10)"
 		String macro = "code=v=" + function;
 
-		int PCStart = 25;
 		Program pgm = (new Tokenizer()).tokenize(macro);
 		boolean hasX = pgm.hasWord("x");
 		boolean hasZ = pgm.hasWord("z");
@@ -1062,58 +880,44 @@ public class FunctionImageSynthesizer extends ImageMath {
 		boolean hasE = pgm.hasWord("E");
 		int width = ip.getWidth();
 		int height = ip.getHeight();
-		String code =
-				"var v,x,y,z,w,h,s,d,a,E;\n"+
-						"function dummy() {}\n"+
-						macro+";\n"; // code starts at program counter location 'PCStart'
-		Interpreter interpreter = new Interpreter();
-		interpreter.run(code, null);
-		if (interpreter.wasError()) return;
+		Evaluator evaluator = Evaluator.create(Evaluator.FUNCTION_VARIABLES, macro, settings());
+		if (evaluator==null) return;
 
 		Prefs.set(MACRO_KEY, macro);
-		interpreter.setVariable("w", Math.abs(max[0]-min[0]));
-		interpreter.setVariable("h", Math.abs(max[1]-min[1]));
-		interpreter.setVariable("s", Math.abs(max[2]-min[2]));
-		if(hasE) interpreter.setVariable("E", Math.exp(1));
+		evaluator.setVariable(Evaluator.W, Math.abs(max[0]-min[0]));
+		evaluator.setVariable(Evaluator.H, Math.abs(max[1]-min[1]));
+		evaluator.setVariable(Evaluator.S, Math.abs(max[2]-min[2]));
+		if(hasE) evaluator.setVariable(Evaluator.E, Math.exp(1));
 
 		Rectangle r = ip.getRoi();
-		int inc = r.height/50;
-		if (inc<1) inc = 1;
-		int pos, v;
 		int bitDepth = imagePlus.getBitDepth();
+		RowBuffer row = new RowBuffer(evaluator, width, min[0], (max[0]-min[0])/(width-1), hasX, hasD, hasA,
+				new int[]{Evaluator.V}, new int[]{Evaluator.V});
 
 		if (bitDepth==8) { // 8-Bit
 
 			if (hasZ) {
 				double dz = min[2] + ((max[2] - min[2]) / (slices - 1)) * z; // 0..z to min..max
 				if (Double.isNaN(dz)) dz = min[2];
-				interpreter.setVariable("z", dz);
+				evaluator.setVariable(Evaluator.Z, dz);
 			}
 
 			byte[] pixels = (byte[]) ip.getPixels();
-			double[] values = new double[pixels.length];
-
-
-			for (int y = r.y; y < (r.y + r.height); y++) {
-				if (y % inc == 0) IJ.showProgress(y - r.y, r.height);
-
-				double dy = min[1]+((max[1]-min[1])/(height-1))*y; // 0..y to min..max
-				interpreter.setVariable("y", dy);
+			float[] values = new float[pixels.length];
 
-				for (int x = r.x; x < (r.x + r.width); x++) {
-					pos = y * width + x;
-					v = pixels[pos] & 255;
-					interpreter.setVariable("v", v);
-
-					double dx = min[0]+((max[0]-min[0])/(width-1))*x; // 0..x to min..max
-					if (hasX) interpreter.setVariable("x", dx);
 
-					if (hasA) interpreter.setVariable("a", getA(dx, dy));
-					if (hasD) interpreter.setVariable("d", Math.hypot(dx,dy));
-					interpreter.run(PCStart);
-					values[pos] = interpreter.getVariable("v");
+			Bands.render(row, r.y, r.y + r.height, (band, from, to) -> {
+				double[] rowValues = band.input(Evaluator.V), rowResults = band.output(Evaluator.V);
+				for (int y = from; y < to; y++) {
+					double dy = min[1]+((max[1]-min[1])/(height-1))*y; // 0..y to min..max
+					for (int x = r.x; x < (r.x + r.width); x++) rowValues[x] = pixels[y * width + x] & 255;
+					band.run(dy, r.x, r.x + r.width);
+					for (int x = r.x; x < (r.x + r.width); x++) {
+						int pos = y * width + x;
+						values[pos] = (float) rowResults[x];
+					}
 				}
-			}
+			});
 			FloatProcessor floatProcessor = new FloatProcessor(width, height, values);
 			floatProcessor.resetMinAndMax();
 			if(imagePlus.isInvertedLut()) floatProcessor.invert();
@@ -1123,33 +927,24 @@ public class FunctionImageSynthesizer extends ImageMath {
 			if (hasZ) {
 				double dz = min[2] + ((max[2] - min[2]) / (slices - 1)) * z; // 0..z to min..max
 				if (Double.isNaN(dz)) dz = min[2];
-				interpreter.setVariable("z", dz);
+				evaluator.setVariable(Evaluator.Z, dz);
 			}
 
 			short[] pixels = (short[]) ip.getPixels();
-			double[] values = new double[pixels.length];
-
-			for (int y = r.y; y < (r.y + r.height); y++) {
-				if (y % inc == 0) IJ.showProgress(y - r.y, r.height);
+			float[] values = new float[pixels.length];
 
-				double dy = min[1]+((max[1]-min[1])/(height-1))*y; // 0..y to min..max
-				interpreter.setVariable("y", dy);
-
-				for (int x = r.x; x < (r.x + r.width); x++) {
-
-					double dx = min[0]+((max[0]-min[0])/(width-1))*x; // 0..x to min..max
-					if (hasX) interpreter.setVariable("x", dx);
-
-					pos = y * width + x;
-					v = pixels[pos] & 65535;
-					interpreter.setVariable("v", v);
-
-					if (hasA) interpreter.setVariable("a", getA(dx, dy));
-					if (hasD) interpreter.setVariable("d",Math.hypot(dx,dy));
-					interpreter.run(PCStart);
-					values[pos] = interpreter.getVariable("v");
+			Bands.render(row, r.y, r.y + r.height, (band, from, to) -> {
+				double[] rowValues = band.input(Evaluator.V), rowResults = band.output(Evaluator.V);
+				for (int y = from; y < to; y++) {
+					double dy = min[1]+((max[1]-min[1])/(height-1))*y; // 0..y to min..max
+					for (int x = r.x; x < (r.x + r.width); x++) rowValues[x] = pixels[y * width + x] & 65535;
+					band.run(dy, r.x, r.x + r.width);
+					for (int x = r.x; x < (r.x + r.width); x++) {
+						int pos = y * width + x;
+						values[pos] = (float) rowResults[x];
+					}
 				}
-			}
+			});
 			FloatProcessor floatProcessor = new FloatProcessor(width, height, values);
 			floatProcessor.resetMinAndMax();
 			if(imagePlus.isInvertedLut()) floatProcessor.invert();
@@ -1167,7 +962,6 @@ public class FunctionImageSynthesizer extends ImageMath {
 		String macro2 = "code=g_new=" + functions[1];
 		String macro3 = "code=b_new=" + functions[2];
 
-		int PCStart = 25;
 		Program pgm1 = (new Tokenizer()).tokenize(macro1);
 		Program pgm2 = (new Tokenizer()).tokenize(macro2);
 		Program pgm3 = (new Tokenizer()).tokenize(macro3);
@@ -1178,67 +972,51 @@ public class FunctionImageSynthesizer extends ImageMath {
 		boolean hasE = pgm1.hasWord("E") | pgm2.hasWord("E") | pgm3.hasWord("E");
 		int width = ip.getWidth();
 		int height = ip.getHeight();
-		String code =
-				"var v,r,g,b,x,y,z,w,h,s,d,a,E;\n"+
-						"function dummy() {}\n"+
-						macro1+";\n"+
-						macro2+";\n"+
-						macro3+";\n"; // code starts at program counter location 'PCStart'
-		Interpreter interpreter = new Interpreter();
-		interpreter.run(code, null);
-		if (interpreter.wasError()) return;
+		Evaluator evaluator = Evaluator.create(Evaluator.RGB_VARIABLES, macro1+";\n"+macro2+";\n"+macro3, settings());
+		if (evaluator==null) return;
 
 		Prefs.set(MACRO_KEY, macro1);
-		interpreter.setVariable("w", Math.abs(max[0]-min[0]));
-		interpreter.setVariable("h", Math.abs(max[1]-min[1]));
-		interpreter.setVariable("s", Math.abs(max[2]-min[2]));
-		if(hasE) interpreter.setVariable("E", Math.exp(1));
+		evaluator.setVariable(Evaluator.W, Math.abs(max[0]-min[0]));
+		evaluator.setVariable(Evaluator.H, Math.abs(max[1]-min[1]));
+		evaluator.setVariable(Evaluator.S, Math.abs(max[2]-min[2]));
+		if(hasE) evaluator.setVariable(Evaluator.E, Math.exp(1));
 
 		Rectangle r = ip.getRoi();
-		int inc = r.height/50;
-		if (inc<1) inc = 1;
-		int pos;
+		RowBuffer row = new RowBuffer(evaluator, width, min[0], (max[0]-min[0])/width, hasX, hasD, hasA,
+				new int[]{Evaluator.R, Evaluator.G, Evaluator.B}, new int[]{Evaluator.R_NEW, Evaluator.G_NEW, Evaluator.B_NEW});
 
 		if (hasZ) {
 			double dz = min[2] + ((max[2] - min[2]) / (slices - 1)) * z; // 0..z to min..max
 			if (Double.isNaN(dz)) dz = min[2];
-			interpreter.setVariable("z", dz);
+			evaluator.setVariable(Evaluator.Z, dz);
 		}
 		
-		int rgb;
-		double red, green, blue;
 		int[] pixels = (int[]) ip.getPixels();
-		double[] redPixels = new double[pixels.length],
-				greenPixels = new double[pixels.length],
-				bluePixels = new double[pixels.length];
+		float[] redPixels = new float[pixels.length],
+				greenPixels = new float[pixels.length],
+				bluePixels = new float[pixels.length];
+
+		Bands.render(row, r.y, r.y + r.height, (band, from, to) -> {
+			double[] rowR = band.input(Evaluator.R), rowG = band.input(Evaluator.G), rowB = band.input(Evaluator.B);
+			double[] rowRed = band.output(Evaluator.R_NEW), rowGreen = band.output(Evaluator.G_NEW), rowBlue = band.output(Evaluator.B_NEW);
+			for (int y = from; y < to; y++) {
+				double dy = min[1]+((max[1]-min[1])/height)*y; // 0..y to min..max
+				for (int x = r.x; x < (r.x + r.width); x++) {
+					int rgb = pixels[y * width + x];
+					rowR[x] = (rgb & 0xff0000) >> 16;
+					rowG[x] = (rgb & 0xff00) >> 8;
+					rowB[x] = rgb & 0xff;
+				}
+				band.run(dy, r.x, r.x + r.width);
+				for (int x = r.x; x < (r.x + r.width); x++) {
+					int pos = y * width + x;
 
-		for (int y = r.y; y < (r.y + r.height); y++) {
-			if (y % inc == 0) IJ.showProgress(y - r.y, r.height);
-
-			double dy = min[1]+((max[1]-min[1])/height)*y; // 0..y to min..max
-			interpreter.setVariable("y", dy);
-
-			for (int x = r.x; x < (r.x + r.width); x++) {
-				double dx = min[0]+((max[0]-min[0])/width)*x; // 0..x to min..max
-				if (hasX) interpreter.setVariable("x", dx);
-
-				if (hasA) interpreter.setVariable("a",getA(dx, dy));
-				if (hasD) interpreter.setVariable("d", Math.hypot(dx,dy));
-				pos = y * width + x;
-				rgb = pixels[pos];
-
-				red = (rgb & 0xff0000) >> 16;
-				green = (rgb & 0xff00) >> 8;
-				blue = rgb & 0xff;
-				interpreter.setVariable("r", red);
-				interpreter.setVariable("g", green);
-				interpreter.setVariable("b", blue);
-				interpreter.run(PCStart);
-				redPixels[pos] = interpreter.getVariable("r_new");
-				greenPixels[pos] = interpreter.getVariable("g_new");
-				bluePixels[pos] = interpreter.getVariable("b_new");
+					redPixels[pos] = (float) rowRed[x];
+					greenPixels[pos] = (float) rowGreen[x];
+					bluePixels[pos] = (float) rowBlue[x];
+				}
 			}
-		}
+		});
 		FloatProcessor redImageProcessor = new FloatProcessor(width, height, redPixels);
 		FloatProcessor greenImageProcessor = new FloatProcessor(width, height, greenPixels);
 		FloatProcessor blueImageProcessor = new FloatProcessor(width, height, bluePixels);
@@ -1267,56 +1045,88 @@ public class FunctionImageSynthesizer extends ImageMath {
 		IJ.showProgress(1.0);
 	}
 
-	private double getA(double x, double y) {
-		double angle = Math.atan2(y, x);
-		if (angle < 0) angle += 2 * Math.PI;
-		return angle;
+	private Settings settings() {
+		return settings!=null ? settings : Settings.current();
+	}
+
+	// clamps a color channel to 0..255 like the RGB loops always did
+	private static int toByte(double value) {
+		int v = (int) value;
+		if (v < 0) v = 0;
+		if (v > 255) v = 255;
+		return v;
+	}
+
+	// writes the results of a render that read the pixels with getPixel back to ip
+	private static void putPixelValues(ImageProcessor ip, Rectangle r, double[] results) {
+		int width = ip.getWidth();
+		for (int y = r.y; y < (r.y + r.height); y++) {
+			for (int x = r.x; x < (r.x + r.width); x++) ip.putPixelValue(x, y, results[y * width + x]);
+		}
 	}
 
 	/*--- PREVIEW ---*/
 
-	public Image getPreview(ImagePlus imagePlus, double[] min, double[] max, int frame, String function, boolean drawAxes, boolean normalize, int interpolate) {
+	/** @return true if function compiles, so previewing it shows no error messages */
+	public boolean isCompilable(String function) {
+		return Evaluator.isCompilable(Evaluator.FUNCTION_VARIABLES, "code=v=" + function);
+	}
 
-		ImageProcessor resized = downsize(imagePlus, frame, PREVIEW_SIZE, interpolate);
-		ImagePlus preview = new ImagePlus("preview", resized);
-		if(normalize) functionToNormalizedFrame(preview, min, max, frame-1, imagePlus.getNSlices(), function);
-		else functionToFrame(preview, min, max, frame-1, imagePlus.getNSlices(), function);
-		resized.resetMinAndMax();
+	/** same as {@link #isCompilable(String)} for RGB */
+	public boolean isCompilable(String[] functions) {
+		return Evaluator.isCompilable(Evaluator.RGB_VARIABLES, rgbMacro(functions));
+	}
 
-		// interpolate if to small
-		enlarge(preview, PREVIEW_SIZE, interpolate);
+	private static String rgbMacro(String[] functions) {
+		return "code=r_new=" + functions[0] + ";\ncode=g_new=" + functions[1] + ";\ncode=b_new=" + functions[2];
+	}
 
-		ImageProcessor colorProcessor = preview.getProcessor().convertToColorProcessor();
-		if(drawAxes) {
-			drawAxes(colorProcessor, min, max);
-			preview.setProcessor(colorProcessor);
-		}
-		return preview.getImage();
+	/**
+	 * @param passes if not null, gets the coarse passes of a preview rendered coarse to
+	 * fine (see {@link Refinement}) before it is returned
+	 * @return the preview as shown, with axes if drawAxes is set
+	 */
+	public ColorProcessor getPreview(ImageProcessor source, int slices, double[] min, double[] max, int frame, String function, boolean drawAxes, boolean normalize, int interpolate, Consumer<ColorProcessor> passes) {
+
+		ImageProcessor resized = downsize(source, PREVIEW_SIZE, interpolate);
+		ImagePlus preview = new ImagePlus("preview", resized);
+		Lattice lattice = new Lattice(min, max, resized.getWidth(), resized.getHeight());
+		if(normalize) functionToNormalizedFrame(preview, min, max, frame-1, slices, function);
+		else if(passes!=null && Refinement.isRefinable(Evaluator.FUNCTION_VARIABLES, "code=v=" + function, Evaluator.V))
+			Refinement.render(resized, lattice, (image, sample) -> functionToFrame(image, sample, min, max, frame-1, slices, function),
+					pass -> passes.accept(toPreviewProcessor(new ImagePlus("preview", pass), pass, min, max, drawAxes, interpolate)));
+		else functionToFrame(preview, lattice, min, max, frame-1, slices, function);
+		return toPreviewProcessor(preview, resized, min, max, drawAxes, interpolate);
 	}
 
-	public Image getPreview(ImagePlus imagePlus, double[] min, double[] max, int frame, String[] functions, boolean drawAxes, boolean normalize, boolean global, int interpolate) {
+	/** same as {@link #getPreview(ImageProcessor, int, double[], double[], int, String, boolean, boolean, int, Consumer)} for RGB */
+	public ColorProcessor getPreview(ImageProcessor source, int slices, double[] min, double[] max, int frame, String[] functions, boolean drawAxes, boolean normalize, boolean global, int interpolate, Consumer<ColorProcessor> passes) {
 
-		ImageProcessor resized = downsize(imagePlus, frame, PREVIEW_SIZE, interpolate);
+		ImageProcessor resized = downsize(source, PREVIEW_SIZE, interpolate);
 		ImagePlus preview = new ImagePlus("preview", resized);
-		if(normalize)functionToNormalizedFrame(preview, min, max, frame-1, imagePlus.getNSlices(), functions, global);
-		else functionToFrame(preview, min, max, frame-1, imagePlus.getNSlices(), functions);
+		Lattice lattice = new Lattice(min, max, resized.getWidth(), resized.getHeight());
+		if(normalize)functionToNormalizedFrame(preview, min, max, frame-1, slices, functions, global);
+		else if(passes!=null && Refinement.isRefinable(Evaluator.RGB_VARIABLES, rgbMacro(functions), Evaluator.R, Evaluator.G, Evaluator.B))
+			Refinement.render(resized, lattice, (image, sample) -> functionToFrame(image, sample, min, max, frame-1, slices, functions),
+					pass -> passes.accept(toPreviewProcessor(new ImagePlus("preview", pass), pass, min, max, drawAxes, interpolate)));
+		else functionToFrame(preview, lattice, min, max, frame-1, slices, functions);
+		return toPreviewProcessor(preview, resized, min, max, drawAxes, interpolate);
+	}
+
+	// resized is the rendered frame, unless a normalized frame replaced the processor of preview
+	private ColorProcessor toPreviewProcessor(ImagePlus preview, ImageProcessor resized, double[] min, double[] max, boolean drawAxes, int interpolate) {
 		resized.resetMinAndMax();
 
 		// interpolate if to small
 		enlarge(preview, PREVIEW_SIZE, interpolate);
 
-		ImageProcessor colorProcessor = preview.getProcessor().convertToColorProcessor();
-		if(drawAxes) {
-			drawAxes(colorProcessor, min, max);
-			preview.setProcessor(colorProcessor);
-		}
-		return preview.getImage();
+		ColorProcessor colorProcessor = preview.getProcessor().convertToColorProcessor();
+		if(drawAxes) drawAxes(colorProcessor, min, max);
+		return colorProcessor;
 	}
 
-	private ImageProcessor downsize(ImagePlus imagePlus, int frame, int maxSize, int interpolate) {
-		int width = imagePlus.getWidth();
-		int height = imagePlus.getHeight();
-
+	/** @return width and height of a width x height image scaled down to fit into maxSize x maxSize, if larger */
+	static int[] fit(int width, int height, int maxSize) {
 		// reduce size if to big
 		if(width> maxSize) {
 			height = height * maxSize / width;
@@ -1329,9 +1139,13 @@ public class FunctionImageSynthesizer extends ImageMath {
 			width = width<1 ? 1 : width;
 			height = maxSize;
 		}
-		ImageProcessor ip = imagePlus.getStack().getProcessor(frame);
+		return new int[]{width, height};
+	}
+
+	private ImageProcessor downsize(ImageProcessor ip, int maxSize, int interpolate) {
+		int[] size = fit(ip.getWidth(), ip.getHeight(), maxSize);
 		ip.setInterpolationMethod(interpolate);
-		return ip.resize(width, height);
+		return ip.resize(size[0], size[1]);
 	}
 
 	private void enlarge(ImagePlus imagePlus, int minSize, int interpolate) {
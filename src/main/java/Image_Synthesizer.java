@@ -1,27 +1,48 @@
+import Engine.Bands;
+import Engine.Evaluator;
+import Engine.FrameRing;
+import Engine.PackedMask;
+import Engine.Settings;
 import Presets.*;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.reflect.TypeToken;
 import ij.*;
 import ij.gui.GenericDialog;
+import ij.gui.Toolbar;
 import ij.io.OpenDialog;
 import ij.io.Opener;
+import ij.io.SaveDialog;
+import ij.macro.Tokenizer;
 import ij.plugin.PlugIn;
+import ij.process.ColorProcessor;
 import ij.process.ImageProcessor;
 
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.*;
 import java.lang.reflect.Type;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 /**
  * Created on october 2016
@@ -58,6 +79,13 @@ public class Image_Synthesizer implements PlugIn, ImageListener {
     private JCheckBox normalizeCheckBox;
 	private JRadioButton localRadioButton;
 	private JRadioButton globalRadioButton;
+	private JCheckBox fastMathCheckBox;
+	private JTextField profileErrorTextField;
+	private JCheckBox tilePruningCheckBox;
+	private JCheckBox livePreviewCheckBox;
+	private JToggleButton playButton;
+	private JTextField playbackFpsTextField;
+	private JButton accuracyReportButton;
 	private JTabbedPane synthieSelector;
 	private JButton addSizePresetButton;
 	private JButton removeSizePresetButton;
@@ -92,16 +120,31 @@ public class Image_Synthesizer implements PlugIn, ImageListener {
 	private JButton addConditionalPresetButton;
 	private JButton removeConditionalPresetButton;
 	private JButton generateConditional;
+	private JCheckBox maskCheckBox;
 	private JButton openHelpButton2;
 
 	// constants
     private static final String TITLE = "Image Synthesizer";
     private static final String VERSION = " v1.1";
+    private static final String LIVE_PREVIEW_KEY = "fis.LivePreview";
+    private static final int LIVE_PREVIEW_MIN_DELAY = 150, LIVE_PREVIEW_MAX_DELAY = 1000; // ms
+    private static final int PREFETCH_SLICES = 8; // on either side of the previewed slice
+    private static final String PLAYBACK_FPS_KEY = "fis.PlaybackFps";
+    private static final int PLAYBACK_FPS = 12, PLAYBACK_MAX_FPS = 60; // default and largest frame rate
+    private static final int PLAYBACK_BUFFER = 8; // frames rendered ahead of the one shown
+    private static final int PLAYBACK_WORKERS = 2;
+    private static final int PLAYBACK_MIN_SIZE = 32; // smallest render size, enlarged to the preview size
+    private static final int REPORT_PIXELS = 1 << 22; // accuracy report lattice, per rendering
 
     // Synthesizer Objects
     private static FunctionImageSynthesizer FIS = new FunctionImageSynthesizer();
     private static MacroImageSynthesizer MIS = new MacroImageSynthesizer();
 
+    // render previews off the event thread, the threads end when idle
+    private static final ThreadPoolExecutor PREVIEW_EXECUTOR = daemonExecutor(1, "Image Synthesizer preview");
+    private static final ThreadPoolExecutor PLAYBACK_EXECUTOR = daemonExecutor(PLAYBACK_WORKERS, "Image Synthesizer playback");
+    private static final ThreadPoolExecutor REPORT_EXECUTOR = daemonExecutor(1, "Image Synthesizer accuracy report");
+
     // globals
     private boolean doNewImage = true;
     private boolean isRGB;
@@ -115,6 +158,14 @@ public class Image_Synthesizer implements PlugIn, ImageListener {
     private Map<String, ConditionalPreset> conditionalPresetMap;
     private Map<String, ConditionalPreset> userConditionalPresetMap;
 	private boolean previewIsActive = true;
+	private Future<?> previewTask;
+	private Timer livePreviewTimer;
+	private final PreviewCache previewCache = new PreviewCache();
+	private BufferedImage previewImage; // the icon of preview, every preview is copied into its pixels
+	private int[] previewPixels;
+	private Playback playback; // null unless the preview is playing
+	private long previewMillis; // render time of the last preview shown
+	private int previewGeneration; // counts preview renders, only read and written on the event thread
 	private boolean customSize;
 	private boolean customRange;
 	private boolean customFunction;
@@ -162,8 +213,25 @@ public class Image_Synthesizer implements PlugIn, ImageListener {
         setLookAndFeel(frame);
         frame.setVisible(true);
         WindowManager.addWindow(frame);
+        frame.addWindowListener(new WindowAdapter() {
+			@Override
+			public void windowClosed(WindowEvent e) {
+				cancelPreview(); // stops playback
+			}
+		});
     }
 
+    private static ThreadPoolExecutor daemonExecutor(int threads, String name) {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 10, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(), runnable -> {
+					Thread thread = new Thread(runnable, name);
+					thread.setDaemon(true);
+					return thread;
+				});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
     private void setLocationRelativeToImageJFrame() {
         Frame imageJFrame = ImageJ.getFrames()[0];
         Point p = imageJFrame.getLocation();
@@ -175,6 +243,8 @@ public class Image_Synthesizer implements PlugIn, ImageListener {
     private void initComponents() {
 
         ImagePlus.addImageListener(this);
+        livePreviewTimer = new Timer(LIVE_PREVIEW_MIN_DELAY, e -> livePreview());
+        livePreviewTimer.setRepeats(false);
 
 		// fill choice boxes
         initImageList();
@@ -250,6 +320,7 @@ public class Image_Synthesizer implements PlugIn, ImageListener {
 
 			@Override
 			public void mousePressed(MouseEvent e) {
+				cancelPreview(); // pauses playback, the release starts it again from the chosen slice
 				currentSliceLabel.setVisible(true);
 			}
 
@@ -291,6 +362,42 @@ public class Image_Synthesizer implements PlugIn, ImageListener {
         localRadioButton.addActionListener(e -> updatePreview());
         globalRadioButton.addActionListener(e -> updatePreview());
 
+        fastMathCheckBox.setSelected(Evaluator.isFastMath());
+        fastMathCheckBox.addActionListener(e -> {
+        	Evaluator.setFastMath(fastMathCheckBox.isSelected());
+        	updatePreview();
+		});
+        accuracyReportButton.addActionListener(e -> showAccuracyReport());
+        profileErrorTextField.setText(String.valueOf(Evaluator.getProfileError()));
+        profileErrorTextField.addActionListener(e -> updateProfileError());
+        profileErrorTextField.addFocusListener(new FocusAdapter() {
+			@Override
+			public void focusLost(FocusEvent e) {
+				updateProfileError();
+			}
+		});
+        tilePruningCheckBox.setSelected(Evaluator.isTilePruning());
+        tilePruningCheckBox.addActionListener(e -> {
+        	Evaluator.setTilePruning(tilePruningCheckBox.isSelected());
+        	updatePreview();
+		});
+
+        playButton.addActionListener(e -> updatePreview());
+        playbackFpsTextField.setText(String.valueOf(getPlaybackFps()));
+        playbackFpsTextField.addActionListener(e -> updatePlaybackFps());
+        playbackFpsTextField.addFocusListener(new FocusAdapter() {
+			@Override
+			public void focusLost(FocusEvent e) {
+				updatePlaybackFps();
+			}
+		});
+
+        livePreviewCheckBox.setSelected(Prefs.get(LIVE_PREVIEW_KEY, false));
+        livePreviewCheckBox.addActionListener(e -> {
+        	Prefs.set(LIVE_PREVIEW_KEY, livePreviewCheckBox.isSelected());
+        	if(livePreviewCheckBox.isSelected()) updatePreview();
+		});
+
         synthieSelector.addChangeListener(e -> updatePreview());
         addSizePresetButton.addActionListener(e -> addSizePreset());
         removeSizePresetButton.addActionListener(e -> removeSizePreset());
@@ -458,6 +565,7 @@ public class Image_Synthesizer implements PlugIn, ImageListener {
 				previewZSlider.setMaximum((int)newValue);
 				maxZ.setEnabled(newValue != 1);
 				previewZSlider.setEnabled(newValue > 1);
+				playButton.setEnabled(newValue > 1);
 				if (e.getKeyCode() == KeyEvent.VK_ENTER) {
 					updatePreview();
 				}
@@ -548,6 +656,38 @@ public class Image_Synthesizer implements PlugIn, ImageListener {
 		return value;
 	}
 
+	private void updateProfileError() {
+		double error = Evaluator.getProfileError();
+		try {
+			error = Double.parseDouble(profileErrorTextField.getText().trim());
+		} catch (NumberFormatException e) {
+			IJ.showMessage("Invalid Value Error", "Please provide a table error of 0 or more (e.g. 0.001)");
+		}
+		if (!(error>=0)) error = 0; // also NaN
+		profileErrorTextField.setText(String.valueOf(error));
+		if (error==Evaluator.getProfileError()) return;
+		Evaluator.setProfileError(error);
+		updatePreview();
+	}
+
+	private static int getPlaybackFps() {
+		return Math.max(1, Math.min(PLAYBACK_MAX_FPS, (int) Prefs.get(PLAYBACK_FPS_KEY, PLAYBACK_FPS)));
+	}
+
+	private void updatePlaybackFps() {
+		int fps = getPlaybackFps();
+		try {
+			fps = Integer.parseInt(playbackFpsTextField.getText().trim());
+		} catch (NumberFormatException e) {
+			IJ.showMessage("Invalid Value Error", "Please provide frames per second from 1 to " + PLAYBACK_MAX_FPS + " (e.g. 12)");
+		}
+		fps = Math.max(1, Math.min(PLAYBACK_MAX_FPS, fps));
+		playbackFpsTextField.setText(String.valueOf(fps));
+		if (fps==getPlaybackFps()) return;
+		Prefs.set(PLAYBACK_FPS_KEY, fps);
+		if (playback!=null) playback.setFps(fps);
+	}
+
 	private void updateSliceLabelText() {
     	double min_z = getRealNumValue(minZ);
     	double max_z = getRealNumValue(maxZ);
@@ -558,21 +698,73 @@ public class Image_Synthesizer implements PlugIn, ImageListener {
     	currentSliceLabel.setText("slice = " + currentSlice + " | z = " + decimalFormat.format(dz));
 	}
 
+	/**
+	 * Called when a parameter changed. Greys out the preview until it is updated, in
+	 * live mode schedules the update instead.
+	 */
 	private void showInactivePreviewOverlay() {
-		if(previewIsActive) {
-			Image currPreview = ((ImageIcon)preview.getIcon()).getImage();
-			ImagePlus previewPlus = new ImagePlus("", currPreview);
-			previewPlus.getProcessor().add(-128);
-			int x = previewPlus.getWidth()/2;
-			int y = previewPlus.getHeight()/2;
-			previewPlus.getProcessor().setColor(Color.WHITE);
-			previewPlus.getProcessor().setJustification(ImageProcessor.CENTER_JUSTIFY);
-			previewPlus.getProcessor().drawString("click here or press enter to update", x, y);
-			preview.setIcon(new ImageIcon(previewPlus.getImage()));
+		cancelPreview();
+		if(livePreviewCheckBox.isSelected()) {
+			schedulePreview();
+			return;
+		}
+		drawInactivePreviewOverlay();
+	}
+
+	// restarts the live preview timer, keystrokes closer together than the delay are rendered once
+	private void schedulePreview() {
+		int delay = (int) Math.max(LIVE_PREVIEW_MIN_DELAY, Math.min(LIVE_PREVIEW_MAX_DELAY, 2*previewMillis));
+		livePreviewTimer.setInitialDelay(delay);
+		livePreviewTimer.restart();
+	}
+
+	// macros with errors wait for enter or a click, so the interpreter shows no error messages while typing
+	private void livePreview() {
+		boolean compilable;
+		if(synthieSelector.getSelectedIndex()==0) {
+			String function = getFunctionText(f1TextField);
+			if (isRGB) compilable = FIS.isCompilable(new String[]{function, getFunctionText(f2TextField), getFunctionText(f3TextField)});
+			else compilable = FIS.isCompilable(function);
+		} else {
+			compilable = MIS.isCompilable(conditionalToMacro());
+		}
+		if(compilable) updatePreview();
+		else drawInactivePreviewOverlay();
+	}
+
+	private void drawInactivePreviewOverlay() {
+		if(previewIsActive && previewPixels!=null) {
+			for (int i = 0; i < previewPixels.length; i++) {
+				int c = previewPixels[i];
+				int r = Math.max(0, (c>>16&0xff) - 128), g = Math.max(0, (c>>8&0xff) - 128), b = Math.max(0, (c&0xff) - 128);
+				previewPixels[i] = r<<16 | g<<8 | b;
+			}
+			String text = "click here or press enter to update";
+			Graphics2D graphics = previewImage.createGraphics();
+			graphics.setFont(new Font("SansSerif", Font.PLAIN, 12));
+			graphics.setColor(Color.WHITE);
+			graphics.drawString(text, (previewImage.getWidth() - graphics.getFontMetrics().stringWidth(text))/2, previewImage.getHeight()/2);
+			graphics.dispose();
+			preview.repaint();
 			previewIsActive = false;
 		}
 	}
 
+	/**
+	 * Shows a rendered preview by copying its pixels into the image preview displays,
+	 * which is only allocated again when the size of the preview changes.
+	 */
+	private void showPreview(ColorProcessor rendered) {
+		int width = rendered.getWidth(), height = rendered.getHeight();
+		if(previewImage==null || previewImage.getWidth()!=width || previewImage.getHeight()!=height) {
+			previewImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+			previewPixels = ((DataBufferInt)previewImage.getRaster().getDataBuffer()).getData();
+			preview.setIcon(new ImageIcon(previewImage));
+		}
+		System.arraycopy((int[])rendered.getPixels(), 0, previewPixels, 0, previewPixels.length);
+		preview.repaint();
+	}
+
 	/********************************************************
 	 * 														*
 	 *					Preset-METHODS						*
@@ -1010,38 +1202,262 @@ public class Image_Synthesizer implements PlugIn, ImageListener {
 			return;
 		}
 
-		// apply
-		ImagePlus imagePlus;
-		if(doNewImage) {
-			imagePlus = IJ.createImage(function, type, width, height, slices);
-		} else {
-			imagePlus = WindowManager.getImage((String)imageComboBox.getSelectedItem()).duplicate();
-		}
-		if(invertingLUTCheckBox.isSelected()) imagePlus.getProcessor().invertLut();
-
-		Image previewImage;
+		// apply, new images are created at preview size and only one slice of an open image is read
+		boolean invert = invertingLUTCheckBox.isSelected();
+		ImageProcessor blank = null;
+		ImagePlus imagePlus = null;
+		String sourceKey;
 		int frame = slices>1?previewZSlider.getValue():1;
+		try {
+			if(doNewImage) {
+				int[] size = FunctionImageSynthesizer.fit(width, height, FunctionImageSynthesizer.PREVIEW_SIZE);
+				blank = IJ.createImage(function, type, size[0], size[1], 1).getProcessor();
+				if(invert) blank.invertLut();
+				sourceKey = PreviewCache.NEW_IMAGE;
+			} else {
+				imagePlus = WindowManager.getImage((String)imageComboBox.getSelectedItem());
+				slices = imagePlus.getNSlices();
+				imagePlus.getStack().getProcessor(frame); // throws if there is no such slice
+				sourceKey = PreviewCache.image(imagePlus);
+			}
+		} catch (RuntimeException e) {
+			previewIsActive = true;
+			return;
+		}
 
 		boolean drawAxes = drawAxesCheckBox.isSelected();
 		boolean normalize = !is32Bit && normalizeCheckBox.isSelected();
 		boolean globalNorm = globalRadioButton.isSelected();
 		int interpolate = interpolateComboBox.getSelectedIndex();
+		boolean conditional = synthieSelector.getSelectedIndex()!=0;
+		boolean rgb = isRGB;
+		int sliceCount = slices;
+		ImageProcessor newImage = blank;
+		ImageStack stack = imagePlus!=null ? imagePlus.getStack() : null;
+		// taken once, so the cache key and every render of this preview use the same settings
+		Settings settings = Settings.current();
+		FunctionImageSynthesizer fis = new FunctionImageSynthesizer(settings);
+		MacroImageSynthesizer mis = new MacroImageSynthesizer(settings);
+
+		// everything the preview depends on, but the frame
+		String key = sourceKey + "|" + type + " " + width + "x" + height + "x" + slices
+				+ " min " + Arrays.toString(min) + " max " + Arrays.toString(max)
+				+ (conditional ? " conditional " + macro : rgb ? " rgb " + Arrays.toString(functions) : " function " + function)
+				+ " axes " + (drawAxes ? Toolbar.getForegroundColor().getRGB() : "none") + " normalize " + normalize + " global " + globalNorm + " interpolate " + interpolate
+				+ " invert " + invert + " " + settings;
+
+		PreviewRenderer render = (f, size, passes) -> {
+			ImageProcessor source = newImage;
+			if(source==null) {
+				source = stack.getProcessor(f);
+				if(invert) source.invertLut();
+			}
+			if(size<FunctionImageSynthesizer.PREVIEW_SIZE) { // getPreview enlarges it to the preview size again
+				int[] fitted = FunctionImageSynthesizer.fit(source.getWidth(), source.getHeight(), size);
+				source.setInterpolationMethod(interpolate);
+				source = source.resize(fitted[0], fitted[1]);
+			}
+			try {
+				if(!conditional) { // preview function
+					if (rgb) {
+						return fis.getPreview(source, sliceCount, min, max, f, functions, drawAxes, normalize, globalNorm, interpolate, passes);
+					} else {
+						return fis.getPreview(source, sliceCount, min, max, f, function, drawAxes, normalize, interpolate, passes);
+					}
+				} else { // preview conditional
+					return mis.getPreview(source, sliceCount, min, max, f, macro, drawAxes, normalize, globalNorm, interpolate, passes);
+				}
+			} catch (RuntimeException e) {
+				return null;
+			}
+		};
+		// slices worth rendering ahead, the preview changes from one to the next
+		boolean prefetch = slices>1 && (!doNewImage || new Tokenizer().tokenize(conditional ? macro : String.join(";", functions)).hasWord("z"));
+
+		// render on the preview thread, only the newest render is shown
+		cancelPreview();
+		livePreviewTimer.stop();
+		if(playButton.isSelected() && prefetch) {
+			playback = new Playback(key, render, sliceCount, frame);
+			previewIsActive = true;
+			return;
+		}
+		ColorProcessor cached = previewCache.get(key + " frame " + frame);
+		if(cached!=null) {
+			showPreview(cached);
+			previewIsActive = true;
+			if(prefetch) prefetchSlices(key, frame, sliceCount, render);
+			return;
+		}
+		int generation = previewGeneration;
+		preview.setText("rendering...");
+		Consumer<ColorProcessor> passes = pass -> SwingUtilities.invokeLater(() -> { // coarse passes, shown while the preview refines
+			if(generation==previewGeneration) showPreview(pass);
+		});
+		previewTask = PREVIEW_EXECUTOR.submit(() -> {
+			long start = System.nanoTime();
+			ColorProcessor rendered = render.render(frame, FunctionImageSynthesizer.PREVIEW_SIZE, passes);
+			long millis = (System.nanoTime() - start)/1000000;
+			SwingUtilities.invokeLater(() -> {
+				if(generation!=previewGeneration) return; // a newer render was started or canceled
+				preview.setText("");
+				if(rendered!=null) {
+					showPreview(rendered);
+					previewMillis = millis;
+					previewCache.put(key + " frame " + frame, rendered);
+					if(prefetch) prefetchSlices(key, frame, sliceCount, render);
+				}
+				previewIsActive = true;
+			});
+		});
+	}
 
-		try {
-			if(synthieSelector.getSelectedIndex()==0) { // preview function
-				if (isRGB) {
-					previewImage = FIS.getPreview(imagePlus, min, max, frame, functions, drawAxes, normalize, globalNorm, interpolate);
-				} else {
-					previewImage = FIS.getPreview(imagePlus, min, max, frame, function, drawAxes, normalize, interpolate);
+	/**
+	 * Renders the slices next to frame into the preview cache while the dialog is idle,
+	 * nearest first, so moving the z slider shows them at once. Runs at low priority,
+	 * bands included (see {@link Bands#inBackground}), and stops as soon as anything
+	 * changes, like every preview render.
+	 *
+	 * @param key cache key of the preview without the frame
+	 */
+	private void prefetchSlices(String key, int frame, int slices, PreviewRenderer render) {
+		List<Integer> frames = new ArrayList<>();
+		for (int distance = 1; distance <= PREFETCH_SLICES; distance++) {
+			for (int f : new int[]{frame + distance, frame - distance}) {
+				if(f>=1 && f<=slices && previewCache.get(key + " frame " + f)==null) frames.add(f);
+			}
+		}
+		if(frames.isEmpty()) return;
+		int generation = previewGeneration;
+		previewTask = PREVIEW_EXECUTOR.submit(() -> Bands.inBackground(() -> {
+			for (int f : frames) {
+				if(Thread.currentThread().isInterrupted()) return null;
+				ColorProcessor rendered = render.render(f, FunctionImageSynthesizer.PREVIEW_SIZE, null);
+				if(rendered==null) return null;
+				SwingUtilities.invokeLater(() -> {
+					if(generation==previewGeneration) previewCache.put(key + " frame " + f, rendered);
+				});
+			}
+			return null;
+		}));
+	}
+
+	/** cancels the preview render in progress and playback, if any, their results are never shown */
+	private void cancelPreview() {
+		previewGeneration++;
+		if(previewTask!=null) previewTask.cancel(true);
+		previewTask = null;
+		if(playback!=null) playback.stop();
+		playback = null;
+		preview.setText("");
+	}
+
+	/** renders slice frame of the preview, null if the render failed or was canceled */
+	private interface PreviewRenderer {
+		/** @param size largest width and height to render at, smaller sizes are enlarged to the preview size */
+		ColorProcessor render(int frame, int size, Consumer<ColorProcessor> passes);
+	}
+
+	/**
+	 * Plays the preview through z at the fps set in the dialog, starting at the previewed
+	 * slice and wrapping around at the last. Worker threads render the frames ahead into
+	 * a {@link FrameRing} of PLAYBACK_BUFFER frames and the timer shows them in order,
+	 * so a slow frame is made up for by the frames rendered during the fast ones. When a
+	 * frame takes longer to render than it is shown, the following frames are rendered at
+	 * half the size, and at twice the size again once that fits into the frame time twice over.
+	 * Frames of full size go into the preview cache, later loops show them at once.
+	 */
+	private final class Playback {
+		private final String key;
+		private final PreviewRenderer render;
+		private final int slices, first;
+		private final FrameRing<ColorProcessor> buffer = new FrameRing<>(PLAYBACK_BUFFER);
+		private final List<Future<?>> workers = new ArrayList<>();
+		private final Timer timer;
+		private double nanosPerPixel; // moving average of the render time, guarded by this
+		private volatile int size = FunctionImageSynthesizer.PREVIEW_SIZE;
+		private volatile int fps = getPlaybackFps();
+
+		Playback(String key, PreviewRenderer render, int slices, int first) {
+			this.key = key;
+			this.render = render;
+			this.slices = slices;
+			this.first = first;
+			for (int i = 0; i < PLAYBACK_WORKERS; i++) workers.add(PLAYBACK_EXECUTOR.submit(this::renderAhead));
+			timer = new Timer(1000/fps, e -> showNext());
+			timer.start();
+			currentSliceLabel.setVisible(true);
+		}
+
+		void stop() {
+			timer.stop();
+			for (Future<?> worker : workers) worker.cancel(true);
+			currentSliceLabel.setVisible(false);
+		}
+
+		// the render size adapts to the new frame time with the next frames
+		void setFps(int fps) {
+			this.fps = fps;
+			timer.setDelay(1000/fps);
+		}
+
+		// slice shown as frame sequence of the playback
+		private int frame(long sequence) {
+			return (int) ((first - 1 + sequence)%slices) + 1;
+		}
+
+		private void renderAhead() {
+			try {
+				while (true) {
+					long sequence = buffer.claim();
+					int f = frame(sequence), size = this.size;
+					ColorProcessor frame = previewCache.get(key + " frame " + f);
+					if(frame==null) {
+						long start = System.nanoTime();
+						frame = render.render(f, size, null);
+						if(frame==null) { // canceled, or an error every frame will have
+							// its slot would stay empty and hold the playback forever, so it stops
+							SwingUtilities.invokeLater(() -> {
+								if(playback!=this) return; // already stopped
+								cancelPreview();
+								playButton.setSelected(false);
+							});
+							return;
+						}
+						measure(System.nanoTime() - start, size);
+						if(size==FunctionImageSynthesizer.PREVIEW_SIZE) {
+							ColorProcessor full = frame;
+							SwingUtilities.invokeLater(() -> {
+								if(playback==this) previewCache.put(key + " frame " + f, full);
+							});
+						}
+					}
+					buffer.put(sequence, frame);
 				}
-			} else { // preview conditional
-				previewImage = MIS.getPreview(imagePlus, min, max, frame, macro, drawAxes, normalize, globalNorm, interpolate);
+			} catch (InterruptedException e) {
+				// stopped
 			}
-			preview.setIcon(new ImageIcon(previewImage));
-		} catch (RuntimeException e) {
-			// do nothing
 		}
-		previewIsActive = true;
+
+		// adapts the render size to the render time of a frame rendered at size
+		private synchronized void measure(long nanos, int size) {
+			double perPixel = (double) nanos/size/size;
+			nanosPerPixel = nanosPerPixel==0 ? perPixel : 0.7*nanosPerPixel + 0.3*perPixel;
+			double budget = 1e9/fps;
+			int next = this.size;
+			while (next>PLAYBACK_MIN_SIZE && nanosPerPixel*next*next>budget) next /= 2;
+			while (next<FunctionImageSynthesizer.PREVIEW_SIZE && nanosPerPixel*4*next*next<budget/2) next *= 2;
+			this.size = next;
+		}
+
+		// shows the next frame if it is rendered, otherwise waits for the next tick
+		private void showNext() {
+			long sequence = buffer.next();
+			ColorProcessor frame = buffer.take();
+			if(frame==null) return;
+			showPreview(frame);
+			previewZSlider.setValue(frame(sequence));
+		}
 	}
 
 	private String conditionalToMacro() {
@@ -1053,6 +1469,14 @@ public class Image_Synthesizer implements PlugIn, ImageListener {
 		return variables + "\n" + "if(" + condition + ")\n{" + then_statement + "} \nelse {" + else_statement + "}";
 	}
 
+	// v is 1 where the condition holds and 0 elsewhere, then and else are left out
+	private String conditionalToMask() {
+		String variables = conditionalVariableField.getText();
+		String condition = conditionalIfField.getText();
+
+		return variables + "\n" + "if(" + condition + ") v=1; else v=0;";
+	}
+
 	private boolean containsSubstringGetPixel(String[] strings) {
 		for (String s : strings) {
 			if(s.contains("getPixel")) return true;
@@ -1103,23 +1527,7 @@ public class Image_Synthesizer implements PlugIn, ImageListener {
         if(invertingLUTCheckBox.isSelected()) imagePlus.getProcessor().invertLut();
 
         try {
-            if (isRGB) {
-                if (normalizeCheckBox.isSelected()) {
-                	if(globalRadioButton.isSelected()) {
-                		FIS.functionToGlobalNormalizedImage(imagePlus, min, max, functions);
-					} else {
-                    	FIS.functionToNormalizedImage(imagePlus, min, max, functions);
-					}
-                } else {
-                    FIS.functionToImage(imagePlus, min, max, functions);
-                }
-            } else {
-				if (normalizeCheckBox.isSelected() && !is32Bit) {
-					FIS.functionToNormalizedImage(imagePlus, min, max, function);
-				} else {
-					FIS.functionToImage(imagePlus, min, max, function);
-				}
-            }
+            applyFunction(imagePlus, min, max, function, functions);
             IJ.resetMinAndMax(imagePlus);
             imagePlus.getCalibration().setUnit("units");
             imagePlus.show();
@@ -1129,6 +1537,33 @@ public class Image_Synthesizer implements PlugIn, ImageListener {
         }
     }
 
+    private void applyFunction(ImagePlus imagePlus, double[] min, double[] max, String function, String[] functions) {
+		applyFunction(FIS, imagePlus, min, max, function, functions, isRGB,
+				normalizeCheckBox.isSelected() && (isRGB || !is32Bit), globalRadioButton.isSelected());
+	}
+
+	// normalize and global as selected when the render was started, for renders off the event thread
+	private static void applyFunction(FunctionImageSynthesizer fis, ImagePlus imagePlus, double[] min, double[] max, String function, String[] functions,
+									  boolean rgb, boolean normalize, boolean global) {
+		if (rgb) {
+			if (normalize) {
+				if(global) {
+					fis.functionToGlobalNormalizedImage(imagePlus, min, max, functions);
+				} else {
+					fis.functionToNormalizedImage(imagePlus, min, max, functions);
+				}
+			} else {
+				fis.functionToImage(imagePlus, min, max, functions);
+			}
+		} else {
+			if (normalize) {
+				fis.functionToNormalizedImage(imagePlus, min, max, function);
+			} else {
+				fis.functionToImage(imagePlus, min, max, function);
+			}
+		}
+	}
+
     private void openMacroHelp() {
         String pathToFile = Prefs.getPrefsDir() + "/image-synthesizer-help.html";
         try {
@@ -1198,6 +1633,11 @@ public class Image_Synthesizer implements PlugIn, ImageListener {
 			return;
 		}
 
+		if(maskCheckBox.isSelected()) {
+			generateMask(title, width, height, slices, min, max);
+			return;
+		}
+
 		// apply
 		ImagePlus imagePlus;
 		if(doNewImage) {
@@ -1209,11 +1649,7 @@ public class Image_Synthesizer implements PlugIn, ImageListener {
 		if(invertingLUTCheckBox.isSelected()) imagePlus.getProcessor().invertLut();
 
 		try {
-			if(normalizeCheckBox.isSelected() && !is32Bit){
-				MIS.macroToNormalizedImage(imagePlus, min, max, macro, globalRadioButton.isSelected());
-			} else {
-				MIS.macroToImage(imagePlus, min, max, macro);
-			}
+			applyConditional(imagePlus, min, max, macro);
 			IJ.resetMinAndMax(imagePlus);
 			imagePlus.getCalibration().setUnit("units");
 			imagePlus.show();
@@ -1223,6 +1659,201 @@ public class Image_Synthesizer implements PlugIn, ImageListener {
 		}
 	}
 
+	/**
+	 * Renders the condition into a {@link PackedMask} and shows it as a binary image. A mask
+	 * whose binary image would not fit into memory is written to a raw file slice by slice.
+	 */
+	private void generateMask(String title, int width, int height, int slices, double[] min, double[] max) {
+		String macro = conditionalToMask();
+		if(macro.contains("getPixel")) {
+			IJ.showMessage("Error", "getPixel() is not supported for masks");
+			return;
+		}
+
+		long bytes = (long) width*height*slices;
+		if(bytes < IJ.maxMemory() - IJ.currentMemory()) {
+			PackedMask mask = new PackedMask(width, height, slices);
+			MIS.macroToMask(mask, min, max, macro);
+			ImagePlus imagePlus = mask.toImagePlus(title);
+			imagePlus.getCalibration().setUnit("units");
+			imagePlus.show();
+			IJ.run("Coordinates...", "left=" + min[0] + " right=" + max[0] + " top=" + min[1] + " bottom=" + max[1]);
+			return;
+		}
+
+		SaveDialog saveDialog = new SaveDialog("Save 1-bit mask", title, ".raw");
+		if(saveDialog.getFileName()==null) return;
+		String path = saveDialog.getDirectory() + saveDialog.getFileName();
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(path))) {
+			MIS.macroToMask(width, height, slices, min, max, macro, out);
+		} catch (IOException e) {
+			IJ.showMessage("Error", "Could not write " + path + ": " + e.getMessage());
+			return;
+		}
+		IJ.log("Mask too large for memory, saved to " + path);
+		IJ.log("Import it with File > Import > Raw..., type 1-bit Bitmap, width " + width
+				+ ", height " + height + ", number of images " + slices);
+	}
+
+	private void applyConditional(ImagePlus imagePlus, double[] min, double[] max, String macro) {
+		applyConditional(MIS, imagePlus, min, max, macro, normalizeCheckBox.isSelected() && !is32Bit, globalRadioButton.isSelected());
+	}
+
+	private static void applyConditional(MacroImageSynthesizer mis, ImagePlus imagePlus, double[] min, double[] max, String macro, boolean normalize, boolean global) {
+		if(normalize){
+			mis.macroToNormalizedImage(imagePlus, min, max, macro, global);
+		} else {
+			mis.macroToImage(imagePlus, min, max, macro);
+		}
+	}
+
+	/********************************************************
+	 * 														*
+	 *				FAST MATH-METHODS						*
+	 *														*
+	 ********************************************************/
+
+	/**
+	 * Renders the current function or conditional once with exact and once with fast
+	 * math and logs how far the pixels of the two images are apart. Both renders use a
+	 * lattice of at most REPORT_PIXELS pixels over the same coordinate range, so large
+	 * stacks are not rendered twice in full.
+	 */
+	private void showAccuracyReport() {
+		String type = (String) typesComboBox.getSelectedItem();
+		assert type != null;
+		boolean conditional = synthieSelector.getSelectedIndex()!=0;
+
+		// size
+		int width = getNaturalNumValue(widthTextField);
+		int height = getNaturalNumValue(heightTextField);
+		int slices = getNaturalNumValue(slicesTextField);
+
+		// coordinate range
+		double[] min = new double[3];
+		double[] max = new double[3];
+
+		min[0] = getRealNumValue(minX);
+		max[0] = getRealNumValue(maxX);
+
+		min[1] = getRealNumValue(minY);
+		max[1] = getRealNumValue(maxY);
+
+		min[2] = getRealNumValue(minZ);
+		max[2] = getRealNumValue(maxZ);
+
+		String function = getFunctionText(f1TextField);
+		String[] functions = new String[]{function, getFunctionText(f2TextField), getFunctionText(f3TextField)};
+		String macro = conditionalToMacro();
+
+		if(doNewImage && (conditional ? macro.contains("getPixel") : containsSubstringGetPixel(functions))) {
+			IJ.showMessage("Error", "Please select or open an image to use getPixel()");
+			return;
+		}
+
+		ImagePlus source = doNewImage ? null : WindowManager.getImage((String)imageComboBox.getSelectedItem());
+		boolean rgb = isRGB;
+		boolean normalize = normalizeCheckBox.isSelected() && (conditional ? !is32Bit : rgb || !is32Bit);
+		boolean global = globalRadioButton.isSelected();
+		boolean invert = invertingLUTCheckBox.isSelected() && !rgb;
+		int[] lattice = reportLattice(width, height, source==null ? slices : source.getStackSize());
+		String title = type + " " + width + "x" + height + "x" + slices + " on " + lattice[0] + "x" + lattice[1] + "x" + lattice[2]
+				+ (invert ? " inverted: " : ": ") + (conditional ? macro.replace('\n', ' ') : rgb ? String.join(", ", functions) : function);
+		Settings settings = Settings.current();
+
+		// renders off the event thread with both settings, the preference is left alone
+		accuracyReportButton.setEnabled(false);
+		REPORT_EXECUTOR.submit(() -> {
+			try {
+				ImagePlus[] images = new ImagePlus[2];
+				long[] times = new long[2];
+				for (int k = 0; k < 2; k++) {
+					if(source==null) {
+						images[k] = IJ.createImage("accuracy", conditional ? type + " Black" : type, lattice[0], lattice[1], lattice[2]);
+					} else {
+						images[k] = sample(source, lattice[0], lattice[1], lattice[2]);
+					}
+					if(invert) images[k].getProcessor().invertLut();
+					Settings engine = settings.withFastMath(k==1);
+					long start = System.nanoTime();
+					if (conditional) applyConditional(new MacroImageSynthesizer(engine), images[k], min, max, macro, normalize, global);
+					else applyFunction(new FunctionImageSynthesizer(engine), images[k], min, max, function, functions, rgb, normalize, global);
+					times[k] = System.nanoTime() - start;
+				}
+				logAccuracy(title, images, times, invert);
+			} catch (RuntimeException e) {
+				IJ.showMessage("Error", "Accuracy report failed: " + e);
+			} finally {
+				SwingUtilities.invokeLater(() -> accuracyReportButton.setEnabled(true));
+			}
+		});
+	}
+
+	// largest width, height and slices with the aspect of the image and at most REPORT_PIXELS pixels
+	private static int[] reportLattice(int width, int height, int slices) {
+		double scale = Math.min(1, Math.sqrt(REPORT_PIXELS/((double) width*height*slices)));
+		int w = Math.min(width, Math.max(2, (int) Math.round(width*scale)));
+		int h = Math.min(height, Math.max(2, (int) Math.round(height*scale)));
+		int s = (int) Math.min(slices, Math.max(1, REPORT_PIXELS/((long) w*h)));
+		return new int[]{w, h, s};
+	}
+
+	// slices of source spread over the stack, scaled to width x height without interpolation
+	private static ImagePlus sample(ImagePlus source, int width, int height, int slices) {
+		ImageStack stack = source.getStack(), sampled = new ImageStack(width, height);
+		for (int k = 0; k < slices; k++) {
+			ImageProcessor ip = stack.getProcessor(1 + (int) ((long) k*stack.getSize()/slices));
+			ip.setInterpolationMethod(ImageProcessor.NONE);
+			sampled.addSlice(ip.resize(width, height));
+		}
+		ImagePlus imp = new ImagePlus("accuracy", sampled);
+		imp.setCalibration(source.getCalibration());
+		return imp;
+	}
+
+	/**
+	 * Logs how far the pixels of the exact image images[0] and the fast one images[1]
+	 * are apart, in pixel values and in the gray levels shown with the display range of
+	 * the exact slice and the inverting LUT if selected.
+	 */
+	private static void logAccuracy(String title, ImagePlus[] images, long[] times, boolean invert) {
+		double maxError = 0, sumError = 0;
+		int maxShown = 0;
+		long differing = 0, count = 0;
+		ImageStack exact = images[0].getStack(), fast = images[1].getStack();
+		for (int z = 1; z <= exact.getSize(); z++) {
+			ImageProcessor ip1 = exact.getProcessor(z), ip2 = fast.getProcessor(z);
+			int channels = ip1.getNChannels();
+			ip1.resetMinAndMax();
+			double lo = ip1.getMin(), range = ip1.getMax() - lo, scale = range>0 ? 256/range : 0;
+			for (int i = 0; i < ip1.getPixelCount(); i++) {
+				for (int c = 0; c < channels; c++) {
+					double a = channels==1 ? ip1.getf(i) : (ip1.get(i) >> 8*c) & 0xff;
+					double b = channels==1 ? ip2.getf(i) : (ip2.get(i) >> 8*c) & 0xff;
+					double error = Double.compare(a, b)==0 ? 0 : Math.abs(a - b);
+					if (Double.isNaN(error)) error = Double.POSITIVE_INFINITY; // NaN in only one of them
+					if (error>0) differing++;
+					maxError = Math.max(maxError, error);
+					sumError += error;
+					count++;
+					if (channels==1) maxShown = Math.max(maxShown, Math.abs(shown(a, lo, scale, invert) - shown(b, lo, scale, invert)));
+					else maxShown = Math.max(maxShown, (int) Math.min(255, error));
+				}
+			}
+		}
+		IJ.log("Fast math accuracy, " + title);
+		IJ.log("  max error " + maxError + ", mean error " + sumError/Math.max(1, count)
+				+ ", differing values " + differing + " of " + count);
+		IJ.log("  max error shown " + maxShown + " gray levels");
+		IJ.log("  exact " + IJ.d2s(times[0]/1e6, 1) + " ms, fast " + IJ.d2s(times[1]/1e6, 1) + " ms");
+	}
+
+	// gray level of value through the display range starting at lo, like ImageJ shows it
+	private static int shown(double value, double lo, double scale, boolean invert) {
+		int index = Double.isNaN(value) ? 0 : (int) Math.max(0, Math.min(255, (value - lo)*scale));
+		return invert ? 255 - index : index;
+	}
+
 	/********************************************************
 	 * 														*
 	 *				Image Listener-METHODS					*
@@ -1236,11 +1867,13 @@ public class Image_Synthesizer implements PlugIn, ImageListener {
 
     @Override
     public void imageClosed(ImagePlus imp) {
+        previewCache.remove(imp);
         imageComboBox.removeItem(imp.getTitle());
     }
 
     @Override
     public void imageUpdated(ImagePlus imp) {
+        previewCache.remove(imp);
         if(Objects.equals(imageComboBox.getSelectedItem(), imp.getTitle())) {
             typesComboBox.setSelectedItem(getTypeString(imp.getType()));
             widthTextField.setText(""+imp.getWidth());
@@ -1249,4 +1882,56 @@ public class Image_Synthesizer implements PlugIn, ImageListener {
             showInactivePreviewOverlay();
         }
     }
+
+    /**
+     * Rendered previews by everything they depend on, so switching back to a preset or
+     * slice shown a moment ago takes no render. Holds at most MAX_BYTES of previews and
+     * evicts the least recently shown first. Previews of an open image are dropped when
+     * the image is updated or closed.
+     */
+    private static final class PreviewCache {
+		static final String NEW_IMAGE = "new";
+		private static final long MAX_BYTES = Math.min(32L << 20, Runtime.getRuntime().maxMemory()/32);
+
+		private final Map<String, ColorProcessor> previews = new LinkedHashMap<>(16, 0.75f, true);
+		private long bytes;
+
+		/** @return the key prefix of the previews of image */
+		static String image(ImagePlus image) {
+			return "image " + image.getID();
+		}
+
+		synchronized ColorProcessor get(String key) {
+			return previews.get(key);
+		}
+
+		synchronized void put(String key, ColorProcessor preview) {
+			long size = bytes(preview);
+			if (size > MAX_BYTES) return;
+			ColorProcessor old = previews.put(key, preview);
+			if (old!=null) bytes -= bytes(old);
+			bytes += size;
+			Iterator<ColorProcessor> lru = previews.values().iterator();
+			while (bytes > MAX_BYTES) {
+				bytes -= bytes(lru.next());
+				lru.remove();
+			}
+		}
+
+		/** drops the previews of image */
+		synchronized void remove(ImagePlus image) {
+			String prefix = image(image) + "|";
+			Iterator<Map.Entry<String, ColorProcessor>> entries = previews.entrySet().iterator();
+			while (entries.hasNext()) {
+				Map.Entry<String, ColorProcessor> entry = entries.next();
+				if (!entry.getKey().startsWith(prefix)) continue;
+				bytes -= bytes(entry.getValue());
+				entries.remove();
+			}
+		}
+
+		private static long bytes(ColorProcessor preview) {
+			return 4L*preview.getWidth()*preview.getHeight();
+		}
+	}
 }
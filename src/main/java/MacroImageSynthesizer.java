@@ -1,7 +1,13 @@
+import Engine.Bands;
+import Engine.Evaluator;
+import Engine.Lattice;
+import Engine.Refinement;
+import Engine.PackedMask;
+import Engine.RowBuffer;
+import Engine.Settings;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.gui.Toolbar;
-import ij.macro.Interpreter;
 import ij.macro.Program;
 import ij.macro.Tokenizer;
 import ij.process.ColorProcessor;
@@ -9,19 +15,32 @@ import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 
 import java.awt.*;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.function.Consumer;
 
 public class MacroImageSynthesizer {
 
 	// Constants
 	private static final int PREVIEW_SIZE = 256 ;
 
+	private final Settings settings; // null to render with the current preferences
+
+	public MacroImageSynthesizer() {
+		this(null);
+	}
+
+	/** renders with settings instead of the engine preferences */
+	public MacroImageSynthesizer(Settings settings) {
+		this.settings = settings;
+	}
+
 	/*--- macro to Image ---*/
 
 	public void macroToImage(ImagePlus imagePlus, double[] min, double[] max, String macro) throws RuntimeException {
 
 		ImageProcessor ip = imagePlus.getProcessor();
 
-		int PCStart = 25;
 		Program pgm = (new Tokenizer()).tokenize(macro);
 		boolean hasX = pgm.hasWord("x");
 		boolean hasZ = pgm.hasWord("z");
@@ -34,241 +53,252 @@ public class MacroImageSynthesizer {
 		boolean hasGetPixel = pgm.hasWord("getPixel");
 		int width = ip.getWidth();
 		int height = ip.getHeight();
-		String code =
-				"var v,r,g,b,x,y,z,w,h,s,d,a,E;\n"+
-						"function dummy() {}\n"+
-						macro+";\n"; // code starts at program counter location 'PCStart'
-		Interpreter interpreter = new Interpreter();
-		interpreter.run(code, null);
-		if (interpreter.wasError()) return;
-
-		interpreter.setVariable("w", Math.abs(max[0]-min[0]));
-		interpreter.setVariable("h", Math.abs(max[1]-min[1]));
-		interpreter.setVariable("s", Math.abs(max[2]-min[2]));
-		if(hasE) interpreter.setVariable("E", Math.exp(1));
+		Evaluator evaluator = Evaluator.create(Evaluator.RGB_VARIABLES, macro, settings());
+		if (evaluator==null) return;
+
+		evaluator.setVariable(Evaluator.W, Math.abs(max[0]-min[0]));
+		evaluator.setVariable(Evaluator.H, Math.abs(max[1]-min[1]));
+		evaluator.setVariable(Evaluator.S, Math.abs(max[2]-min[2]));
+		if(hasE) evaluator.setVariable(Evaluator.E, Math.exp(1));
 
 		int bitDepth = ip.getBitDepth();
 		Rectangle r = ip.getRoi();
-		int inc = r.height/50;
-		if (inc<1) inc = 1;
 		int slices = imagePlus.getNSlices();
-		double v;
-		int pos, v2;
+		boolean channels = bitDepth==24 && !hasGetPixel; // the macro runs once per color channel
+		int[] slots = channels ? new int[]{Evaluator.R, Evaluator.G, Evaluator.B} : new int[]{Evaluator.V};
+		if (channels) evaluator = evaluator.channels(hasR?Evaluator.R:Evaluator.V, hasG?Evaluator.G:Evaluator.V, hasB?Evaluator.B:Evaluator.V);
+		RowBuffer row = new RowBuffer(evaluator, width, min[0], (max[0]-min[0])/(width-1), hasX, hasD, hasA, slots, slots);
 		if (bitDepth==8) { // 8-Bit
-			for(int z = 0; z < slices; z++) {
-				ip = imagePlus.getImageStack().getProcessor(z + 1);
+			Bands.renderStack(row, imagePlus.getImageStack(), slices, r, (slice, z) -> {
+				ImageProcessor processor = imagePlus.getImageStack().getProcessor(z + 1);
 
 				if (hasZ) {
 					double dz = min[2] + ((max[2] - min[2]) / (slices - 1)) * z; // 0..z to min..max
 					if (Double.isNaN(dz)) dz = min[2];
-					interpreter.setVariable("z", dz);
+					slice.setVariable(Evaluator.Z, dz);
 				}
 
-				byte[] pixels1 = (byte[]) ip.getPixels();
-				byte[] pixels2 = pixels1;
-				if (hasGetPixel) pixels2 = new byte[width * height];
-
-				for (int y = r.y; y < (r.y + r.height); y++) {
-					if (y % inc == 0) IJ.showProgress(y - r.y, r.height);
-
-					double dy = min[1]+((max[1]-min[1])/(height-1))*y; // 0..y to min..max
-					interpreter.setVariable("y", dy);
-
-					for (int x = r.x; x < (r.x + r.width); x++) {
-						pos = y * width + x;
-						v = pixels1[pos] & 255;
-						interpreter.setVariable("v", v);
-
-						double dx = min[0]+((max[0]-min[0])/(width-1))*x; // 0..x to min..max
-						if (hasX) interpreter.setVariable("x", dx);
-
-						if (hasA) interpreter.setVariable("a", getA(dx, dy));
-						if (hasD) interpreter.setVariable("d", Math.hypot(dx,dy));
-						interpreter.run(PCStart);
-						v2 = (int) interpreter.getVariable("v");
-						if (v2 < 0) v2 = 0;
-						if (v2 > 255) v2 = 255;
-						pixels2[pos] = (byte) v2;
-					}
-				}
+				byte[] pixels1 = (byte[]) processor.getPixels();
+				byte[] pixels2 = hasGetPixel ? new byte[width * height] : pixels1;
+
+				Bands.render(slice, r.y, r.y + r.height, (band, from, to) -> {
+					double[] rowValues = band.input(Evaluator.V), rowResults = band.output(Evaluator.V);
+					band.run(from, to, r.x, r.x + r.width, y -> min[1]+((max[1]-min[1])/(height-1))*y, // 0..y to min..max
+							y -> {
+								for (int x = r.x; x < (r.x + r.width); x++) rowValues[x] = pixels1[y * width + x] & 255;
+							}, y -> {
+								for (int x = r.x; x < (r.x + r.width); x++) {
+									int pos = y * width + x;
+									int v2 = (int) rowResults[x];
+									if (v2 < 0) v2 = 0;
+									if (v2 > 255) v2 = 255;
+									pixels2[pos] = (byte) v2;
+								}
+							});
+				});
 				if (hasGetPixel) System.arraycopy(pixels2, 0, pixels1, 0, width * height);
-			}
+			});
 		} else if (bitDepth==24) { // RGB
-			for(int z = 0; z < slices; z++) {
-				ip = imagePlus.getImageStack().getProcessor(z + 1);
+			Bands.renderStack(row, imagePlus.getImageStack(), slices, r, (slice, z) -> {
+				ImageProcessor processor = imagePlus.getImageStack().getProcessor(z + 1);
 
 				if (hasZ) {
 					double dz = min[2] + ((max[2] - min[2]) / (slices - 1)) * z; // 0..z to min..max
 					if (Double.isNaN(dz)) dz = min[2];
-					interpreter.setVariable("z", dz);
+					slice.setVariable(Evaluator.Z, dz);
 				}
 
-				int rgb, red, green, blue;
-				int[] pixels1 = (int[]) ip.getPixels();
-				int[] pixels2 = pixels1;
-				if (hasGetPixel) pixels2 = new int[width * height];
-
-				for (int y = r.y; y < (r.y + r.height); y++) {
-					if (y % inc == 0) IJ.showProgress(y - r.y, r.height);
-
-					double dy = min[1]+((max[1]-min[1])/(height-1))*y; // 0..y to min..max
-					interpreter.setVariable("y", dy);
-
-					for (int x = r.x; x < (r.x + r.width); x++) {
-						double dx = min[0]+((max[0]-min[0])/(width-1))*x; // 0..x to min..max
-						if (hasX) interpreter.setVariable("x", dx);
-
-						if (hasA) interpreter.setVariable("a", getA(dx, dy));
-						if (hasD) interpreter.setVariable("d", Math.hypot(dx,dy));
-						pos = y * width + x;
-						rgb = pixels1[pos];
-						if (hasGetPixel) {
-							interpreter.setVariable("v", rgb);
-							interpreter.run(PCStart);
-							rgb = (int) interpreter.getVariable("v");
-						} else {
-							red = (rgb & 0xff0000) >> 16;
-							green = (rgb & 0xff00) >> 8;
-							blue = rgb & 0xff;
-							if(hasR) interpreter.setVariable("r", red);
-							else interpreter.setVariable("v", red);
-							interpreter.run(PCStart);
-							red = (int) interpreter.getVariable(hasR?"r":"v");
-							if (red < 0) red = 0;
-							if (red > 255) red = 255;
-							if(hasG) interpreter.setVariable("g", green);
-							else interpreter.setVariable("v", green);
-							interpreter.run(PCStart);
-							green = (int) interpreter.getVariable(hasG?"g":"v");
-							if (green < 0) green = 0;
-							if (green > 255) green = 255;
-							if(hasB) interpreter.setVariable("b", blue);
-							else interpreter.setVariable("v", blue);
-							interpreter.run(PCStart);
-							blue = (int) interpreter.getVariable(hasB?"b":"v");
-							if (blue < 0) blue = 0;
-							if (blue > 255) blue = 255;
-							rgb = 0xff000000 | ((red & 0xff) << 16) | ((green & 0xff) << 8) | blue & 0xff;
-						}
-						pixels2[pos] = rgb;
+				int[] pixels1 = (int[]) processor.getPixels();
+				int[] pixels2 = hasGetPixel ? new int[width * height] : pixels1;
+
+				Bands.render(slice, r.y, r.y + r.height, (band, from, to) -> {
+					if (hasGetPixel) { // one run per pixel with the whole rgb value in v
+						double[] rowValues = band.input(Evaluator.V), rowResults = band.output(Evaluator.V);
+						band.run(from, to, r.x, r.x + r.width, y -> min[1]+((max[1]-min[1])/(height-1))*y, // 0..y to min..max
+								y -> {
+									for (int x = r.x; x < (r.x + r.width); x++) rowValues[x] = pixels1[y * width + x];
+								}, y -> {
+									for (int x = r.x; x < (r.x + r.width); x++) pixels2[y * width + x] = (int) rowResults[x];
+								});
+						return;
 					}
-				}
+					double[] reds = band.input(Evaluator.R), greens = band.input(Evaluator.G), blues = band.input(Evaluator.B);
+					double[] newReds = band.output(Evaluator.R), newGreens = band.output(Evaluator.G), newBlues = band.output(Evaluator.B);
+					band.run(from, to, r.x, r.x + r.width, y -> min[1]+((max[1]-min[1])/(height-1))*y, // 0..y to min..max
+							y -> {
+								for (int x = r.x; x < (r.x + r.width); x++) {
+									int rgb = pixels1[y * width + x];
+									reds[x] = (rgb & 0xff0000) >> 16;
+									greens[x] = (rgb & 0xff00) >> 8;
+									blues[x] = rgb & 0xff;
+								}
+							}, y -> {
+								for (int x = r.x; x < (r.x + r.width); x++)
+									pixels2[y * width + x] = 0xff000000 | (toByte(newReds[x]) << 16) | (toByte(newGreens[x]) << 8) | toByte(newBlues[x]);
+							});
+				});
 				if (hasGetPixel) System.arraycopy(pixels2, 0, pixels1, 0, width * height);
-			}
+			});
 		} else if (ip.isSigned16Bit()) {
-			for(int z = 0; z < slices; z++) {
-				ip = imagePlus.getImageStack().getProcessor(z + 1);
+			Bands.renderStack(row, imagePlus.getImageStack(), slices, r, (slice, z) -> {
+				ImageProcessor processor = imagePlus.getImageStack().getProcessor(z + 1);
 
 				if (hasZ) {
 					double dz = min[2] + ((max[2] - min[2]) / (slices - 1)) * z; // 0..z to min..max
 					if (Double.isNaN(dz)) dz = min[2];
-					interpreter.setVariable("z", dz);
+					slice.setVariable(Evaluator.Z, dz);
 				}
 
-				for (int y = r.y; y < (r.y + r.height); y++) {
-					if (y % inc == 0) IJ.showProgress(y - r.y, r.height);
-
-					double dy = min[1]+((max[1]-min[1])/(height-1))*y; // 0..y to min..max
-					interpreter.setVariable("y", dy);
-
-					for (int x = r.x; x < (r.x + r.width); x++) {
-						double dx = min[0]+((max[0]-min[0])/(width-1))*x; // 0..x to min..max
-						if (hasX) interpreter.setVariable("x", dx);
-
-						v = ip.getPixelValue(x, y);
-						interpreter.setVariable("v", v);
-
-						if (hasA) interpreter.setVariable("a", getA(dx, dy));
-						if (hasD) interpreter.setVariable("d", Math.hypot(dx, dy));
-						interpreter.run(PCStart);
-						ip.putPixelValue(x, y, interpreter.getVariable("v"));
-					}
-				}
-			}
+				double[] results = hasGetPixel ? new double[width * height] : null;
+
+				Bands.render(slice, r.y, r.y + r.height, (band, from, to) -> {
+					double[] rowValues = band.input(Evaluator.V), rowResults = band.output(Evaluator.V);
+					band.run(from, to, r.x, r.x + r.width, y -> min[1]+((max[1]-min[1])/(height-1))*y, // 0..y to min..max
+							y -> {
+								for (int x = r.x; x < (r.x + r.width); x++) rowValues[x] = processor.getPixelValue(x, y);
+							}, y -> {
+								for (int x = r.x; x < (r.x + r.width); x++) {
+									if (hasGetPixel) results[y * width + x] = rowResults[x];
+									else processor.putPixelValue(x, y, rowResults[x]);
+								}
+							});
+				});
+				if (hasGetPixel) putPixelValues(processor, r, results);
+			});
 		} else if (bitDepth==16) {
-			for(int z = 0; z < slices; z++) {
-				ip = imagePlus.getImageStack().getProcessor(z + 1);
+			Bands.renderStack(row, imagePlus.getImageStack(), slices, r, (slice, z) -> {
+				ImageProcessor processor = imagePlus.getImageStack().getProcessor(z + 1);
 
 				if (hasZ) {
 					double dz = min[2] + ((max[2] - min[2]) / (slices - 1)) * z; // 0..z to min..max
 					if (Double.isNaN(dz)) dz = min[2];
-					interpreter.setVariable("z", dz);
+					slice.setVariable(Evaluator.Z, dz);
 				}
 
-				short[] pixels1 = (short[]) ip.getPixels();
-				short[] pixels2 = pixels1;
-				if (hasGetPixel) pixels2 = new short[width * height];
-
-				for (int y = r.y; y < (r.y + r.height); y++) {
-					if (y % inc == 0) IJ.showProgress(y - r.y, r.height);
-
-					double dy = min[1]+((max[1]-min[1])/(height-1))*y; // 0..y to min..max
-					interpreter.setVariable("y", dy);
-
-					for (int x = r.x; x < (r.x + r.width); x++) {
-
-						double dx = min[0]+((max[0]-min[0])/(width-1))*x; // 0..x to min..max
-						if (hasX) interpreter.setVariable("x", dx);
-
-						pos = y * width + x;
-						v = pixels1[pos] & 65535;
-						interpreter.setVariable("v", v);
-
-						if (hasA) interpreter.setVariable("a", getA(dx, dy));
-						if (hasD) interpreter.setVariable("d",Math.hypot(dx,dy));
-						interpreter.run(PCStart);
-						v2 = (int) interpreter.getVariable("v");
-						if (v2 < 0) v2 = 0;
-						if (v2 > 65535) v2 = 65535;
-						pixels2[pos] = (short) v2;
-					}
-				}
+				short[] pixels1 = (short[]) processor.getPixels();
+				short[] pixels2 = hasGetPixel ? new short[width * height] : pixels1;
+
+				Bands.render(slice, r.y, r.y + r.height, (band, from, to) -> {
+					double[] rowValues = band.input(Evaluator.V), rowResults = band.output(Evaluator.V);
+					band.run(from, to, r.x, r.x + r.width, y -> min[1]+((max[1]-min[1])/(height-1))*y, // 0..y to min..max
+							y -> {
+								for (int x = r.x; x < (r.x + r.width); x++) rowValues[x] = pixels1[y * width + x] & 65535;
+							}, y -> {
+								for (int x = r.x; x < (r.x + r.width); x++) {
+									int pos = y * width + x;
+									int v2 = (int) rowResults[x];
+									if (v2 < 0) v2 = 0;
+									if (v2 > 65535) v2 = 65535;
+									pixels2[pos] = (short) v2;
+								}
+							});
+				});
 				if (hasGetPixel) System.arraycopy(pixels2, 0, pixels1, 0, width * height);
-			}
+			});
 		} else {  //32-bit
-			for(int z = 0; z < slices; z++) {
-				ip = imagePlus.getImageStack().getProcessor(z + 1);
+			Bands.renderStack(row, imagePlus.getImageStack(), slices, r, (slice, z) -> {
+				ImageProcessor processor = imagePlus.getImageStack().getProcessor(z + 1);
 
 				if (hasZ) {
 					double dz = min[2] + ((max[2] - min[2]) / (slices - 1)) * z; // 0..z to min..max
 					if (Double.isNaN(dz)) dz = min[2];
-					interpreter.setVariable("z", dz);
+					slice.setVariable(Evaluator.Z, dz);
 				}
 
-				float[] pixels1 = (float[])ip.getPixels();
-				float[] pixels2 = pixels1;
-				if (hasGetPixel) pixels2 = new float[width*height];
-
-				for (int y = r.y; y < (r.y + r.height); y++) {
-					if (y % inc == 0) IJ.showProgress(y - r.y, r.height);
-
-					double dy = min[1]+((max[1]-min[1])/(height-1))*y; // 0..y to min..max
-					interpreter.setVariable("y", dy);
-
-					for (int x = r.x; x < (r.x + r.width); x++) {
-						pos = y * width + x;
-						v = pixels1[pos];
-						interpreter.setVariable("v", v);
+				float[] pixels1 = (float[])processor.getPixels();
+				float[] pixels2 = hasGetPixel ? new float[width*height] : pixels1;
+
+				Bands.render(slice, r.y, r.y + r.height, (band, from, to) -> {
+					double[] rowValues = band.input(Evaluator.V), rowResults = band.output(Evaluator.V);
+					band.run(from, to, r.x, r.x + r.width, y -> min[1]+((max[1]-min[1])/(height-1))*y, // 0..y to min..max
+							y -> {
+								for (int x = r.x; x < (r.x + r.width); x++) rowValues[x] = pixels1[y * width + x];
+							}, y -> {
+								for (int x = r.x; x < (r.x + r.width); x++) {
+									int pos = y * width + x;
+									pixels2[pos] = (float) rowResults[x];
+								}
+							});
+				});
+				if (hasGetPixel) System.arraycopy(pixels2, 0, pixels1, 0, width*height);
+			});
+		}
+		IJ.showProgress(1.0);
+	}
 
-						double dx = min[0]+((max[0]-min[0])/(width-1))*x; // 0..x to min..max
-						if (hasX) interpreter.setVariable("x", dx);
+	/*--- macro to mask ---*/
+
+	/**
+	 * Renders a macro into a mask, setting the pixels where v is not 0, e.g. for
+	 * "if(condition) v=1; else v=0;".
+	 */
+	public void macroToMask(PackedMask mask, double[] min, double[] max, String macro) {
+		int slices = mask.getSize();
+		RowBuffer row = maskRow(mask.getWidth(), min, max, macro);
+		if (row==null) return;
+		if (slices<2 || row.dependsOnSlice()) {
+			Bands.renderStack(row, slices, mask.getHeight(), (slice, z) -> maskToSlice(slice, mask, z, z, slices, min, max));
+		} else {
+			maskToSlice(row, mask, 0, 0, slices, min, max);
+			for (int z = 1; z < slices; z++) mask.copySlice(0, z);
+		}
+		IJ.showProgress(1.0);
+	}
 
-						if (hasA) interpreter.setVariable("a", getA(dx, dy));
-						if (hasD) interpreter.setVariable("d", Math.hypot(dx,dy));
-						interpreter.run(PCStart);
-						pixels2[pos] = (float) interpreter.getVariable("v");
-					}
-				}
-				if (hasGetPixel) System.arraycopy(pixels2, 0, pixels1, 0, width*height);
-			}
+	/**
+	 * Same as {@link #macroToMask(PackedMask, double[], double[], String)}, but writes the
+	 * packed slices to out one after another and only holds one of them in memory, for
+	 * masks too large to keep.
+	 */
+	public void macroToMask(int width, int height, int slices, double[] min, double[] max, String macro, OutputStream out) throws IOException {
+		RowBuffer row = maskRow(width, min, max, macro);
+		if (row==null) return;
+		PackedMask mask = new PackedMask(width, height, 1);
+		boolean dependsOnSlice = row.dependsOnSlice();
+		for (int z = 0; z < slices; z++) {
+			if (z==0 || dependsOnSlice) maskToSlice(row, mask, 0, z, slices, min, max);
+			mask.writeSlice(0, out);
+			IJ.showProgress(z + 1, slices);
 		}
 		IJ.showProgress(1.0);
 	}
 
+	private RowBuffer maskRow(int width, double[] min, double[] max, String macro) {
+		Program pgm = (new Tokenizer()).tokenize(macro);
+		boolean hasX = pgm.hasWord("x");
+		boolean hasA = pgm.hasWord("a");
+		boolean hasD = pgm.hasWord("d");
+		boolean hasE = pgm.hasWord("E");
+		Evaluator evaluator = Evaluator.create(Evaluator.RGB_VARIABLES, macro, settings());
+		if (evaluator==null) return null;
+
+		evaluator.setVariable(Evaluator.W, Math.abs(max[0]-min[0]));
+		evaluator.setVariable(Evaluator.H, Math.abs(max[1]-min[1]));
+		evaluator.setVariable(Evaluator.S, Math.abs(max[2]-min[2]));
+		if(hasE) evaluator.setVariable(Evaluator.E, Math.exp(1));
+		return new RowBuffer(evaluator, width, min[0], (max[0]-min[0])/(width-1), hasX, hasD, hasA,
+				new int[]{Evaluator.V}, new int[]{Evaluator.V});
+	}
+
+	// renders slice z of slices into slice target of mask
+	private void maskToSlice(RowBuffer row, PackedMask mask, int target, int z, int slices, double[] min, double[] max) {
+		int width = mask.getWidth();
+		int height = mask.getHeight();
+		double dz = min[2] + ((max[2] - min[2]) / (slices - 1)) * z; // 0..z to min..max
+		if (Double.isNaN(dz)) dz = min[2];
+		row.setVariable(Evaluator.Z, dz);
+
+		Bands.render(row, 0, height, (band, from, to) -> {
+			double[] rowResults = band.output(Evaluator.V);
+			band.run(from, to, 0, width, y -> min[1]+((max[1]-min[1])/(height-1))*y, // 0..y to min..max
+					y -> {
+					}, y -> mask.setRow(target, y, rowResults, 0, width));
+		});
+	}
+
 	public void macroToNormalizedImage(ImagePlus imagePlus, double[] min, double[] max, String macro, boolean global) throws RuntimeException {
 		ImageProcessor ip = imagePlus.getProcessor();
 
-		int PCStart = 25;
 		Program pgm = (new Tokenizer()).tokenize(macro);
 		boolean hasX = pgm.hasWord("x");
 		boolean hasZ = pgm.hasWord("z");
@@ -280,161 +310,130 @@ public class MacroImageSynthesizer {
 		boolean hasE = pgm.hasWord("E");
 		int width = ip.getWidth();
 		int height = ip.getHeight();
-		String code =
-				"var v,r,g,b,x,y,z,w,h,s,d,a,E;\n"+
-						"function dummy() {}\n"+
-						macro+";\n"; // code starts at program counter location 'PCStart'
-		Interpreter interpreter = new Interpreter();
-		interpreter.run(code, null);
-		if (interpreter.wasError()) return;
-
-		interpreter.setVariable("w", Math.abs(max[0]-min[0]));
-		interpreter.setVariable("h", Math.abs(max[1]-min[1]));
-		interpreter.setVariable("s", Math.abs(max[2]-min[2]));
-		if(hasE) interpreter.setVariable("E", Math.exp(1));
+		Evaluator evaluator = Evaluator.create(Evaluator.RGB_VARIABLES, macro, settings());
+		if (evaluator==null) return;
+
+		evaluator.setVariable(Evaluator.W, Math.abs(max[0]-min[0]));
+		evaluator.setVariable(Evaluator.H, Math.abs(max[1]-min[1]));
+		evaluator.setVariable(Evaluator.S, Math.abs(max[2]-min[2]));
+		if(hasE) evaluator.setVariable(Evaluator.E, Math.exp(1));
 
 		Rectangle r = ip.getRoi();
-		int inc = r.height/50;
-		if (inc<1) inc = 1;
 		int slices = imagePlus.getNSlices();
-		int pos, v;
 		int bitDepth = imagePlus.getBitDepth();
+		boolean channels = bitDepth==24; // the macro runs once per color channel
+		int[] slots = channels ? new int[]{Evaluator.R, Evaluator.G, Evaluator.B} : new int[]{Evaluator.V};
+		if (channels) evaluator = evaluator.channels(hasR?Evaluator.R:Evaluator.V, hasG?Evaluator.G:Evaluator.V, hasB?Evaluator.B:Evaluator.V);
+		RowBuffer row = new RowBuffer(evaluator, width, min[0], (max[0]-min[0])/(width-1), hasX, hasD, hasA, slots, slots);
 
 		if (bitDepth==8) { // 8-Bit
-			for(int z = 0; z < slices; z++) {
-				ip = imagePlus.getImageStack().getProcessor(z + 1);
+			Bands.renderStack(row, slices, r.height, (slice, z) -> {
+				ImageProcessor processor = imagePlus.getImageStack().getProcessor(z + 1);
 
 				if (hasZ) {
 					double dz = min[2] + ((max[2] - min[2]) / (slices - 1)) * z; // 0..z to min..max
 					if (Double.isNaN(dz)) dz = min[2];
-					interpreter.setVariable("z", dz);
+					slice.setVariable(Evaluator.Z, dz);
 				}
 
-				byte[] pixels = (byte[]) ip.getPixels();
-				double[] values = new double[pixels.length];
-
-
-				for (int y = r.y; y < (r.y + r.height); y++) {
-					if (y % inc == 0) IJ.showProgress(y - r.y, r.height);
-
-					double dy = min[1]+((max[1]-min[1])/(height-1))*y; // 0..y to min..max
-					interpreter.setVariable("y", dy);
-
-					for (int x = r.x; x < (r.x + r.width); x++) {
-						pos = y * width + x;
-						v = pixels[pos] & 255;
-						interpreter.setVariable("v", v);
-
-						double dx = min[0]+((max[0]-min[0])/(width-1))*x; // 0..x to min..max
-						if (hasX) interpreter.setVariable("x", dx);
-
-						if (hasA) interpreter.setVariable("a", getA(dx, dy));
-						if (hasD) interpreter.setVariable("d", Math.hypot(dx,dy));
-						interpreter.run(PCStart);
-						values[pos] = interpreter.getVariable("v");
-					}
-				}
+				byte[] pixels = (byte[]) processor.getPixels();
+				float[] values = new float[pixels.length];
+
+
+				Bands.render(slice, r.y, r.y + r.height, (band, from, to) -> {
+					double[] rowValues = band.input(Evaluator.V), rowResults = band.output(Evaluator.V);
+					band.run(from, to, r.x, r.x + r.width, y -> min[1]+((max[1]-min[1])/(height-1))*y, // 0..y to min..max
+							y -> {
+								for (int x = r.x; x < (r.x + r.width); x++) rowValues[x] = pixels[y * width + x] & 255;
+							}, y -> {
+								for (int x = r.x; x < (r.x + r.width); x++) {
+									int pos = y * width + x;
+									values[pos] = (float) rowResults[x];
+								}
+							});
+				});
 				FloatProcessor floatProcessor = new FloatProcessor(width, height, values);
 				floatProcessor.resetMinAndMax();
 				if(slices>1) imagePlus.getStack().setProcessor(floatProcessor.convertToByteProcessor(true), z+1);
 				else imagePlus.setProcessor(floatProcessor.convertToByteProcessor(true));
-			}
+			});
 		} else if (bitDepth==16) {
-			for(int z = 0; z < slices; z++) {
-				ip = imagePlus.getImageStack().getProcessor(z + 1);
+			Bands.renderStack(row, slices, r.height, (slice, z) -> {
+				ImageProcessor processor = imagePlus.getImageStack().getProcessor(z + 1);
 
 				if (hasZ) {
 					double dz = min[2] + ((max[2] - min[2]) / (slices - 1)) * z; // 0..z to min..max
 					if (Double.isNaN(dz)) dz = min[2];
-					interpreter.setVariable("z", dz);
+					slice.setVariable(Evaluator.Z, dz);
 				}
 
-				short[] pixels = (short[]) ip.getPixels();
-				double[] values = new double[pixels.length];
-
-				for (int y = r.y; y < (r.y + r.height); y++) {
-					if (y % inc == 0) IJ.showProgress(y - r.y, r.height);
-
-					double dy = min[1]+((max[1]-min[1])/(height-1))*y; // 0..y to min..max
-					interpreter.setVariable("y", dy);
-
-					for (int x = r.x; x < (r.x + r.width); x++) {
-
-						double dx = min[0]+((max[0]-min[0])/(width-1))*x; // 0..x to min..max
-						if (hasX) interpreter.setVariable("x", dx);
-
-						pos = y * width + x;
-						v = pixels[pos] & 65535;
-						interpreter.setVariable("v", v);
-
-						if (hasA) interpreter.setVariable("a", getA(dx, dy));
-						if (hasD) interpreter.setVariable("d",Math.hypot(dx,dy));
-						interpreter.run(PCStart);
-						values[pos] = interpreter.getVariable("v");
-					}
-				}
+				short[] pixels = (short[]) processor.getPixels();
+				float[] values = new float[pixels.length];
+
+				Bands.render(slice, r.y, r.y + r.height, (band, from, to) -> {
+					double[] rowValues = band.input(Evaluator.V), rowResults = band.output(Evaluator.V);
+					band.run(from, to, r.x, r.x + r.width, y -> min[1]+((max[1]-min[1])/(height-1))*y, // 0..y to min..max
+							y -> {
+								for (int x = r.x; x < (r.x + r.width); x++) rowValues[x] = pixels[y * width + x] & 65535;
+							}, y -> {
+								for (int x = r.x; x < (r.x + r.width); x++) {
+									int pos = y * width + x;
+									values[pos] = (float) rowResults[x];
+								}
+							});
+				});
 				FloatProcessor floatProcessor = new FloatProcessor(width, height, values);
 				floatProcessor.resetMinAndMax();
 				if(slices>1) imagePlus.getStack().setProcessor(floatProcessor.convertToShortProcessor(true), z+1);
 				else imagePlus.setProcessor(floatProcessor.convertToShortProcessor(true));
-			}
+			});
 		} else if(bitDepth==24) {
-			double minimum = Double.MAX_VALUE; // minimum init with greatest possible value
-			double maximum = -Double.MAX_VALUE; // maximum init with smallest possible value
-
 			FloatProcessor[] redFloatProcessors = new FloatProcessor[slices];
 			FloatProcessor[] greenFloatProcessors = new FloatProcessor[slices];
 			FloatProcessor[] blueFloatProcessors = new FloatProcessor[slices];
-			for(int z = 0; z < slices; z++) {
-				ip = imagePlus.getImageStack().getProcessor(z + 1);
+			Bands.renderStack(row, slices, r.height, (slice, z) -> {
+				ImageProcessor processor = imagePlus.getImageStack().getProcessor(z + 1);
 
 				if (hasZ) {
 					double dz = min[2] + ((max[2] - min[2]) / (slices - 1)) * z; // 0..z to min..max
 					if (Double.isNaN(dz)) dz = min[2];
-					interpreter.setVariable("z", dz);
+					slice.setVariable(Evaluator.Z, dz);
 				}
 
-				int rgb;
-				double red, green, blue;
-				int[] pixels = (int[]) ip.getPixels();
-				double[] redPixels = new double[pixels.length],
-						greenPixels = new double[pixels.length],
-						bluePixels = new double[pixels.length];
-
-				for (int y = r.y; y < (r.y + r.height); y++) {
-					if (y % inc == 0) IJ.showProgress(y - r.y, r.height);
-
-					double dy = min[1] + ((max[1] - min[1]) / (height - 1)) * y; // 0..y to min..max
-					interpreter.setVariable("y", dy);
-
-					for (int x = r.x; x < (r.x + r.width); x++) {
-						double dx = min[0] + ((max[0] - min[0]) / (width - 1)) * x; // 0..x to min..max
-						if (hasX) interpreter.setVariable("x", dx);
-
-						if (hasA) interpreter.setVariable("a",getA(dx, dy));
-						if (hasD) interpreter.setVariable("d", Math.hypot(dx,dy));
-						pos = y * width + x;
-						rgb = pixels[pos];
-
-						red = (rgb & 0xff0000) >> 16;
-						green = (rgb & 0xff00) >> 8;
-						blue = rgb & 0xff;
-						interpreter.setVariable(hasR?"r":"v", red);
-						interpreter.run(PCStart);
-						redPixels[pos] = interpreter.getVariable(hasR?"r":"v");
-						interpreter.setVariable(hasG?"g":"v", green);
-						interpreter.run(PCStart);
-						greenPixels[pos] = interpreter.getVariable(hasG?"g":"v");
-						interpreter.setVariable(hasB?"b":"v", blue);
-						interpreter.run(PCStart);
-						bluePixels[pos] = interpreter.getVariable(hasB?"b":"v");
-					}
-				}
+				int[] pixels = (int[]) processor.getPixels();
+				float[] redPixels = new float[pixels.length],
+						greenPixels = new float[pixels.length],
+						bluePixels = new float[pixels.length];
+
+				Bands.render(slice, r.y, r.y + r.height, (band, from, to) -> {
+					double[] reds = band.input(Evaluator.R), greens = band.input(Evaluator.G), blues = band.input(Evaluator.B);
+					double[] newReds = band.output(Evaluator.R), newGreens = band.output(Evaluator.G), newBlues = band.output(Evaluator.B);
+					band.run(from, to, r.x, r.x + r.width, y -> min[1]+((max[1]-min[1])/(height-1))*y, // 0..y to min..max
+							y -> {
+								for (int x = r.x; x < (r.x + r.width); x++) {
+									int rgb = pixels[y * width + x];
+									reds[x] = (rgb & 0xff0000) >> 16;
+									greens[x] = (rgb & 0xff00) >> 8;
+									blues[x] = rgb & 0xff;
+								}
+							}, y -> {
+								for (int x = r.x; x < (r.x + r.width); x++) {
+									int pos = y * width + x;
+									redPixels[pos] = (float) newReds[x];
+									greenPixels[pos] = (float) newGreens[x];
+									bluePixels[pos] = (float) newBlues[x];
+								}
+							});
+				});
 
 				redFloatProcessors[z] = new FloatProcessor(width, height, redPixels);
 				greenFloatProcessors[z] = new FloatProcessor(width, height, greenPixels);
 				blueFloatProcessors[z] = new FloatProcessor(width, height, bluePixels);
+			});
 
+			double minimum = Double.MAX_VALUE; // minimum init with greatest possible value
+			double maximum = -Double.MAX_VALUE; // maximum init with smallest possible value
+			for (int z = 0; z < slices; z++) {
 				minimum = Math.min(minimum, redFloatProcessors[z].getMin());
 				minimum = Math.min(minimum, greenFloatProcessors[z].getMin());
 				minimum = Math.min(minimum, blueFloatProcessors[z].getMin());
@@ -462,10 +461,9 @@ public class MacroImageSynthesizer {
 		IJ.showProgress(1.0);
 	}
 
-	private void macroToFrame(ImagePlus imagePlus, double[] min, double[] max, int z, int slices, String macro) throws RuntimeException{
+	private void macroToFrame(ImagePlus imagePlus, Lattice lattice, double[] min, double[] max, int z, int slices, String macro) throws RuntimeException{
 		ImageProcessor ip = imagePlus.getProcessor();
 
-		int PCStart = 25;
 		Program pgm = (new Tokenizer()).tokenize(macro);
 		boolean hasX = pgm.hasWord("x");
 		boolean hasZ = pgm.hasWord("z");
@@ -478,215 +476,159 @@ public class MacroImageSynthesizer {
 		boolean hasGetPixel = pgm.hasWord("getPixel");
 		int width = ip.getWidth();
 		int height = ip.getHeight();
-		String code =
-				"var v,r,g,b,x,y,z,w,h,s,d,a,E;\n"+
-						"function dummy() {}\n"+
-						macro+";\n"; // code starts at program counter location 'PCStart'
-		Interpreter interpreter = new Interpreter();
-		interpreter.run(code, null);
-		if (interpreter.wasError()) return;
-
-		interpreter.setVariable("w", Math.abs(max[0]-min[0]));
-		interpreter.setVariable("h", Math.abs(max[1]-min[1]));
-		interpreter.setVariable("s", Math.abs(max[2]-min[2]));
-		if(hasE) interpreter.setVariable("E", Math.exp(1));
+		Evaluator evaluator = Evaluator.create(Evaluator.RGB_VARIABLES, macro, settings());
+		if (evaluator==null) return;
+
+		evaluator.setVariable(Evaluator.W, Math.abs(max[0]-min[0]));
+		evaluator.setVariable(Evaluator.H, Math.abs(max[1]-min[1]));
+		evaluator.setVariable(Evaluator.S, Math.abs(max[2]-min[2]));
+		if(hasE) evaluator.setVariable(Evaluator.E, Math.exp(1));
 
 		int bitDepth = ip.getBitDepth();
 		Rectangle r = ip.getRoi();
-		int inc = r.height/50;
-		if (inc<1) inc = 1;
-		double v;
-		int pos, v2;
+		boolean channels = bitDepth==24 && !hasGetPixel; // the macro runs once per color channel
+		int[] slots = channels ? new int[]{Evaluator.R, Evaluator.G, Evaluator.B} : new int[]{Evaluator.V};
+		if (channels) evaluator = evaluator.channels(hasR?Evaluator.R:Evaluator.V, hasG?Evaluator.G:Evaluator.V, hasB?Evaluator.B:Evaluator.V);
+		RowBuffer row = new RowBuffer(evaluator, lattice, hasX, hasD, hasA, slots, slots);
 		if (bitDepth==8) { // 8-Bit
 
 			if (hasZ) {
 				double dz = min[2] + ((max[2] - min[2]) / (slices - 1)) * z; // 0..z to min..max
 				if (Double.isNaN(dz)) dz = min[2];
-				interpreter.setVariable("z", dz);
+				evaluator.setVariable(Evaluator.Z, dz);
 			}
 
 			byte[] pixels1 = (byte[]) ip.getPixels();
-			byte[] pixels2 = pixels1;
-			if (hasGetPixel) pixels2 = new byte[width * height];
-
-			for (int y = r.y; y < (r.y + r.height); y++) {
-				if (y % inc == 0) IJ.showProgress(y - r.y, r.height);
-
-				double dy = min[1]+((max[1]-min[1])/(height-1))*y; // 0..y to min..max
-				interpreter.setVariable("y", dy);
-
-				for (int x = r.x; x < (r.x + r.width); x++) {
-					pos = y * width + x;
-					v = pixels1[pos] & 255;
-					interpreter.setVariable("v", v);
-
-					double dx = min[0]+((max[0]-min[0])/(width-1))*x; // 0..x to min..max
-					if (hasX) interpreter.setVariable("x", dx);
-
-					if (hasA) interpreter.setVariable("a", getA(dx, dy));
-					if (hasD) interpreter.setVariable("d", Math.hypot(dx,dy));
-					interpreter.run(PCStart);
-					v2 = (int) interpreter.getVariable("v");
-					if (v2 < 0) v2 = 0;
-					if (v2 > 255) v2 = 255;
-					pixels2[pos] = (byte) v2;
-				}
-			}
+			byte[] pixels2 = hasGetPixel ? new byte[width * height] : pixels1;
+
+			Bands.render(row, r.y, r.y + r.height, (band, from, to) -> {
+				double[] rowValues = band.input(Evaluator.V), rowResults = band.output(Evaluator.V);
+				band.run(from, to, r.x, r.x + r.width, lattice::y,
+						y -> {
+							for (int x = r.x; x < (r.x + r.width); x++) rowValues[x] = pixels1[y * width + x] & 255;
+						}, y -> {
+							for (int x = r.x; x < (r.x + r.width); x++) {
+								int pos = y * width + x;
+								int v2 = (int) rowResults[x];
+								if (v2 < 0) v2 = 0;
+								if (v2 > 255) v2 = 255;
+								pixels2[pos] = (byte) v2;
+							}
+						});
+			});
 			if (hasGetPixel) System.arraycopy(pixels2, 0, pixels1, 0, width * height);
 		} else if (bitDepth==24) { // RGB
 
 			if (hasZ) {
 				double dz = min[2] + ((max[2] - min[2]) / (slices - 1)) * z; // 0..z to min..max
 				if (Double.isNaN(dz)) dz = min[2];
-				interpreter.setVariable("z", dz);
+				evaluator.setVariable(Evaluator.Z, dz);
 			}
 
-			int rgb, red, green, blue;
 			int[] pixels1 = (int[]) ip.getPixels();
-			int[] pixels2 = pixels1;
-			if (hasGetPixel) pixels2 = new int[width * height];
-
-			for (int y = r.y; y < (r.y + r.height); y++) {
-				if (y % inc == 0) IJ.showProgress(y - r.y, r.height);
-
-				double dy = min[1]+((max[1]-min[1])/(height-1))*y; // 0..y to min..max
-				interpreter.setVariable("y", dy);
-
-				for (int x = r.x; x < (r.x + r.width); x++) {
-					double dx = min[0]+((max[0]-min[0])/(width-1))*x; // 0..x to min..max
-					if (hasX) interpreter.setVariable("x", dx);
-
-					if (hasA) interpreter.setVariable("a", getA(dx, dy));
-					if (hasD) interpreter.setVariable("d", Math.hypot(dx,dy));
-					pos = y * width + x;
-					rgb = pixels1[pos];
-					if (hasGetPixel) {
-						interpreter.setVariable("v", rgb);
-						interpreter.run(PCStart);
-						rgb = (int) interpreter.getVariable("v");
-					} else {
-						red = (rgb & 0xff0000) >> 16;
-						green = (rgb & 0xff00) >> 8;
-						blue = rgb & 0xff;
-						if(hasR) interpreter.setVariable("r", red);
-						else interpreter.setVariable("v", red);
-						interpreter.run(PCStart);
-						red = (int) interpreter.getVariable(hasR?"r":"v");
-						if (red < 0) red = 0;
-						if (red > 255) red = 255;
-						if(hasG) interpreter.setVariable("g", green);
-						else interpreter.setVariable("v", green);
-						interpreter.run(PCStart);
-						green = (int) interpreter.getVariable(hasG?"g":"v");
-						if (green < 0) green = 0;
-						if (green > 255) green = 255;
-						if(hasB) interpreter.setVariable("b", blue);
-						else interpreter.setVariable("v", blue);
-						interpreter.run(PCStart);
-						blue = (int) interpreter.getVariable(hasB?"b":"v");
-						if (blue < 0) blue = 0;
-						if (blue > 255) blue = 255;
-						rgb = 0xff000000 | ((red & 0xff) << 16) | ((green & 0xff) << 8) | blue & 0xff;
-					}
-					pixels2[pos] = rgb;
+			int[] pixels2 = hasGetPixel ? new int[width * height] : pixels1;
+
+			Bands.render(row, r.y, r.y + r.height, (band, from, to) -> {
+				if (hasGetPixel) { // one run per pixel with the whole rgb value in v
+					double[] rowValues = band.input(Evaluator.V), rowResults = band.output(Evaluator.V);
+					band.run(from, to, r.x, r.x + r.width, lattice::y,
+							y -> {
+								for (int x = r.x; x < (r.x + r.width); x++) rowValues[x] = pixels1[y * width + x];
+							}, y -> {
+								for (int x = r.x; x < (r.x + r.width); x++) pixels2[y * width + x] = (int) rowResults[x];
+							});
+					return;
 				}
-			}
+				double[] reds = band.input(Evaluator.R), greens = band.input(Evaluator.G), blues = band.input(Evaluator.B);
+				double[] newReds = band.output(Evaluator.R), newGreens = band.output(Evaluator.G), newBlues = band.output(Evaluator.B);
+				band.run(from, to, r.x, r.x + r.width, lattice::y,
+						y -> {
+							for (int x = r.x; x < (r.x + r.width); x++) {
+								int rgb = pixels1[y * width + x];
+								reds[x] = (rgb & 0xff0000) >> 16;
+								greens[x] = (rgb & 0xff00) >> 8;
+								blues[x] = rgb & 0xff;
+							}
+						}, y -> {
+							for (int x = r.x; x < (r.x + r.width); x++)
+								pixels2[y * width + x] = 0xff000000 | (toByte(newReds[x]) << 16) | (toByte(newGreens[x]) << 8) | toByte(newBlues[x]);
+						});
+			});
 			if (hasGetPixel) System.arraycopy(pixels2, 0, pixels1, 0, width * height);
 		} else if (ip.isSigned16Bit()) {
 
 			if (hasZ) {
 				double dz = min[2] + ((max[2] - min[2]) / (slices - 1)) * z; // 0..z to min..max
 				if (Double.isNaN(dz)) dz = min[2];
-				interpreter.setVariable("z", dz);
+				evaluator.setVariable(Evaluator.Z, dz);
 			}
 
-			for (int y = r.y; y < (r.y + r.height); y++) {
-				if (y % inc == 0) IJ.showProgress(y - r.y, r.height);
-
-				double dy = min[1]+((max[1]-min[1])/(height-1))*y; // 0..y to min..max
-				interpreter.setVariable("y", dy);
-
-				for (int x = r.x; x < (r.x + r.width); x++) {
-					double dx = min[0]+((max[0]-min[0])/(width-1))*x; // 0..x to min..max
-					if (hasX) interpreter.setVariable("x", dx);
-
-					v = ip.getPixelValue(x, y);
-					interpreter.setVariable("v", v);
-					if (hasA) interpreter.setVariable("a", getA(dx, dy));
-					if (hasD) interpreter.setVariable("d", Math.hypot(dx, dy));
-					interpreter.run(PCStart);
-					ip.putPixelValue(x, y, interpreter.getVariable("v"));
-				}
-			}
+			ImageProcessor processor = ip;
+			double[] results = hasGetPixel ? new double[width * height] : null;
+
+			Bands.render(row, r.y, r.y + r.height, (band, from, to) -> {
+				double[] rowValues = band.input(Evaluator.V), rowResults = band.output(Evaluator.V);
+				band.run(from, to, r.x, r.x + r.width, lattice::y,
+						y -> {
+							for (int x = r.x; x < (r.x + r.width); x++) rowValues[x] = processor.getPixelValue(x, y);
+						}, y -> {
+							for (int x = r.x; x < (r.x + r.width); x++) {
+								if (hasGetPixel) results[y * width + x] = rowResults[x];
+								else processor.putPixelValue(x, y, rowResults[x]);
+							}
+						});
+			});
+			if (hasGetPixel) putPixelValues(processor, r, results);
 		} else if (bitDepth==16) {
 
 			if (hasZ) {
 				double dz = min[2] + ((max[2] - min[2]) / (slices - 1)) * z; // 0..z to min..max
 				if (Double.isNaN(dz)) dz = min[2];
-				interpreter.setVariable("z", dz);
+				evaluator.setVariable(Evaluator.Z, dz);
 			}
 
 			short[] pixels1 = (short[]) ip.getPixels();
-			short[] pixels2 = pixels1;
-			if (hasGetPixel) pixels2 = new short[width * height];
-
-			for (int y = r.y; y < (r.y + r.height); y++) {
-				if (y % inc == 0) IJ.showProgress(y - r.y, r.height);
-
-				double dy = min[1]+((max[1]-min[1])/(height-1))*y; // 0..y to min..max
-				interpreter.setVariable("y", dy);
-
-				for (int x = r.x; x < (r.x + r.width); x++) {
-
-					double dx = min[0]+((max[0]-min[0])/(width-1))*x; // 0..x to min..max
-					if (hasX) interpreter.setVariable("x", dx);
-
-					pos = y * width + x;
-					v = pixels1[pos] & 65535;
-					interpreter.setVariable("v", v);
-
-					if (hasA) interpreter.setVariable("a", getA(dx, dy));
-					if (hasD) interpreter.setVariable("d",Math.hypot(dx,dy));
-					interpreter.run(PCStart);
-					v2 = (int) interpreter.getVariable("v");
-					if (v2 < 0) v2 = 0;
-					if (v2 > 65535) v2 = 65535;
-					pixels2[pos] = (short) v2;
-				}
-			}
+			short[] pixels2 = hasGetPixel ? new short[width * height] : pixels1;
+
+			Bands.render(row, r.y, r.y + r.height, (band, from, to) -> {
+				double[] rowValues = band.input(Evaluator.V), rowResults = band.output(Evaluator.V);
+				band.run(from, to, r.x, r.x + r.width, lattice::y,
+						y -> {
+							for (int x = r.x; x < (r.x + r.width); x++) rowValues[x] = pixels1[y * width + x] & 65535;
+						}, y -> {
+							for (int x = r.x; x < (r.x + r.width); x++) {
+								int pos = y * width + x;
+								int v2 = (int) rowResults[x];
+								if (v2 < 0) v2 = 0;
+								if (v2 > 65535) v2 = 65535;
+								pixels2[pos] = (short) v2;
+							}
+						});
+			});
 			if (hasGetPixel) System.arraycopy(pixels2, 0, pixels1, 0, width * height);
 		} else {  //32-bit
 
 			if (hasZ) {
 				double dz = min[2] + ((max[2] - min[2]) / (slices - 1)) * z; // 0..z to min..max
 				if (Double.isNaN(dz)) dz = min[2];
-				interpreter.setVariable("z", dz);
+				evaluator.setVariable(Evaluator.Z, dz);
 			}
 
 			float[] pixels1 = (float[])ip.getPixels();
-			float[] pixels2 = pixels1;
-			if (hasGetPixel) pixels2 = new float[width*height];
-
-			for (int y = r.y; y < (r.y + r.height); y++) {
-				if (y % inc == 0) IJ.showProgress(y - r.y, r.height);
-
-				double dy = min[1]+((max[1]-min[1])/(height-1))*y; // 0..y to min..max
-				interpreter.setVariable("y", dy);
-
-				for (int x = r.x; x < (r.x + r.width); x++) {
-					pos = y * width + x;
-					v = pixels1[pos];
-					interpreter.setVariable("v", v);
-
-					double dx = min[0]+((max[0]-min[0])/(width-1))*x; // 0..x to min..max
-					if (hasX) interpreter.setVariable("x", dx);
-
-					if (hasA) interpreter.setVariable("a", getA(dx, dy));
-					if (hasD) interpreter.setVariable("d", Math.hypot(dx,dy));
-					interpreter.run(PCStart);
-					pixels2[pos] = (float) interpreter.getVariable("v");
-				}
-			}
+			float[] pixels2 = hasGetPixel ? new float[width*height] : pixels1;
+
+			Bands.render(row, r.y, r.y + r.height, (band, from, to) -> {
+				double[] rowValues = band.input(Evaluator.V), rowResults = band.output(Evaluator.V);
+				band.run(from, to, r.x, r.x + r.width, lattice::y,
+						y -> {
+							for (int x = r.x; x < (r.x + r.width); x++) rowValues[x] = pixels1[y * width + x];
+						}, y -> {
+							for (int x = r.x; x < (r.x + r.width); x++) {
+								int pos = y * width + x;
+								pixels2[pos] = (float) rowResults[x];
+							}
+						});
+			});
 			if (hasGetPixel) System.arraycopy(pixels2, 0, pixels1, 0, width*height);
 		}
 		IJ.showProgress(1.0);
@@ -695,7 +637,6 @@ public class MacroImageSynthesizer {
 	private void macroToNormalizedFrame(ImagePlus imagePlus, double[] min, double[] max, int z, int slices, String macro, boolean global) throws RuntimeException {
 		ImageProcessor ip = imagePlus.getProcessor();
 
-		int PCStart = 25;
 		Program pgm = (new Tokenizer()).tokenize(macro);
 		boolean hasX = pgm.hasWord("x");
 		boolean hasZ = pgm.hasWord("z");
@@ -707,57 +648,45 @@ public class MacroImageSynthesizer {
 		boolean hasE = pgm.hasWord("E");
 		int width = ip.getWidth();
 		int height = ip.getHeight();
-		String code =
-				"var v,r,g,b,x,y,z,w,h,s,d,a,E;\n"+
-						"function dummy() {}\n"+
-						macro+";\n"; // code starts at program counter location 'PCStart'
-		Interpreter interpreter = new Interpreter();
-		interpreter.run(code, null);
-		if (interpreter.wasError()) return;
-
-		interpreter.setVariable("w", Math.abs(max[0]-min[0]));
-		interpreter.setVariable("h", Math.abs(max[1]-min[1]));
-		interpreter.setVariable("s", Math.abs(max[2]-min[2]));
-		if(hasE) interpreter.setVariable("E", Math.exp(1));
+		Evaluator evaluator = Evaluator.create(Evaluator.RGB_VARIABLES, macro, settings());
+		if (evaluator==null) return;
+
+		evaluator.setVariable(Evaluator.W, Math.abs(max[0]-min[0]));
+		evaluator.setVariable(Evaluator.H, Math.abs(max[1]-min[1]));
+		evaluator.setVariable(Evaluator.S, Math.abs(max[2]-min[2]));
+		if(hasE) evaluator.setVariable(Evaluator.E, Math.exp(1));
 
 		Rectangle r = ip.getRoi();
-		int inc = r.height/50;
-		if (inc<1) inc = 1;
-		int pos, v;
 		int bitDepth = imagePlus.getBitDepth();
+		boolean channels = bitDepth==24; // the macro runs once per color channel
+		int[] slots = channels ? new int[]{Evaluator.R, Evaluator.G, Evaluator.B} : new int[]{Evaluator.V};
+		if (channels) evaluator = evaluator.channels(hasR?Evaluator.R:Evaluator.V, hasG?Evaluator.G:Evaluator.V, hasB?Evaluator.B:Evaluator.V);
+		RowBuffer row = new RowBuffer(evaluator, width, min[0], (max[0]-min[0])/(width-1), hasX, hasD, hasA, slots, slots);
 
 		if (bitDepth==8) { // 8-Bit
 
 			if (hasZ) {
 				double dz = min[2] + ((max[2] - min[2]) / (slices - 1)) * z; // 0..z to min..max
 				if (Double.isNaN(dz)) dz = min[2];
-				interpreter.setVariable("z", dz);
+				evaluator.setVariable(Evaluator.Z, dz);
 			}
 
 			byte[] pixels = (byte[]) ip.getPixels();
-			double[] values = new double[pixels.length];
-
-
-			for (int y = r.y; y < (r.y + r.height); y++) {
-				if (y % inc == 0) IJ.showProgress(y - r.y, r.height);
-
-				double dy = min[1]+((max[1]-min[1])/(height-1))*y; // 0..y to min..max
-				interpreter.setVariable("y", dy);
-
-				for (int x = r.x; x < (r.x + r.width); x++) {
-					pos = y * width + x;
-					v = pixels[pos] & 255;
-					interpreter.setVariable("v", v);
-
-					double dx = min[0]+((max[0]-min[0])/(width-1))*x; // 0..x to min..max
-					if (hasX) interpreter.setVariable("x", dx);
-
-					if (hasA) interpreter.setVariable("a", getA(dx, dy));
-					if (hasD) interpreter.setVariable("d", Math.hypot(dx,dy));
-					interpreter.run(PCStart);
-					values[pos] = interpreter.getVariable("v");
-				}
-			}
+			float[] values = new float[pixels.length];
+
+
+			Bands.render(row, r.y, r.y + r.height, (band, from, to) -> {
+				double[] rowValues = band.input(Evaluator.V), rowResults = band.output(Evaluator.V);
+				band.run(from, to, r.x, r.x + r.width, y -> min[1]+((max[1]-min[1])/(height-1))*y, // 0..y to min..max
+						y -> {
+							for (int x = r.x; x < (r.x + r.width); x++) rowValues[x] = pixels[y * width + x] & 255;
+						}, y -> {
+							for (int x = r.x; x < (r.x + r.width); x++) {
+								int pos = y * width + x;
+								values[pos] = (float) rowResults[x];
+							}
+						});
+			});
 			FloatProcessor floatProcessor = new FloatProcessor(width, height, values);
 			floatProcessor.resetMinAndMax();
 			if(imagePlus.isInvertedLut()) floatProcessor.invert();
@@ -767,33 +696,24 @@ public class MacroImageSynthesizer {
 			if (hasZ) {
 				double dz = min[2] + ((max[2] - min[2]) / (slices - 1)) * z; // 0..z to min..max
 				if (Double.isNaN(dz)) dz = min[2];
-				interpreter.setVariable("z", dz);
+				evaluator.setVariable(Evaluator.Z, dz);
 			}
 
 			short[] pixels = (short[]) ip.getPixels();
-			double[] values = new double[pixels.length];
-
-			for (int y = r.y; y < (r.y + r.height); y++) {
-				if (y % inc == 0) IJ.showProgress(y - r.y, r.height);
-
-				double dy = min[1]+((max[1]-min[1])/(height-1))*y; // 0..y to min..max
-				interpreter.setVariable("y", dy);
-
-				for (int x = r.x; x < (r.x + r.width); x++) {
-
-					double dx = min[0]+((max[0]-min[0])/(width-1))*x; // 0..x to min..max
-					if (hasX) interpreter.setVariable("x", dx);
-
-					pos = y * width + x;
-					v = pixels[pos] & 65535;
-					interpreter.setVariable("v", v);
-
-					if (hasA) interpreter.setVariable("a", getA(dx, dy));
-					if (hasD) interpreter.setVariable("d",Math.hypot(dx,dy));
-					interpreter.run(PCStart);
-					values[pos] = interpreter.getVariable("v");
-				}
-			}
+			float[] values = new float[pixels.length];
+
+			Bands.render(row, r.y, r.y + r.height, (band, from, to) -> {
+				double[] rowValues = band.input(Evaluator.V), rowResults = band.output(Evaluator.V);
+				band.run(from, to, r.x, r.x + r.width, y -> min[1]+((max[1]-min[1])/(height-1))*y, // 0..y to min..max
+						y -> {
+							for (int x = r.x; x < (r.x + r.width); x++) rowValues[x] = pixels[y * width + x] & 65535;
+						}, y -> {
+							for (int x = r.x; x < (r.x + r.width); x++) {
+								int pos = y * width + x;
+								values[pos] = (float) rowResults[x];
+							}
+						});
+			});
 			FloatProcessor floatProcessor = new FloatProcessor(width, height, values);
 			floatProcessor.resetMinAndMax();
 			if(imagePlus.isInvertedLut()) floatProcessor.invert();
@@ -802,45 +722,34 @@ public class MacroImageSynthesizer {
 			if (hasZ) {
 				double dz = min[2] + ((max[2] - min[2]) / (slices - 1)) * z; // 0..z to min..max
 				if (Double.isNaN(dz)) dz = min[2];
-				interpreter.setVariable("z", dz);
+				evaluator.setVariable(Evaluator.Z, dz);
 			}
 
-			int rgb;
-			double red, green, blue;
 			int[] pixels = (int[]) ip.getPixels();
-			double[] redPixels = new double[pixels.length],
-					greenPixels = new double[pixels.length],
-					bluePixels = new double[pixels.length];
-
-			for (int y = r.y; y < (r.y + r.height); y++) {
-				if (y % inc == 0) IJ.showProgress(y - r.y, r.height);
-
-				double dy = min[1]+((max[1]-min[1])/(height-1))*y; // 0..y to min..max
-				interpreter.setVariable("y", dy);
-
-				for (int x = r.x; x < (r.x + r.width); x++) {
-					double dx = min[0]+((max[0]-min[0])/(width-1))*x; // 0..x to min..max
-					if (hasX) interpreter.setVariable("x", dx);
-
-					if (hasA) interpreter.setVariable("a",getA(dx, dy));
-					if (hasD) interpreter.setVariable("d", Math.hypot(dx,dy));
-					pos = y * width + x;
-					rgb = pixels[pos];
-
-					red = (rgb & 0xff0000) >> 16;
-					green = (rgb & 0xff00) >> 8;
-					blue = rgb & 0xff;
-					interpreter.setVariable(hasR?"r":"v", red);
-					interpreter.run(PCStart);
-					redPixels[pos] = interpreter.getVariable(hasR?"r":"v");
-					interpreter.setVariable(hasG?"g":"v", green);
-					interpreter.run(PCStart);
-					greenPixels[pos] = interpreter.getVariable(hasG?"g":"v");
-					interpreter.setVariable(hasB?"b":"v", blue);
-					interpreter.run(PCStart);
-					bluePixels[pos] = interpreter.getVariable(hasB?"b":"v");
-				}
-			}
+			float[] redPixels = new float[pixels.length],
+					greenPixels = new float[pixels.length],
+					bluePixels = new float[pixels.length];
+
+			Bands.render(row, r.y, r.y + r.height, (band, from, to) -> {
+				double[] reds = band.input(Evaluator.R), greens = band.input(Evaluator.G), blues = band.input(Evaluator.B);
+				double[] newReds = band.output(Evaluator.R), newGreens = band.output(Evaluator.G), newBlues = band.output(Evaluator.B);
+				band.run(from, to, r.x, r.x + r.width, y -> min[1]+((max[1]-min[1])/(height-1))*y, // 0..y to min..max
+						y -> {
+							for (int x = r.x; x < (r.x + r.width); x++) {
+								int rgb = pixels[y * width + x];
+								reds[x] = (rgb & 0xff0000) >> 16;
+								greens[x] = (rgb & 0xff00) >> 8;
+								blues[x] = rgb & 0xff;
+							}
+						}, y -> {
+							for (int x = r.x; x < (r.x + r.width); x++) {
+								int pos = y * width + x;
+								redPixels[pos] = (float) newReds[x];
+								greenPixels[pos] = (float) newGreens[x];
+								bluePixels[pos] = (float) newBlues[x];
+							}
+						});
+			});
 
 			FloatProcessor redImageProcessor = new FloatProcessor(width, height, redPixels);
 			FloatProcessor greenImageProcessor = new FloatProcessor(width, height, greenPixels);
@@ -870,52 +779,67 @@ public class MacroImageSynthesizer {
 		IJ.showProgress(1.0);
 	}
 
-	private double getA(double x, double y) {
-		double angle = Math.atan2(y, x);
-		if (angle < 0) angle += 2 * Math.PI;
-		return angle;
+	private Settings settings() {
+		return settings!=null ? settings : Settings.current();
+	}
+
+	// clamps a color channel to 0..255 like the RGB loops always did
+	private static int toByte(double value) {
+		int v = (int) value;
+		if (v < 0) v = 0;
+		if (v > 255) v = 255;
+		return v;
+	}
+
+	// writes the results of a render that read the pixels with getPixel back to ip
+	private static void putPixelValues(ImageProcessor ip, Rectangle r, double[] results) {
+		int width = ip.getWidth();
+		for (int y = r.y; y < (r.y + r.height); y++) {
+			for (int x = r.x; x < (r.x + r.width); x++) ip.putPixelValue(x, y, results[y * width + x]);
+		}
 	}
 
 	/*--- PREVIEW ---*/
 
-	public Image getPreview(ImagePlus imagePlus, double[] min, double[] max, int frame, String macro, boolean drawAxes, boolean normalize, boolean global, int interpolate) {
+	/** @return true if macro compiles, so previewing it shows no error messages */
+	public boolean isCompilable(String macro) {
+		return Evaluator.isCompilable(Evaluator.RGB_VARIABLES, macro);
+	}
+
+	/**
+	 * @param passes if not null, gets the coarse passes of a preview rendered coarse to
+	 * fine (see {@link Refinement}) before it is returned
+	 * @return the preview as shown, with axes if drawAxes is set
+	 */
+	public ColorProcessor getPreview(ImageProcessor source, int slices, double[] min, double[] max, int frame, String macro, boolean drawAxes, boolean normalize, boolean global, int interpolate, Consumer<ColorProcessor> passes) {
 
-		ImageProcessor resized = downsize(imagePlus, frame, PREVIEW_SIZE, interpolate);
+		ImageProcessor resized = downsize(source, PREVIEW_SIZE, interpolate);
 		ImagePlus preview = new ImagePlus("preview", resized);
-		if(normalize) macroToNormalizedFrame(preview, min, max, frame-1, imagePlus.getNSlices(), macro, global);
-		else macroToFrame(preview, min, max, frame-1, imagePlus.getNSlices(), macro);
+		Lattice lattice = new Lattice(min, max, resized.getWidth(), resized.getHeight());
+		if(normalize) macroToNormalizedFrame(preview, min, max, frame-1, slices, macro, global);
+		else if(passes!=null && Refinement.isRefinable(Evaluator.RGB_VARIABLES, macro, Evaluator.V))
+			Refinement.render(resized, lattice, (image, sample) -> macroToFrame(image, sample, min, max, frame-1, slices, macro),
+					pass -> passes.accept(toPreviewProcessor(new ImagePlus("preview", pass), pass, min, max, drawAxes, interpolate)));
+		else macroToFrame(preview, lattice, min, max, frame-1, slices, macro);
+		return toPreviewProcessor(preview, resized, min, max, drawAxes, interpolate);
+	}
+
+	// resized is the rendered frame, unless a normalized frame replaced the processor of preview
+	private ColorProcessor toPreviewProcessor(ImagePlus preview, ImageProcessor resized, double[] min, double[] max, boolean drawAxes, int interpolate) {
 		resized.resetMinAndMax();
 
 		// interpolate if to small
 		enlarge(preview, PREVIEW_SIZE, interpolate);
 
-		ImageProcessor colorProcessor = preview.getProcessor().convertToColorProcessor();
-		if(drawAxes) {
-			drawAxes(colorProcessor, min, max);
-			preview.setProcessor(colorProcessor);
-		}
-		return preview.getImage();
+		ColorProcessor colorProcessor = preview.getProcessor().convertToColorProcessor();
+		if(drawAxes) drawAxes(colorProcessor, min, max);
+		return colorProcessor;
 	}
 
-	private ImageProcessor downsize(ImagePlus imagePlus, int frame, int maxSize, int interpolate) {
-		int width = imagePlus.getWidth();
-		int height = imagePlus.getHeight();
-
-		// reduce size if to big
-		if(width> maxSize) {
-			height = height * maxSize / width;
-			height = height<1 ? 1 : height;
-			width = maxSize;
-		}
-
-		if(height> maxSize) {
-			width = width * maxSize / height;
-			width = width<1 ? 1 : width;
-			height = maxSize;
-		}
-		ImageProcessor ip = imagePlus.getStack().getProcessor(frame);
+	private ImageProcessor downsize(ImageProcessor ip, int maxSize, int interpolate) {
+		int[] size = FunctionImageSynthesizer.fit(ip.getWidth(), ip.getHeight(), maxSize);
 		ip.setInterpolationMethod(interpolate);
-		return ip.resize(width, height);
+		return ip.resize(size[0], size[1]);
 	}
 
 	private void enlarge(ImagePlus imagePlus, int minSize, int interpolate) {
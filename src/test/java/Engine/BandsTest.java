@@ -0,0 +1,72 @@
+package Engine;
+
+import ij.Prefs;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Bands and slices rendered in the background run at the lowest priority, the others
+ * at the priority of the pool.
+ */
+public class BandsTest {
+
+	private int threads;
+
+	@Before
+	public void saveThreads() {
+		threads = Prefs.getThreads();
+		Prefs.setThreads(4);
+	}
+
+	@After
+	public void restoreThreads() {
+		Prefs.setThreads(threads);
+	}
+
+	@Test
+	public void backgroundBandsRunAtLowPriority() {
+		assertEquals(Collections.singleton(Thread.MIN_PRIORITY), bands(true));
+		assertTrue(bands(false).stream().allMatch(priority -> priority>Thread.MIN_PRIORITY));
+		assertEquals(Thread.NORM_PRIORITY, Thread.currentThread().getPriority());
+	}
+
+	@Test
+	public void backgroundSlices() {
+		RowBuffer row = row();
+		Set<Integer> priorities = ConcurrentHashMap.newKeySet();
+		Bands.inBackground(() -> {
+			Bands.renderStack(row, 8, 10, (slice, z) -> Bands.render(slice, 0, 10, (band, from, to) -> priorities.add(Thread.currentThread().getPriority())));
+			return null;
+		});
+		assertEquals(Collections.singleton(Thread.MIN_PRIORITY), priorities);
+	}
+
+	// priorities of the threads that rendered the bands of 1000 rows
+	private static Set<Integer> bands(boolean inBackground) {
+		RowBuffer row = row();
+		Set<Integer> priorities = ConcurrentHashMap.newKeySet();
+		Bands.Renderer renderer = (band, from, to) -> {
+			band.run(0.5, 0, 10);
+			priorities.add(Thread.currentThread().getPriority());
+		};
+		if (inBackground) Bands.inBackground(() -> {
+			Bands.render(row, 0, 1000, renderer);
+			return null;
+		});
+		else Bands.render(row, 0, 1000, renderer);
+		return priorities;
+	}
+
+	private static RowBuffer row() {
+		Evaluator evaluator = new CompiledEvaluator(Parser.parse(Evaluator.FUNCTION_VARIABLES, "code=v=x*y"), new Settings(false, false, 0));
+		return new RowBuffer(evaluator, 10, 0, 1, true, false, false, new int[0], new int[]{Evaluator.V});
+	}
+}
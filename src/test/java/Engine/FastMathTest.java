@@ -0,0 +1,74 @@
+package Engine;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The error bounds documented in {@link FastMath}, checked on random arguments, and
+ * the special values passed on to java.lang.Math.
+ */
+public class FastMathTest {
+
+	private static final int SAMPLES = 1000000;
+	private static final double[] SPECIAL = {Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, 0.0, -0.0, 2e6, -1e300};
+
+	@Test
+	public void sinAndCos() {
+		Random random = new Random(1);
+		for (int i = 0; i < SAMPLES; i++) {
+			double x = (random.nextDouble()*2 - 1)*(i%2==0 ? 10 : 1e6);
+			assertEquals("sin " + x, Math.sin(x), FastMath.sin(x), 2e-9);
+			assertEquals("cos " + x, Math.cos(x), FastMath.cos(x), 2e-9);
+		}
+	}
+
+	@Test
+	public void exp() {
+		Random random = new Random(2);
+		for (int i = 0; i < SAMPLES; i++) {
+			double x = -708 + random.nextDouble()*(709 + 708);
+			double exact = Math.exp(x);
+			assertTrue("exp " + x, Math.abs(FastMath.exp(x) - exact)<=3e-10*exact);
+		}
+	}
+
+	@Test
+	public void atan2() {
+		Random random = new Random(3);
+		for (int i = 0; i < SAMPLES; i++) {
+			double scale = Math.pow(10, random.nextInt(13) - 6);
+			double y = (random.nextDouble()*2 - 1)*scale, x = (random.nextDouble()*2 - 1)*scale;
+			assertEquals("atan2 " + y + ", " + x, Math.atan2(y, x), FastMath.atan2(y, x), 4e-10);
+		}
+	}
+
+	@Test
+	public void hypot() {
+		Random random = new Random(4);
+		for (int i = 0; i < SAMPLES; i++) {
+			double scale = Math.pow(10, random.nextInt(13) - 6);
+			double x = (random.nextDouble()*2 - 1)*scale, y = (random.nextDouble()*2 - 1)*scale;
+			double exact = Math.hypot(x, y);
+			assertTrue("hypot " + x + ", " + y, Math.abs(FastMath.hypot(x, y) - exact)<=Math.ulp(exact));
+		}
+	}
+
+	@Test
+	public void specialValues() {
+		for (double x : SPECIAL) {
+			assertEquals(Math.sin(x), FastMath.sin(x), 0);
+			assertEquals(Math.cos(x), FastMath.cos(x), 0);
+			for (double y : SPECIAL) {
+				assertEquals(Math.atan2(y, x), FastMath.atan2(y, x), 0);
+				assertEquals(Math.hypot(x, y), FastMath.hypot(x, y), 0);
+			}
+		}
+		for (double x : new double[]{Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, 710, -746}) {
+			assertEquals(Math.exp(x), FastMath.exp(x), 0);
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package Engine;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Frames come out of the ring in sequence order whatever order the workers finish
+ * them in, and workers wait while the ring is full.
+ */
+public class FrameRingTest {
+
+	@Test
+	public void framesInOrder() throws InterruptedException {
+		FrameRing<String> ring = new FrameRing<>(3);
+		long a = ring.claim(), b = ring.claim(), c = ring.claim();
+		ring.put(c, "c");
+		ring.put(b, "b");
+		assertNull(ring.take());
+		ring.put(a, "a");
+		assertEquals(0, ring.next());
+		assertEquals("a", ring.take());
+		assertEquals("b", ring.take());
+		assertEquals("c", ring.take());
+		assertEquals(3, ring.next());
+		assertNull(ring.take());
+	}
+
+	@Test(timeout = 10000)
+	public void fullRingWaits() throws Exception {
+		FrameRing<Long> ring = new FrameRing<>(2);
+		ring.put(ring.claim(), 0L);
+		ring.put(ring.claim(), 1L);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<Long> third = executor.submit(ring::claim);
+			Thread.sleep(100);
+			assertFalse(third.isDone());
+			assertEquals(Long.valueOf(0), ring.take());
+			assertEquals(2, (long) third.get(5, TimeUnit.SECONDS));
+
+			// stopping a playback interrupts its waiting workers
+			Future<Long> fourth = executor.submit(ring::claim);
+			Thread.sleep(100);
+			fourth.cancel(true);
+			executor.shutdown();
+			assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test(timeout = 30000)
+	public void workersFinishingInAnyOrder() throws Exception {
+		FrameRing<Long> ring = new FrameRing<>(8);
+		int frames = 2000;
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		CountDownLatch done = new CountDownLatch(4);
+		try {
+			for (int w = 0; w < 4; w++) {
+				Random random = new Random(w);
+				executor.submit(() -> {
+					try {
+						while (true) {
+							long sequence = ring.claim();
+							if (sequence>=frames) return null;
+							if (random.nextInt(4)==0) Thread.sleep(1);
+							ring.put(sequence, sequence);
+						}
+					} finally {
+						done.countDown();
+					}
+				});
+			}
+			List<Long> taken = new ArrayList<>();
+			while (taken.size()<frames) {
+				Long frame = ring.take();
+				if (frame==null) Thread.yield();
+				else taken.add(frame);
+			}
+			for (int i = 0; i < frames; i++) assertEquals(i, (long) taken.get(i));
+			// the workers claimed past the end without waiting for frames nobody takes
+			assertTrue(done.await(5, TimeUnit.SECONDS));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,219 @@
+package Engine;
+
+import Presets.ConditionalPreset;
+import Presets.FunctionPreset;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import org.junit.Test;
+
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the compiled evaluator ({@link Parser} and {@link KernelCompiler}) next to
+ * ij.macro.Interpreter on the same macros and inputs, pixel by pixel and a row at a
+ * time, and expects the same value in every variable.
+ */
+public class InterpreterEquivalenceTest {
+
+	private static final Settings EXACT = new Settings(false, false, 0);
+	private static final double[] VALUES = {0, 1, -1, 0.5, -0.5, 1.5, -2.5, 3, 7.25, -12, 100.125, 1e9, -3e10,
+			Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+	private static final String[] CONSTANTS = {"0", "1", "2", "0.5", "3.25", "10", "255", "NaN", "PI", "true", "false"};
+	private static final String[] ARITHMETIC = {"+", "-", "*", "/", "%"};
+	private static final String[] BITWISE = {">>", "<<", "&", "|", "^"};
+	private static final String[] COMPARISONS = {"==", "!=", "<", "<=", ">", ">="};
+	private static final String[] UNARY = {"round", "floor", "abs", "sqrt", "sin", "cos", "tan", "exp", "log", "atan", "asin", "acos"};
+	private static final String[] BINARY = {"minOf", "maxOf", "pow", "atan2"};
+	private static final int PIXELS = 64;
+
+	@Test
+	public void functionPresets() throws Exception {
+		for (FunctionPreset preset : this.<FunctionPreset>presets("/FunctionPresets.json", new TypeToken<Map<String, FunctionPreset>>(){}.getType())) {
+			if (preset.getType()==null) continue; // "custom"
+			if (preset.getType().equals("RGB")) {
+				String[] functions = preset.getFunctions();
+				check(Evaluator.RGB_VARIABLES, "code=r_new=" + functions[0] + ";\ncode=g_new=" + functions[1] + ";\ncode=b_new=" + functions[2],
+						Evaluator.R_NEW, Evaluator.G_NEW, Evaluator.B_NEW);
+			} else {
+				check(Evaluator.FUNCTION_VARIABLES, "code=v=" + preset.getFunction());
+			}
+		}
+	}
+
+	@Test
+	public void conditionalPresets() throws Exception {
+		for (ConditionalPreset preset : this.<ConditionalPreset>presets("/ConditionalPresets.json", new TypeToken<Map<String, ConditionalPreset>>(){}.getType())) {
+			if (preset.getType()==null) continue; // "custom"
+			check(Evaluator.RGB_VARIABLES, preset.getVariables() + "\n" + "if(" + preset.getCondition() + ")\n{" +
+					preset.getThen_statement() + "} \nelse {" + preset.getElse_statement() + "}");
+		}
+	}
+
+	@Test
+	public void randomExpressions() {
+		Random random = new Random(42);
+		Set<String> macros = new LinkedHashSet<>();
+		while (macros.size()<300) macros.add("code=v=" + number(random, 4));
+		for (String macro : macros) check(Evaluator.FUNCTION_VARIABLES, macro);
+	}
+
+	@Test
+	public void randomConditionals() {
+		Random random = new Random(7);
+		Set<String> macros = new LinkedHashSet<>();
+		while (macros.size()<200) {
+			macros.add("if(" + bool(random, 3) + ")\n{v = " + number(random, 3) + ";} \nelse {r = " + number(random, 2) + "; v = r;}");
+		}
+		for (String macro : macros) check(Evaluator.RGB_VARIABLES, macro);
+	}
+
+	/**
+	 * Conditionals {@link KernelCompiler} lowers to branch free selects: a missing else,
+	 * slots assigned in only one branch, NaN conditions and -0, next to ones that read
+	 * a slot their branch assigns and have to branch.
+	 */
+	@Test
+	public void selects() {
+		String[] macros = {
+				"if (x > y) v = x*2 - 1",
+				"if (v != 0) {r = x; g = -0;} else {g = y; b = v + 1;}",
+				"if (x/y < z) {r = 255; g = 0; b = 0;} else {r = 0; g = 0; b = 255;}",
+				"if (x == x) v = 1; else v = -1",
+				"if (v > 0) {r = g; g = r;} else {r = b;}",
+				"if (x >= 0) {v = x; r = v*2;} else v = -x"
+		};
+		for (String macro : macros) check(Evaluator.RGB_VARIABLES, macro);
+	}
+
+	/** @param results slots read after every pixel besides the globals */
+	private static void check(String variables, String macro, int... results) {
+		CompiledProgram program = Parser.parse(variables, macro);
+		assertNotNull("not compiled: " + macro, program);
+		Evaluator compiled = new CompiledEvaluator(program, EXACT);
+		Evaluator interpreted = interpreter(variables, macro);
+		int[] slots = declared(variables, results);
+		int[] inputs = Arrays.stream(slots).filter(slot -> slot!=Evaluator.W && slot!=Evaluator.H && slot!=Evaluator.S && slot!=Evaluator.E).toArray();
+		Random random = new Random(macro.hashCode());
+
+		// same constants as an image of 100 by 50 by 3
+		for (Evaluator evaluator : new Evaluator[]{compiled, interpreted}) {
+			evaluator.setVariable(Evaluator.W, 100);
+			evaluator.setVariable(Evaluator.H, 50);
+			evaluator.setVariable(Evaluator.S, 3);
+			evaluator.setVariable(Evaluator.E, Math.E);
+		}
+		for (int i = 0; i < PIXELS; i++) {
+			for (int slot : inputs) {
+				double value = VALUES[random.nextInt(VALUES.length)];
+				compiled.setVariable(slot, value);
+				interpreted.setVariable(slot, value);
+			}
+			compiled.run();
+			interpreted.run();
+			for (int slot : slots) {
+				assertEquals(macro + "\n" + Evaluator.NAMES[slot] + " of pixel " + i, interpreted.getVariable(slot), compiled.getVariable(slot), 0);
+			}
+		}
+
+		double[][] columns = new double[inputs.length + slots.length][PIXELS];
+		for (int k = 0; k < inputs.length; k++) {
+			for (int i = 0; i < PIXELS; i++) columns[k][i] = VALUES[random.nextInt(VALUES.length)];
+		}
+		double[][] expected = new double[slots.length][PIXELS];
+		for (int i = 0; i < PIXELS; i++) {
+			for (int k = 0; k < inputs.length; k++) interpreted.setVariable(inputs[k], columns[k][i]);
+			interpreted.run();
+			for (int k = 0; k < slots.length; k++) expected[k][i] = interpreted.getVariable(slots[k]);
+		}
+		compiled.runRow(inputs, slots, columns, 0, PIXELS);
+		for (int k = 0; k < slots.length; k++) {
+			for (int i = 0; i < PIXELS; i++) {
+				assertEquals(macro + "\n" + Evaluator.NAMES[slots[k]] + " of column " + i, expected[k][i], columns[inputs.length + k][i], 0);
+			}
+		}
+	}
+
+	/** the interpreter running the code Evaluator.create would give it */
+	private static Evaluator interpreter(String variables, String macro) {
+		String code = variables + "function dummy() {}\n" + macro + ";\n";
+		InterpreterPool.Session session = InterpreterPool.get(code, null);
+		assertNotNull("interpreter error: " + macro, session);
+		return new InterpreterEvaluator(code, null, session);
+	}
+
+	// slots of the names in a "var v,x,...;" declaration, followed by the results
+	private static int[] declared(String variables, int[] results) {
+		List<String> names = Arrays.asList(variables.substring(4, variables.indexOf(';')).split(","));
+		List<Integer> slots = new ArrayList<>();
+		for (int slot = 0; slot < Evaluator.NAMES.length; slot++) {
+			if (names.contains(Evaluator.NAMES[slot])) slots.add(slot);
+		}
+		for (int slot : results) slots.add(slot);
+		return slots.stream().mapToInt(Integer::intValue).toArray();
+	}
+
+	private <T> List<T> presets(String resource, Type type) throws Exception {
+		try (Reader reader = new InputStreamReader(getClass().getResourceAsStream(resource), StandardCharsets.UTF_8)) {
+			Map<String, T> presets = new Gson().fromJson(reader, type);
+			assertTrue(resource, presets.size()>1);
+			return new ArrayList<>(presets.values());
+		}
+	}
+
+	/*--- random macros ---*/
+
+	private static String number(Random random, int depth) {
+		switch (depth<=0 ? random.nextInt(2) : random.nextInt(9)) {
+			case 0:
+				return "vxyzdawhs".charAt(random.nextInt(9)) + "";
+			case 1:
+				return pick(random, CONSTANTS);
+			case 2:
+			case 3:
+				return "(" + number(random, depth-1) + " " + pick(random, ARITHMETIC) + " " + number(random, depth-1) + ")";
+			case 4:
+				return "(" + number(random, depth-1) + " " + pick(random, BITWISE) + " " + number(random, depth-1) + ")";
+			case 5:
+				return pick(random, UNARY) + "(" + number(random, depth-1) + ")";
+			case 6:
+				return pick(random, BINARY) + "(" + number(random, depth-1) + ", " + number(random, depth-1) + ")";
+			case 7:
+				return "(" + bool(random, depth-1) + ")";
+			default:
+				return random.nextBoolean() ? "(-" + number(random, depth-1) + ")" : "~(" + number(random, depth-1) + ")"; // "- -" is a single token
+		}
+	}
+
+	// comparisons joined by && and ||, which the interpreter evaluates from the right
+	private static String bool(Random random, int depth) {
+		StringBuilder bool = new StringBuilder();
+		int terms = 1 + random.nextInt(3);
+		for (int i = 0; i < terms; i++) {
+			if (i>0) bool.append(random.nextBoolean() ? " && " : " || ");
+			if (depth>0 && random.nextInt(4)==0) {
+				bool.append(random.nextBoolean() ? "(" : "!(").append(bool(random, depth-1)).append(")");
+			} else {
+				bool.append(number(random, depth-1)).append(" ").append(pick(random, COMPARISONS)).append(" ").append(number(random, depth-1));
+			}
+		}
+		return bool.toString();
+	}
+
+	private static String pick(Random random, String[] strings) {
+		return strings[random.nextInt(strings.length)];
+	}
+}
@@ -0,0 +1,39 @@
+package Engine;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Which interpreter macros may be forked, i.e. evaluated in any order on any thread.
+ */
+public class InterpreterPoolTest {
+
+	private static final int[] INPUTS = {Evaluator.V, Evaluator.X, Evaluator.Y};
+
+	@Test
+	public void pureFunctionsFork() {
+		assertTrue(session("v = parseFloat(d2s(x, 2)) + lengthOf(\"abc\")").isIndependent(INPUTS));
+		assertTrue(session("t = maxOf(x, y); v = t*t").isIndependent(INPUTS));
+	}
+
+	@Test
+	public void arrayFunctionsStaySequential() {
+		assertFalse(session("q = newArray(x, y, 1); Array.sort(q); v = q[0]").isIndependent(INPUTS));
+		assertFalse(session("q = newArray(3); Array.fill(q, x); v = q[1]").isIndependent(INPUTS));
+	}
+
+	@Test
+	public void carriedGlobalsStaySequential() {
+		assertFalse(session("z = z + 1; v = x + z").isIndependent(INPUTS));
+		assertTrue(session("z = z + 1; v = x + z").isIndependent(new int[]{Evaluator.V, Evaluator.X, Evaluator.Z}));
+	}
+
+	private static InterpreterPool.Session session(String macro) {
+		InterpreterPool.Session session = InterpreterPool.get(Evaluator.FUNCTION_VARIABLES + "function dummy() {}\n" + macro + ";\n", null);
+		assertNotNull(macro, session);
+		return session;
+	}
+}
@@ -0,0 +1,75 @@
+package Engine;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Soundness of the interval bounds: whenever a tile is proven uniform, every point of
+ * it evaluates to the proven outputs. The macros compare a function of x and y with a
+ * threshold near its value in the tile, so a bound that is too narrow on either side
+ * shows up as a wrong proof.
+ */
+public class IntervalsTest {
+
+	private static final int[] INPUTS = {Evaluator.X, Evaluator.Y};
+	private static final int[] OUTPUTS = {Evaluator.V};
+	private static final int TILES = 2000, POINTS = 20;
+	private static final String[] FUNCTIONS = {
+			"x*y - x/3", "x/y", "sin(x*y)", "cos(x) + y", "exp(x/3)", "atan2(y, x)", "atan(x*3)",
+			"pow(x, 2) - pow(abs(y) + 1, -1.5)", "sqrt(abs(x*y))", "log(1 + x*x)", "floor(x)*y", "round(x/3)",
+			"minOf(x, y)*maxOf(x, -y)", "asin(x/11)", "acos(y/11)", "abs(x - y)", "sin(x) + cos(y)"
+	};
+
+	@Test
+	public void exactMath() {
+		check(false);
+	}
+
+	@Test
+	public void fastMath() {
+		check(true);
+	}
+
+	private static void check(boolean fastMath) {
+		Random random = new Random(fastMath ? 2 : 1);
+		Settings settings = new Settings(fastMath, true, 0);
+		for (String function : FUNCTIONS) {
+			Evaluator value = new CompiledEvaluator(Parser.parse(Evaluator.FUNCTION_VARIABLES, "v = " + function), settings);
+			String macro = "if (" + function + " > w) v = 1; else v = -1"; // w is the same for the whole tile
+			Evaluator evaluator = new CompiledEvaluator(Parser.parse(Evaluator.FUNCTION_VARIABLES, macro), settings);
+			int proven = 0;
+			for (int t = 0; t < TILES; t++) {
+				double width = Math.pow(10, -6 + 7*random.nextDouble()), height = width*(0.5 + random.nextDouble());
+				double xLo = random.nextDouble()*20 - 10, yLo = random.nextDouble()*20 - 10;
+				double[] lo = {xLo, yLo}, hi = {xLo + width, yLo + height};
+				double centre = evaluate(value, xLo + width/2, yLo + height/2);
+				double threshold = centre + (random.nextDouble() - 0.5)*width*Math.pow(10, 3*random.nextDouble());
+				evaluator.setVariable(Evaluator.W, threshold);
+				double[] values = new double[1];
+				if (!evaluator.isUniform(INPUTS, lo.clone(), hi.clone(), OUTPUTS, values)) continue;
+				proven++;
+				for (int p = 0; p < POINTS; p++) {
+					// the corners first, then random points
+					double x = p<4 ? (p%2==0 ? lo[0] : hi[0]) : lo[0] + random.nextDouble()*width;
+					double y = p<4 ? (p/2==0 ? lo[1] : hi[1]) : lo[1] + random.nextDouble()*height;
+					x = Math.min(x, hi[0]);
+					y = Math.min(y, hi[1]);
+					assertEquals(function + " > " + threshold + " at " + x + ", " + y + " in " + lo[0] + ".." + hi[0] + ", " + lo[1] + ".." + hi[1],
+							values[0], evaluate(evaluator, x, y), 0);
+				}
+			}
+			assertTrue(function + " proven " + proven + " times", proven>TILES/10);
+		}
+	}
+
+	private static double evaluate(Evaluator evaluator, double x, double y) {
+		evaluator.setVariable(Evaluator.X, x);
+		evaluator.setVariable(Evaluator.Y, y);
+		evaluator.run();
+		return evaluator.getVariable(Evaluator.V);
+	}
+}
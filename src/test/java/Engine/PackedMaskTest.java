@@ -0,0 +1,95 @@
+package Engine;
+
+import ij.ImagePlus;
+import ij.Prefs;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Bit layout of {@link PackedMask}: rows packed most significant bit first and padded
+ * to whole bytes, for widths around a byte boundary.
+ */
+public class PackedMaskTest {
+
+	private static final int[] WIDTHS = {1, 7, 8, 9, 13, 64, 101};
+	private static final int HEIGHT = 5, SLICES = 3;
+
+	@Test
+	public void rowsRoundTrip() {
+		Random random = new Random(1);
+		for (int width : WIDTHS) {
+			PackedMask mask = new PackedMask(width, HEIGHT, SLICES);
+			boolean[][][] expected = new boolean[SLICES][HEIGHT][width];
+			for (int pass = 0; pass < 3; pass++) {
+				for (int z = 0; z < SLICES; z++) {
+					for (int y = 0; y < HEIGHT; y++) {
+						// rewrites part of the row, the other pixels keep their bits
+						int x0 = random.nextInt(width), x1 = x0 + 1 + random.nextInt(width - x0);
+						double[] values = new double[width];
+						for (int x = x0; x < x1; x++) {
+							values[x] = random.nextBoolean() ? 0 : random.nextGaussian();
+							expected[z][y][x] = values[x]!=0;
+						}
+						mask.setRow(z, y, values, x0, x1);
+					}
+				}
+			}
+			for (int z = 0; z < SLICES; z++) {
+				for (int y = 0; y < HEIGHT; y++) {
+					for (int x = 0; x < width; x++) {
+						assertEquals("width " + width + " pixel " + x + ", " + y + ", " + z, expected[z][y][x], mask.get(x, y, z));
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void writtenAsBitmap() throws IOException {
+		PackedMask mask = new PackedMask(10, 2, 1);
+		double[] row = {1, 0, 0, 0, 0, 0, 0, 1, 1, 0};
+		mask.setRow(0, 0, row, 0, 10);
+		mask.setRow(0, 1, new double[]{0, 0, 0, 0, 0, 0, 0, 0, 0, -1}, 0, 10);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		mask.writeSlice(0, out);
+		assertArrayEquals(new byte[]{(byte) 0x81, (byte) 0x80, 0, 0x40}, out.toByteArray());
+	}
+
+	@Test
+	public void copiedSlices() {
+		PackedMask mask = new PackedMask(9, 3, 2);
+		mask.setRow(0, 1, new double[]{1, 0, 1, 0, 1, 0, 1, 0, 1}, 0, 9);
+		mask.copySlice(0, 1);
+		for (int y = 0; y < 3; y++) {
+			for (int x = 0; x < 9; x++) assertEquals(mask.get(x, y, 0), mask.get(x, y, 1));
+		}
+		assertEquals(true, mask.get(8, 1, 1));
+	}
+
+	@Test
+	public void binaryImage() {
+		boolean blackBackground = Prefs.blackBackground;
+		try {
+			PackedMask mask = new PackedMask(9, 2, 2);
+			mask.setRow(1, 1, new double[]{0, 1, 0, 0, 0, 0, 0, 0, 1}, 0, 9);
+			for (boolean black : new boolean[]{true, false}) {
+				Prefs.blackBackground = black;
+				ImagePlus image = mask.toImagePlus("mask");
+				assertEquals(2, image.getStackSize());
+				assertEquals(!black, image.isInvertedLut());
+				byte[] pixels = (byte[]) image.getStack().getPixels(2);
+				for (int i = 0; i < pixels.length; i++) {
+					assertEquals("pixel " + i, i==10 || i==17 ? 255 : 0, pixels[i] & 0xff);
+				}
+			}
+		} finally {
+			Prefs.blackBackground = blackBackground;
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package Engine;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The subset of the macro language the parser compiles, and the fallback to the
+ * interpreter for everything else.
+ */
+public class ParserTest {
+
+	private static final String[] COMPILED = {
+			"code=v=sin(d)*x + pow(y, 2)",
+			"t = x*2; v = t + t",
+			"if (x > y && d < 3) v = 255; else v = 0",
+			"v += 3; v = minOf(v, 10)",
+			"r_new = r; g_new = b; b_new = round(g/2)"
+	};
+	private static final String[] INTERPRETED = {
+			"v = 0; for (i = 0; i < 3; i++) v = v + x",
+			"v = getPixel(0, 0)",
+			"v = random",
+			"t = \"abc\"; v = lengthOf(t)",
+			"v = q + 1", // q is undefined
+			"if (x) v = 1", // not a boolean
+			"q = newArray(1, 2); v = q[1]",
+			"v = f(x); function f(t) {return t;}"
+	};
+
+	@Test
+	public void subsetCompiles() {
+		for (String macro : COMPILED) {
+			assertNotNull(macro, Parser.parse(Evaluator.RGB_VARIABLES, macro));
+			assertTrue(macro, Evaluator.isCompilable(Evaluator.RGB_VARIABLES, macro));
+		}
+	}
+
+	@Test
+	public void restFallsBack() {
+		for (String macro : INTERPRETED) assertNull(macro, Parser.parse(Evaluator.RGB_VARIABLES, macro));
+		assertFalse(Evaluator.isCompilable(Evaluator.RGB_VARIABLES, INTERPRETED[0]));
+	}
+
+	@Test
+	public void interpreterEvaluatesTheRest() {
+		Evaluator evaluator = Evaluator.create(Evaluator.RGB_VARIABLES, INTERPRETED[0], new Settings(false, false, 0));
+		assertNotNull(evaluator);
+		assertFalse(evaluator instanceof CompiledEvaluator);
+		for (double x : new double[]{0, 1.5, -7}) {
+			evaluator.setVariable(Evaluator.X, x);
+			evaluator.run();
+			assertEquals(3*x, evaluator.getVariable(Evaluator.V), 0);
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package Engine;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Lookup tables of macros that only depend on d or a: which macros get one, and that
+ * every pixel comes out as the macro at a coordinate at most the error away.
+ */
+public class ProfileTest {
+
+	private static final int[] INPUTS = {Evaluator.X, Evaluator.Y, Evaluator.D, Evaluator.A};
+	private static final int[] OUTPUTS = {Evaluator.V};
+	private static final double ERROR = 0.01;
+
+	@Test
+	public void onlyMacrosOfOneCoordinate() {
+		assertNotNull(profile("code=v=sin(d)*100 + d", ERROR));
+		assertNotNull(profile("code=v=sin(a*8)", ERROR));
+		assertNull(profile("code=v=sin(d) + x", ERROR));
+		assertNull(profile("code=v=d*a", ERROR));
+		assertNull(profile("code=v=sin(d)", 0));
+	}
+
+	@Test
+	public void radius() {
+		// slope 3, so the value may be 3*ERROR off
+		check("code=v=3*d", 500, 3*ERROR);
+	}
+
+	@Test
+	public void angle() {
+		check("code=v=sin(a)", 2*Math.PI, ERROR);
+	}
+
+	@Test
+	public void exactWithoutError() {
+		Evaluator evaluator = new CompiledEvaluator(Parser.parse(Evaluator.FUNCTION_VARIABLES, "code=v=sin(d)"), new Settings(false, false, 0));
+		double[][] columns = row(new Random(1), 200, 100);
+		evaluator.runRow(INPUTS, OUTPUTS, columns, 0, 200);
+		for (int i = 0; i < 200; i++) assertTrue(columns[4][i]==Math.sin(columns[2][i]));
+	}
+
+	private static Profile profile(String macro, double error) {
+		CompiledProgram program = Parser.parse(Evaluator.FUNCTION_VARIABLES, macro);
+		return program.profile(INPUTS, OUTPUTS, error, false);
+	}
+
+	/** renders a row of random coordinates below range and compares with the exact macro */
+	private static void check(String macro, double range, double bound) {
+		CompiledProgram program = Parser.parse(Evaluator.FUNCTION_VARIABLES, macro);
+		Evaluator table = new CompiledEvaluator(program, new Settings(false, false, ERROR));
+		Evaluator exact = new CompiledEvaluator(program, new Settings(false, false, 0));
+		double[][] columns = row(new Random(macro.hashCode()), 1000, range);
+		double[][] expected = row(new Random(macro.hashCode()), 1000, range);
+		table.runRow(INPUTS, OUTPUTS, columns, 0, 1000);
+		exact.runRow(INPUTS, OUTPUTS, expected, 0, 1000);
+		boolean tabled = false;
+		for (int i = 0; i < 1000; i++) {
+			double off = Math.abs(columns[4][i] - expected[4][i]);
+			assertTrue(macro + " off by " + off + " at " + i, off<=bound*(1 + 1e-9));
+			tabled |= off>0;
+		}
+		assertTrue(macro + " not taken from the table", tabled);
+	}
+
+	// x, y, d and a columns followed by the output column, x and y are not read
+	private static double[][] row(Random random, int width, double range) {
+		double[][] columns = new double[5][width];
+		for (int i = 0; i < width; i++) {
+			columns[2][i] = random.nextDouble()*range;
+			columns[3][i] = random.nextDouble()*range;
+		}
+		return columns;
+	}
+}
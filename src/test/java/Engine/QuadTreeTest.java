@@ -0,0 +1,112 @@
+package Engine;
+
+import org.junit.Test;
+
+import java.util.BitSet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Adaptive renders of macros that do not read the pixel values, for several minimum
+ * tiles, compared pixel by pixel with the plain row by row render.
+ */
+public class QuadTreeTest {
+
+	private static final int WIDTH = 201, HEIGHT = 157;
+	private static final int[] TILES = {1, 4, 8, 64};
+	private static final String[] MACROS = {
+			"if (d < 5) v = sin(x); else v = 0",
+			"if (abs(x - y) < 0.05) v = 1; else v = 0", // one pixel wide diagonal
+			"if (d < 0.15) v = 1; else v = 0", // a single pixel at the origin
+			"if (x > 2.05 && x < 2.15 && y > -3.15 && y < -3.05) v = 1; else v = 0",
+			"v = x*y",
+			"if (a > 1) v = 100; else if (d > 7) v = -1; else v = d*d"
+	};
+
+	@Test
+	public void exactForEveryMinimumTile() {
+		for (String macro : MACROS) {
+			double[] expected = render(macro, new Counting(macro, false, 0));
+			for (int tile : TILES) {
+				assertArrayEquals(macro + ", tile " + tile, expected, render(macro, new Counting(macro, true, tile)), 0);
+			}
+		}
+	}
+
+	@Test
+	public void uniformTilesAreFilled() {
+		String macro = "if (d < 0.15) v = 1; else v = 0";
+		for (int tile : TILES) {
+			Counting evaluator = new Counting(macro, true, tile);
+			render(macro, evaluator);
+			assertTrue("tile " + tile + " evaluated " + evaluator.pixels, evaluator.pixels<WIDTH*HEIGHT/4);
+		}
+	}
+
+	@Test
+	public void minimumTileIsClamped() {
+		assertTrue(new Settings(false, true, 0, 0).getMinimumTile()==1);
+		assertTrue(new Settings(false, true, 0, 1000).getMinimumTile()==QuadTree.MAX_TILE);
+		assertTrue(new Settings(false, true, 0).getMinimumTile()==QuadTree.DEFAULT_MINIMUM_TILE);
+	}
+
+	// x and y from -10 to 10 in steps of 0.1, so the origin is a pixel
+	private static double[] render(String macro, Evaluator evaluator) {
+		RowBuffer buffer = new RowBuffer(evaluator, WIDTH, -10, 0.1, true, true, true, new int[0], new int[]{Evaluator.V});
+		double[] pixels = new double[WIDTH*HEIGHT];
+		double[] column = buffer.output(Evaluator.V);
+		buffer.run(0, HEIGHT, 0, WIDTH, y -> y*0.1 - 7.8, y -> {}, y -> System.arraycopy(column, 0, pixels, y*WIDTH, WIDTH));
+		return pixels;
+	}
+
+	/** compiled macro that counts the pixels it evaluates */
+	private static final class Counting extends Evaluator {
+
+		private final Evaluator evaluator;
+		private final boolean pruning;
+		private final int tile;
+		private long pixels;
+
+		Counting(String macro, boolean pruning, int tile) {
+			CompiledProgram program = Parser.parse(FUNCTION_VARIABLES, macro);
+			evaluator = new CompiledEvaluator(program, new Settings(false, pruning, 0, tile));
+			this.pruning = pruning;
+			this.tile = tile;
+		}
+
+		public void setVariable(int slot, double value) {
+			evaluator.setVariable(slot, value);
+		}
+
+		public double getVariable(int slot) {
+			return evaluator.getVariable(slot);
+		}
+
+		public void run() {
+			pixels++;
+			evaluator.run();
+		}
+
+		public void runRow(int[] inputs, int[] outputs, double[][] columns, int from, int to) {
+			pixels += to - from;
+			evaluator.runRow(inputs, outputs, columns, from, to);
+		}
+
+		public boolean dependsOn(BitSet slots, int[] inputs, int[] outputs) {
+			return evaluator.dependsOn(slots, inputs, outputs);
+		}
+
+		boolean isUniform(int[] inputs, double[] lo, double[] hi, int[] outputs, double[] values) {
+			return evaluator.isUniform(inputs, lo, hi, outputs, values);
+		}
+
+		boolean prunesTiles() {
+			return pruning;
+		}
+
+		int minimumTile() {
+			return tile;
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package Engine;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Settings are taken from the preferences once, evaluators and their forks keep them
+ * when the preferences change afterwards.
+ */
+public class SettingsTest {
+
+	private Settings saved;
+
+	@Before
+	public void savePreferences() {
+		saved = Settings.current();
+	}
+
+	@After
+	public void restorePreferences() {
+		set(saved);
+	}
+
+	@Test
+	public void snapshot() {
+		set(new Settings(true, false, 0.5, 4));
+		Settings settings = Settings.current();
+		set(new Settings(false, true, 0, 16));
+		assertTrue(settings.isFastMath());
+		assertFalse(settings.isTilePruning());
+		assertEquals(0.5, settings.getProfileError(), 0);
+		assertEquals(4, settings.getMinimumTile());
+		assertEquals("fast false pruning true tile 16 error 0.0", Settings.current().toString());
+	}
+
+	@Test
+	public void evaluatorsKeepTheirSettings() {
+		set(new Settings(true, true, 0, 2));
+		Evaluator evaluator = Evaluator.create(Evaluator.FUNCTION_VARIABLES, "code=v=sin(x)");
+		set(new Settings(false, false, 0, 32));
+		Evaluator fork = evaluator.fork(new int[]{Evaluator.X});
+		for (Evaluator e : new Evaluator[]{evaluator, fork}) {
+			assertTrue(e.usesFastMath());
+			assertTrue(e.prunesTiles());
+			assertEquals(2, e.minimumTile());
+		}
+	}
+
+	@Test
+	public void everySettingChangesTheString() {
+		Settings[] settings = {
+				new Settings(false, false, 0), new Settings(true, false, 0), new Settings(false, true, 0),
+				new Settings(false, false, 0.01), new Settings(false, false, 0, 16)
+		};
+		Set<String> strings = new HashSet<>();
+		for (Settings s : settings) strings.add(s.toString());
+		assertEquals(settings.length, strings.size());
+		assertEquals(new Settings(true, true, 0.25, 4).toString(), new Settings(true, true, 0.25, 4).withFastMath(false).withFastMath(true).toString());
+	}
+
+	private static void set(Settings settings) {
+		Evaluator.setFastMath(settings.isFastMath());
+		Evaluator.setTilePruning(settings.isTilePruning());
+		Evaluator.setProfileError(settings.getProfileError());
+		Evaluator.setMinimumTile(settings.getMinimumTile());
+	}
+}
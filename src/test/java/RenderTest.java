@@ -0,0 +1,230 @@
+import Engine.PackedMask;
+import Engine.Settings;
+import Presets.ConditionalPreset;
+import Presets.FunctionPreset;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.Prefs;
+import ij.process.ColorProcessor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Renders the presets and a few macros that carry state from pixel to pixel in row
+ * bands, a slice per worker and with tile pruning, and expects the same pixels as
+ * the sequential render with one thread.
+ */
+public class RenderTest {
+
+	private static final Settings SEQUENTIAL = new Settings(false, false, 0);
+	private static final Settings PRUNED = new Settings(false, true, 0);
+	private static final String[] TYPES = {"8-bit", "16-bit", "32-bit", "RGB"};
+	private static final String[] STATEFUL = {
+			"x = x*2; v = x + v;",
+			"s = s + 0.5; v = s * (x + y);",
+			"w = w - 1; v = w + d;",
+			"y = y * 1.01; v = sin(y) * 100 + 100;"
+	};
+	private static final String[] MASKS = {
+			"if (d < 5) v = 1; else v = 0;",
+			"if (sin(x*y + z) > 0.3) v = 1; else v = 0;",
+			"if (abs(x - y) < 0.2 || a > 2) v = 1; else v = 0;"
+	};
+	private static final double[] MIN = {-10, -8, 0}, MAX = {10, 8, 2};
+	private static final int WIDTH = 97, HEIGHT = 83, SLICES = 3;
+
+	private int threads;
+
+	@Before
+	public void saveThreads() {
+		threads = Prefs.getThreads();
+	}
+
+	@After
+	public void restoreThreads() {
+		Prefs.setThreads(threads);
+	}
+
+	@Test
+	public void functionPresets() throws Exception {
+		Map<String, FunctionPreset> presets = presets("/FunctionPresets.json", new TypeToken<Map<String, FunctionPreset>>(){}.getType());
+		for (Map.Entry<String, FunctionPreset> entry : presets.entrySet()) {
+			FunctionPreset preset = entry.getValue();
+			if (preset.getType()==null) continue; // "custom"
+			if (preset.getType().equals("RGB")) {
+				String[] functions = preset.getFunctions();
+				check(entry.getKey(), "RGB", (imp, settings) -> new FunctionImageSynthesizer(settings).functionToImage(imp, MIN, MAX, functions));
+				check(entry.getKey() + " local", "RGB", (imp, settings) -> new FunctionImageSynthesizer(settings).functionToNormalizedImage(imp, MIN, MAX, functions));
+				check(entry.getKey() + " global", "RGB", (imp, settings) -> new FunctionImageSynthesizer(settings).functionToGlobalNormalizedImage(imp, MIN, MAX, functions));
+				continue;
+			}
+			String function = preset.getFunction();
+			for (String type : TYPES) {
+				check(entry.getKey(), type, (imp, settings) -> new FunctionImageSynthesizer(settings).functionToImage(imp, MIN, MAX, function));
+				if (!type.equals("32-bit")) {
+					check(entry.getKey() + " normalized", type, (imp, settings) -> new FunctionImageSynthesizer(settings).functionToNormalizedImage(imp, MIN, MAX, function));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void conditionalPresets() throws Exception {
+		Map<String, ConditionalPreset> presets = presets("/ConditionalPresets.json", new TypeToken<Map<String, ConditionalPreset>>(){}.getType());
+		for (Map.Entry<String, ConditionalPreset> entry : presets.entrySet()) {
+			ConditionalPreset preset = entry.getValue();
+			if (preset.getType()==null) continue; // "custom"
+			String macro = preset.getVariables() + "\n" + "if(" + preset.getCondition() + ")\n{" +
+					preset.getThen_statement() + "} \nelse {" + preset.getElse_statement() + "}";
+			for (String type : TYPES) {
+				check(entry.getKey(), type, (imp, settings) -> new MacroImageSynthesizer(settings).macroToImage(imp, MIN, MAX, macro));
+				if (!type.equals("32-bit")) {
+					check(entry.getKey() + " local", type, (imp, settings) -> new MacroImageSynthesizer(settings).macroToNormalizedImage(imp, MIN, MAX, macro, false));
+					check(entry.getKey() + " global", type, (imp, settings) -> new MacroImageSynthesizer(settings).macroToNormalizedImage(imp, MIN, MAX, macro, true));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void statefulMacros() {
+		for (String macro : STATEFUL) {
+			for (String type : TYPES) {
+				check(macro, type, (imp, settings) -> new MacroImageSynthesizer(settings).macroToImage(imp, MIN, MAX, macro));
+			}
+		}
+	}
+
+	/**
+	 * Masks of conditionals have their bits set where the 8-bit render is not 0, whether
+	 * they are kept or streamed slice by slice.
+	 */
+	@Test
+	public void masks() throws IOException {
+		for (String macro : MASKS) {
+			for (int threads : new int[]{1, 4}) {
+				Prefs.setThreads(threads);
+				ImagePlus imp = IJ.createImage("render", "8-bit black", WIDTH, HEIGHT, SLICES);
+				new MacroImageSynthesizer(SEQUENTIAL).macroToImage(imp, MIN, MAX, macro);
+				PackedMask mask = new PackedMask(WIDTH, HEIGHT, SLICES);
+				new MacroImageSynthesizer(PRUNED).macroToMask(mask, MIN, MAX, macro);
+				ByteArrayOutputStream streamed = new ByteArrayOutputStream(), kept = new ByteArrayOutputStream();
+				new MacroImageSynthesizer(SEQUENTIAL).macroToMask(WIDTH, HEIGHT, SLICES, MIN, MAX, macro, streamed);
+				for (int z = 0; z < SLICES; z++) {
+					mask.writeSlice(z, kept);
+					byte[] pixels = (byte[]) imp.getStack().getPixels(z + 1);
+					for (int i = 0; i < pixels.length; i++) {
+						assertEquals(macro + " pixel " + i + " of slice " + z, pixels[i]!=0, mask.get(i%WIDTH, i/WIDTH, z));
+					}
+				}
+				assertArrayEquals(macro + " streamed", kept.toByteArray(), streamed.toByteArray());
+			}
+		}
+	}
+
+	/**
+	 * A preview rendered coarse to fine ends with the pixels of a single render, for
+	 * the image types and with the input image read by the macros.
+	 */
+	@Test
+	public void refinedPreviews() {
+		String[] functions = {"x*y + z", "sin(d)*100", "v + a*10"};
+		for (String type : TYPES) {
+			ImagePlus source = IJ.createImage("source", type + " ramp", WIDTH, HEIGHT, 1);
+			for (String function : functions) {
+				FunctionImageSynthesizer synthesizer = new FunctionImageSynthesizer(SEQUENTIAL);
+				if (type.equals("RGB")) {
+					String[] rgb = {function, function.replace('x', 'y'), "128"};
+					checkPreview(function + ", " + type, passes -> synthesizer.getPreview(source.getProcessor(), SLICES, MIN, MAX, 2, rgb, false, false, false, 0, passes));
+				} else {
+					checkPreview(function + ", " + type, passes -> synthesizer.getPreview(source.getProcessor(), SLICES, MIN, MAX, 2, function, false, false, 0, passes));
+				}
+			}
+			for (String macro : MASKS) {
+				MacroImageSynthesizer synthesizer = new MacroImageSynthesizer(SEQUENTIAL);
+				checkPreview(macro + ", " + type, passes -> synthesizer.getPreview(source.getProcessor(), SLICES, MIN, MAX, 2, macro.replace("v = 1", "v = v + x"), false, false, false, 0, passes));
+			}
+		}
+	}
+
+	/**
+	 * The coarse passes of a preview come in the size of the final preview, so the
+	 * dialog shows all of them through the same raster.
+	 */
+	@Test
+	public void previewsKeepTheirSize() {
+		for (int[] size : new int[][]{{WIDTH, HEIGHT}, {600, 90}, {40, 700}, {256, 256}}) {
+			ImagePlus source = IJ.createImage("source", "8-bit ramp", size[0], size[1], 1);
+			List<ColorProcessor> previews = new ArrayList<>();
+			ColorProcessor preview = new MacroImageSynthesizer(SEQUENTIAL).getPreview(source.getProcessor(), SLICES, MIN, MAX, 1, MASKS[0], true, false, false, 0, previews::add);
+			previews.add(preview);
+			for (ColorProcessor pass : previews) {
+				assertEquals(size[0] + " x " + size[1], preview.getWidth(), pass.getWidth());
+				assertEquals(size[0] + " x " + size[1], preview.getHeight(), pass.getHeight());
+				assertEquals(pass.getWidth()*pass.getHeight(), ((int[]) pass.getPixels()).length);
+			}
+			assertEquals(4, previews.size());
+			assertEquals(256, Math.max(preview.getWidth(), preview.getHeight()));
+		}
+	}
+
+	private interface Preview {
+		ColorProcessor render(Consumer<ColorProcessor> passes);
+	}
+
+	private static void checkPreview(String name, Preview preview) {
+		int[] expected = (int[]) preview.render(null).getPixels();
+		int[] passes = new int[1];
+		int[] refined = (int[]) preview.render(pass -> passes[0]++).getPixels();
+		assertEquals(name + " passes", 3, passes[0]);
+		assertArrayEquals(name, expected, refined);
+	}
+
+	private interface Render {
+		void render(ImagePlus imp, Settings settings);
+	}
+
+	/**
+	 * With 4 threads the 3 slices are rendered one after another in bands, with 2 threads
+	 * each worker renders whole slices. The pixel arrays of the slices are compared
+	 * element by element, floats by their bits.
+	 */
+	private static void check(String name, String type, Render render) {
+		Object[] expected = render(type, 1, SEQUENTIAL, render);
+		assertArrayEquals(name + ", " + type + " pruned", expected, render(type, 1, PRUNED, render));
+		assertArrayEquals(name + ", " + type + " banded", expected, render(type, 4, SEQUENTIAL, render));
+		assertArrayEquals(name + ", " + type + " banded and pruned", expected, render(type, 4, PRUNED, render));
+		assertArrayEquals(name + ", " + type + " stacked", expected, render(type, 2, SEQUENTIAL, render));
+		assertArrayEquals(name + ", " + type + " stacked and pruned", expected, render(type, 2, PRUNED, render));
+	}
+
+	private static Object[] render(String type, int threads, Settings settings, Render render) {
+		Prefs.setThreads(threads);
+		ImagePlus imp = IJ.createImage("render", type + " black", WIDTH, HEIGHT, SLICES);
+		render.render(imp, settings);
+		return imp.getStack().getImageArray();
+	}
+
+	private <T> Map<String, T> presets(String resource, Type type) throws Exception {
+		try (Reader reader = new InputStreamReader(getClass().getResourceAsStream(resource), StandardCharsets.UTF_8)) {
+			return new Gson().fromJson(reader, type);
+		}
+	}
+}